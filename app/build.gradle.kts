@@ -89,6 +89,14 @@ android {
     androidResources {
         localeFilters += listOf("en")
     }
+
+    testOptions {
+        // the forked ExifInterface logs through the framework, which does nothing on the JVM.
+        // Framework classes that hold data can't be used on the paths the tests take, the stubs
+        // never set their fields, so the fork has its own small types instead of e.g.
+        // android.util.Pair.
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -101,6 +109,8 @@ dependencies {
 
     implementation(libs.zxing.core)
 
+    testImplementation(libs.junit)
+
     androidTestImplementation(libs.androidx.test.core.ktx)
     androidTestImplementation(libs.androidx.test.ext.junit.ktx)
     androidTestImplementation(libs.androidx.test.rules)
@@ -0,0 +1,263 @@
+package app.grapheneos.camera
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import androidxc.exifinterface.media.ExifInterface
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * ImageSaver reads and writes the metadata of every capture through the forked ExifInterface, so
+ * its local fast paths have to agree with the upstream stream-based code they replace.
+ */
+@RunWith(AndroidJUnit4::class)
+class ExifInterfaceRegressionTest {
+
+    private val tags = arrayOf(
+        ExifInterface.TAG_MAKE,
+        ExifInterface.TAG_MODEL,
+        ExifInterface.TAG_DATETIME_ORIGINAL,
+        ExifInterface.TAG_ORIENTATION,
+        ExifInterface.TAG_EXPOSURE_TIME,
+        ExifInterface.TAG_GPS_LATITUDE,
+        ExifInterface.TAG_XMP,
+        ExifInterface.TAG_IMAGE_WIDTH,
+        ExifInterface.TAG_IMAGE_LENGTH,
+    )
+
+    /** A small JPEG carrying the kind of metadata a camera HAL writes. */
+    private fun capture(): ByteArray {
+        val bitmap = Bitmap.createBitmap(640, 480, Bitmap.Config.ARGB_8888)
+        bitmap.eraseColor(Color.DKGRAY)
+        val plain = ByteArrayOutputStream().use {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, it)
+            it.toByteArray()
+        }
+
+        val exif = ExifInterface(ByteArrayInputStream(plain))
+        exif.setAttribute(ExifInterface.TAG_MAKE, "Google")
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel")
+        exif.setAttribute(ExifInterface.TAG_DATETIME_ORIGINAL, "2026:07:24 15:30:12")
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_ROTATE_90.toString())
+        exif.setAttribute(ExifInterface.TAG_EXPOSURE_TIME, "0.01")
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, "10/1,20/1,30/1")
+        exif.setAttribute(ExifInterface.TAG_XMP, "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"/>")
+        return ByteArrayOutputStream().use {
+            exif.saveAttributes(ByteArrayInputStream(plain), it)
+            it.toByteArray()
+        }
+    }
+
+    /**
+     * processExif() parses the capture buffer in place. Everything it reads has to be what the
+     * stream constructor would have read, offsets included, since they locate tags in the file.
+     */
+    @Test
+    fun byteBuffer_readsWhatTheStreamConstructorReads() {
+        val jpeg = capture()
+        val fromStream = ExifInterface(ByteArrayInputStream(jpeg))
+        val fromBuffer = ExifInterface(ByteBuffer.wrap(jpeg))
+
+        for (tag in tags) {
+            assertEquals(tag, fromStream.getAttribute(tag), fromBuffer.getAttribute(tag))
+            assertArrayEquals(tag, fromStream.getAttributeRange(tag), fromBuffer.getAttributeRange(tag))
+        }
+    }
+
+    /**
+     * The gallery reads the details of an item without decoding every value. Whatever it does
+     * look up has to be what eager parsing finds.
+     */
+    @Test
+    fun lazyParsing_readsWhatEagerParsingReads() {
+        val jpeg = capture()
+        val eager = ExifInterface(ByteArrayInputStream(jpeg))
+        val lazy = ExifInterface(ByteArrayInputStream(jpeg),
+                ExifInterface.STREAM_TYPE_FULL_IMAGE_DATA, ExifInterface.PARSE_FLAG_LAZY)
+
+        for (tag in tags) {
+            assertEquals(tag, eager.getAttribute(tag), lazy.getAttribute(tag))
+            assertArrayEquals(tag, eager.getAttributeRange(tag), lazy.getAttributeRange(tag))
+        }
+        assertEquals(eager.hasThumbnail(), lazy.hasThumbnail())
+    }
+
+    /** The image starts at the buffer's position, which is left where it was. */
+    @Test
+    fun byteBuffer_readsFromThePositionWithoutMovingIt() {
+        val jpeg = capture()
+        val buffer = ByteBuffer.allocate(jpeg.size + 16)
+        buffer.position(16)
+        buffer.put(jpeg)
+        buffer.position(16)
+
+        val exif = ExifInterface(buffer)
+
+        assertEquals("Pixel", exif.getAttribute(ExifInterface.TAG_MODEL))
+        assertEquals(16, buffer.position())
+    }
+
+    /**
+     * ImageSaver writes captures by splicing the new metadata in front of the untouched image
+     * data. The file has to be the one the stream based writer would have produced.
+     */
+    @Test
+    fun saveToFileDescriptor_writesWhatTheStreamWriterWrites() {
+        val jpeg = capture()
+
+        fun edited() = ExifInterface(ByteBuffer.wrap(jpeg)).apply {
+            setAttribute(ExifInterface.TAG_MODEL, "Pixel 2")
+            setAttribute(ExifInterface.TAG_ARTIST, "GrapheneOS")
+            setAttribute(ExifInterface.TAG_GPS_LATITUDE, null)
+        }
+
+        val expected = ByteArrayOutputStream().use {
+            edited().saveAttributes(ByteArrayInputStream(jpeg), it)
+            it.toByteArray()
+        }
+
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        val file = File.createTempFile("splice", ".jpg", context.cacheDir)
+        try {
+            FileOutputStream(file).use { edited().saveAttributes(ByteBuffer.wrap(jpeg), it.fd) }
+            assertArrayEquals(expected, file.readBytes())
+        } finally {
+            file.delete()
+        }
+    }
+
+    /**
+     * Captures of a session are written through a shared segment template. Whether the template
+     * is filled in, reused or rebuilt for a different set of tags, the file has to be the same.
+     */
+    @Test
+    fun segmentTemplate_writesWhatAFullRewriteWrites() {
+        val jpeg = capture()
+        val template = ExifInterface.SegmentTemplate()
+
+        fun save(model: String, withLatitude: Boolean, template: ExifInterface.SegmentTemplate?) =
+            ByteArrayOutputStream().use {
+                val exif = ExifInterface(ByteBuffer.wrap(jpeg), ExifInterface.PARSE_FLAG_LAZY)
+                exif.setSegmentTemplate(template)
+                exif.setAttribute(ExifInterface.TAG_MODEL, model)
+                if (!withLatitude) {
+                    exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, null)
+                }
+                exif.saveAttributes(ByteArrayInputStream(jpeg), it)
+                it.toByteArray()
+            }
+
+        for ((model, withLatitude) in listOf("Pixel 8" to true, "Pixel 9" to true,
+                "Pixel 9" to false, "Pixel 10" to true)) {
+            assertArrayEquals("$model $withLatitude", save(model, withLatitude, null),
+                    save(model, withLatitude, template))
+        }
+    }
+
+    /**
+     * The thumbnail ImageSaver embeds is what the gallery reads back instead of decoding the
+     * image, and it has to be located where the file says it is.
+     */
+    @Test
+    fun setThumbnail_isReadBackFromTheSavedFile() {
+        val jpeg = capture()
+        val bitmap = Bitmap.createBitmap(320, 240, Bitmap.Config.ARGB_8888)
+        bitmap.eraseColor(Color.LTGRAY)
+        val thumbnail = ByteArrayOutputStream().use {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, it)
+            it.toByteArray()
+        }
+
+        val exif = ExifInterface(ByteBuffer.wrap(jpeg))
+        exif.setThumbnail(thumbnail)
+        assertArrayEquals(longArrayOf(-1, thumbnail.size.toLong()), exif.thumbnailRange)
+        val saved = ByteArrayOutputStream().use {
+            exif.saveAttributes(ByteArrayInputStream(jpeg), it)
+            it.toByteArray()
+        }
+
+        val reread = ExifInterface(ByteBuffer.wrap(saved))
+        assertArrayEquals(thumbnail, reread.thumbnail)
+        val range = reread.thumbnailRange!!
+        assertArrayEquals(thumbnail,
+                saved.copyOfRange(range[0].toInt(), (range[0] + range[1]).toInt()))
+        assertEquals("Pixel", reread.getAttribute(ExifInterface.TAG_MODEL))
+    }
+
+    /**
+     * Captures reserve room in their EXIF segment so that later edits rewrite only that segment.
+     * The image data after it has to stay as it was.
+     */
+    @Test
+    fun saveAttributesInPlace_rewritesOnlyTheExifSegment() {
+        val jpeg = capture()
+        val padded = ByteArrayOutputStream().use {
+            val exif = ExifInterface(ByteBuffer.wrap(jpeg))
+            exif.setExifSegmentPadding(4096)
+            exif.saveAttributes(ByteArrayInputStream(jpeg), it)
+            it.toByteArray()
+        }
+
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        val file = File.createTempFile("in_place", ".jpg", context.cacheDir)
+        try {
+            file.writeBytes(padded)
+            val exif = ExifInterface(file)
+            exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, null)
+            exif.setAttribute(ExifInterface.TAG_ARTIST, "GrapheneOS")
+            assertTrue(exif.saveAttributesInPlace())
+
+            val saved = file.readBytes()
+            assertEquals(padded.size, saved.size)
+            val reread = ExifInterface(file)
+            assertNull(reread.getAttribute(ExifInterface.TAG_GPS_LATITUDE))
+            assertEquals("GrapheneOS", reread.getAttribute(ExifInterface.TAG_ARTIST))
+            assertEquals("Pixel", reread.getAttribute(ExifInterface.TAG_MODEL))
+            val imageStart = padded.size - jpeg.size / 2
+            assertArrayEquals(padded.copyOfRange(imageStart, padded.size),
+                    saved.copyOfRange(imageStart, saved.size))
+        } finally {
+            file.delete()
+        }
+    }
+
+    /**
+     * "Remove EXIF after capture" is on by default. It has to leave nothing behind but the
+     * orientation, which decides which way up the image is shown, and that includes XMP.
+     */
+    @Test
+    fun clearExif_keepsOnlyTheOrientation() {
+        val jpeg = capture()
+        val exif = ExifInterface(ByteBuffer.wrap(jpeg))
+        exif.clearExif()
+
+        val saved = ByteArrayOutputStream().use {
+            exif.saveAttributes(ByteArrayInputStream(jpeg), it)
+            it.toByteArray()
+        }
+        val reread = ExifInterface(ByteArrayInputStream(saved))
+
+        assertEquals(ExifInterface.ORIENTATION_ROTATE_90,
+                reread.getAttributeInt(ExifInterface.TAG_ORIENTATION, 0))
+        for (tag in tags) {
+            if (tag == ExifInterface.TAG_ORIENTATION
+                    // filled in from the JPEG frame header when there's no EXIF value
+                    || tag == ExifInterface.TAG_IMAGE_WIDTH
+                    || tag == ExifInterface.TAG_IMAGE_LENGTH) {
+                continue
+            }
+            assertNull(tag, reread.getAttribute(tag))
+        }
+    }
+}
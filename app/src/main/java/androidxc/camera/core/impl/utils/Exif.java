@@ -24,24 +24,22 @@ import android.location.Location;
 import androidx.annotation.VisibleForTesting;
 import androidx.camera.core.ImageProxy;
 import androidx.camera.core.Logger;
+import androidxc.exifinterface.media.ExifDateTime;
 import androidxc.exifinterface.media.ExifInterface;
 
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.TimeZone;
 
 /**
  * Utility class for modifying metadata on JPEG files.
@@ -58,28 +56,6 @@ public final class Exif {
 
     private static final String TAG = Exif.class.getSimpleName();
 
-    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
-            new ThreadLocal<SimpleDateFormat>() {
-                @Override
-                public SimpleDateFormat initialValue() {
-                    return new SimpleDateFormat("yyyy:MM:dd", Locale.US);
-                }
-            };
-    private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT =
-            new ThreadLocal<SimpleDateFormat>() {
-                @Override
-                public SimpleDateFormat initialValue() {
-                    return new SimpleDateFormat("HH:mm:ss", Locale.US);
-                }
-            };
-    private static final ThreadLocal<SimpleDateFormat> DATETIME_FORMAT =
-            new ThreadLocal<SimpleDateFormat>() {
-                @Override
-                public SimpleDateFormat initialValue() {
-                    return new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
-                }
-            };
-
     private static final String KILOMETERS_PER_HOUR = "K";
     private static final String MILES_PER_HOUR = "M";
     private static final String KNOTS = "N";
@@ -130,10 +106,8 @@ public final class Exif {
         // Rewind to make sure it is at the beginning of the buffer
         buffer.rewind();
 
-        byte[] data = new byte[buffer.capacity()];
-        buffer.get(data);
-        InputStream inputStream = new ByteArrayInputStream(data);
-        return Exif.createFromInputStream(inputStream);
+        // androidxc: parse the plane buffer in place instead of copying it into a byte array
+        return Exif.createFromByteBuffer(buffer);
     }
 
     /**
@@ -154,20 +128,29 @@ public final class Exif {
         return new Exif(new ExifInterface(is));
     }
 
-    private static String convertToExifDateTime(long timestamp) {
-        return DATETIME_FORMAT.get().format(new Date(timestamp));
-    }
-
-    private static Date convertFromExifDateTime(String dateTime) throws ParseException {
-        return DATETIME_FORMAT.get().parse(dateTime);
+    /**
+     * androidxc: Returns an Exif from the exif data contained in the remaining bytes of the
+     * buffer. The buffer is read in place and must not be modified while the Exif is in use.
+     * Values are decoded when they are first read, most tags of a capture are only ever copied
+     * or dropped.
+     *
+     * @param buffer the buffer to read exif data from
+     */
+    public static @NonNull Exif createFromByteBuffer(@NonNull ByteBuffer buffer)
+            throws IOException {
+        return new Exif(new ExifInterface(buffer, ExifInterface.PARSE_FLAG_LAZY));
     }
 
-    private static Date convertFromExifDate(String date) throws ParseException {
-        return DATE_FORMAT.get().parse(date);
+    // androidxc: dates are formatted and parsed with ExifDateTime rather than with a
+    // SimpleDateFormat per thread, in the default time zone as before
+    private static String convertToExifDateTime(long timestamp) {
+        return ExifDateTime.formatDateTime(
+                ExifDateTime.toLocalMillis(timestamp, TimeZone.getDefault()));
     }
 
-    private static Date convertFromExifTime(String time) throws ParseException {
-        return TIME_FORMAT.get().parse(time);
+    private static long convertFromLocalMillis(long localMillis) {
+        return localMillis == ExifDateTime.INVALID ? INVALID_TIMESTAMP
+                : ExifDateTime.toUtcMillis(localMillis, TimeZone.getDefault());
     }
 
     /** Persists changes to disc. */
@@ -325,12 +308,7 @@ public final class Exif {
         String datetime = convertToExifDateTime(now);
 
         mExifInterface.setAttribute(ExifInterface.TAG_DATETIME, datetime);
-
-        try {
-            String subsec = Long.toString(now - convertFromExifDateTime(datetime).getTime());
-            mExifInterface.setAttribute(ExifInterface.TAG_SUBSEC_TIME, subsec);
-        } catch (ParseException e) {
-        }
+        mExifInterface.setAttribute(ExifInterface.TAG_SUBSEC_TIME, ExifDateTime.formatSubsec(now));
     }
 
     /**
@@ -345,15 +323,7 @@ public final class Exif {
 
         String subSecs = mExifInterface.getAttribute(ExifInterface.TAG_SUBSEC_TIME);
         if (subSecs != null) {
-            try {
-                long sub = Long.parseLong(subSecs);
-                while (sub > 1000) {
-                    sub /= 10;
-                }
-                timestamp += sub;
-            } catch (NumberFormatException e) {
-                // Ignored
-            }
+            timestamp += ExifDateTime.parseSubsec(subSecs);
         }
 
         return timestamp;
@@ -372,15 +342,7 @@ public final class Exif {
 
         String subSecs = mExifInterface.getAttribute(ExifInterface.TAG_SUBSEC_TIME_ORIGINAL);
         if (subSecs != null) {
-            try {
-                long sub = Long.parseLong(subSecs);
-                while (sub > 1000) {
-                    sub /= 10;
-                }
-                timestamp += sub;
-            } catch (NumberFormatException e) {
-                // Ignored
-            }
+            timestamp += ExifDateTime.parseSubsec(subSecs);
         }
 
         return timestamp;
@@ -622,12 +584,9 @@ public final class Exif {
         mExifInterface.setAttribute(ExifInterface.TAG_DATETIME_ORIGINAL, datetime);
         mExifInterface.setAttribute(ExifInterface.TAG_DATETIME_DIGITIZED, datetime);
 
-        try {
-            String subsec = Long.toString(now - convertFromExifDateTime(datetime).getTime());
-            mExifInterface.setAttribute(ExifInterface.TAG_SUBSEC_TIME_ORIGINAL, subsec);
-            mExifInterface.setAttribute(ExifInterface.TAG_SUBSEC_TIME_DIGITIZED, subsec);
-        } catch (ParseException e) {
-        }
+        String subsec = ExifDateTime.formatSubsec(now);
+        mExifInterface.setAttribute(ExifInterface.TAG_SUBSEC_TIME_ORIGINAL, subsec);
+        mExifInterface.setAttribute(ExifInterface.TAG_SUBSEC_TIME_DIGITIZED, subsec);
 
         mRemoveTimestamp = false;
     }
@@ -669,20 +628,17 @@ public final class Exif {
             return INVALID_TIMESTAMP;
         }
         if (time == null) {
-            try {
-                return convertFromExifDate(date).getTime();
-            } catch (ParseException e) {
-                return INVALID_TIMESTAMP;
-            }
+            return convertFromLocalMillis(ExifDateTime.parseDate(date));
         }
         if (date == null) {
-            try {
-                return convertFromExifTime(time).getTime();
-            } catch (ParseException e) {
-                return INVALID_TIMESTAMP;
-            }
+            return convertFromLocalMillis(ExifDateTime.parseTime(time));
+        }
+        long dateMillis = ExifDateTime.parseDate(date);
+        long timeMillis = ExifDateTime.parseTime(time);
+        if (dateMillis == ExifDateTime.INVALID || timeMillis == ExifDateTime.INVALID) {
+            return INVALID_TIMESTAMP;
         }
-        return parseTimestamp(date + " " + time);
+        return convertFromLocalMillis(dateMillis + timeMillis);
     }
 
     /** @return The timestamp (in millis), or {@link #INVALID_TIMESTAMP} if no time is available. */
@@ -690,11 +646,7 @@ public final class Exif {
         if (datetime == null) {
             return INVALID_TIMESTAMP;
         }
-        try {
-            return convertFromExifDateTime(datetime).getTime();
-        } catch (ParseException e) {
-            return INVALID_TIMESTAMP;
-        }
+        return convertFromLocalMillis(ExifDateTime.parseDateTime(datetime));
     }
 
     private static final class Speed {
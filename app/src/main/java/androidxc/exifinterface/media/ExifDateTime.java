@@ -0,0 +1,351 @@
+package androidxc.exifinterface.media;
+
+import org.jspecify.annotations.NonNull;
+
+import java.time.Month;
+import java.time.Year;
+import java.util.TimeZone;
+
+/**
+ * androidxc: Formats and parses the date and time values of Exif, "yyyy:MM:dd HH:mm:ss" with
+ * the "+hh:mm" offset and the sub-second digits that go with it, and the "yyyyMMdd_HHmmss_SSS"
+ * stamp that captures are named with.
+ *
+ * <p>Times are passed around as local milliseconds: the wall-clock time counted from
+ * 1970-01-01 00:00:00 as if it were in UTC, which is how Exif stores them. Only
+ * {@link #toLocalMillis(long, TimeZone)} and {@link #toUtcMillis(long, TimeZone)} involve a time
+ * zone. Values are written into and read from character buffers directly, nothing is allocated
+ * apart from the strings returned by the methods that return one, and there is no state, so the
+ * methods can be called from any thread.
+ *
+ * <p>Parsing is strict about the ranges of the fields, unlike the lenient
+ * {@link java.text.SimpleDateFormat} it replaces: "2024:13:01 00:00:00" is invalid rather than
+ * the first of January 2025. Characters after a value are ignored.
+ */
+public final class ExifDateTime {
+    /** Returned by the methods that parse a time when the value is invalid. */
+    public static final long INVALID = Long.MIN_VALUE;
+    /** Returned by {@link #parseOffset(CharSequence)} when the value is invalid. */
+    public static final int INVALID_OFFSET = Integer.MIN_VALUE;
+
+    /** The length of "yyyy:MM:dd HH:mm:ss". */
+    public static final int DATE_TIME_LENGTH = 19;
+    /** The length of "yyyy:MM:dd". */
+    public static final int DATE_LENGTH = 10;
+    /** The length of "HH:mm:ss". */
+    public static final int TIME_LENGTH = 8;
+    /** The length of "+hh:mm". */
+    public static final int OFFSET_LENGTH = 6;
+    /** The length of "yyyyMMdd_HHmmss_SSS", "_SSS" being optional. */
+    public static final int FILE_NAME_STAMP_LENGTH = 19;
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+    // the largest offset from UTC that is in use, as in ExifInterface
+    private static final int MAX_OFFSET_HOURS = 14;
+
+    private ExifDateTime() {}
+
+    /** Returns the local time of the given instant in the given zone. */
+    public static long toLocalMillis(long utcMillis, @NonNull TimeZone zone) {
+        return utcMillis + zone.getOffset(utcMillis);
+    }
+
+    /**
+     * Returns the instant of the given local time in the given zone. Local times that a
+     * transition skips are moved forward by the length of the gap, and of the two instants of a
+     * local time that a transition repeats, the later one is returned, as Calendar does.
+     */
+    public static long toUtcMillis(long localMillis, @NonNull TimeZone zone) {
+        int offset = zone.getOffset(localMillis - zone.getOffset(localMillis));
+        return localMillis - offset;
+    }
+
+    /**
+     * Writes "yyyy:MM:dd HH:mm:ss" to dst at the given offset and returns the offset after it.
+     *
+     * @throws IllegalArgumentException if the year isn't between 0 and 9999
+     */
+    public static int formatDateTime(long localMillis, char @NonNull [] dst, int offset) {
+        return formatDateTime(localMillis, ':', dst, offset);
+    }
+
+    /**
+     * Writes the date and time with the given separator between the fields of the date, e.g.
+     * "yyyy-MM-dd HH:mm:ss", to dst at the given offset and returns the offset after it.
+     *
+     * @throws IllegalArgumentException if the year isn't between 0 and 9999
+     */
+    public static int formatDateTime(long localMillis, char dateSeparator, char @NonNull [] dst,
+            int offset) {
+        offset = formatDate(localMillis, dateSeparator, dst, offset);
+        dst[offset++] = ' ';
+        return formatTime(localMillis, dst, offset);
+    }
+
+    /**
+     * Returns "yyyy:MM:dd HH:mm:ss".
+     *
+     * @throws IllegalArgumentException if the year isn't between 0 and 9999
+     */
+    public static @NonNull String formatDateTime(long localMillis) {
+        char[] chars = new char[DATE_TIME_LENGTH];
+        formatDateTime(localMillis, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Writes "yyyy:MM:dd", with the given separator in place of ':', to dst at the given offset
+     * and returns the offset after it.
+     *
+     * @throws IllegalArgumentException if the year isn't between 0 and 9999
+     */
+    public static int formatDate(long localMillis, char separator, char @NonNull [] dst,
+            int offset) {
+        int date = toYearMonthDay(localMillis);
+        offset = writeDigits(date / 10000, 4, dst, offset);
+        dst[offset++] = separator;
+        offset = writeDigits(date / 100 % 100, 2, dst, offset);
+        dst[offset++] = separator;
+        return writeDigits(date % 100, 2, dst, offset);
+    }
+
+    /** Writes "HH:mm:ss" to dst at the given offset and returns the offset after it. */
+    public static int formatTime(long localMillis, char @NonNull [] dst, int offset) {
+        int seconds = (int) (Math.floorMod(localMillis, MILLIS_PER_DAY) / 1000);
+        offset = writeDigits(seconds / 3600, 2, dst, offset);
+        dst[offset++] = ':';
+        offset = writeDigits(seconds / 60 % 60, 2, dst, offset);
+        dst[offset++] = ':';
+        return writeDigits(seconds % 60, 2, dst, offset);
+    }
+
+    /** Writes "+hh:mm" to dst at the given offset and returns the offset after it. */
+    public static int formatOffset(int offsetMillis, char @NonNull [] dst, int offset) {
+        dst[offset++] = offsetMillis < 0 ? '-' : '+';
+        int minutes = Math.abs(offsetMillis / 60_000);
+        offset = writeDigits(minutes / 60, 2, dst, offset);
+        dst[offset++] = ':';
+        return writeDigits(minutes % 60, 2, dst, offset);
+    }
+
+    /** Returns "+hh:mm". */
+    public static @NonNull String formatOffset(int offsetMillis) {
+        char[] chars = new char[OFFSET_LENGTH];
+        formatOffset(offsetMillis, chars, 0);
+        return new String(chars);
+    }
+
+    /** Returns the milliseconds of the second as the three sub-second digits of Exif. */
+    public static @NonNull String formatSubsec(long millis) {
+        char[] chars = new char[3];
+        writeDigits((int) Math.floorMod(millis, 1000L), 3, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Writes "yyyyMMdd_HHmmss_SSS", or "yyyyMMdd_HHmmss" if withMillis is false, to dst at the
+     * given offset and returns the offset after it.
+     *
+     * @throws IllegalArgumentException if the year isn't between 0 and 9999
+     */
+    public static int formatFileNameStamp(long localMillis, boolean withMillis,
+            char @NonNull [] dst, int offset) {
+        offset = writeDigits(toYearMonthDay(localMillis), 8, dst, offset);
+        dst[offset++] = '_';
+        int seconds = (int) (Math.floorMod(localMillis, MILLIS_PER_DAY) / 1000);
+        offset = writeDigits(seconds / 3600, 2, dst, offset);
+        offset = writeDigits(seconds / 60 % 60, 2, dst, offset);
+        offset = writeDigits(seconds % 60, 2, dst, offset);
+        if (withMillis) {
+            dst[offset++] = '_';
+            offset = writeDigits((int) Math.floorMod(localMillis, 1000L), 3, dst, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns "yyyyMMdd_HHmmss_SSS", or "yyyyMMdd_HHmmss" if withMillis is false.
+     *
+     * @throws IllegalArgumentException if the year isn't between 0 and 9999
+     */
+    public static @NonNull String formatFileNameStamp(long localMillis, boolean withMillis) {
+        char[] chars = new char[FILE_NAME_STAMP_LENGTH];
+        int length = formatFileNameStamp(localMillis, withMillis, chars, 0);
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Parses "yyyy:MM:dd HH:mm:ss" or "yyyy-MM-dd HH:mm:ss", the two forms ExifInterface reads.
+     *
+     * @return the local time, or {@link #INVALID}
+     */
+    public static long parseDateTime(@NonNull CharSequence s) {
+        if (s.length() < DATE_TIME_LENGTH || s.charAt(DATE_LENGTH) != ' ') {
+            return INVALID;
+        }
+        long date = parseDate(s, 0);
+        long time = parseTime(s, DATE_LENGTH + 1);
+        return date != INVALID && time != INVALID ? date + time : INVALID;
+    }
+
+    /**
+     * Parses "yyyy:MM:dd" or "yyyy-MM-dd".
+     *
+     * @return the local time of the start of the day, or {@link #INVALID}
+     */
+    public static long parseDate(@NonNull CharSequence s) {
+        return parseDate(s, 0);
+    }
+
+    private static long parseDate(CharSequence s, int start) {
+        if (s.length() - start < DATE_LENGTH) {
+            return INVALID;
+        }
+        char separator = s.charAt(start + 4);
+        if ((separator != ':' && separator != '-') || s.charAt(start + 7) != separator) {
+            return INVALID;
+        }
+        return toLocalMillis(readDigits(s, start, 4), readDigits(s, start + 5, 2),
+                readDigits(s, start + 8, 2));
+    }
+
+    /**
+     * Parses "HH:mm:ss".
+     *
+     * @return the milliseconds since the start of the day, or {@link #INVALID}
+     */
+    public static long parseTime(@NonNull CharSequence s) {
+        return parseTime(s, 0);
+    }
+
+    private static long parseTime(CharSequence s, int start) {
+        if (s.length() - start < TIME_LENGTH || s.charAt(start + 2) != ':'
+                || s.charAt(start + 5) != ':') {
+            return INVALID;
+        }
+        return toMillisOfDay(readDigits(s, start, 2), readDigits(s, start + 3, 2),
+                readDigits(s, start + 6, 2));
+    }
+
+    /**
+     * Parses "+hh:mm" or "-hh:mm".
+     *
+     * @return the offset from UTC in milliseconds, or {@link #INVALID_OFFSET}
+     */
+    public static int parseOffset(@NonNull CharSequence s) {
+        if (s.length() < OFFSET_LENGTH || s.charAt(3) != ':') {
+            return INVALID_OFFSET;
+        }
+        char sign = s.charAt(0);
+        int hours = readDigits(s, 1, 2);
+        int minutes = readDigits(s, 4, 2);
+        if ((sign != '+' && sign != '-') || hours < 0 || hours > MAX_OFFSET_HOURS
+                || minutes < 0 || minutes > 59) {
+            return INVALID_OFFSET;
+        }
+        int millis = (hours * 60 + minutes) * 60_000;
+        return sign == '-' ? -millis : millis;
+    }
+
+    /**
+     * Parses the sub-second digits of Exif, of which the first three are taken into account.
+     *
+     * @return the milliseconds, or 0 if the value isn't made of digits
+     */
+    public static int parseSubsec(@NonNull CharSequence s) {
+        int millis = 0;
+        for (int i = 0; i < 3; ++i) {
+            millis *= 10;
+            if (i < s.length()) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return 0;
+                }
+                millis += c - '0';
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Parses "yyyyMMdd_HHmmss_SSS" or "yyyyMMdd_HHmmss", e.g. the part of a file name of a capture
+     * after its prefix.
+     *
+     * @return the local time, or {@link #INVALID}
+     */
+    public static long parseFileNameStamp(@NonNull CharSequence s) {
+        if (s.length() < FILE_NAME_STAMP_LENGTH - 4 || s.charAt(8) != '_') {
+            return INVALID;
+        }
+        long date = toLocalMillis(readDigits(s, 0, 4), readDigits(s, 4, 2), readDigits(s, 6, 2));
+        long time = toMillisOfDay(readDigits(s, 9, 2), readDigits(s, 11, 2), readDigits(s, 13, 2));
+        if (date == INVALID || time == INVALID) {
+            return INVALID;
+        }
+        // what follows the seconds may be something else than the milliseconds
+        int millis = s.length() >= FILE_NAME_STAMP_LENGTH && s.charAt(15) == '_'
+                ? readDigits(s, 16, 3) : -1;
+        return date + time + Math.max(millis, 0);
+    }
+
+    // Returns the date as the digits of yyyyMMdd, see
+    // http://howardhinnant.github.io/date_algorithms.html for the conversion from days.
+    private static int toYearMonthDay(long localMillis) {
+        long z = Math.floorDiv(localMillis, MILLIS_PER_DAY) + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            throw new IllegalArgumentException("Year out of range: " + year);
+        }
+        return (int) year * 10000 + month * 100 + day;
+    }
+
+    private static long toLocalMillis(int year, int month, int day) {
+        if (year < 0 || month < 1 || month > 12 || day < 1
+                || day > Month.of(month).length(Year.isLeap(year))) {
+            return INVALID;
+        }
+        // the inverse of toYearMonthDay()
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return ((long) era * 146097 + dayOfEra - 719468) * MILLIS_PER_DAY;
+    }
+
+    private static long toMillisOfDay(int hours, int minutes, int seconds) {
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0
+                || seconds > 59) {
+            return INVALID;
+        }
+        return ((hours * 60L + minutes) * 60 + seconds) * 1000;
+    }
+
+    // Returns the value of the given number of digits at start, or -1 if they aren't all digits.
+    private static int readDigits(CharSequence s, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; ++i) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int writeDigits(int value, int count, char[] dst, int offset) {
+        for (int i = offset + count - 1; i >= offset; --i) {
+            dst[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + count;
+    }
+}
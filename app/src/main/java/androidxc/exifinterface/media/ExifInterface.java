@@ -23,8 +23,9 @@ import static androidxc.exifinterface.media.ExifInterfaceUtils.closeFileDescript
 import static androidxc.exifinterface.media.ExifInterfaceUtils.closeQuietly;
 import static androidxc.exifinterface.media.ExifInterfaceUtils.convertToLongArray;
 import static androidxc.exifinterface.media.ExifInterfaceUtils.copy;
-import static androidxc.exifinterface.media.ExifInterfaceUtils.parseSubSeconds;
+import static androidxc.exifinterface.media.ExifInterfaceUtils.pwriteFully;
 import static androidxc.exifinterface.media.ExifInterfaceUtils.startsWith;
+import static androidxc.exifinterface.media.ExifInterfaceUtils.writeFully;
 
 import static java.lang.annotation.ElementType.TYPE_USE;
 import static java.nio.ByteOrder.BIG_ENDIAN;
@@ -42,7 +43,6 @@ import android.os.Build;
 import android.system.Os;
 import android.system.OsConstants;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.RestrictTo;
@@ -65,29 +65,28 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
-import java.util.TimeZone;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -3035,6 +3034,35 @@ public class ExifInterface {
     @IntDef({STREAM_TYPE_FULL_IMAGE_DATA, STREAM_TYPE_EXIF_DATA_ONLY})
     public @interface ExifStreamType {}
 
+    /**
+     * androidxc: Flag used to defer decoding Exif values until they are requested. Parsing only
+     * records where each value is, and a value is decoded the first time its tag is read. The
+     * thumbnail of a JPEG image isn't located until it is requested either. This suits readers
+     * that look at a few tags, and doesn't apply to RAW images, which are parsed in place.
+     */
+    public static final int PARSE_FLAG_LAZY = 1;
+
+    /**
+     * androidxc: Flag used to bound the memory a parse of untrusted input may use. The buffers
+     * that are sized by lengths read from the image data are charged to a budget for the whole
+     * parse, and no single buffer may be larger than a fraction of it. Image file directories
+     * are read up to a number of entries and a nesting depth, and a stream that has to be
+     * buffered to be seeked is only read up to the budget. Parsing stops at the first thing that
+     * exceeds a limit, and the attributes read up to that point are kept.
+     */
+    public static final int PARSE_FLAG_STRICT = 1 << 1;
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(flag = true, value = {PARSE_FLAG_LAZY, PARSE_FLAG_STRICT})
+    public @interface ParseFlags {}
+
+    // androidxc: limits of PARSE_FLAG_STRICT
+    static final int STRICT_ALLOCATION_BUDGET = 4 * 1024 * 1024;
+    static final int STRICT_MAX_BUFFER_SIZE = 1024 * 1024;
+    static final int STRICT_MAX_IFD_ENTRIES = 512;
+    static final int STRICT_MAX_IFD_DEPTH = 8;
+
     @Retention(RetentionPolicy.SOURCE)
     @Target(TYPE_USE)
     @IntDef({
@@ -3135,9 +3163,6 @@ public class ExifInterface {
     private static final int WEBP_CHUNK_TYPE_BYTE_LENGTH = 4;
     private static final int WEBP_CHUNK_SIZE_BYTE_LENGTH = 4;
 
-    private static final SimpleDateFormat sFormatterPrimary;
-    private static final SimpleDateFormat sFormatterSecondary;
-
     // See Exchangeable image file format for digital still cameras: Exif version 2.2.
     // The following values are for parsing EXIF data area. There are tag groups in EXIF data area.
     // They are called "Image File Directory". They have multiple data formats to cover various
@@ -3168,6 +3193,9 @@ public class ExifInterface {
     private static final int IFD_FORMAT_IFD = 13;
 
     private static final int SKIP_BUFFER_SIZE = 8192;
+    // androidxc: the size of the buffer PNG and WebP chunks are copied through, see
+    // ByteOrderedDataInputStream.transfer()
+    private static final int TRANSFER_BUFFER_SIZE = 65536;
 
     // Names for the data formats for debugging purpose.
     private static final String[] IFD_FORMAT_NAMES = new String[] {
@@ -3647,6 +3675,242 @@ public class ExifInterface {
         }
     }
 
+    // androidxc: a map keyed by tag number. Tag numbers are 16-bit, so they are kept unboxed in an
+    // int array, found by open addressing with linear probing. Names are resolved to numbers
+    // through sExifTagNumbers, see tagNumberOf().
+    //
+    // A key can also be mapped to a pending value, a long the table keeps for its decoder, which
+    // turns it into the value the first time the key is looked up.
+    private static final class TagTable<V> {
+        private static final int EMPTY = -1;
+
+        interface Decoder<V> {
+            @NonNull V decode(int key, long pendingValue);
+        }
+
+        private int[] mKeys;
+        private Object[] mValues;
+        private long @Nullable [] mPendingValues;
+        private final @Nullable Decoder<V> mDecoder;
+        private int mSize;
+
+        TagTable() {
+            this(8, null);
+        }
+
+        TagTable(int expectedSize) {
+            this(expectedSize, null);
+        }
+
+        TagTable(int expectedSize, @Nullable Decoder<V> decoder) {
+            int capacity = 16;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            mKeys = new int[capacity];
+            Arrays.fill(mKeys, EMPTY);
+            mValues = new Object[capacity];
+            mDecoder = decoder;
+        }
+
+        private int home(int key) {
+            int hash = key * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & (mKeys.length - 1);
+        }
+
+        // Returns the slot of the key, or the bitwise complement of the empty slot it would go in.
+        private int find(int key) {
+            final int mask = mKeys.length - 1;
+            for (int i = home(key); ; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    return i;
+                }
+                if (mKeys[i] == EMPTY) {
+                    return ~i;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Nullable V get(int key) {
+            if (key < 0) {
+                return null;
+            }
+            int i = find(key);
+            if (i < 0) {
+                return null;
+            }
+            if (mValues[i] == null) {
+                mValues[i] = mDecoder.decode(key, mPendingValues[i]);
+            }
+            return (V) mValues[i];
+        }
+
+        @Nullable V get(@NonNull String name) {
+            return get(tagNumberOf(name));
+        }
+
+        boolean containsKey(@NonNull String name) {
+            int key = tagNumberOf(name);
+            return key >= 0 && find(key) >= 0;
+        }
+
+        // Putting null removes the key, there are no null values.
+        void put(int key, @Nullable V value) {
+            if (value == null) {
+                remove(key);
+                return;
+            }
+            // insert() may replace the array, so it has to be called before the array is read
+            int i = insert(key);
+            mValues[i] = value;
+        }
+
+        void put(@NonNull String name, @Nullable V value) {
+            put(tagNumberOf(name), value);
+        }
+
+        // Maps the key to a value to be decoded when it is first looked up.
+        void putPending(int key, long pendingValue) {
+            if (mPendingValues == null) {
+                mPendingValues = new long[mKeys.length];
+            }
+            int i = insert(key);
+            mValues[i] = null;
+            mPendingValues[i] = pendingValue;
+        }
+
+        private int insert(int key) {
+            if (key < 0) {
+                throw new IllegalArgumentException("Invalid tag number: " + key);
+            }
+            int i = find(key);
+            if (i < 0) {
+                if ((mSize + 1) * 2 > mKeys.length) {
+                    grow();
+                    i = find(key);
+                }
+                i = ~i;
+                mKeys[i] = key;
+                mSize++;
+            }
+            return i;
+        }
+
+        void remove(int key) {
+            if (key < 0) {
+                return;
+            }
+            int i = find(key);
+            if (i < 0) {
+                return;
+            }
+            // Shift the entries of the probe sequence back instead of leaving a tombstone.
+            final int mask = mKeys.length - 1;
+            int hole = i;
+            for (int j = (i + 1) & mask; mKeys[j] != EMPTY; j = (j + 1) & mask) {
+                if (((j - home(mKeys[j])) & mask) >= ((j - hole) & mask)) {
+                    mKeys[hole] = mKeys[j];
+                    mValues[hole] = mValues[j];
+                    if (mPendingValues != null) {
+                        mPendingValues[hole] = mPendingValues[j];
+                    }
+                    hole = j;
+                }
+            }
+            mKeys[hole] = EMPTY;
+            mValues[hole] = null;
+            mSize--;
+        }
+
+        void remove(@NonNull String name) {
+            remove(tagNumberOf(name));
+        }
+
+        private void grow() {
+            int[] keys = mKeys;
+            Object[] values = mValues;
+            long[] pendingValues = mPendingValues;
+            mKeys = new int[keys.length * 2];
+            Arrays.fill(mKeys, EMPTY);
+            mValues = new Object[keys.length * 2];
+            mPendingValues = pendingValues != null ? new long[keys.length * 2] : null;
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] != EMPTY) {
+                    int j = ~find(keys[i]);
+                    mKeys[j] = keys[i];
+                    mValues[j] = values[i];
+                    if (pendingValues != null) {
+                        mPendingValues[j] = pendingValues[i];
+                    }
+                }
+            }
+        }
+
+        // Decodes all pending values.
+        void decodeAll() {
+            if (mPendingValues == null) {
+                return;
+            }
+            for (int i = 0; i < mKeys.length; ++i) {
+                if (mKeys[i] != EMPTY && mValues[i] == null) {
+                    get(mKeys[i]);
+                }
+            }
+            mPendingValues = null;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        // The keys in ascending order, the order entries are written to an IFD in.
+        int @NonNull [] keys() {
+            int[] keys = new int[mSize];
+            int n = 0;
+            for (int key : mKeys) {
+                if (key != EMPTY) {
+                    keys[n++] = key;
+                }
+            }
+            Arrays.sort(keys);
+            return keys;
+        }
+    }
+
+    /**
+     * androidxc: The layout of the last Exif segment written with this template. Images taken in
+     * the same camera session mostly carry the same tags, in the same formats and with the same
+     * numbers of components, and only differ in their values. When the attributes of a JPEG image
+     * have the shape of the ones the template was made from, its segment is written by copying
+     * the values into the TIFF data of the previous one, without laying it out again. Otherwise,
+     * the segment is laid out as usual and replaces the template.
+     *
+     * <p>Only writing is sped up. The Exif data of each image is still parsed in full, since its
+     * attributes are what is compared with the template and copied into it.
+     *
+     * <p>A template can be shared between instances, see {@link #setSegmentTemplate}, and used
+     * from multiple threads.
+     */
+    public static final class SegmentTemplate {
+        ByteOrder mByteOrder;
+        // Per IFD type, the tag numbers in ascending order and, in the same order, the formats,
+        // numbers of components and the positions of the values in mTiffData
+        int[][] mTagNumbers;
+        int[][] mFormats;
+        int[][] mCounts;
+        int[][] mValuePositions;
+        int[] mIfdOffsets;
+        // -1 if there is no thumbnail
+        int mThumbnailOffset;
+        // The TIFF data as written, without the thumbnail, or null if nothing was written yet
+        byte[] mTiffData;
+    }
+
     // Primary image IFD TIFF tags (See JEITA CP-3451C Section 4.6.8 Tag Support Levels)
     private static final ExifTag[] IFD_TIFF_TAGS = new ExifTag[] {
             // For below two, see TIFF 6.0 Spec Section 3: Bilevel Images.
@@ -3922,12 +4186,15 @@ public class ExifInterface {
 
     // Mappings from tag number to tag name and each item represents one IFD tag group.
     @SuppressWarnings("unchecked")
-    private static final HashMap<Integer, ExifTag>[] sExifTagMapsForReading =
-            new HashMap[EXIF_TAGS.length];
+    private static final TagTable<ExifTag>[] sExifTagMapsForReading =
+            (TagTable<ExifTag>[]) new TagTable<?>[EXIF_TAGS.length];
     // Mappings from tag name to tag number and each item represents one IFD tag group.
     @SuppressWarnings("unchecked")
     private static final HashMap<String, ExifTag>[] sExifTagMapsForWriting =
-            new HashMap[EXIF_TAGS.length];
+            (HashMap<String, ExifTag>[]) new HashMap<?, ?>[EXIF_TAGS.length];
+    // androidxc: mappings from tag name to the number of the tag in each IFD tag group, or -1 where
+    // the group doesn't define it. A name is looked up once, rather than once per group.
+    private static final HashMap<String, int[]> sExifTagNumbers = new HashMap<>();
 
     /**
      * These are tags of type 'Unsigned rational' but which are handled in decimal form.
@@ -3953,7 +4220,7 @@ public class ExifInterface {
                                     TAG_SUBJECT_DISTANCE)));
 
     // Mappings from tag number to IFD type for pointer tags.
-    private static final HashMap<Integer, Integer> sExifPointerTagMap = new HashMap<>();
+    private static final TagTable<Integer> sExifPointerTagMap = new TagTable<>();
 
     // See JPEG File Interchange Format Version 1.02.
     // The following values are defined for handling JPEG streams. In this implementation, we are
@@ -4002,18 +4269,20 @@ public class ExifInterface {
     private static final int IMAGE_TYPE_AVIF = 15;
 
     static {
-        sFormatterPrimary = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
-        sFormatterPrimary.setTimeZone(TimeZone.getTimeZone("UTC"));
-        sFormatterSecondary = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-        sFormatterSecondary.setTimeZone(TimeZone.getTimeZone("UTC"));
-
         // Build up the hash tables to look up Exif tags for reading Exif tags.
         for (int ifdType = 0; ifdType < EXIF_TAGS.length; ++ifdType) {
-            sExifTagMapsForReading[ifdType] = new HashMap<>();
+            sExifTagMapsForReading[ifdType] = new TagTable<>(EXIF_TAGS[ifdType].length);
             sExifTagMapsForWriting[ifdType] = new HashMap<>();
             for (ExifTag tag : EXIF_TAGS[ifdType]) {
                 sExifTagMapsForReading[ifdType].put(tag.number, tag);
                 sExifTagMapsForWriting[ifdType].put(tag.name, tag);
+                int[] numbers = sExifTagNumbers.get(tag.name);
+                if (numbers == null) {
+                    numbers = new int[EXIF_TAGS.length];
+                    Arrays.fill(numbers, -1);
+                    sExifTagNumbers.put(tag.name, numbers);
+                }
+                numbers[ifdType] = tag.number;
             }
         }
 
@@ -4029,11 +4298,34 @@ public class ExifInterface {
     private String mFilename;
     private FileDescriptor mSeekableFileDescriptor;
     private AssetManager.AssetInputStream mAssetInputStream;
+    // androidxc: the image data of instances created with ExifInterface(ByteBuffer). The EXIF
+    // segment is parsed in place and the thumbnail is read from it on demand.
+    @Nullable private ByteBuffer mByteBuffer;
+    // androidxc: see PARSE_FLAG_LAZY
+    private @ParseFlags int mParseFlags;
+    // androidxc: the bytes newInputBuffer() may still allocate and the number of IFDs being read
+    // through pointers, see PARSE_FLAG_STRICT
+    private long mAllocationBudget;
+    private int mIfdDepth;
+    // androidxc: see SegmentTemplate
+    @Nullable private SegmentTemplate mSegmentTemplate;
+    // androidxc: the TIFF data that the pending values of mAttributes are decoded from, see
+    // decodePendingAttribute(), and the offset of the data in the file
+    @Nullable private ByteBuffer mPendingExifData;
+    private int mPendingOffsetToExifData;
+    // androidxc: the stream over mPendingExifData while it is being parsed
+    @Nullable private ByteOrderedDataInputStream mPendingExifDataInput;
+    // androidxc: the TIFF data of a JPEG image whose thumbnail is located on demand
+    @Nullable private ByteBuffer mPendingThumbnailData;
     private int mMimeType;
     private boolean mIsExifDataOnly;
+    // androidxc: keyed by tag number, see TagTable
     @SuppressWarnings("unchecked")
-    private final HashMap<String, ExifAttribute>[] mAttributes = new HashMap[EXIF_TAGS.length];
-    private Set<Integer> mAttributesOffsets = new HashSet<>(EXIF_TAGS.length);
+    private final TagTable<ExifAttribute>[] mAttributes =
+            (TagTable<ExifAttribute>[]) new TagTable<?>[EXIF_TAGS.length];
+    // androidxc: the first mAttributesOffsetCount entries are the offsets of the IFDs read so far
+    private int[] mAttributesOffsets = new int[EXIF_TAGS.length];
+    private int mAttributesOffsetCount;
     private ByteOrder mExifByteOrder = BIG_ENDIAN;
     private boolean mHasThumbnail;
     private boolean mHasThumbnailStrips;
@@ -4043,6 +4335,9 @@ public class ExifInterface {
     private int mThumbnailLength;
     private byte[] mThumbnailBytes;
     private int mThumbnailCompression;
+    // androidxc: whether mThumbnailBytes was set by setThumbnail() and can't be read again from
+    // the source
+    private boolean mThumbnailReplaced;
     // Used to indicate offset from the start of the original input stream to EXIF data
     private int mOffsetToExifData;
     private int mOrfMakerNoteOffset;
@@ -4070,8 +4365,22 @@ public class ExifInterface {
      */
     private boolean mFileOnDiskContainsSeparateXmpMarker;
 
-    // Pattern to check non zero timestamp
-    private static final Pattern NON_ZERO_TIME_PATTERN = Pattern.compile(".*[1-9].*");
+    // androidxc: the XMP of the separate section of the JPEG file on disk, see
+    // saveAttributesInPlace()
+    @Nullable private ExifAttribute mXmpFromSeparateMarkerOnDisk;
+
+    // androidxc: the offset and length of the Exif APP1 segment of the JPEG file on disk, marker
+    // included. The offset is -1 if there's none or the file has been rewritten since.
+    private int mExifSegmentOffset = -1;
+    private int mExifSegmentLength;
+
+    // androidxc: see setExifSegmentPadding()
+    private int mExifSegmentPadding;
+
+    // androidxc: the length of the EXIF chunk of the WebP file on disk, header and padding
+    // included, so that the size of a new file is known before it's written
+    private int mWebpExifChunkLength;
+
     // Pattern to check gps timestamp
     private static final Pattern GPS_TIMESTAMP_PATTERN =
             Pattern.compile("^(\\d{2}):(\\d{2}):(\\d{2})$");
@@ -4183,10 +4492,27 @@ public class ExifInterface {
      */
     public ExifInterface(@NonNull InputStream inputStream, @ExifStreamType int streamType)
             throws IOException {
+        this(inputStream, streamType, 0);
+    }
+
+    /**
+     * androidxc: Reads Exif tags from the specified image input stream based on the stream type,
+     * as {@link #ExifInterface(InputStream, int)} does, with the given parse flags.
+     *
+     * @param inputStream the input stream that contains the image data
+     * @param streamType the type of input stream
+     * @param parseFlags a combination of the {@code PARSE_FLAG_*} constants, or 0
+     * @throws NullPointerException if the input stream is null
+     * @throws IOException if an I/O error occurs while retrieving file descriptor via
+     *         {@link FileInputStream#getFD()}.
+     */
+    public ExifInterface(@NonNull InputStream inputStream, @ExifStreamType int streamType,
+            @ParseFlags int parseFlags) throws IOException {
         if (inputStream == null) {
             throw new NullPointerException("inputStream cannot be null");
         }
         mFilename = null;
+        mParseFlags = parseFlags;
 
         mIsExifDataOnly = streamType == STREAM_TYPE_EXIF_DATA_ONLY;
         if (mIsExifDataOnly) {
@@ -4208,6 +4534,42 @@ public class ExifInterface {
         loadAttributes(inputStream);
     }
 
+    /**
+     * androidxc: Reads Exif tags from the image data between the position and the limit of the
+     * given buffer, without copying it. The buffer may be a heap buffer wrapping a capture, a
+     * direct buffer or a {@link java.nio.MappedByteBuffer}. Its position, limit and mark are left
+     * unchanged, but its contents must not be modified while this instance is in use, since the
+     * thumbnail is read from it lazily. Attribute mutation is not supported for buffers, use
+     * {@link #saveAttributes(InputStream, OutputStream)} to write the modified attributes out.
+     *
+     * @param buffer the buffer that contains the image data
+     * @throws NullPointerException if the buffer is null
+     */
+    public ExifInterface(@NonNull ByteBuffer buffer) throws IOException {
+        this(buffer, 0);
+    }
+
+    /**
+     * androidxc: Reads Exif tags from the image data in the given buffer, as
+     * {@link #ExifInterface(ByteBuffer)} does, with the given parse flags.
+     *
+     * @param buffer the buffer that contains the image data
+     * @param parseFlags a combination of the {@code PARSE_FLAG_*} constants, or 0
+     * @throws NullPointerException if the buffer is null
+     */
+    public ExifInterface(@NonNull ByteBuffer buffer, @ParseFlags int parseFlags)
+            throws IOException {
+        if (buffer == null) {
+            throw new NullPointerException("buffer cannot be null");
+        }
+        mFilename = null;
+        mParseFlags = parseFlags;
+        mAssetInputStream = null;
+        mSeekableFileDescriptor = null;
+        mByteBuffer = buffer.slice();
+        loadAttributes(new ByteBufferInputStream(mByteBuffer.duplicate()));
+    }
+
     /**
      * Returns whether ExifInterface currently supports reading data from the specified mime type
      * or not.
@@ -4266,10 +4628,13 @@ public class ExifInterface {
         }
         // Retrieves all tag groups. The value from primary image tag group has a higher priority
         // than the value from the thumbnail tag group if there are more than one candidates.
-        for (int i = 0; i < EXIF_TAGS.length; ++i) {
-            ExifAttribute value = mAttributes[i].get(tag);
-            if (value != null) {
-                return value;
+        int[] tagNumbers = sExifTagNumbers.get(tag);
+        if (tagNumbers != null) {
+            for (int i = 0; i < EXIF_TAGS.length; ++i) {
+                ExifAttribute value = mAttributes[i].get(tagNumbers[i]);
+                if (value != null) {
+                    return value;
+                }
             }
         }
         if (TAG_XMP.equals(tag) && mXmpFromSeparateMarker != null) {
@@ -4278,6 +4643,23 @@ public class ExifInterface {
         return null;
     }
 
+    /**
+     * androidxc: Returns the number of the tag with the given name, or -1 if there is none. Every
+     * IFD defining a name gives it the same number except for "ColorSpace", which is 55 in PEF
+     * makernotes and 40961 in the Exif IFD, the first IFD defining it, whose number is returned.
+     */
+    private static int tagNumberOf(@NonNull String name) {
+        int[] tagNumbers = sExifTagNumbers.get(name);
+        if (tagNumbers != null) {
+            for (int tagNumber : tagNumbers) {
+                if (tagNumber != -1) {
+                    return tagNumber;
+                }
+            }
+        }
+        return -1;
+    }
+
     private static @XmpHandling int getXmpHandlingForImageType(int imageType) {
         switch (imageType) {
             // ExifInterface has a documented (but spec-violating) preference for reading and
@@ -4478,6 +4860,7 @@ public class ExifInterface {
             }
         }
 
+        parsePendingThumbnail();
         for (int i = 0; i < EXIF_TAGS.length; ++i) {
             if (i == IFD_TYPE_THUMBNAIL && !mHasThumbnail) {
                 continue;
@@ -4485,10 +4868,10 @@ public class ExifInterface {
             final ExifTag exifTag = sExifTagMapsForWriting[i].get(tag);
             if (exifTag != null) {
                 if (value == null) {
-                    mAttributes[i].remove(tag);
+                    mAttributes[i].remove(exifTag.number);
                     continue;
                 }
-                Pair<Integer, Integer> guess = guessDataFormat(value);
+                DataFormatGuess guess = guessDataFormat(value);
                 int dataFormat;
                 if (exifTag.primaryFormat == guess.first || exifTag.primaryFormat == guess.second) {
                     dataFormat = exifTag.primaryFormat;
@@ -4513,12 +4896,12 @@ public class ExifInterface {
                 }
                 switch (dataFormat) {
                     case IFD_FORMAT_BYTE: {
-                        mAttributes[i].put(tag, ExifAttribute.createByte(value));
+                        mAttributes[i].put(exifTag.number, ExifAttribute.createByte(value));
                         break;
                     }
                     case IFD_FORMAT_UNDEFINED:
                     case IFD_FORMAT_STRING: {
-                        mAttributes[i].put(tag, ExifAttribute.createString(value));
+                        mAttributes[i].put(exifTag.number, ExifAttribute.createString(value));
                         break;
                     }
                     case IFD_FORMAT_USHORT: {
@@ -4527,7 +4910,7 @@ public class ExifInterface {
                         for (int j = 0; j < values.length; ++j) {
                             intArray[j] = Integer.parseInt(values[j]);
                         }
-                        mAttributes[i].put(tag,
+                        mAttributes[i].put(exifTag.number,
                                 ExifAttribute.createUShort(intArray, mExifByteOrder));
                         break;
                     }
@@ -4537,7 +4920,7 @@ public class ExifInterface {
                         for (int j = 0; j < values.length; ++j) {
                             intArray[j] = Integer.parseInt(values[j]);
                         }
-                        mAttributes[i].put(tag,
+                        mAttributes[i].put(exifTag.number,
                                 ExifAttribute.createSLong(intArray, mExifByteOrder));
                         break;
                     }
@@ -4547,7 +4930,7 @@ public class ExifInterface {
                         for (int j = 0; j < values.length; ++j) {
                             longArray[j] = Long.parseLong(values[j]);
                         }
-                        mAttributes[i].put(tag,
+                        mAttributes[i].put(exifTag.number,
                                 ExifAttribute.createULong(longArray, mExifByteOrder));
                         break;
                     }
@@ -4559,7 +4942,7 @@ public class ExifInterface {
                             rationalArray[j] = new Rational((long) Double.parseDouble(numbers[0]),
                                     (long) Double.parseDouble(numbers[1]));
                         }
-                        mAttributes[i].put(tag,
+                        mAttributes[i].put(exifTag.number,
                                 ExifAttribute.createURational(rationalArray, mExifByteOrder));
                         break;
                     }
@@ -4571,7 +4954,7 @@ public class ExifInterface {
                             rationalArray[j] = new Rational((long) Double.parseDouble(numbers[0]),
                                     (long) Double.parseDouble(numbers[1]));
                         }
-                        mAttributes[i].put(tag,
+                        mAttributes[i].put(exifTag.number,
                                 ExifAttribute.createSRational(rationalArray, mExifByteOrder));
                         break;
                     }
@@ -4581,7 +4964,7 @@ public class ExifInterface {
                         for (int j = 0; j < values.length; ++j) {
                             doubleArray[j] = Double.parseDouble(values[j]);
                         }
-                        mAttributes[i].put(tag,
+                        mAttributes[i].put(exifTag.number,
                                 ExifAttribute.createDouble(doubleArray, mExifByteOrder));
                         break;
                     }
@@ -4766,29 +5149,169 @@ public class ExifInterface {
      * @param tag the name of the tag.
      */
     private void removeAttribute(String tag) {
+        int[] tagNumbers = sExifTagNumbers.get(tag);
+        if (tagNumbers == null) {
+            return;
+        }
         for (int i = 0 ; i < EXIF_TAGS.length; ++i) {
-            mAttributes[i].remove(tag);
+            mAttributes[i].remove(tagNumbers[i]);
         }
     }
 
+    /**
+     * androidxc: Removes the values of all tags except the given ones, XMP stored in a separate
+     * section included. This has the same effect as setting each of the other tags to
+     * {@code null}, but takes a single pass over the attributes instead of looking every tag up in
+     * every IFD. IFDs that are left empty are not written by the next save.
+     *
+     * <p>Tags are matched by the name they have in their IFD, e.g. the orientation of the
+     * thumbnail is named "ThumbnailOrientation" rather than {@link #TAG_ORIENTATION}.
+     *
+     * @param tagsToKeep the names of the tags to keep
+     */
+    public void clearAllExcept(@NonNull Set<String> tagsToKeep) {
+        if (tagsToKeep.contains(TAG_ISO_SPEED_RATINGS)
+                && !tagsToKeep.contains(TAG_PHOTOGRAPHIC_SENSITIVITY)) {
+            // Maintain compatibility, see setAttribute()
+            tagsToKeep = new HashSet<>(tagsToKeep);
+            tagsToKeep.add(TAG_PHOTOGRAPHIC_SENSITIVITY);
+        }
+        parsePendingThumbnail();
+        for (int i = 0; i < EXIF_TAGS.length; ++i) {
+            for (int tagNumber : mAttributes[i].keys()) {
+                ExifTag tag = sExifTagMapsForReading[i].get(tagNumber);
+                if (tag == null || !tagsToKeep.contains(tag.name)) {
+                    mAttributes[i].remove(tagNumber);
+                }
+            }
+        }
+        if (!tagsToKeep.contains(TAG_XMP)) {
+            mXmpFromSeparateMarker = null;
+        }
+    }
+
+    /**
+     * androidxc: Removes the values of all tags except the given ones, see
+     * {@link #clearAllExcept(Set)}.
+     *
+     * @param tagsToKeep the names of the tags to keep
+     */
+    public void retainOnly(@NonNull String... tagsToKeep) {
+        clearAllExcept(new HashSet<>(Arrays.asList(tagsToKeep)));
+    }
+
+    /**
+     * androidxc: Returns an immutable copy of all attributes, without the thumbnail. This decodes
+     * every value, including the ones that {@link #PARSE_FLAG_LAZY} left undecoded, so consumers
+     * that know the tags they need should use {@link #snapshot(Collection, boolean)}.
+     */
+    public @NonNull ExifSnapshot snapshot() {
+        parsePendingThumbnail();
+        TreeSet<String> tags = new TreeSet<>();
+        for (int i = 0; i < EXIF_TAGS.length; ++i) {
+            for (int tagNumber : mAttributes[i].keys()) {
+                ExifTag tag = sExifTagMapsForReading[i].get(tagNumber);
+                if (tag != null) {
+                    tags.add(tag.name);
+                }
+            }
+        }
+        if (mXmpFromSeparateMarker != null) {
+            tags.add(TAG_XMP);
+        }
+        return snapshot(tags, false);
+    }
+
+    /**
+     * androidxc: Returns an immutable copy of the given attributes, the ones the image doesn't
+     * have are left out. Only these values are decoded.
+     *
+     * @param tags the names of the tags to copy
+     * @param includeThumbnail whether to copy the JPEG compressed thumbnail as well, see
+     *                         {@link #getThumbnail()}
+     */
+    public @NonNull ExifSnapshot snapshot(@NonNull Collection<String> tags,
+            boolean includeThumbnail) {
+        TreeSet<String> present = new TreeSet<>();
+        for (String tag : tags) {
+            if (hasAttribute(tag)) {
+                present.add(TAG_ISO_SPEED_RATINGS.equals(tag) ? TAG_PHOTOGRAPHIC_SENSITIVITY : tag);
+            }
+        }
+        int count = present.size();
+        String[] names = present.toArray(new String[count]);
+        String[] values = new String[count];
+        long[] intValues = new long[count];
+        double[] doubleValues = new double[count];
+        for (int i = 0; i < count; ++i) {
+            values[i] = getAttribute(names[i]);
+            // the defaults can't be told apart from values, so they mark the missing ones
+            int intValue = getAttributeInt(names[i], Integer.MIN_VALUE);
+            intValues[i] = intValue != Integer.MIN_VALUE || getAttributeInt(names[i], 0) == intValue
+                    ? intValue : ExifSnapshot.NOT_AN_INT;
+            doubleValues[i] = getAttributeDouble(names[i], Double.NaN);
+        }
+        byte[] thumbnail = includeThumbnail ? getThumbnail() : null;
+        return new ExifSnapshot(names, values, intValues, doubleValues,
+                thumbnail != null ? thumbnail.clone() : null);
+    }
+
+    /**
+     * androidxc: Sets the template to write the Exif segment of JPEG images with, or {@code null}
+     * to always lay it out from scratch, which is the default. The template is updated whenever
+     * the attributes don't match it.
+     *
+     * @param template the template, see {@link SegmentTemplate}
+     */
+    public void setSegmentTemplate(@Nullable SegmentTemplate template) {
+        mSegmentTemplate = template;
+    }
+
+    /**
+     * androidxc: Sets the number of zero bytes to reserve at the end of the Exif APP1 segment of
+     * JPEG images, 0 by default. Fewer are reserved if the segment would exceed its maximum size
+     * of 64 KiB otherwise. The reserved space lets later edits of the attributes grow the segment
+     * without moving the rest of the file, see {@link #saveAttributesInPlace()}.
+     *
+     * @param padding the number of bytes to reserve
+     */
+    public void setExifSegmentPadding(int padding) {
+        if (padding < 0) {
+            throw new IllegalArgumentException("padding shouldn't be negative");
+        }
+        mExifSegmentPadding = padding;
+    }
+
     /**
      * This function decides which parser to read the image data according to the given input stream
      * type and the content of the input stream.
      */
     private void loadAttributes(@NonNull InputStream in) {
+        mAllocationBudget = STRICT_ALLOCATION_BUDGET;
+        mIfdDepth = 0;
         try {
             // Initialize mAttributes.
+            TagTable.Decoder<ExifAttribute> decoder = this::decodePendingAttribute;
             for (int i = 0; i < EXIF_TAGS.length; ++i) {
-                mAttributes[i] = new HashMap<>();
+                mAttributes[i] = new TagTable<>(8, decoder);
             }
 
             // Check file type
             if (!mIsExifDataOnly) {
-                in = new BufferedInputStream(in, SIGNATURE_CHECK_SIZE);
-                mMimeType = getMimeType((BufferedInputStream) in);
+                // androidxc: buffers support mark/reset natively, don't copy them through another
+                // buffer
+                if (!(in instanceof ByteBufferInputStream)) {
+                    in = new BufferedInputStream(in, SIGNATURE_CHECK_SIZE);
+                }
+                mMimeType = getMimeType(in);
             }
 
             if (shouldSupportSeek(mMimeType)) {
+                // androidxc: everything read from the stream stays buffered while it's seekable
+                if ((mParseFlags & PARSE_FLAG_STRICT) != 0
+                        && !(in instanceof ByteBufferInputStream)) {
+                    in = new LimitedInputStream(in, STRICT_ALLOCATION_BUDGET);
+                }
                 SeekableByteOrderedDataInputStream inputStream =
                         new SeekableByteOrderedDataInputStream(in);
                 if (mIsExifDataOnly) {
@@ -4830,6 +5353,15 @@ public class ExifInterface {
                         + "(ExifInterface supports JPEG and some RAW image formats only) "
                         + "or a corrupted JPEG file to ExifInterface.", e);
             }
+        } catch (RuntimeException e) {
+            // androidxc: in strict mode, values that don't decode as their tags say end parsing
+            // like a corrupted file does
+            if ((mParseFlags & PARSE_FLAG_STRICT) == 0) {
+                throw e;
+            }
+            if (DEBUG) {
+                Log.w(TAG, "Invalid image: stopped parsing malformed image data", e);
+            }
         } finally {
             addDefaultValuesForCompatibility();
 
@@ -4855,10 +5387,12 @@ public class ExifInterface {
     private void printAttributes() {
         for (int i = 0; i < mAttributes.length; ++i) {
             Log.d(TAG, "The size of tag group[" + i + "]: " + mAttributes[i].size());
-            for (Map.Entry<String, ExifAttribute> entry : mAttributes[i].entrySet()) {
-                final ExifAttribute tagValue = entry.getValue();
-                Log.d(TAG, "tagName: " + entry.getKey() + ", tagType: " + tagValue.toString()
-                        + ", tagValue: '" + tagValue.getStringValue(mExifByteOrder) + "'");
+            for (int tagNumber : mAttributes[i].keys()) {
+                final ExifTag tag = sExifTagMapsForReading[i].get(tagNumber);
+                final ExifAttribute tagValue = mAttributes[i].get(tagNumber);
+                Log.d(TAG, "tagName: " + (tag != null ? tag.name : tagNumber) + ", tagType: "
+                        + tagValue.toString() + ", tagValue: '"
+                        + tagValue.getStringValue(mExifByteOrder) + "'");
             }
         }
     }
@@ -4869,7 +5403,7 @@ public class ExifInterface {
      * other. It's best to use {@link #setAttribute(String,String)} to set all attributes to write
      * and make a single call rather than multiple calls for each attribute.
      * <p>
-     * This method is supported for JPEG, PNG, and WebP formats.
+     * This method is supported for JPEG, PNG, WebP, HEIF and AVIF formats.
      * <p class="note">
      * Note: after calling this method, any attempts to obtain range information
      * from {@link #getAttributeRange(String)} or {@link #getThumbnailRange()}
@@ -4881,16 +5415,20 @@ public class ExifInterface {
      * <p>
      * For PNG format, the Exif data will be stored as an "eXIf" chunk as per
      * "Extensions to the PNG 1.2 Specification, Version 1.5.0".
+     * <p>
+     * androidxc: For HEIF and AVIF formats, the Exif and XMP items of the primary image are
+     * replaced without touching the image items, see {@link HeifItemWriter}.
      */
     public void saveAttributes() throws IOException {
         if (!isSupportedFormatForSavingAttributes(mMimeType)) {
             throw new IOException("ExifInterface only supports saving attributes for JPEG, PNG, "
-                    + "and WebP formats.");
+                    + "WebP, HEIF and AVIF formats.");
         }
         if (mSeekableFileDescriptor == null && mFilename == null) {
             throw new IOException(
                     "ExifInterface does not support saving attributes for the current input.");
         }
+        parsePendingThumbnail();
         if (mHasThumbnail && mHasThumbnailStrips && !mAreThumbnailStripsConsecutive) {
             throw new IOException("ExifInterface does not support saving attributes when the image "
                     + "file has non-consecutive thumbnail strips");
@@ -4919,7 +5457,7 @@ public class ExifInterface {
                 in = new FileInputStream(mSeekableFileDescriptor);
             }
             out = new FileOutputStream(tempFile);
-            copy(in, out);
+            copy(in.getChannel(), out.getChannel());
         } catch (Exception e) {
             throw new IOException("Failed to copy original file to temp file", e);
         } finally {
@@ -4929,12 +5467,12 @@ public class ExifInterface {
 
         in = null;
         out = null;
-        BufferedInputStream bufferedIn = null;
-        BufferedOutputStream bufferedOut = null;
+        FileInputStream tempIn = null;
+        FileDescriptorOutputStream bufferedOut = null;
         boolean shouldKeepTempFile = false;
         try {
             // Save the new file.
-            in = new FileInputStream(tempFile);
+            tempIn = new FileInputStream(tempFile);
             if (mFilename != null) {
                 out = new FileOutputStream(mFilename);
             } else {
@@ -4942,14 +5480,20 @@ public class ExifInterface {
                 Os.lseek(fd, /* offset= */ 0, /* whence= */ OsConstants.SEEK_SET);
                 out = new FileOutputStream(mSeekableFileDescriptor);
             }
-            bufferedIn = new BufferedInputStream(in);
-            bufferedOut = new BufferedOutputStream(out);
+            bufferedOut = new FileDescriptorOutputStream(out);
+            // androidxc: the copy is read through a mapping, so that what is kept of it can be
+            // written out of the mapping, see saveAttributes(ByteBuffer, FileDescriptor)
+            FileChannel tempChannel = tempIn.getChannel();
+            InputStream original = new ByteBufferInputStream(
+                    tempChannel.map(FileChannel.MapMode.READ_ONLY, 0, tempChannel.size()));
             if (mMimeType == IMAGE_TYPE_JPEG) {
-                saveJpegAttributes(bufferedIn, bufferedOut);
+                saveJpegAttributes(original, bufferedOut);
             } else if (mMimeType == IMAGE_TYPE_PNG) {
-                savePngAttributes(bufferedIn, bufferedOut);
+                savePngAttributes(original, bufferedOut);
             } else if (mMimeType == IMAGE_TYPE_WEBP) {
-                saveWebpAttributes(bufferedIn, bufferedOut);
+                saveWebpAttributes(original, bufferedOut);
+            } else if (mMimeType == IMAGE_TYPE_HEIC || mMimeType == IMAGE_TYPE_AVIF) {
+                saveHeifAttributes(original, bufferedOut);
             }
         } catch (Exception e) {
             try {
@@ -4964,7 +5508,7 @@ public class ExifInterface {
                             /* whence= */ OsConstants.SEEK_SET);
                     out = new FileOutputStream(mSeekableFileDescriptor);
                 }
-                copy(in, out);
+                copy(in.getChannel(), out.getChannel());
             } catch (Exception exception) {
                 shouldKeepTempFile = true;
                 throw new IOException("Failed to save new file. Original file is stored in "
@@ -4975,7 +5519,7 @@ public class ExifInterface {
             }
             throw new IOException("Failed to save new file", e);
         } finally {
-            closeQuietly(bufferedIn);
+            closeQuietly(tempIn);
             closeQuietly(bufferedOut);
             if (!shouldKeepTempFile) {
                 tempFile.delete();
@@ -4983,7 +5527,9 @@ public class ExifInterface {
         }
 
         // Discard the thumbnail in memory
-        mThumbnailBytes = null;
+        if (!mThumbnailReplaced) {
+            mThumbnailBytes = null;
+        }
     }
 
     /**
@@ -4991,11 +5537,120 @@ public class ExifInterface {
      * of this instance, so that a capture can be edited without a temporary file on disk.
      */
     public void saveAttributes(InputStream original, OutputStream out) throws IOException {
+        prepareForSavingToStream();
+
+        if (mMimeType == IMAGE_TYPE_JPEG) {
+            saveJpegAttributes(original, out);
+        } else if (mMimeType == IMAGE_TYPE_PNG) {
+            savePngAttributes(original, out);
+        } else if (mMimeType == IMAGE_TYPE_WEBP) {
+            saveWebpAttributes(original, out);
+        } else if (mMimeType == IMAGE_TYPE_HEIC || mMimeType == IMAGE_TYPE_AVIF) {
+            saveHeifAttributes(original, out);
+        }
+
+        // Discard the thumbnail in memory
+        if (!mThumbnailReplaced) {
+            mThumbnailBytes = null;
+        }
+    }
+
+    /**
+     * androidxc: writes the image data between the position and the limit of {@code original} out
+     * to {@code out} with the attributes of this instance. For JPEG, the new metadata segments are
+     * built first and then written together with the untouched ranges of {@code original} in a
+     * single gather write, so no copy of the image is made. Other formats are streamed through
+     * {@link #saveAttributes(InputStream, OutputStream)}, and the chunks of PNG and WebP images
+     * that are kept are written to {@code out} straight from {@code original}. The position of
+     * {@code original} and the file offset of {@code out} aren't rewound, and {@code out} isn't
+     * closed.
+     */
+    public void saveAttributes(@NonNull ByteBuffer original, @NonNull FileDescriptor out)
+            throws IOException {
+        if (mMimeType != IMAGE_TYPE_JPEG) {
+            FileDescriptorOutputStream fileOut =
+                    new FileDescriptorOutputStream(new FileOutputStream(out));
+            saveAttributes(new ByteBufferInputStream(original.duplicate()), fileOut);
+            // Closing the streams would close the file descriptor
+            fileOut.flush();
+            return;
+        }
+
+        prepareForSavingToStream();
+        saveJpegAttributes(original.slice(), out);
+
+        // Discard the thumbnail in memory
+        if (!mThumbnailReplaced) {
+            mThumbnailBytes = null;
+        }
+    }
+
+    /**
+     * androidxc: Stores the attributes into the Exif APP1 segment of the JPEG file this instance
+     * was created from, if the new segment fits into the space taken by the old one, see
+     * {@link #setExifSegmentPadding(int)}. Only the bytes of that segment are written, the rest of
+     * the file is left as it is, so the cost doesn't depend on the size of the image.
+     *
+     * <p>The file has to be opened for writing. Nothing is written if {@code false} is returned,
+     * which is the case for files that aren't JPEG images, that have no Exif segment or that have
+     * been rewritten by this instance already, and if XMP stored in a separate segment has been
+     * changed. {@link #saveAttributes()} has to be used then.
+     *
+     * @return whether the attributes were saved
+     */
+    public boolean saveAttributesInPlace() throws IOException {
+        if (mSeekableFileDescriptor == null && mFilename == null) {
+            throw new IOException(
+                    "ExifInterface does not support saving attributes for the current input.");
+        }
+        if (mMimeType != IMAGE_TYPE_JPEG || mExifSegmentOffset < 0
+                || mXmpFromSeparateMarker != mXmpFromSeparateMarkerOnDisk) {
+            return false;
+        }
+
+        prepareForSavingToStream();
+        ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream(mExifSegmentLength);
+        ByteOrderedDataOutputStream segment =
+                new ByteOrderedDataOutputStream(segmentBytes, BIG_ENDIAN);
+        segment.writeByte(MARKER);
+        segment.writeByte(MARKER_APP1);
+        writeExifSegment(segment, 0);
+
+        if (segmentBytes.size() > mExifSegmentLength) {
+            // The thumbnail is kept in memory, the file doesn't have it where the attributes say
+            // it is now
+            return false;
+        }
+
+        // The space that is left over stays reserved as padding
+        final byte[] bytes = Arrays.copyOf(segmentBytes.toByteArray(), mExifSegmentLength);
+        final int length = mExifSegmentLength - 2;
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+        if (mSeekableFileDescriptor != null) {
+            pwriteFully(mSeekableFileDescriptor, bytes, mExifSegmentOffset);
+        } else {
+            try (RandomAccessFile file = new RandomAccessFile(mFilename, "rw")) {
+                pwriteFully(file.getFD(), bytes, mExifSegmentOffset);
+            }
+        }
+
+        // Discard the thumbnail in memory
+        if (!mThumbnailReplaced) {
+            mThumbnailBytes = null;
+        }
+        return true;
+    }
+
+    // androidxc: the checks and state updates shared by the methods that write to a caller
+    // supplied destination
+    private void prepareForSavingToStream() throws IOException {
         if (!isSupportedFormatForSavingAttributes(mMimeType)) {
             throw new IOException("ExifInterface only supports saving attributes for JPEG, PNG, "
-                    + "and WebP formats.");
+                    + "WebP, HEIF and AVIF formats.");
         }
 
+        parsePendingThumbnail();
         if (mHasThumbnail && mHasThumbnailStrips && !mAreThumbnailStripsConsecutive) {
             throw new IOException("ExifInterface does not support saving attributes when the image "
                     + "file has non-consecutive thumbnail strips");
@@ -5007,23 +5662,58 @@ public class ExifInterface {
 
         // Keep the thumbnail in memory
         mThumbnailBytes = getThumbnail();
+    }
 
-        if (mMimeType == IMAGE_TYPE_JPEG) {
-            saveJpegAttributes(original, out);
-        } else if (mMimeType == IMAGE_TYPE_PNG) {
-            savePngAttributes(original, out);
-        } else if (mMimeType == IMAGE_TYPE_WEBP) {
-            saveWebpAttributes(original, out);
+    /**
+     * androidxc: Replaces the thumbnail with the given JPEG image, or removes it if {@code null} is
+     * passed. The thumbnail IFD is reset to the tags that describe a JPEG thumbnail, the new one
+     * is written by the next save.
+     *
+     * <p>The orientation of the primary image applies to the thumbnail as well, so its pixels
+     * should be stored the same way as the ones of the primary image.
+     *
+     * @param jpeg the JPEG image, a few hundred pixels on the longer side is typical
+     */
+    public void setThumbnail(byte @Nullable [] jpeg) {
+        parsePendingThumbnail();
+        final TagTable<ExifAttribute> thumbnailData = mAttributes[IFD_TYPE_THUMBNAIL];
+        for (int tagNumber : thumbnailData.keys()) {
+            thumbnailData.remove(tagNumber);
         }
 
-        // Discard the thumbnail in memory
-        mThumbnailBytes = null;
+        mHasThumbnailStrips = false;
+        mAreThumbnailStripsConsecutive = false;
+        mThumbnailOffset = 0;
+        if (jpeg == null) {
+            mHasThumbnail = false;
+            mThumbnailReplaced = false;
+            mThumbnailBytes = null;
+            mThumbnailLength = 0;
+            mThumbnailCompression = 0;
+            return;
+        }
+
+        // The offset and length tags are added when the Exif segment is written
+        final Rational resolution = new Rational(72, 1);
+        thumbnailData.put(TAG_COMPRESSION, ExifAttribute.createUShort(DATA_JPEG, mExifByteOrder));
+        thumbnailData.put(TAG_X_RESOLUTION,
+                ExifAttribute.createURational(resolution, mExifByteOrder));
+        thumbnailData.put(TAG_Y_RESOLUTION,
+                ExifAttribute.createURational(resolution, mExifByteOrder));
+        thumbnailData.put(TAG_RESOLUTION_UNIT,
+                ExifAttribute.createUShort(RESOLUTION_UNIT_INCHES, mExifByteOrder));
+        mHasThumbnail = true;
+        mThumbnailReplaced = true;
+        mThumbnailBytes = jpeg;
+        mThumbnailLength = jpeg.length;
+        mThumbnailCompression = DATA_JPEG;
     }
 
     /**
      * Returns true if the image file has a thumbnail.
      */
     public boolean hasThumbnail() {
+        parsePendingThumbnail();
         return mHasThumbnail;
     }
 
@@ -5043,6 +5733,7 @@ public class ExifInterface {
      * {@link BitmapFactory#decodeByteArray(byte[],int,int)}
      */
     public byte @Nullable [] getThumbnail() {
+        parsePendingThumbnail();
         if (mThumbnailCompression == DATA_JPEG || mThumbnailCompression == DATA_JPEG_COMPRESSED) {
             return getThumbnailBytes();
         }
@@ -5054,6 +5745,7 @@ public class ExifInterface {
      * thumbnail image.
      */
     public byte @Nullable [] getThumbnailBytes() {
+        parsePendingThumbnail();
         if (!mHasThumbnail) {
             return null;
         }
@@ -5061,6 +5753,21 @@ public class ExifInterface {
             return mThumbnailBytes;
         }
 
+        // androidxc: the source buffer can be read again without a stream
+        if (mByteBuffer != null) {
+            int offset = mThumbnailOffset + mOffsetToExifData;
+            if (offset < 0 || mThumbnailLength > mByteBuffer.limit() - offset) {
+                Log.d(TAG, "Thumbnail is out of bounds of the source buffer");
+                return null;
+            }
+            byte[] buffer = new byte[mThumbnailLength];
+            ByteBuffer source = mByteBuffer.duplicate();
+            source.position(offset);
+            source.get(buffer);
+            mThumbnailBytes = buffer;
+            return buffer;
+        }
+
         // Read the thumbnail.
         InputStream in = null;
         FileDescriptor newFileDescriptor = null;
@@ -5088,7 +5795,7 @@ public class ExifInterface {
             ByteOrderedDataInputStream inputStream = new ByteOrderedDataInputStream(in);
             inputStream.skipFully(mThumbnailOffset + mOffsetToExifData);
             // TODO: Need to handle potential OutOfMemoryError
-            byte[] buffer = new byte[mThumbnailLength];
+            byte[] buffer = newInputBuffer(mThumbnailLength);
             inputStream.readFully(buffer);
             mThumbnailBytes = buffer;
             return buffer;
@@ -5109,6 +5816,7 @@ public class ExifInterface {
      * thumbnail compression value, or {@code null} if the compression type is unsupported.
      */
     public @Nullable Bitmap getThumbnailBitmap() {
+        parsePendingThumbnail();
         if (!mHasThumbnail) {
             return null;
         } else if (mThumbnailBytes == null) {
@@ -5144,6 +5852,7 @@ public class ExifInterface {
      * not exist or thumbnail image is uncompressed.
      */
     public boolean isThumbnailCompressed() {
+        parsePendingThumbnail();
         if (!mHasThumbnail) {
             return false;
         }
@@ -5158,6 +5867,9 @@ public class ExifInterface {
      * {@code null} if either there is no thumbnail or the thumbnail bytes are stored
      * non-consecutively.
      *
+     * <p>androidxc: If the thumbnail has been replaced with {@link #setThumbnail(byte[])} but not
+     * yet written to disk, the offset is {@code -1}.
+     *
      * @return two-element array, the offset in the first value, and length in
      *         the second, or {@code null} if no thumbnail was found or the thumbnail strips are
      *         not placed consecutively.
@@ -5171,6 +5883,10 @@ public class ExifInterface {
                     "The underlying file has been modified since being parsed");
         }
 
+        parsePendingThumbnail();
+        if (mThumbnailReplaced) {
+            return new long[] { -1, mThumbnailLength };
+        }
         if (mHasThumbnail) {
             if (mHasThumbnailStrips && !mAreThumbnailStripsConsecutive) {
                 return null;
@@ -5296,10 +6012,12 @@ public class ExifInterface {
                 TAG_GPS_SPEED,
                 Rational.createFromDouble(location.getSpeed() * TimeUnit.HOURS.toSeconds(1) / 1000)
                         .toString());
-        String[] dateTime = sFormatterPrimary.format(
-                new Date(location.getTime())).split("\\s+", -1);
-        setAttribute(ExifInterface.TAG_GPS_DATESTAMP, dateTime[0]);
-        setAttribute(ExifInterface.TAG_GPS_TIMESTAMP, dateTime[1]);
+        // androidxc: formatted without a SimpleDateFormat, which isn't thread-safe
+        String dateTime = ExifDateTime.formatDateTime(location.getTime());
+        setAttribute(ExifInterface.TAG_GPS_DATESTAMP,
+                dateTime.substring(0, ExifDateTime.DATE_LENGTH));
+        setAttribute(ExifInterface.TAG_GPS_TIMESTAMP,
+                dateTime.substring(ExifDateTime.DATE_LENGTH + 1));
     }
 
     /**
@@ -5366,13 +6084,8 @@ public class ExifInterface {
             throw new IllegalArgumentException("Timestamp should a positive value.");
         }
 
-        long subsec = timeStamp % 1000;
-        String subsecString = Long.toString(subsec);
-        for (int i = subsecString.length(); i < 3; i++) {
-            subsecString = "0" + subsecString;
-        }
-        setAttribute(TAG_DATETIME, sFormatterPrimary.format(new Date(timeStamp)));
-        setAttribute(TAG_SUBSEC_TIME, subsecString);
+        setAttribute(TAG_DATETIME, ExifDateTime.formatDateTime(timeStamp));
+        setAttribute(TAG_SUBSEC_TIME, ExifDateTime.formatSubsec(timeStamp));
     }
 
     /**
@@ -5426,42 +6139,30 @@ public class ExifInterface {
                 getAttribute(TAG_OFFSET_TIME_ORIGINAL));
     }
 
-    private static Long parseDateTime(@Nullable String dateTimeString, @Nullable String subSecs,
+    // androidxc: package-private for ExifSnapshot. Parsed with ExifDateTime, which unlike the
+    // SimpleDateFormat used before is thread-safe and doesn't allocate.
+    static @Nullable Long parseDateTime(@Nullable String dateTimeString, @Nullable String subSecs,
             @Nullable String offsetString) {
-        if (dateTimeString == null || !NON_ZERO_TIME_PATTERN.matcher(dateTimeString).matches()) {
+        if (dateTimeString == null) {
             return null;
         }
-
-        ParsePosition pos = new ParsePosition(0);
-        try {
-            // The exif field is in local time. Parsing it as if it is UTC will yield time
-            // since 1/1/1970 local time
-            Date dateTime = sFormatterPrimary.parse(dateTimeString, pos);
-            if (dateTime == null) {
-                dateTime = sFormatterSecondary.parse(dateTimeString, pos);
-                if (dateTime == null) {
-                    return null;
-                }
-            }
-            long msecs = dateTime.getTime();
-            if (offsetString != null) {
-                String sign = offsetString.substring(0, 1);
-                int hour = Integer.parseInt(offsetString.substring(1, 3));
-                int min = Integer.parseInt(offsetString.substring(4, 6));
-                if (("+".equals(sign) || "-".equals(sign))
-                        && ":".equals(offsetString.substring(3, 4))
-                        && hour <= 14 /* max UTC hour value */) {
-                    msecs += (hour * 60 + min) * 60 * 1000 * ("-".equals(sign) ? 1 : -1);
-                }
+        // The exif field is in local time. Parsing it as if it is UTC will yield time
+        // since 1/1/1970 local time
+        long msecs = ExifDateTime.parseDateTime(dateTimeString);
+        if (msecs == ExifDateTime.INVALID) {
+            return null;
+        }
+        if (offsetString != null) {
+            int offset = ExifDateTime.parseOffset(offsetString);
+            if (offset != ExifDateTime.INVALID_OFFSET) {
+                msecs -= offset;
             }
+        }
 
-            if (subSecs != null) {
-                msecs += parseSubSeconds(subSecs);
-            }
-            return msecs;
-        } catch (IllegalArgumentException e) {
-            return null;
+        if (subSecs != null) {
+            msecs += ExifDateTime.parseSubsec(subSecs);
         }
+        return msecs;
     }
 
     /**
@@ -5473,27 +6174,17 @@ public class ExifInterface {
     public @Nullable Long getGpsDateTime() {
         String date = getAttribute(TAG_GPS_DATESTAMP);
         String time = getAttribute(TAG_GPS_TIMESTAMP);
-        if (date == null || time == null
-                || (!NON_ZERO_TIME_PATTERN.matcher(date).matches()
-                && !NON_ZERO_TIME_PATTERN.matcher(time).matches())) {
+        if (date == null || time == null) {
             return null;
         }
 
-        String dateTimeString = date + ' ' + time;
-
-        ParsePosition pos = new ParsePosition(0);
-        try {
-            Date dateTime = sFormatterPrimary.parse(dateTimeString, pos);
-            if (dateTime == null) {
-                dateTime = sFormatterSecondary.parse(dateTimeString, pos);
-                if (dateTime == null) {
-                    return null;
-                }
-            }
-            return dateTime.getTime();
-        } catch (IllegalArgumentException e) {
+        // androidxc: see parseDateTime()
+        long dateMillis = ExifDateTime.parseDate(date);
+        long timeMillis = ExifDateTime.parseTime(time);
+        if (dateMillis == ExifDateTime.INVALID || timeMillis == ExifDateTime.INVALID) {
             return null;
         }
+        return dateMillis + timeMillis;
     }
 
     private void initForFilename(String filename) throws IOException {
@@ -5556,7 +6247,7 @@ public class ExifInterface {
     }
 
     // Checks the type of image file
-    private int getMimeType(BufferedInputStream in) throws IOException {
+    private int getMimeType(InputStream in) throws IOException {
         in.mark(SIGNATURE_CHECK_SIZE);
         byte[] signatureCheckBytes = new byte[SIGNATURE_CHECK_SIZE];
         in.read(signatureCheckBytes);
@@ -5852,35 +6543,50 @@ public class ExifInterface {
             switch (marker) {
                 case MARKER_APP1: {
                     final int start = bytesRead;
-                    final byte[] bytes = new byte[length];
-                    in.readFully(bytes);
+                    // androidxc: the segment is parsed through a view of its bytes instead of
+                    // being copied twice. Buffer-backed input isn't copied at all.
+                    ByteBuffer segment = in.readSlice(length);
+                    if (segment == null) {
+                        final byte[] bytes = newInputBuffer(length);
+                        in.readFully(bytes);
+                        segment = ByteBuffer.wrap(bytes);
+                    }
                     bytesRead += length;
                     length = 0;
 
-                    if (startsWith(bytes, IDENTIFIER_EXIF_APP1)) {
-                        final byte[] value = Arrays.copyOfRange(bytes, IDENTIFIER_EXIF_APP1.length,
-                                bytes.length);
+                    if (startsWith(segment, IDENTIFIER_EXIF_APP1)) {
+                        segment.position(IDENTIFIER_EXIF_APP1.length);
+                        final ByteBuffer value = segment.slice();
                         // Save offset to EXIF data for handling thumbnail and attribute offsets.
                         mOffsetToExifData = offsetToJpeg
                                 + /* offset to EXIF from JPEG start */ start
                                 + IDENTIFIER_EXIF_APP1.length;
+                        // androidxc: 2 bytes of marker and 2 bytes of length precede the data
+                        mExifSegmentOffset = offsetToJpeg + start - 4;
+                        mExifSegmentLength = 4 + segment.limit();
                         readExifSegment(value, imageType);
 
-                        setThumbnailData(new ByteOrderedDataInputStream(value));
-                    } else if (startsWith(bytes, IDENTIFIER_XMP_APP1)) {
+                        if ((mParseFlags & PARSE_FLAG_LAZY) != 0) {
+                            mPendingThumbnailData = value;
+                        } else {
+                            setThumbnailData(new ByteOrderedDataInputStream(value.duplicate()));
+                        }
+                    } else if (startsWith(segment, IDENTIFIER_XMP_APP1)) {
                         // See XMP Specification Part 3: Storage in Files, 1.1.3 JPEG, Table 6
                         final int offset = start + IDENTIFIER_XMP_APP1.length;
-                        final byte[] value = Arrays.copyOfRange(bytes,
-                                IDENTIFIER_XMP_APP1.length, bytes.length);
+                        segment.position(IDENTIFIER_XMP_APP1.length);
+                        final byte[] value = newInputBuffer(segment.remaining());
+                        segment.get(value);
                         mXmpFromSeparateMarker =
                                 new ExifAttribute(IFD_FORMAT_BYTE, value.length, offset, value);
+                        mXmpFromSeparateMarkerOnDisk = mXmpFromSeparateMarker;
                         mFileOnDiskContainsSeparateXmpMarker = true;
                     }
                     break;
                 }
 
                 case MARKER_COM: {
-                    byte[] bytes = new byte[length];
+                    byte[] bytes = newInputBuffer(length);
                     in.readFully(bytes);
                     length = 0;
                     if (getAttribute(TAG_USER_COMMENT) == null) {
@@ -5961,8 +6667,9 @@ public class ExifInterface {
                 readImageFileDirectory(makerNoteDataInputStream, IFD_TYPE_PEF);
 
                 // Update ColorSpace tag
-                ExifAttribute colorSpaceAttribute =
-                        mAttributes[IFD_TYPE_PEF].get(TAG_COLOR_SPACE);
+                // androidxc: the makernote has its own number for the tag, see tagNumberOf()
+                ExifAttribute colorSpaceAttribute = mAttributes[IFD_TYPE_PEF].get(
+                        sExifTagNumbers.get(TAG_COLOR_SPACE)[IFD_TYPE_PEF]);
                 if (colorSpaceAttribute != null) {
                     mAttributes[IFD_TYPE_EXIF].put(TAG_COLOR_SPACE, colorSpaceAttribute);
                 }
@@ -5995,7 +6702,7 @@ public class ExifInterface {
         int jpegLength = ByteBuffer.wrap(jpegLengthBytes).getInt();
         int cfaHeaderOffset = ByteBuffer.wrap(cfaHeaderOffsetBytes).getInt();
 
-        byte[] jpegBytes = new byte[jpegLength];
+        byte[] jpegBytes = newInputBuffer(jpegLength);
         in.skipFully(offsetToJpeg - in.position());
         in.readFully(jpegBytes);
 
@@ -6179,7 +6886,7 @@ public class ExifInterface {
                     }
 
                     // TODO: Need to handle potential OutOfMemoryError
-                    byte[] bytes = new byte[length];
+                    byte[] bytes = newInputBuffer(length);
                     in.readFully(bytes);
                     // Save offset to EXIF data for handling thumbnail and attribute offsets.
                     mOffsetToExifData = offset;
@@ -6194,7 +6901,7 @@ public class ExifInterface {
                     int offset = Integer.parseInt(xmpOffsetStr);
                     int length = Integer.parseInt(xmpLengthStr);
                     in.seek(offset);
-                    byte[] xmpBytes = new byte[length];
+                    byte[] xmpBytes = newInputBuffer(length);
                     in.readFully(xmpBytes);
                     mXmpFromSeparateMarker =
                             new ExifAttribute(IFD_FORMAT_BYTE, xmpBytes.length, offset, xmpBytes);
@@ -6406,7 +7113,7 @@ public class ExifInterface {
                     mOffsetToExifData = in.position() - startPosition;
 
                     // TODO: Need to handle potential OutOfMemoryError
-                    byte[] data = new byte[length];
+                    byte[] data = newInputBuffer(length);
                     in.readFully(data);
 
                     // Compare CRC values for potential data corruption.
@@ -6438,7 +7145,7 @@ public class ExifInterface {
                     if (Arrays.equals(keyword, PNG_ITXT_XMP_KEYWORD)) {
                         int xmpDataOffset = in.position() - startPosition;
                         int xmpLength = length - keyword.length;
-                        byte[] xmpData = new byte[xmpLength];
+                        byte[] xmpData = newInputBuffer(xmpLength);
                         in.readFully(xmpData);
                         mXmpFromSeparateMarker =
                                 new ExifAttribute(
@@ -6505,7 +7212,7 @@ public class ExifInterface {
 
                 if (Arrays.equals(WEBP_CHUNK_TYPE_EXIF, code)) {
                     // TODO: Need to handle potential OutOfMemoryError
-                    byte[] payload = new byte[chunkSize];
+                    byte[] payload = newInputBuffer(chunkSize);
                     in.readFully(payload);
 
                     // Skip a JPEG APP1 marker that some image libraries incorrectly include in the
@@ -6519,6 +7226,8 @@ public class ExifInterface {
 
                     // Save offset to EXIF data for handling thumbnail and attribute offsets.
                     mOffsetToExifData = bytesRead;
+                    mWebpExifChunkLength = WEBP_CHUNK_TYPE_BYTE_LENGTH
+                            + WEBP_CHUNK_SIZE_BYTE_LENGTH + chunkSize + (chunkSize & 1);
                     readExifSegment(payload, IFD_TYPE_PRIMARY);
 
                     setThumbnailData(new ByteOrderedDataInputStream(payload));
@@ -6567,22 +7276,7 @@ public class ExifInterface {
         }
         dataOutputStream.writeByte(MARKER_SOI);
 
-        // Write EXIF APP1 segment
-        dataOutputStream.writeByte(MARKER);
-        dataOutputStream.writeByte(MARKER_APP1);
-        mOffsetToExifData = writeExifSegment(dataOutputStream);
-
-        if (mXmpFromSeparateMarker != null) {
-            // Write XMP APP1 segment. The XMP spec (part 3, section 1.1.3) recommends for this to
-            // directly follow the Exif APP1 segment.
-            dataOutputStream.write(MARKER);
-            dataOutputStream.writeByte(MARKER_APP1);
-            int length = 2 + IDENTIFIER_XMP_APP1.length + mXmpFromSeparateMarker.bytes.length;
-            dataOutputStream.writeUnsignedShort(length);
-            dataOutputStream.write(IDENTIFIER_XMP_APP1);
-            dataOutputStream.write(mXmpFromSeparateMarker.bytes);
-            mFileOnDiskContainsSeparateXmpMarker = true;
-        }
+        writeJpegMetadataSegments(dataOutputStream);
 
         byte[] bytes = new byte[4096];
 
@@ -6666,6 +7360,123 @@ public class ExifInterface {
         }
     }
 
+    // Writes the EXIF APP1 segment and the XMP APP1 segment, if there's XMP to write.
+    private void writeJpegMetadataSegments(ByteOrderedDataOutputStream dataOutputStream)
+            throws IOException {
+        // Write EXIF APP1 segment
+        dataOutputStream.writeByte(MARKER);
+        dataOutputStream.writeByte(MARKER_APP1);
+        mOffsetToExifData = writeExifSegment(dataOutputStream, mExifSegmentPadding);
+        // androidxc: the segment is no longer where it was read from
+        mExifSegmentOffset = -1;
+
+        if (mXmpFromSeparateMarker != null) {
+            // Write XMP APP1 segment. The XMP spec (part 3, section 1.1.3) recommends for this to
+            // directly follow the Exif APP1 segment.
+            dataOutputStream.write(MARKER);
+            dataOutputStream.writeByte(MARKER_APP1);
+            int length = 2 + IDENTIFIER_XMP_APP1.length + mXmpFromSeparateMarker.bytes.length;
+            dataOutputStream.writeUnsignedShort(length);
+            dataOutputStream.write(IDENTIFIER_XMP_APP1);
+            dataOutputStream.write(mXmpFromSeparateMarker.bytes);
+            mFileOnDiskContainsSeparateXmpMarker = true;
+        }
+    }
+
+    /**
+     * androidxc: Stores a new JPEG image with EXIF attributes into a given file descriptor, by
+     * splicing the new metadata segments in front of the segments of {@code original} that are
+     * kept. Everything from the SOS marker on is kept as is.
+     *
+     * @param original the JPEG image, starting at position 0
+     */
+    private void saveJpegAttributes(ByteBuffer original, FileDescriptor out) throws IOException {
+        final int limit = original.limit();
+        if (limit < 2 || original.get(0) != MARKER || original.get(1) != MARKER_SOI) {
+            throw new IOException("Invalid marker");
+        }
+
+        // The ranges of the original to keep, as [start, end) offset pairs
+        int[] keptRanges = new int[8];
+        int keptRangesSize = 0;
+        int keptRangeStart = 2;
+        int position = 2;
+        while (true) {
+            final int segmentStart = position;
+            if (position >= limit || original.get(position) != MARKER) {
+                throw new IOException("Invalid marker");
+            }
+            // Skip 0xFF fill bytes
+            byte marker;
+            do {
+                if (++position >= limit) {
+                    throw new EOFException("Reached EOF while looking for a marker");
+                }
+                marker = original.get(position);
+            } while (marker == MARKER);
+            ++position;
+
+            if (marker == MARKER_EOI || marker == MARKER_SOS) {
+                break;
+            }
+            if (position + 2 > limit) {
+                throw new EOFException("Reached EOF while reading a segment length");
+            }
+            final int length = original.getShort(position) & 0xffff;
+            if (length < 2) {
+                throw new IOException("Invalid length");
+            }
+            final int segmentEnd = position + length;
+            if (segmentEnd > limit) {
+                throw new EOFException("Reached EOF while skipping a segment");
+            }
+            if (marker == MARKER_APP1) {
+                original.position(position + 2);
+                original.limit(segmentEnd);
+                final boolean isMetadataSegment = startsWith(original, IDENTIFIER_EXIF_APP1)
+                        || startsWith(original, IDENTIFIER_XMP_APP1);
+                original.clear();
+                original.limit(limit);
+                if (isMetadataSegment) {
+                    // Skip the original EXIF or XMP APP1 segment.
+                    if (segmentStart > keptRangeStart) {
+                        if (keptRangesSize == keptRanges.length) {
+                            keptRanges = Arrays.copyOf(keptRanges, keptRanges.length * 2);
+                        }
+                        keptRanges[keptRangesSize++] = keptRangeStart;
+                        keptRanges[keptRangesSize++] = segmentStart;
+                    }
+                    keptRangeStart = segmentEnd;
+                }
+            }
+            position = segmentEnd;
+        }
+        if (keptRangesSize == keptRanges.length) {
+            keptRanges = Arrays.copyOf(keptRanges, keptRanges.length + 2);
+        }
+        keptRanges[keptRangesSize++] = keptRangeStart;
+        keptRanges[keptRangesSize++] = limit;
+
+        // The new segments are built before anything is written, so that a failure to serialize
+        // them leaves the destination untouched.
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        ByteOrderedDataOutputStream header =
+                new ByteOrderedDataOutputStream(headerBytes, BIG_ENDIAN);
+        header.writeByte(MARKER);
+        header.writeByte(MARKER_SOI);
+        writeJpegMetadataSegments(header);
+
+        ByteBuffer[] buffers = new ByteBuffer[1 + keptRangesSize / 2];
+        buffers[0] = ByteBuffer.wrap(headerBytes.toByteArray());
+        for (int i = 0; i < keptRangesSize; i += 2) {
+            original.position(keptRanges[i]);
+            original.limit(keptRanges[i + 1]);
+            buffers[1 + i / 2] = original.slice();
+            original.clear();
+        }
+        writeFully(out, buffers);
+    }
+
     private void savePngAttributes(InputStream inputStream, OutputStream outputStream)
             throws IOException {
         if (DEBUG) {
@@ -6677,7 +7488,7 @@ public class ExifInterface {
                 new ByteOrderedDataOutputStream(outputStream, BIG_ENDIAN);
 
         // Copy PNG signature bytes
-        copy(dataInputStream, dataOutputStream, PNG_SIGNATURE.length);
+        dataInputStream.transfer(dataOutputStream, PNG_SIGNATURE.length);
 
         boolean needToWriteExif = true;
         // Either there's some XMP data to write, or it has been cleared locally but was present in
@@ -6687,10 +7498,13 @@ public class ExifInterface {
         while (needToWriteExif || needToHandleXmpChunk) {
             int chunkLength = dataInputStream.readInt();
             int chunkType = dataInputStream.readInt();
+            if (chunkLength < 0) {
+                throw new IOException("Invalid PNG chunk length: " + chunkLength);
+            }
             if (chunkType == PNG_CHUNK_TYPE_IHDR) {
                 dataOutputStream.writeInt(chunkLength);
                 dataOutputStream.writeInt(chunkType);
-                copy(dataInputStream, dataOutputStream, chunkLength + PNG_CHUNK_CRC_BYTE_LENGTH);
+                dataInputStream.transfer(dataOutputStream, chunkLength + PNG_CHUNK_CRC_BYTE_LENGTH);
                 if (mOffsetToExifData == 0) {
                     // There was no Exif segment in the original file, so we put it directly
                     // after the IHDR chunk.
@@ -6724,33 +7538,31 @@ public class ExifInterface {
                     dataOutputStream.writeInt(chunkLength);
                     dataOutputStream.writeInt(chunkType);
                     dataOutputStream.write(keyword);
-                    copy(dataInputStream, dataOutputStream, remainingChunkBytes);
+                    dataInputStream.transfer(dataOutputStream, remainingChunkBytes);
                 }
                 continue;
             }
             dataOutputStream.writeInt(chunkLength);
             dataOutputStream.writeInt(chunkType);
-            copy(dataInputStream, dataOutputStream, chunkLength + PNG_CHUNK_CRC_BYTE_LENGTH);
+            dataInputStream.transfer(dataOutputStream, chunkLength + PNG_CHUNK_CRC_BYTE_LENGTH);
         }
 
         // Copy the rest of the file
-        copy(dataInputStream, dataOutputStream);
+        dataInputStream.transferRemaining(dataOutputStream);
     }
 
+    // androidxc: the chunk is written as writeExifSegment() produces it, with the CRC computed
+    // along the way rather than over a copy of the chunk.
     private void writePngExifChunk(ByteOrderedDataOutputStream dataOutputStream)
             throws IOException {
-        // Write the eXIF chunk out to an intermediate byte array so we can calculate the CRC value.
-        ByteArrayOutputStream exifByteArrayOutputStream = new ByteArrayOutputStream();
+        final int chunkStart = dataOutputStream.size();
+        // The CRC covers everything but the length
+        CrcOutputStream crcOutputStream = new CrcOutputStream(dataOutputStream.mOutputStream, 4);
         // Write eXIF chunk data (including chunk type & length).
         int exifOffset =
-                writeExifSegment(
-                        new ByteOrderedDataOutputStream(exifByteArrayOutputStream, BIG_ENDIAN));
-        mOffsetToExifData = dataOutputStream.mOutputStream.size() + exifOffset;
-        byte[] exifBytes = exifByteArrayOutputStream.toByteArray();
-        dataOutputStream.write(exifBytes);
-        CRC32 crc = new CRC32();
-        crc.update(exifBytes, 4 /* skip length bytes */, exifBytes.length - 4);
-        dataOutputStream.writeInt((int) crc.getValue());
+                writeExifSegment(new ByteOrderedDataOutputStream(crcOutputStream, BIG_ENDIAN));
+        mOffsetToExifData = chunkStart + exifOffset;
+        dataOutputStream.writeInt((int) crcOutputStream.mCrc.getValue());
     }
 
     private void writePngXmpItxtChunk(ByteOrderedDataOutputStream dataOutputStream)
@@ -6767,6 +7579,24 @@ public class ExifInterface {
         mFileOnDiskContainsSeparateXmpMarker = true;
     }
 
+    // androidxc: HEIF and AVIF files keep the Exif data in an item of its own, which is the offset
+    // of the TIFF header followed by the TIFF data. Like the eXIf chunk of PNG files, an XMP item
+    // is only rewritten if there is XMP to write, or if it was read from the file.
+    private void saveHeifAttributes(InputStream inputStream, OutputStream outputStream)
+            throws IOException {
+        ByteArrayOutputStream tiffBytes = new ByteArrayOutputStream();
+        writeExifSegment(new ByteOrderedDataOutputStream(tiffBytes, BIG_ENDIAN));
+        final boolean replaceXmp =
+                mXmpFromSeparateMarker != null || mFileOnDiskContainsSeparateXmpMarker;
+        final byte[] xmp = mXmpFromSeparateMarker != null ? mXmpFromSeparateMarker.bytes : null;
+        final long offsetToExifData = HeifItemWriter.write(inputStream, outputStream,
+                tiffBytes.toByteArray(), replaceXmp, xmp);
+        mOffsetToExifData = (int) offsetToExifData;
+        if (replaceXmp) {
+            mFileOnDiskContainsSeparateXmpMarker = xmp != null;
+        }
+    }
+
     // A WebP file has a header and a series of chunks.
     // The header is composed of:
     //   "RIFF" + File Size + "WEBP"
@@ -6811,26 +7641,46 @@ public class ExifInterface {
                 new ByteOrderedDataOutputStream(outputStream, LITTLE_ENDIAN);
 
         // WebP signature
-        copy(totalInputStream, totalOutputStream, WEBP_SIGNATURE_1.length);
+        totalInputStream.transfer(totalOutputStream, WEBP_SIGNATURE_1.length);
         int riffLength = totalInputStream.readInt();
         totalInputStream.skipFully(WEBP_SIGNATURE_2.length);
 
-        // Create a separate byte array to calculate file length
-        ByteArrayOutputStream nonHeaderByteArrayOutputStream = null;
-        int exifOffset = -1;
         try {
-            nonHeaderByteArrayOutputStream = new ByteArrayOutputStream();
-            ByteOrderedDataOutputStream nonHeaderOutputStream =
-                    new ByteOrderedDataOutputStream(nonHeaderByteArrayOutputStream, LITTLE_ENDIAN);
-
+            // androidxc: the new EXIF chunk is built first, so that the size of the RIFF chunk is
+            // known before the chunks are copied. It used to be taken from a copy of all of them
+            // in memory.
+            ByteArrayOutputStream exifChunk = new ByteArrayOutputStream();
+            int exifOffset = writeExifSegment(
+                    new ByteOrderedDataOutputStream(exifChunk, LITTLE_ENDIAN));
+            int newOffsetToExifData = -1;
+
+            byte[] firstChunkType = null;
+            int sizeChange = 0;
             if (mOffsetToExifData != 0) {
+                sizeChange = exifChunk.size() - mWebpExifChunkLength;
+            } else {
+                firstChunkType = new byte[WEBP_CHUNK_TYPE_BYTE_LENGTH];
+                totalInputStream.readFully(firstChunkType);
+                if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8X)) {
+                    sizeChange = exifChunk.size();
+                } else if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8)
+                        || Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8L)) {
+                    sizeChange = WEBP_CHUNK_TYPE_BYTE_LENGTH + WEBP_CHUNK_SIZE_BYTE_LENGTH
+                            + WEBP_CHUNK_TYPE_VP8X_DEFAULT_LENGTH + exifChunk.size();
+                }
+            }
+
+            // Write file length + second signature
+            totalOutputStream.writeInt(riffLength + sizeChange);
+            totalOutputStream.write(WEBP_SIGNATURE_2);
+
+            if (firstChunkType == null) {
                 // EXIF chunk exists in the original file
                 // Tested by webp_with_exif.webp
                 int bytesRead = WEBP_SIGNATURE_1.length + WEBP_FILE_SIZE_BYTE_LENGTH
                         + WEBP_SIGNATURE_2.length;
-                copy(totalInputStream, nonHeaderOutputStream,
-                        mOffsetToExifData - bytesRead - WEBP_CHUNK_TYPE_BYTE_LENGTH
-                                - WEBP_CHUNK_SIZE_BYTE_LENGTH);
+                totalInputStream.transfer(totalOutputStream, mOffsetToExifData - bytesRead
+                        - WEBP_CHUNK_TYPE_BYTE_LENGTH - WEBP_CHUNK_SIZE_BYTE_LENGTH);
 
                 // Skip input stream to the end of the EXIF chunk
                 totalInputStream.skipFully(WEBP_CHUNK_TYPE_BYTE_LENGTH);
@@ -6840,172 +7690,179 @@ public class ExifInterface {
                 if (exifChunkLength % 2 != 0) {
                     exifChunkLength++;
                 }
+                if (WEBP_CHUNK_TYPE_BYTE_LENGTH + WEBP_CHUNK_SIZE_BYTE_LENGTH + exifChunkLength
+                        != mWebpExifChunkLength) {
+                    throw new IOException("The EXIF chunk isn't the one that was read");
+                }
                 totalInputStream.skipFully(exifChunkLength);
 
                 // Write new EXIF chunk to output stream
-                exifOffset = writeExifSegment(nonHeaderOutputStream);
-            } else {
-                // EXIF chunk does not exist in the original file
-                byte[] firstChunkType = new byte[WEBP_CHUNK_TYPE_BYTE_LENGTH];
-                totalInputStream.readFully(firstChunkType);
-
-                if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8X)) {
-                    // Original file already includes other extra data
-                    int size = totalInputStream.readInt();
-                    // WebP files have a single padding byte at the end if the chunk size is odd.
-                    byte[] data = new byte[(size % 2) == 1 ? size + 1 : size];
-                    totalInputStream.readFully(data);
-
-                    // Set the EXIF flag to 1
-                    data[0] = (byte) (data[0] | (1 << 3));
-
-                    // Retrieve Animation flag--in order to check where EXIF data should start
-                    boolean containsAnimation = ((data[0] >> 1) & 1) == 1;
-
-                    // Write the original VP8X chunk
-                    nonHeaderOutputStream.write(WEBP_CHUNK_TYPE_VP8X);
-                    nonHeaderOutputStream.writeInt(size);
-                    nonHeaderOutputStream.write(data);
-
-                    // Animation control data is composed of 1 ANIM chunk and multiple ANMF
-                    // chunks and since the image data (VP8/VP8L) chunks are included in the ANMF
-                    // chunks, EXIF data should come after the last ANMF chunk.
-                    // Also, because there is no value indicating the amount of ANMF chunks, we need
-                    // to keep iterating through chunks until we either reach the end of the file or
-                    // the XMP chunk (if it exists).
-                    // Tested by webp_with_anim_without_exif.webp
-                    if (containsAnimation) {
-                        copyChunksUpToGivenChunkType(totalInputStream, nonHeaderOutputStream,
-                                WEBP_CHUNK_TYPE_ANIM, null);
-
-                        while (true) {
-                            byte[] type = new byte[WEBP_CHUNK_TYPE_BYTE_LENGTH];
-                            boolean animationFinished = false;
-                            try {
-                                totalInputStream.readFully(type);
-                                animationFinished = !Arrays.equals(type, WEBP_CHUNK_TYPE_ANMF);
-                            } catch (EOFException e) {
-                                animationFinished = true;
-                            }
-                            if (animationFinished) {
-                                exifOffset = writeExifSegment(nonHeaderOutputStream);
-                                break;
+                newOffsetToExifData = totalOutputStream.size() + exifOffset;
+                exifChunk.writeTo(totalOutputStream);
+            } else if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8X)) {
+                // Original file already includes other extra data
+                int size = totalInputStream.readInt();
+                // WebP files have a single padding byte at the end if the chunk size is odd.
+                byte[] data = new byte[(size % 2) == 1 ? size + 1 : size];
+                totalInputStream.readFully(data);
+
+                // Set the EXIF flag to 1
+                data[0] = (byte) (data[0] | (1 << 3));
+
+                // Retrieve Animation flag--in order to check where EXIF data should start
+                boolean containsAnimation = ((data[0] >> 1) & 1) == 1;
+
+                // Write the original VP8X chunk
+                totalOutputStream.write(WEBP_CHUNK_TYPE_VP8X);
+                totalOutputStream.writeInt(size);
+                totalOutputStream.write(data);
+
+                // Animation control data is composed of 1 ANIM chunk and multiple ANMF
+                // chunks and since the image data (VP8/VP8L) chunks are included in the ANMF
+                // chunks, EXIF data should come after the last ANMF chunk.
+                // Also, because there is no value indicating the amount of ANMF chunks, we need
+                // to keep iterating through chunks until we either reach the end of the file or
+                // the XMP chunk (if it exists).
+                // Tested by webp_with_anim_without_exif.webp
+                if (containsAnimation) {
+                    copyChunksUpToGivenChunkType(totalInputStream, totalOutputStream,
+                            WEBP_CHUNK_TYPE_ANIM, null);
+
+                    while (true) {
+                        byte[] type = new byte[WEBP_CHUNK_TYPE_BYTE_LENGTH];
+                        boolean animationFinished = false;
+                        try {
+                            totalInputStream.readFully(type);
+                            animationFinished = !Arrays.equals(type, WEBP_CHUNK_TYPE_ANMF);
+                        } catch (EOFException e) {
+                            type = null;
+                            animationFinished = true;
+                        }
+                        if (animationFinished) {
+                            newOffsetToExifData = totalOutputStream.size() + exifOffset;
+                            exifChunk.writeTo(totalOutputStream);
+                            // androidxc: the type of the chunk after the frames has been read
+                            // already, it used to be left out
+                            if (type != null) {
+                                totalOutputStream.write(type);
                             }
-                            copyWebPChunk(totalInputStream, nonHeaderOutputStream, type);
+                            break;
                         }
-                    } else {
-                        // Skip until we find the VP8 or VP8L chunk
-                        copyChunksUpToGivenChunkType(totalInputStream, nonHeaderOutputStream,
-                                WEBP_CHUNK_TYPE_VP8, WEBP_CHUNK_TYPE_VP8L);
-                        exifOffset = writeExifSegment(nonHeaderOutputStream);
+                        copyWebPChunk(totalInputStream, totalOutputStream, type);
                     }
-                } else if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8)
-                        || Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8L)) {
-                    int size = totalInputStream.readInt();
-                    int bytesToRead = size;
-                    // WebP files have a single padding byte at the end if the chunk size is odd.
-                    if (size % 2 == 1) {
-                        bytesToRead += 1;
+                } else {
+                    // Skip until we find the VP8 or VP8L chunk
+                    copyChunksUpToGivenChunkType(totalInputStream, totalOutputStream,
+                            WEBP_CHUNK_TYPE_VP8, WEBP_CHUNK_TYPE_VP8L);
+                    newOffsetToExifData = totalOutputStream.size() + exifOffset;
+                    exifChunk.writeTo(totalOutputStream);
+                }
+            } else if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8)
+                    || Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8L)) {
+                int size = totalInputStream.readInt();
+                int bytesToRead = size;
+                // WebP files have a single padding byte at the end if the chunk size is odd.
+                if (size % 2 == 1) {
+                    bytesToRead += 1;
+                }
+
+                // Retrieve image width/height
+                int widthAndHeight = 0;
+                int width = 0;
+                int height = 0;
+                boolean alpha = false;
+                // Save VP8 frame data for later
+                byte[] vp8Frame = new byte[3];
+
+                if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8)) {
+                    totalInputStream.readFully(vp8Frame);
+
+                    // Check signature
+                    byte[] vp8Signature = new byte[3];
+                    totalInputStream.readFully(vp8Signature);
+                    if (!Arrays.equals(WEBP_VP8_SIGNATURE, vp8Signature)) {
+                        throw new IOException("Error checking VP8 signature");
                     }
 
                     // Retrieve image width/height
-                    int widthAndHeight = 0;
-                    int width = 0;
-                    int height = 0;
-                    boolean alpha = false;
-                    // Save VP8 frame data for later
-                    byte[] vp8Frame = new byte[3];
-
-                    if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8)) {
-                        totalInputStream.readFully(vp8Frame);
-
-                        // Check signature
-                        byte[] vp8Signature = new byte[3];
-                        totalInputStream.readFully(vp8Signature);
-                        if (!Arrays.equals(WEBP_VP8_SIGNATURE, vp8Signature)) {
-                            throw new IOException("Error checking VP8 signature");
-                        }
-
-                        // Retrieve image width/height
-                        widthAndHeight = totalInputStream.readInt();
-                        width = widthAndHeight & 0x3FFF;
-                        height = (widthAndHeight >> 16) & 0x3FFF;
-                        bytesToRead -= (vp8Frame.length + vp8Signature.length + 4);
-                    } else if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8L)) {
-                        // Check signature
-                        byte vp8lSignature = totalInputStream.readByte();
-                        if (vp8lSignature != WEBP_VP8L_SIGNATURE) {
-                            throw new IOException("Error checking VP8L signature");
-                        }
-
-                        // Retrieve image width/height
-                        widthAndHeight = totalInputStream.readInt();
-                        // VP8L stores 14-bit 'width - 1' and 'height - 1' values. See "RIFF Header"
-                        // of "WebP Lossless Bitstream Specification".
-                        width = (widthAndHeight & 0x3FFF) + 1;  // Read bits 0 - 13
-                        height = ((widthAndHeight & 0xFFFC000) >>> 14) + 1;  // Read bits 14 - 27
-                        // Retrieve alpha bit 28
-                        alpha = (widthAndHeight & 1 << 28) != 0;
-                        bytesToRead -= (1 /* VP8L signature */ + 4);
+                    widthAndHeight = totalInputStream.readInt();
+                    width = widthAndHeight & 0x3FFF;
+                    height = (widthAndHeight >> 16) & 0x3FFF;
+                    bytesToRead -= (vp8Frame.length + vp8Signature.length + 4);
+                } else if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8L)) {
+                    // Check signature
+                    byte vp8lSignature = totalInputStream.readByte();
+                    if (vp8lSignature != WEBP_VP8L_SIGNATURE) {
+                        throw new IOException("Error checking VP8L signature");
                     }
 
-                    // Create VP8X with Exif flag set to 1
-                    nonHeaderOutputStream.write(WEBP_CHUNK_TYPE_VP8X);
-                    nonHeaderOutputStream.writeInt(WEBP_CHUNK_TYPE_VP8X_DEFAULT_LENGTH);
-                    byte[] data = new byte[WEBP_CHUNK_TYPE_VP8X_DEFAULT_LENGTH];
-                    // ALPHA flag
-                    if (alpha) {
-                        data[0] = (byte) (data[0] | (1 << 4));
-                    }
-                    // EXIF flag
-                    data[0] = (byte) (data[0] | (1 << 3));
-                    // VP8X stores Width - 1 and Height - 1 values
-                    width -= 1;
-                    height -= 1;
-                    data[4] = (byte) width;
-                    data[5] = (byte) (width >> 8);
-                    data[6] = (byte) (width >> 16);
-                    data[7] = (byte) height;
-                    data[8] = (byte) (height >> 8);
-                    data[9] = (byte) (height >> 16);
-                    nonHeaderOutputStream.write(data);
-
-                    // Write VP8 or VP8L data
-                    nonHeaderOutputStream.write(firstChunkType);
-                    nonHeaderOutputStream.writeInt(size);
-                    if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8)) {
-                        nonHeaderOutputStream.write(vp8Frame);
-                        nonHeaderOutputStream.write(WEBP_VP8_SIGNATURE);
-                        nonHeaderOutputStream.writeInt(widthAndHeight);
-                    } else if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8L)) {
-                        nonHeaderOutputStream.write(WEBP_VP8L_SIGNATURE);
-                        nonHeaderOutputStream.writeInt(widthAndHeight);
-                    }
-                    copy(totalInputStream, nonHeaderOutputStream, bytesToRead);
+                    // Retrieve image width/height
+                    widthAndHeight = totalInputStream.readInt();
+                    // VP8L stores 14-bit 'width - 1' and 'height - 1' values. See "RIFF Header"
+                    // of "WebP Lossless Bitstream Specification".
+                    width = (widthAndHeight & 0x3FFF) + 1;  // Read bits 0 - 13
+                    height = ((widthAndHeight & 0xFFFC000) >>> 14) + 1;  // Read bits 14 - 27
+                    // Retrieve alpha bit 28
+                    alpha = (widthAndHeight & 1 << 28) != 0;
+                    bytesToRead -= (1 /* VP8L signature */ + 4);
+                }
 
-                    // Write EXIF chunk
-                    exifOffset = writeExifSegment(nonHeaderOutputStream);
+                // Create VP8X with Exif flag set to 1
+                totalOutputStream.write(WEBP_CHUNK_TYPE_VP8X);
+                totalOutputStream.writeInt(WEBP_CHUNK_TYPE_VP8X_DEFAULT_LENGTH);
+                byte[] data = new byte[WEBP_CHUNK_TYPE_VP8X_DEFAULT_LENGTH];
+                // ALPHA flag
+                if (alpha) {
+                    data[0] = (byte) (data[0] | (1 << 4));
                 }
+                // EXIF flag
+                data[0] = (byte) (data[0] | (1 << 3));
+                // VP8X stores Width - 1 and Height - 1 values
+                width -= 1;
+                height -= 1;
+                data[4] = (byte) width;
+                data[5] = (byte) (width >> 8);
+                data[6] = (byte) (width >> 16);
+                data[7] = (byte) height;
+                data[8] = (byte) (height >> 8);
+                data[9] = (byte) (height >> 16);
+                totalOutputStream.write(data);
+
+                // Write VP8 or VP8L data
+                totalOutputStream.write(firstChunkType);
+                totalOutputStream.writeInt(size);
+                if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8)) {
+                    totalOutputStream.write(vp8Frame);
+                    totalOutputStream.write(WEBP_VP8_SIGNATURE);
+                    totalOutputStream.writeInt(widthAndHeight);
+                } else if (Arrays.equals(firstChunkType, WEBP_CHUNK_TYPE_VP8L)) {
+                    totalOutputStream.write(WEBP_VP8L_SIGNATURE);
+                    totalOutputStream.writeInt(widthAndHeight);
+                }
+                totalInputStream.transfer(totalOutputStream, bytesToRead);
+
+                // Write EXIF chunk
+                newOffsetToExifData = totalOutputStream.size() + exifOffset;
+                exifChunk.writeTo(totalOutputStream);
+            } else {
+                // androidxc: not a chunk that comes first in a WebP file, the file is copied as
+                // it is. The type used to be left out.
+                totalOutputStream.write(firstChunkType);
             }
 
             // Copy the rest of the RIFF part of the file
             int remainingRiffBytes = riffLength + 8 - totalInputStream.position();
-            copy(totalInputStream, nonHeaderOutputStream, remainingRiffBytes);
+            totalInputStream.transfer(totalOutputStream, remainingRiffBytes);
 
-            // Write file length + second signature
-            totalOutputStream.writeInt(nonHeaderByteArrayOutputStream.size()
-                    + WEBP_SIGNATURE_2.length);
-            totalOutputStream.write(WEBP_SIGNATURE_2);
-            if (exifOffset != -1) {
-                mOffsetToExifData = totalOutputStream.mOutputStream.size() + exifOffset;
-            }
-            nonHeaderByteArrayOutputStream.writeTo(totalOutputStream);
             // Copy any non-RIFF trailing data
-            copy(totalInputStream, totalOutputStream);
+            totalInputStream.transferRemaining(totalOutputStream);
+
+            if (newOffsetToExifData != -1) {
+                mOffsetToExifData = newOffsetToExifData;
+                mWebpExifChunkLength = exifChunk.size();
+            }
         } catch (Exception e) {
             throw new IOException("Failed to save WebP file", e);
-        } finally {
-            closeQuietly(nonHeaderByteArrayOutputStream);
         }
     }
 
@@ -7029,19 +7886,84 @@ public class ExifInterface {
         outputStream.write(type);
         outputStream.writeInt(size);
         // WebP files have a single padding byte at the end if the chunk size is odd.
-        copy(inputStream, outputStream, (size % 2) == 1 ? size + 1 : size);
+        inputStream.transfer(outputStream, (size % 2) == 1 ? size + 1 : size);
     }
 
     // Reads the given EXIF byte area and save its tag data into attributes.
     private void readExifSegment(byte[] exifBytes, int imageType) throws IOException {
+        readExifSegment(ByteBuffer.wrap(exifBytes), imageType);
+    }
+
+    // androidxc: reads the EXIF byte area between the position and the limit of the given buffer
+    // in place.
+    private void readExifSegment(ByteBuffer exifBytes, int imageType) throws IOException {
+        // Values still pending are decoded from the segment they were found in.
+        parsePendingThumbnail();
+        decodePendingAttributes();
+
         SeekableByteOrderedDataInputStream dataInputStream =
-                new SeekableByteOrderedDataInputStream(exifBytes);
+                new SeekableByteOrderedDataInputStream(exifBytes.duplicate());
 
         // Parse TIFF Headers. See JEITA CP-3451C Section 4.5.2. Table 1.
         parseTiffHeaders(dataInputStream);
 
+        if ((mParseFlags & PARSE_FLAG_LAZY) != 0) {
+            mPendingExifData = exifBytes.slice().order(mExifByteOrder);
+            mPendingOffsetToExifData = mOffsetToExifData;
+            mPendingExifDataInput = dataInputStream;
+        }
+
         // Read TIFF image file directories. See JEITA CP-3451C Section 4.5.2. Figure 6.
-        readImageFileDirectory(dataInputStream, imageType);
+        try {
+            readImageFileDirectory(dataInputStream, imageType);
+        } finally {
+            mPendingExifDataInput = null;
+        }
+    }
+
+    // androidxc: decodes an entry that readImageFileDirectory() left pending in lazy mode. The
+    // pending value holds the position of the entry in mPendingExifData and its data format.
+    private @NonNull ExifAttribute decodePendingAttribute(int tagNumber, long pendingValue) {
+        final ByteBuffer data = mPendingExifData;
+        final int entryPosition = (int) (pendingValue >>> 32);
+        final int dataFormat = (int) pendingValue;
+        // See TIFF 6.0 Section 2: TIFF Structure, "Image File Directory".
+        final int numberOfComponents = data.getInt(entryPosition + 4);
+        final int byteCount = numberOfComponents * IFD_FORMAT_BYTES_PER_FORMAT[dataFormat];
+        final int valuePosition = byteCount > 4 ? data.getInt(entryPosition + 8)
+                : entryPosition + 8;
+        final byte[] bytes = new byte[byteCount];
+        final ByteBuffer value = data.duplicate();
+        value.position(valuePosition);
+        value.get(bytes);
+        return new ExifAttribute(dataFormat, numberOfComponents,
+                valuePosition + mPendingOffsetToExifData, bytes);
+    }
+
+    // androidxc: decodes the values left pending in lazy mode
+    private void decodePendingAttributes() {
+        if (mPendingExifData == null) {
+            return;
+        }
+        for (TagTable<ExifAttribute> attributes : mAttributes) {
+            attributes.decodeAll();
+        }
+        mPendingExifData = null;
+    }
+
+    // androidxc: locates the thumbnail that was left for later in lazy mode. Any method that
+    // depends on the thumbnail, or on the thumbnail tags being as they were parsed, calls this.
+    private void parsePendingThumbnail() {
+        final ByteBuffer data = mPendingThumbnailData;
+        if (data == null) {
+            return;
+        }
+        mPendingThumbnailData = null;
+        try {
+            setThumbnailData(new ByteOrderedDataInputStream(data.duplicate()));
+        } catch (IOException e) {
+            Log.d(TAG, "Encountered exception while locating the thumbnail", e);
+        }
     }
 
     private void addDefaultValuesForCompatibility() {
@@ -7114,11 +8036,55 @@ public class ExifInterface {
         }
     }
 
+    // androidxc: Returns whether the IFD at the given offset has been read already.
+    private boolean isIfdOffsetRead(int offset) {
+        for (int i = 0; i < mAttributesOffsetCount; ++i) {
+            if (mAttributesOffsets[i] == offset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // androidxc: Allocates a buffer for the given number of bytes of the input. In strict mode,
+    // the buffer is charged to the allocation budget of the parse, see PARSE_FLAG_STRICT.
+    private byte[] newInputBuffer(long size) throws IOException {
+        if ((mParseFlags & PARSE_FLAG_STRICT) != 0) {
+            if (size < 0 || size > STRICT_MAX_BUFFER_SIZE || size > mAllocationBudget) {
+                throw new IOException("Exceeded the allocation limits with a buffer of " + size
+                        + " bytes, " + mAllocationBudget + " bytes left");
+            }
+            mAllocationBudget -= size;
+        }
+        return new byte[(int) size];
+    }
+
+    // androidxc: Reads an IFD that another IFD points to, unless it is nested too deeply for
+    // strict mode.
+    private void readNestedImageFileDirectory(SeekableByteOrderedDataInputStream dataInputStream,
+            @IfdType int ifdType) throws IOException {
+        if ((mParseFlags & PARSE_FLAG_STRICT) != 0 && mIfdDepth >= STRICT_MAX_IFD_DEPTH) {
+            if (DEBUG) {
+                Log.d(TAG, "Skip jump into the IFD since it is nested too deeply: " + ifdType);
+            }
+            return;
+        }
+        ++mIfdDepth;
+        try {
+            readImageFileDirectory(dataInputStream, ifdType);
+        } finally {
+            --mIfdDepth;
+        }
+    }
+
     // Reads image file directory, which is a tag group in EXIF.
     private void readImageFileDirectory(SeekableByteOrderedDataInputStream dataInputStream,
             @IfdType int ifdType) throws IOException {
         // Save offset of current IFD to prevent reading an IFD that is already read.
-        mAttributesOffsets.add(dataInputStream.position());
+        if (mAttributesOffsetCount == mAttributesOffsets.length) {
+            mAttributesOffsets = Arrays.copyOf(mAttributesOffsets, mAttributesOffsetCount * 2);
+        }
+        mAttributesOffsets[mAttributesOffsetCount++] = dataInputStream.position();
 
         // See TIFF 6.0 Section 2: TIFF Structure, Figure 1.
         short numberOfDirectoryEntry = dataInputStream.readShort();
@@ -7129,9 +8095,17 @@ public class ExifInterface {
             // Return if the size of entries is negative.
             return;
         }
+        // androidxc: in strict mode, only the first entries are read and the rest are skipped
+        final long entriesEnd = dataInputStream.position() + 12L * numberOfDirectoryEntry;
+        final boolean truncated = (mParseFlags & PARSE_FLAG_STRICT) != 0
+                && numberOfDirectoryEntry > STRICT_MAX_IFD_ENTRIES;
+        if (truncated) {
+            numberOfDirectoryEntry = STRICT_MAX_IFD_ENTRIES;
+        }
 
         // See TIFF 6.0 Section 2: TIFF Structure, "Image File Directory".
         for (short i = 0; i < numberOfDirectoryEntry; ++i) {
+            final int entryPosition = dataInputStream.position();
             int tagNumber = dataInputStream.readUnsignedShort();
             int dataFormat = dataInputStream.readUnsignedShort();
             int numberOfComponents = dataInputStream.readInt();
@@ -7173,6 +8147,12 @@ public class ExifInterface {
                         Log.d(TAG, "Skip the tag entry since the number of components is invalid: "
                                 + numberOfComponents);
                     }
+                } else if ((mParseFlags & PARSE_FLAG_STRICT) != 0
+                        && byteCount > STRICT_MAX_BUFFER_SIZE) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Skip the tag entry since its value is too large: "
+                                + byteCount);
+                    }
                 } else {
                     valid = true;
                 }
@@ -7258,9 +8238,9 @@ public class ExifInterface {
                 if (offset > 0L
                         && (dataInputStream.length() == ByteOrderedDataInputStream.LENGTH_UNSET
                                 || offset < dataInputStream.length())) {
-                    if (!mAttributesOffsets.contains((int) offset)) {
+                    if (!isIfdOffsetRead((int) offset)) {
                         dataInputStream.seek(offset);
-                        readImageFileDirectory(dataInputStream, nextIfdType);
+                        readNestedImageFileDirectory(dataInputStream, nextIfdType);
                     } else {
                         if (DEBUG) {
                             Log.d(TAG, "Skip jump into the IFD since it has already been read: "
@@ -7282,12 +8262,20 @@ public class ExifInterface {
                 continue;
             }
 
-            final int bytesOffset = dataInputStream.position() + mOffsetToExifData;
-            final byte[] bytes = new byte[(int) byteCount];
-            dataInputStream.readFully(bytes);
-            ExifAttribute attribute = new ExifAttribute(dataFormat, numberOfComponents,
-                    bytesOffset, bytes);
-            mAttributes[ifdType].put(tag.name, attribute);
+            if (dataInputStream == mPendingExifDataInput && dataInputStream.position() >= 0
+                    && byteCount <= dataInputStream.length() - dataInputStream.position()) {
+                // androidxc: leave the value to be decoded when it is requested, see
+                // PARSE_FLAG_LAZY
+                mAttributes[ifdType].putPending(tagNumber,
+                        (long) entryPosition << 32 | dataFormat);
+            } else {
+                final int bytesOffset = dataInputStream.position() + mOffsetToExifData;
+                final byte[] bytes = newInputBuffer(byteCount);
+                dataInputStream.readFully(bytes);
+                ExifAttribute attribute = new ExifAttribute(dataFormat, numberOfComponents,
+                        bytesOffset, bytes);
+                mAttributes[ifdType].put(tagNumber, attribute);
+            }
 
             // DNG files have a DNG Version tag specifying the version of specifications that the
             // image file is following.
@@ -7300,9 +8288,10 @@ public class ExifInterface {
             // that is 65535.
             // See http://fileformats.archiveteam.org/wiki/Pentax_PEF
             if (((TAG_MAKE.equals(tag.name) || TAG_MODEL.equals(tag.name))
-                    && attribute.getStringValue(mExifByteOrder).contains(PEF_SIGNATURE))
+                    && mAttributes[ifdType].get(tagNumber).getStringValue(mExifByteOrder)
+                            .contains(PEF_SIGNATURE))
                     || (TAG_COMPRESSION.equals(tag.name)
-                    && attribute.getIntValue(mExifByteOrder) == 65535)) {
+                    && mAttributes[ifdType].get(tagNumber).getIntValue(mExifByteOrder) == 65535)) {
                 mMimeType = IMAGE_TYPE_PEF;
             }
 
@@ -7312,6 +8301,9 @@ public class ExifInterface {
             }
         }
 
+        if (truncated) {
+            dataInputStream.seek(entriesEnd);
+        }
         int nextIfdOffset = dataInputStream.readInt();
         if (DEBUG) {
             Log.d(TAG, String.format("nextIfdOffset: %d", nextIfdOffset));
@@ -7320,13 +8312,13 @@ public class ExifInterface {
         // 1. Is a non-negative value, and
         // 2. Does not point to a previously read IFD.
         if (nextIfdOffset > 0L) {
-            if (!mAttributesOffsets.contains(nextIfdOffset)) {
+            if (!isIfdOffsetRead(nextIfdOffset)) {
                 dataInputStream.seek(nextIfdOffset);
                 if (mAttributes[IFD_TYPE_THUMBNAIL].isEmpty()) {
                     // Do not overwrite thumbnail IFD data if it already exists.
-                    readImageFileDirectory(dataInputStream, IFD_TYPE_THUMBNAIL);
+                    readNestedImageFileDirectory(dataInputStream, IFD_TYPE_THUMBNAIL);
                 } else if (mAttributes[IFD_TYPE_PREVIEW].isEmpty()) {
-                    readImageFileDirectory(dataInputStream, IFD_TYPE_PREVIEW);
+                    readNestedImageFileDirectory(dataInputStream, IFD_TYPE_PREVIEW);
                 }
             } else {
                 if (DEBUG) {
@@ -7371,7 +8363,7 @@ public class ExifInterface {
 
                 // Searches for SOF marker in JPEG data and updates IMAGE_LENGTH & IMAGE_WIDTH tags
                 in.seek(jpegInterchangeFormat);
-                byte[] jpegBytes = new byte[jpegInterchangeFormatLength];
+                byte[] jpegBytes = newInputBuffer(jpegInterchangeFormatLength);
                 in.readFully(jpegBytes);
                 getJpegAttributes(new ByteOrderedDataInputStream(jpegBytes), jpegInterchangeFormat,
                         imageType);
@@ -7381,7 +8373,7 @@ public class ExifInterface {
 
     // Sets thumbnail offset & length attributes based on JpegInterchangeFormat or StripOffsets tags
     private void setThumbnailData(ByteOrderedDataInputStream in) throws IOException {
-        HashMap<String, ExifAttribute> thumbnailData = mAttributes[IFD_TYPE_THUMBNAIL];
+        TagTable<ExifAttribute> thumbnailData = mAttributes[IFD_TYPE_THUMBNAIL];
 
         ExifAttribute compressionAttribute =
                 thumbnailData.get(TAG_COMPRESSION);
@@ -7410,7 +8402,7 @@ public class ExifInterface {
     // Check JpegInterchangeFormat(JFIF) tags to retrieve thumbnail offset & length values
     // and reads the corresponding bytes if stream does not support seek function
     private void handleThumbnailFromJfif(ByteOrderedDataInputStream in,
-            HashMap<String, ExifAttribute> thumbnailData) throws IOException {
+            TagTable<ExifAttribute> thumbnailData) throws IOException {
         ExifAttribute jpegInterchangeFormatAttribute =
                 thumbnailData.get(TAG_JPEG_INTERCHANGE_FORMAT);
         ExifAttribute jpegInterchangeFormatLengthAttribute =
@@ -7428,10 +8420,10 @@ public class ExifInterface {
             if (thumbnailOffset > 0 && thumbnailLength > 0) {
                 mHasThumbnail = true;
                 if (mFilename == null && mAssetInputStream == null
-                        && mSeekableFileDescriptor == null) {
+                        && mSeekableFileDescriptor == null && mByteBuffer == null) {
                     // TODO: Need to handle potential OutOfMemoryError
                     // Save the thumbnail in memory if the input doesn't support reading again.
-                    byte[] thumbnailBytes = new byte[thumbnailLength];
+                    byte[] thumbnailBytes = newInputBuffer(thumbnailLength);
                     in.skipFully(thumbnailOffset);
                     in.readFully(thumbnailBytes);
                     mThumbnailBytes = thumbnailBytes;
@@ -7448,7 +8440,7 @@ public class ExifInterface {
 
     // Check StripOffsets & StripByteCounts tags to retrieve thumbnail offset & length values
     private void handleThumbnailFromStrips(ByteOrderedDataInputStream in,
-            HashMap<String, ExifAttribute> thumbnailData) throws IOException {
+            TagTable<ExifAttribute> thumbnailData) throws IOException {
         ExifAttribute stripOffsetsAttribute =
                 thumbnailData.get(TAG_STRIP_OFFSETS);
         ExifAttribute stripByteCountsAttribute =
@@ -7480,7 +8472,7 @@ public class ExifInterface {
 
             // TODO: Need to handle potential OutOfMemoryError
             // Set thumbnail byte array data for non-consecutive strip bytes
-            byte[] totalStripBytes = new byte[(int) totalStripByteCount];
+            byte[] totalStripBytes = newInputBuffer(totalStripByteCount);
 
             int bytesRead = 0;
             int bytesAdded = 0;
@@ -7510,7 +8502,7 @@ public class ExifInterface {
                 }
                 bytesRead += bytesToSkip;
                 // TODO: Need to handle potential OutOfMemoryError
-                byte[] stripBytes = new byte[stripByteCount];
+                byte[] stripBytes = newInputBuffer(stripByteCount);
                 try {
                     in.readFully(stripBytes);
                 } catch (EOFException e) {
@@ -7534,7 +8526,7 @@ public class ExifInterface {
     }
 
     // Check if thumbnail data type is currently supported or not
-    private boolean isSupportedDataType(HashMap<String, ExifAttribute> thumbnailData) {
+    private boolean isSupportedDataType(TagTable<ExifAttribute> thumbnailData) {
         ExifAttribute bitsPerSampleAttribute =
                 thumbnailData.get(TAG_BITS_PER_SAMPLE);
         if (bitsPerSampleAttribute != null) {
@@ -7570,7 +8562,7 @@ public class ExifInterface {
 
     // Returns true if the image length and width values are <= 512.
     // See Section 4.8 of http://standardsproposals.bsigroup.com/Home/getPDF/567
-    private boolean isThumbnail(HashMap<String, ExifAttribute> map) {
+    private boolean isThumbnail(TagTable<ExifAttribute> map) {
         ExifAttribute imageLengthAttribute = map.get(TAG_IMAGE_LENGTH);
         ExifAttribute imageWidthAttribute = map.get(TAG_IMAGE_WIDTH);
 
@@ -7609,7 +8601,7 @@ public class ExifInterface {
         if (mAttributes[IFD_TYPE_THUMBNAIL].isEmpty()) {
             if (isThumbnail(mAttributes[IFD_TYPE_PREVIEW])) {
                 mAttributes[IFD_TYPE_THUMBNAIL] = mAttributes[IFD_TYPE_PREVIEW];
-                mAttributes[IFD_TYPE_PREVIEW] = new HashMap<>();
+                mAttributes[IFD_TYPE_PREVIEW] = new TagTable<>();
             }
         }
 
@@ -7618,16 +8610,8 @@ public class ExifInterface {
             Log.d(TAG, "No image meets the size requirements of a thumbnail image.");
         }
 
-        // TAG_THUMBNAIL_* tags should be replaced with TAG_* equivalents and vice versa if needed.
-        replaceInvalidTags(IFD_TYPE_PRIMARY, TAG_THUMBNAIL_ORIENTATION, TAG_ORIENTATION);
-        replaceInvalidTags(IFD_TYPE_PRIMARY, TAG_THUMBNAIL_IMAGE_LENGTH, TAG_IMAGE_LENGTH);
-        replaceInvalidTags(IFD_TYPE_PRIMARY, TAG_THUMBNAIL_IMAGE_WIDTH, TAG_IMAGE_WIDTH);
-        replaceInvalidTags(IFD_TYPE_PREVIEW, TAG_THUMBNAIL_ORIENTATION, TAG_ORIENTATION);
-        replaceInvalidTags(IFD_TYPE_PREVIEW, TAG_THUMBNAIL_IMAGE_LENGTH, TAG_IMAGE_LENGTH);
-        replaceInvalidTags(IFD_TYPE_PREVIEW, TAG_THUMBNAIL_IMAGE_WIDTH, TAG_IMAGE_WIDTH);
-        replaceInvalidTags(IFD_TYPE_THUMBNAIL, TAG_ORIENTATION, TAG_THUMBNAIL_ORIENTATION);
-        replaceInvalidTags(IFD_TYPE_THUMBNAIL, TAG_IMAGE_LENGTH, TAG_THUMBNAIL_IMAGE_LENGTH);
-        replaceInvalidTags(IFD_TYPE_THUMBNAIL, TAG_IMAGE_WIDTH, TAG_THUMBNAIL_IMAGE_WIDTH);
+        // androidxc: the TAG_THUMBNAIL_* tags used to be renamed to their TAG_* equivalents and
+        // vice versa here. Tags are stored by number now, which is the same for both names.
     }
 
     /**
@@ -7714,6 +8698,18 @@ public class ExifInterface {
      *     dataOutputStream}.
      */
     private int writeExifSegment(ByteOrderedDataOutputStream dataOutputStream) throws IOException {
+        return writeExifSegment(dataOutputStream, 0);
+    }
+
+    /**
+     * androidxc: Writes an Exif segment into the given output stream, followed by up to {@code
+     * padding} zero bytes within a JPEG APP1 segment, as many as fit.
+     *
+     * @return The offset of the start of the Exif data (the byte-order marker) written into {@code
+     *     dataOutputStream}.
+     */
+    private int writeExifSegment(ByteOrderedDataOutputStream dataOutputStream, int padding)
+            throws IOException {
         // The following variables are for calculating each IFD tag group size in bytes.
         int[] ifdOffsets = new int[EXIF_TAGS.length];
         int[] ifdDataSizes = new int[EXIF_TAGS.length];
@@ -7733,30 +8729,18 @@ public class ExifInterface {
             }
         }
 
-        // Remove null value tags.
-        for (int ifdType = 0; ifdType < EXIF_TAGS.length; ++ifdType) {
-            Iterator<Map.Entry<String, ExifAttribute>> entrySetIterator =
-                    mAttributes[ifdType].entrySet().iterator();
-            while (entrySetIterator.hasNext()) {
-                Map.Entry<String, ExifAttribute> entry = entrySetIterator.next();
-                if (entry.getValue() == null) {
-                    entrySetIterator.remove();
-                }
-            }
-        }
-
         // Add IFD pointer tags. The next offset of primary image TIFF IFD will have thumbnail IFD
         // offset when there is one or more tags in the thumbnail IFD.
         if (!mAttributes[IFD_TYPE_EXIF].isEmpty()) {
-            mAttributes[IFD_TYPE_PRIMARY].put(EXIF_POINTER_TAGS[1].name,
+            mAttributes[IFD_TYPE_PRIMARY].put(EXIF_POINTER_TAGS[1].number,
                     ExifAttribute.createULong(0, mExifByteOrder));
         }
         if (!mAttributes[IFD_TYPE_GPS].isEmpty()) {
-            mAttributes[IFD_TYPE_PRIMARY].put(EXIF_POINTER_TAGS[2].name,
+            mAttributes[IFD_TYPE_PRIMARY].put(EXIF_POINTER_TAGS[2].number,
                     ExifAttribute.createULong(0, mExifByteOrder));
         }
         if (!mAttributes[IFD_TYPE_INTEROPERABILITY].isEmpty()) {
-            mAttributes[IFD_TYPE_EXIF].put(EXIF_POINTER_TAGS[3].name,
+            mAttributes[IFD_TYPE_EXIF].put(EXIF_POINTER_TAGS[3].number,
                     ExifAttribute.createULong(0, mExifByteOrder));
         }
         if (mHasThumbnail) {
@@ -7773,12 +8757,23 @@ public class ExifInterface {
             }
         }
 
+        // androidxc: see SegmentTemplate
+        final SegmentTemplate template = mMimeType == IMAGE_TYPE_JPEG
+                && !(mHasThumbnail && mHasThumbnailStrips) ? mSegmentTemplate : null;
+        if (template != null) {
+            synchronized (template) {
+                if (matchesSegmentTemplate(template)) {
+                    return writeExifSegmentFromTemplate(template, dataOutputStream, padding);
+                }
+            }
+        }
+
         // Calculate IFD group data area sizes. IFD group data area is assigned to save the entry
         // value which has a bigger size than 4 bytes.
         for (int i = 0; i < EXIF_TAGS.length; ++i) {
             int sum = 0;
-            for (Map.Entry<String, ExifAttribute> entry : mAttributes[i].entrySet()) {
-                final ExifAttribute exifAttribute = entry.getValue();
+            for (int tagNumber : mAttributes[i].keys()) {
+                final ExifAttribute exifAttribute = mAttributes[i].get(tagNumber);
                 final int size = exifAttribute.size();
                 if (size > 4) {
                     sum += size;
@@ -7814,6 +8809,10 @@ public class ExifInterface {
         if (mMimeType == IMAGE_TYPE_JPEG) {
             // Add 8 bytes for APP1 size and identifier data
             totalSize += 8;
+            padding = Math.max(0, Math.min(padding, 0xFFFF - totalSize));
+            totalSize += padding;
+        } else {
+            padding = 0;
         }
         if (DEBUG) {
             for (int i = 0; i < EXIF_TAGS.length; ++i) {
@@ -7824,18 +8823,7 @@ public class ExifInterface {
         }
 
         // Update IFD pointer tags with the calculated offsets.
-        if (!mAttributes[IFD_TYPE_EXIF].isEmpty()) {
-            mAttributes[IFD_TYPE_PRIMARY].put(EXIF_POINTER_TAGS[1].name,
-                    ExifAttribute.createULong(ifdOffsets[IFD_TYPE_EXIF], mExifByteOrder));
-        }
-        if (!mAttributes[IFD_TYPE_GPS].isEmpty()) {
-            mAttributes[IFD_TYPE_PRIMARY].put(EXIF_POINTER_TAGS[2].name,
-                    ExifAttribute.createULong(ifdOffsets[IFD_TYPE_GPS], mExifByteOrder));
-        }
-        if (!mAttributes[IFD_TYPE_INTEROPERABILITY].isEmpty()) {
-            mAttributes[IFD_TYPE_EXIF].put(EXIF_POINTER_TAGS[3].name, ExifAttribute.createULong(
-                    ifdOffsets[IFD_TYPE_INTEROPERABILITY], mExifByteOrder));
-        }
+        updateIfdPointerTags(ifdOffsets);
 
         switch (mMimeType) {
             case IMAGE_TYPE_JPEG:
@@ -7860,42 +8848,56 @@ public class ExifInterface {
                 break;
         }
 
-        int offsetToExifData = dataOutputStream.mOutputStream.size();
+        int offsetToExifData = dataOutputStream.size();
+
+        // androidxc: with a template, the TIFF data is assembled in memory so that the template
+        // can keep it, along with the position of each value in it
+        final ByteArrayOutputStream tiffBytes =
+                template != null ? new ByteArrayOutputStream(totalSize) : null;
+        final ByteOrderedDataOutputStream tiffOutputStream = tiffBytes != null
+                ? new ByteOrderedDataOutputStream(tiffBytes, BIG_ENDIAN) : dataOutputStream;
+        final int[][] templateTagNumbers = new int[EXIF_TAGS.length][];
+        final int[][] templateValuePositions = new int[EXIF_TAGS.length][];
 
         // Write TIFF Headers. See JEITA CP-3451C Section 4.5.2. Table 1.
-        dataOutputStream.writeShort(mExifByteOrder == BIG_ENDIAN ? BYTE_ALIGN_MM : BYTE_ALIGN_II);
-        dataOutputStream.setByteOrder(mExifByteOrder);
-        dataOutputStream.writeUnsignedShort(START_CODE);
-        dataOutputStream.writeUnsignedInt(IFD_OFFSET);
+        tiffOutputStream.writeShort(mExifByteOrder == BIG_ENDIAN ? BYTE_ALIGN_MM : BYTE_ALIGN_II);
+        tiffOutputStream.setByteOrder(mExifByteOrder);
+        tiffOutputStream.writeUnsignedShort(START_CODE);
+        tiffOutputStream.writeUnsignedInt(IFD_OFFSET);
 
         // Write IFD groups. See JEITA CP-3451C Section 4.5.8. Figure 9.
         for (int ifdType = 0; ifdType < EXIF_TAGS.length; ++ifdType) {
+            // androidxc: entries are written in ascending order of tag numbers, as required by
+            // TIFF 6.0 Section 2: TIFF Structure, "Image File Directory".
+            final int[] tagNumbers = mAttributes[ifdType].keys();
+            final int[] valuePositions = new int[tagNumbers.length];
+            templateTagNumbers[ifdType] = tagNumbers;
+            templateValuePositions[ifdType] = valuePositions;
             if (!mAttributes[ifdType].isEmpty()) {
                 // See JEITA CP-3451C Section 4.6.2: IFD structure.
                 // Write entry count
-                dataOutputStream.writeUnsignedShort(mAttributes[ifdType].size());
+                tiffOutputStream.writeUnsignedShort(mAttributes[ifdType].size());
 
                 // Write entry info
                 int dataOffset = ifdOffsets[ifdType] + 2 + mAttributes[ifdType].size() * 12 + 4;
-                for (Map.Entry<String, ExifAttribute> entry : mAttributes[ifdType].entrySet()) {
-                    // Convert tag name to tag number.
-                    final ExifTag tag = sExifTagMapsForWriting[ifdType].get(entry.getKey());
-                    final int tagNumber = tag.number;
-                    final ExifAttribute attribute = entry.getValue();
+                for (int j = 0; j < tagNumbers.length; ++j) {
+                    final ExifAttribute attribute = mAttributes[ifdType].get(tagNumbers[j]);
                     final int size = attribute.size();
 
-                    dataOutputStream.writeUnsignedShort(tagNumber);
-                    dataOutputStream.writeUnsignedShort(attribute.format);
-                    dataOutputStream.writeInt(attribute.numberOfComponents);
+                    tiffOutputStream.writeUnsignedShort(tagNumbers[j]);
+                    tiffOutputStream.writeUnsignedShort(attribute.format);
+                    tiffOutputStream.writeInt(attribute.numberOfComponents);
                     if (size > 4) {
-                        dataOutputStream.writeUnsignedInt(dataOffset);
+                        tiffOutputStream.writeUnsignedInt(dataOffset);
+                        valuePositions[j] = dataOffset;
                         dataOffset += size;
                     } else {
-                        dataOutputStream.write(attribute.bytes);
+                        valuePositions[j] = tiffBytes != null ? tiffBytes.size() : -1;
+                        tiffOutputStream.write(attribute.bytes);
                         // Fill zero up to 4 bytes
                         if (size < 4) {
                             for (int i = size; i < 4; ++i) {
-                                dataOutputStream.writeByte(0);
+                                tiffOutputStream.writeByte(0);
                             }
                         }
                     }
@@ -7905,19 +8907,44 @@ public class ExifInterface {
                 // more tags in the thumbnail IFD when the current IFD is the primary image TIFF
                 // IFD; Otherwise 0.
                 if (ifdType == 0 && !mAttributes[IFD_TYPE_THUMBNAIL].isEmpty()) {
-                    dataOutputStream.writeUnsignedInt(ifdOffsets[IFD_TYPE_THUMBNAIL]);
+                    tiffOutputStream.writeUnsignedInt(ifdOffsets[IFD_TYPE_THUMBNAIL]);
                 } else {
-                    dataOutputStream.writeUnsignedInt(0);
+                    tiffOutputStream.writeUnsignedInt(0);
                 }
 
                 // Write values of data field exceeding 4 bytes after the next offset.
-                for (Map.Entry<String, ExifAttribute> entry : mAttributes[ifdType].entrySet()) {
-                    ExifAttribute attribute = entry.getValue();
+                for (int tagNumber : tagNumbers) {
+                    ExifAttribute attribute = mAttributes[ifdType].get(tagNumber);
 
                     if (attribute.bytes.length > 4) {
-                        dataOutputStream.write(attribute.bytes, 0, attribute.bytes.length);
+                        tiffOutputStream.write(attribute.bytes, 0, attribute.bytes.length);
+                    }
+                }
+            }
+        }
+
+        if (template != null) {
+            final byte[] tiffData = tiffBytes.toByteArray();
+            dataOutputStream.write(tiffData);
+            synchronized (template) {
+                template.mByteOrder = mExifByteOrder;
+                template.mTagNumbers = templateTagNumbers;
+                template.mValuePositions = templateValuePositions;
+                template.mFormats = new int[EXIF_TAGS.length][];
+                template.mCounts = new int[EXIF_TAGS.length][];
+                for (int i = 0; i < EXIF_TAGS.length; ++i) {
+                    final int[] tagNumbers = templateTagNumbers[i];
+                    template.mFormats[i] = new int[tagNumbers.length];
+                    template.mCounts[i] = new int[tagNumbers.length];
+                    for (int j = 0; j < tagNumbers.length; ++j) {
+                        final ExifAttribute attribute = mAttributes[i].get(tagNumbers[j]);
+                        template.mFormats[i][j] = attribute.format;
+                        template.mCounts[i][j] = attribute.numberOfComponents;
                     }
                 }
+                template.mIfdOffsets = ifdOffsets;
+                template.mThumbnailOffset = mHasThumbnail ? mThumbnailOffset : -1;
+                template.mTiffData = tiffData;
             }
         }
 
@@ -7925,6 +8952,9 @@ public class ExifInterface {
         if (mHasThumbnail) {
             dataOutputStream.write(getThumbnailBytes());
         }
+        if (padding > 0) {
+            dataOutputStream.write(new byte[padding]);
+        }
 
         // For WebP files, add a single padding byte at end if chunk size is odd
         if (mMimeType == IMAGE_TYPE_WEBP && totalSize % 2 == 1) {
@@ -7937,6 +8967,110 @@ public class ExifInterface {
         return offsetToExifData;
     }
 
+    // androidxc: puts the IFD pointer tags with the given IFD offsets
+    private void updateIfdPointerTags(int[] ifdOffsets) {
+        if (!mAttributes[IFD_TYPE_EXIF].isEmpty()) {
+            mAttributes[IFD_TYPE_PRIMARY].put(EXIF_POINTER_TAGS[1].number,
+                    ExifAttribute.createULong(ifdOffsets[IFD_TYPE_EXIF], mExifByteOrder));
+        }
+        if (!mAttributes[IFD_TYPE_GPS].isEmpty()) {
+            mAttributes[IFD_TYPE_PRIMARY].put(EXIF_POINTER_TAGS[2].number,
+                    ExifAttribute.createULong(ifdOffsets[IFD_TYPE_GPS], mExifByteOrder));
+        }
+        if (!mAttributes[IFD_TYPE_INTEROPERABILITY].isEmpty()) {
+            mAttributes[IFD_TYPE_EXIF].put(EXIF_POINTER_TAGS[3].number, ExifAttribute.createULong(
+                    ifdOffsets[IFD_TYPE_INTEROPERABILITY], mExifByteOrder));
+        }
+    }
+
+    // androidxc: Returns whether the attributes about to be written have the same tags, formats
+    // and numbers of components as the ones the template was made from.
+    private boolean matchesSegmentTemplate(SegmentTemplate template) {
+        if (template.mTiffData == null || template.mByteOrder != mExifByteOrder
+                || (template.mThumbnailOffset != -1) != mHasThumbnail) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_TAGS.length; ++i) {
+            final int[] tagNumbers = template.mTagNumbers[i];
+            if (mAttributes[i].size() != tagNumbers.length) {
+                return false;
+            }
+            for (int j = 0; j < tagNumbers.length; ++j) {
+                final ExifAttribute attribute = mAttributes[i].get(tagNumbers[j]);
+                if (attribute == null
+                        || attribute.format != template.mFormats[i][j]
+                        || attribute.numberOfComponents != template.mCounts[i][j]
+                        || attribute.bytes.length != attribute.size()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * androidxc: Writes an Exif segment into the given output stream by copying the values of the
+     * attributes into the TIFF data of a template they match, see
+     * {@link #matchesSegmentTemplate(SegmentTemplate)}.
+     *
+     * @return The offset of the start of the Exif data (the byte-order marker) written into {@code
+     *     dataOutputStream}.
+     */
+    private int writeExifSegmentFromTemplate(SegmentTemplate template,
+            ByteOrderedDataOutputStream dataOutputStream, int padding) throws IOException {
+        // The layout is the one of the template, so are the offsets it points to.
+        updateIfdPointerTags(template.mIfdOffsets);
+        if (mHasThumbnail) {
+            mAttributes[IFD_TYPE_THUMBNAIL].put(TAG_JPEG_INTERCHANGE_FORMAT,
+                    ExifAttribute.createULong(template.mThumbnailOffset, mExifByteOrder));
+            mThumbnailOffset = template.mThumbnailOffset;
+        }
+
+        final byte[] tiffData = template.mTiffData.clone();
+        for (int i = 0; i < EXIF_TAGS.length; ++i) {
+            final int[] tagNumbers = template.mTagNumbers[i];
+            for (int j = 0; j < tagNumbers.length; ++j) {
+                final byte[] bytes = mAttributes[i].get(tagNumbers[j]).bytes;
+                System.arraycopy(bytes, 0, tiffData, template.mValuePositions[i][j],
+                        bytes.length);
+            }
+        }
+
+        // Add 8 bytes for APP1 size and identifier data
+        int totalSize = 8 + tiffData.length + (mHasThumbnail ? mThumbnailLength : 0);
+        padding = Math.max(0, Math.min(padding, 0xFFFF - totalSize));
+        totalSize += padding;
+        if (totalSize > 0xFFFF) {
+            throw new IllegalStateException(
+                    "Size of exif data (" + totalSize + " bytes) exceeds the max size of a "
+                    + "JPEG APP1 segment (65536 bytes)");
+        }
+        dataOutputStream.writeUnsignedShort(totalSize);
+        dataOutputStream.write(IDENTIFIER_EXIF_APP1);
+        final int offsetToExifData = dataOutputStream.size();
+        dataOutputStream.write(tiffData);
+        if (mHasThumbnail) {
+            dataOutputStream.write(getThumbnailBytes());
+        }
+        if (padding > 0) {
+            dataOutputStream.write(new byte[padding]);
+        }
+        return offsetToExifData;
+    }
+
+    // androidxc: replaces android.util.Pair<Integer, Integer>, which the unit tests can't use
+    // because the fields of the stub the JVM runs them against are never set
+    private static final class DataFormatGuess {
+        final int first;
+        // -1 if there is only one candidate
+        final int second;
+
+        DataFormatGuess(int first, int second) {
+            this.first = first;
+            this.second = second;
+        }
+    }
+
     /**
      * Determines the data format of EXIF entry value.
      *
@@ -7944,35 +9078,35 @@ public class ExifInterface {
      * @return Returns two data formats guessed as a pair in integer. If there is no two candidate
                data formats for the given entry value, returns {@code -1} in the second of the pair.
      */
-    private static Pair<Integer, Integer> guessDataFormat(String entryValue) {
+    private static DataFormatGuess guessDataFormat(String entryValue) {
         // See TIFF 6.0 Section 2, "Image File Directory".
         // Take the first component if there are more than one component.
         if (entryValue.contains(",")) {
             String[] entryValues = entryValue.split(",", -1);
-            Pair<Integer, Integer> dataFormat = guessDataFormat(entryValues[0]);
+            DataFormatGuess dataFormat = guessDataFormat(entryValues[0]);
             if (dataFormat.first == IFD_FORMAT_STRING) {
                 return dataFormat;
             }
             for (int i = 1; i < entryValues.length; ++i) {
-                final Pair<Integer, Integer> guessDataFormat = guessDataFormat(entryValues[i]);
+                final DataFormatGuess guessDataFormat = guessDataFormat(entryValues[i]);
                 int first = -1, second = -1;
-                if (guessDataFormat.first.equals(dataFormat.first)
-                        || guessDataFormat.second.equals(dataFormat.first)) {
+                if (guessDataFormat.first == dataFormat.first
+                        || guessDataFormat.second == dataFormat.first) {
                     first = dataFormat.first;
                 }
-                if (dataFormat.second != -1 && (guessDataFormat.first.equals(dataFormat.second)
-                        || guessDataFormat.second.equals(dataFormat.second))) {
+                if (dataFormat.second != -1 && (guessDataFormat.first == dataFormat.second
+                        || guessDataFormat.second == dataFormat.second)) {
                     second = dataFormat.second;
                 }
                 if (first == -1 && second == -1) {
-                    return new Pair<>(IFD_FORMAT_STRING, -1);
+                    return new DataFormatGuess(IFD_FORMAT_STRING, -1);
                 }
                 if (first == -1) {
-                    dataFormat = new Pair<>(second, -1);
+                    dataFormat = new DataFormatGuess(second, -1);
                     continue;
                 }
                 if (second == -1) {
-                    dataFormat = new Pair<>(first, -1);
+                    dataFormat = new DataFormatGuess(first, -1);
                     continue;
                 }
             }
@@ -7986,37 +9120,37 @@ public class ExifInterface {
                     long numerator = (long) Double.parseDouble(rationalNumber[0]);
                     long denominator = (long) Double.parseDouble(rationalNumber[1]);
                     if (numerator < 0L || denominator < 0L) {
-                        return new Pair<>(IFD_FORMAT_SRATIONAL, -1);
+                        return new DataFormatGuess(IFD_FORMAT_SRATIONAL, -1);
                     }
                     if (numerator > Integer.MAX_VALUE || denominator > Integer.MAX_VALUE) {
-                        return new Pair<>(IFD_FORMAT_URATIONAL, -1);
+                        return new DataFormatGuess(IFD_FORMAT_URATIONAL, -1);
                     }
-                    return new Pair<>(IFD_FORMAT_SRATIONAL, IFD_FORMAT_URATIONAL);
+                    return new DataFormatGuess(IFD_FORMAT_SRATIONAL, IFD_FORMAT_URATIONAL);
                 } catch (NumberFormatException e)  {
                     // Ignored
                 }
             }
-            return new Pair<>(IFD_FORMAT_STRING, -1);
+            return new DataFormatGuess(IFD_FORMAT_STRING, -1);
         }
         try {
             Long longValue = Long.parseLong(entryValue);
             if (longValue >= 0 && longValue <= 65535) {
-                return new Pair<>(IFD_FORMAT_USHORT, IFD_FORMAT_ULONG);
+                return new DataFormatGuess(IFD_FORMAT_USHORT, IFD_FORMAT_ULONG);
             }
             if (longValue < 0) {
-                return new Pair<>(IFD_FORMAT_SLONG, -1);
+                return new DataFormatGuess(IFD_FORMAT_SLONG, -1);
             }
-            return new Pair<>(IFD_FORMAT_ULONG, -1);
+            return new DataFormatGuess(IFD_FORMAT_ULONG, -1);
         } catch (NumberFormatException e) {
             // Ignored
         }
         try {
             Double.parseDouble(entryValue);
-            return new Pair<>(IFD_FORMAT_DOUBLE, -1);
+            return new DataFormatGuess(IFD_FORMAT_DOUBLE, -1);
         } catch (NumberFormatException e) {
             // Ignored
         }
-        return new Pair<>(IFD_FORMAT_STRING, -1);
+        return new DataFormatGuess(IFD_FORMAT_STRING, -1);
     }
 
     // An input stream class that can parse both little and big endian order data and also
@@ -8029,6 +9163,12 @@ public class ExifInterface {
             mDataInputStream.mark(Integer.MAX_VALUE);
         }
 
+        // androidxc: ByteBufferInputStream supports mark/reset as well
+        SeekableByteOrderedDataInputStream(ByteBuffer buffer) throws IOException {
+            super(buffer);
+            mDataInputStream.mark(Integer.MAX_VALUE);
+        }
+
         /**
          * Given input stream should support mark/reset, and should be set to the beginning of
          * the stream.
@@ -8070,13 +9210,22 @@ public class ExifInterface {
 
         private ByteOrder mByteOrder;
         private byte[] mSkipBuffer;
+        // androidxc: allocated by the first transfer() that can't write a slice
+        private byte[] mTransferBuffer;
         private int mLength;
+        // androidxc: set if the stream reads from a buffer, see readSlice()
+        @Nullable private final ByteBufferInputStream mByteBufferInputStream;
 
         ByteOrderedDataInputStream(byte[] bytes) throws IOException {
             this(new ByteArrayInputStream(bytes), BIG_ENDIAN);
             this.mLength = bytes.length;
         }
 
+        ByteOrderedDataInputStream(ByteBuffer buffer) throws IOException {
+            this(new ByteBufferInputStream(buffer), BIG_ENDIAN);
+            this.mLength = buffer.remaining();
+        }
+
         ByteOrderedDataInputStream(InputStream in) throws IOException {
             this(in, BIG_ENDIAN);
         }
@@ -8089,6 +9238,68 @@ public class ExifInterface {
             this.mLength = in instanceof ByteOrderedDataInputStream
                     ? ((ByteOrderedDataInputStream) in).length()
                     : LENGTH_UNSET;
+            mByteBufferInputStream = in instanceof ByteBufferInputStream
+                    ? (ByteBufferInputStream) in
+                    : null;
+        }
+
+        /**
+         * androidxc: Returns a view of the next {@code length} bytes and skips over them, or
+         * returns {@code null} without consuming anything if the stream doesn't read from a
+         * buffer. The view's byte order is big endian.
+         */
+        @Nullable
+        public ByteBuffer readSlice(int length) throws IOException {
+            if (mByteBufferInputStream == null) {
+                return null;
+            }
+            ByteBuffer slice = mByteBufferInputStream.readSlice(length);
+            mPosition += length;
+            return slice;
+        }
+
+        /**
+         * androidxc: Copies the next {@code length} bytes to {@code out}. Slices of the buffer
+         * the stream reads from are handed to the output as they are, other streams are copied
+         * through a buffer that is kept for the next call.
+         */
+        public void transfer(ByteOrderedDataOutputStream out, int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Invalid length: " + length);
+            }
+            ByteBuffer slice = readSlice(length);
+            if (slice != null) {
+                out.write(slice);
+                return;
+            }
+            byte[] buffer = transferBuffer();
+            while (length > 0) {
+                int bytesToCopy = Math.min(length, buffer.length);
+                readFully(buffer, 0, bytesToCopy);
+                out.write(buffer, 0, bytesToCopy);
+                length -= bytesToCopy;
+            }
+        }
+
+        /** androidxc: Copies the rest of the stream to {@code out}, see transfer(). */
+        public void transferRemaining(ByteOrderedDataOutputStream out) throws IOException {
+            if (mByteBufferInputStream != null) {
+                transfer(out, mByteBufferInputStream.available());
+                return;
+            }
+            byte[] buffer = transferBuffer();
+            int bytesRead;
+            while ((bytesRead = mDataInputStream.read(buffer)) != -1) {
+                mPosition += bytesRead;
+                out.write(buffer, 0, bytesRead);
+            }
+        }
+
+        private byte[] transferBuffer() {
+            if (mTransferBuffer == null) {
+                mTransferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+            }
+            return mTransferBuffer;
         }
 
         public void setByteOrder(ByteOrder byteOrder) {
@@ -8323,11 +9534,203 @@ public class ExifInterface {
         }
     }
 
+    // androidxc: an input stream that reads from the remaining bytes of a buffer without copying
+    // them. Unlike ByteArrayInputStream, it can hand out views of the data through readSlice().
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mBuffer.mark();
+        }
+
+        ByteBuffer readSlice(int length) throws IOException {
+            if (length < 0) {
+                throw new IllegalArgumentException("Negative length: " + length);
+            }
+            if (length > mBuffer.remaining()) {
+                throw new EOFException("Reached EOF while reading " + length + " bytes.");
+            }
+            ByteBuffer slice = mBuffer.slice();
+            slice.limit(length);
+            mBuffer.position(mBuffer.position() + length);
+            return slice;
+        }
+
+        @Override
+        public int read() {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            return mBuffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) {
+                return 0;
+            }
+            int skipped = (int) Math.min(n, mBuffer.remaining());
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mBuffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            mBuffer.reset();
+        }
+    }
+
+    // androidxc: an output stream that computes the CRC-32 of the bytes written through it, but
+    // for a number of bytes at the start.
+    private static class CrcOutputStream extends FilterOutputStream {
+        final CRC32 mCrc = new CRC32();
+        private int mBytesToLeaveOut;
+
+        CrcOutputStream(OutputStream out, int bytesToLeaveOut) {
+            super(out);
+            mBytesToLeaveOut = bytesToLeaveOut;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mBytesToLeaveOut > 0) {
+                --mBytesToLeaveOut;
+            } else {
+                mCrc.update(b);
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int leftOut = Math.min(len, mBytesToLeaveOut);
+            mBytesToLeaveOut -= leftOut;
+            mCrc.update(b, off + leftOut, len - leftOut);
+            out.write(b, off, len);
+        }
+    }
+
+    // androidxc: a buffered output stream to a file that takes buffers as well, which are written
+    // to its file descriptor directly. Closing it closes the stream it was created with.
+    private static class FileDescriptorOutputStream extends BufferedOutputStream {
+        private final FileDescriptor mFd;
+
+        FileDescriptorOutputStream(FileOutputStream out) throws IOException {
+            super(out);
+            mFd = out.getFD();
+        }
+
+        void write(ByteBuffer src) throws IOException {
+            flush();
+            writeFully(mFd, src);
+            src.position(src.limit());
+        }
+    }
+
+    // androidxc: an input stream that ends after a number of bytes of another stream, see
+    // PARSE_FLAG_STRICT. A reset also restores the number of bytes left at the mark.
+    private static class LimitedInputStream extends FilterInputStream {
+        private long mRemaining;
+        private long mRemainingAtMark;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            mRemaining = limit;
+            mRemainingAtMark = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                --mRemaining;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long skipped = in.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            in.mark(readlimit);
+            mRemainingAtMark = mRemaining;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            in.reset();
+            mRemaining = mRemainingAtMark;
+        }
+    }
+
     // An output stream to write EXIF data area, which can be written in either little or big endian
     // order.
     private static class ByteOrderedDataOutputStream extends FilterOutputStream {
         final DataOutputStream mOutputStream;
         private ByteOrder mByteOrder;
+        // androidxc: the bytes write(ByteBuffer) handed to out without going through
+        // mOutputStream, see size()
+        private int mBytesWrittenDirectly;
 
         public ByteOrderedDataOutputStream(OutputStream out, ByteOrder byteOrder) {
             super(out);
@@ -8335,10 +9738,44 @@ public class ExifInterface {
             mByteOrder = byteOrder;
         }
 
+        /** androidxc: Returns the number of bytes written to this stream so far. */
+        public int size() {
+            return mOutputStream.size() + mBytesWrittenDirectly;
+        }
+
+        /**
+         * androidxc: Writes the remaining bytes of {@code src} and advances its position. Buffers
+         * without an array are written to a {@link FileDescriptorOutputStream} as they are,
+         * instead of being copied into one first.
+         */
+        public void write(ByteBuffer src) throws IOException {
+            if (src.hasArray()) {
+                mOutputStream.write(src.array(), src.arrayOffset() + src.position(),
+                        src.remaining());
+                src.position(src.limit());
+            } else if (out instanceof FileDescriptorOutputStream) {
+                mBytesWrittenDirectly += src.remaining();
+                ((FileDescriptorOutputStream) out).write(src);
+            } else {
+                byte[] bytes = new byte[Math.min(src.remaining(), TRANSFER_BUFFER_SIZE)];
+                while (src.hasRemaining()) {
+                    int length = Math.min(src.remaining(), bytes.length);
+                    src.get(bytes, 0, length);
+                    mOutputStream.write(bytes, 0, length);
+                }
+            }
+        }
+
         public void setByteOrder(ByteOrder byteOrder) {
             mByteOrder = byteOrder;
         }
 
+        // androidxc: through mOutputStream like the other writes, so that size() counts it
+        @Override
+        public void write(int b) throws IOException {
+            mOutputStream.write(b);
+        }
+
         @Override
         public void write(byte[] bytes) throws IOException {
             mOutputStream.write(bytes);
@@ -8429,23 +9866,13 @@ public class ExifInterface {
 
             if (firstImageLengthValue < secondImageLengthValue &&
                     firstImageWidthValue < secondImageWidthValue) {
-                HashMap<String, ExifAttribute> tempMap = mAttributes[firstIfdType];
+                TagTable<ExifAttribute> tempMap = mAttributes[firstIfdType];
                 mAttributes[firstIfdType] = mAttributes[secondIfdType];
                 mAttributes[secondIfdType] = tempMap;
             }
         }
     }
 
-    private void replaceInvalidTags(@IfdType int ifdType, String invalidTag, String validTag) {
-        if (!mAttributes[ifdType].isEmpty()) {
-            if (mAttributes[ifdType].get(invalidTag) != null) {
-                mAttributes[ifdType].put(validTag,
-                        mAttributes[ifdType].get(invalidTag));
-                mAttributes[ifdType].remove(invalidTag);
-            }
-        }
-    }
-
     /**
      * Parsing EXIF data requires seek (moving to any position in the stream), so all MIME
      * types should support seek via mark/reset, unless the MIME type specifies the position and
@@ -8462,7 +9889,8 @@ public class ExifInterface {
 
     private static boolean isSupportedFormatForSavingAttributes(int mimeType) {
         if (mimeType == IMAGE_TYPE_JPEG || mimeType == IMAGE_TYPE_PNG
-                || mimeType == IMAGE_TYPE_WEBP) {
+                || mimeType == IMAGE_TYPE_WEBP || mimeType == IMAGE_TYPE_HEIC
+                || mimeType == IMAGE_TYPE_AVIF) {
             return true;
         }
         return false;
@@ -29,6 +29,9 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 class ExifInterfaceUtils {
     private static final String TAG = "ExifInterfaceUtils";
@@ -52,22 +55,24 @@ class ExifInterfaceUtils {
     }
 
     /**
-     * Copies the given number of the bytes from {@code in} to {@code out}. Neither stream is
-     * closed.
+     * androidxc: Copies the rest of {@code in} to {@code out} with
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which
+     * leaves copying the data to the kernel where it can. Neither channel is closed. Returns the
+     * total number of bytes transferred.
      */
-    static void copy(InputStream in, OutputStream out, int numBytes) throws IOException {
-        int remainder = numBytes;
-        byte[] buffer = new byte[8192];
-        while (remainder > 0) {
-            int bytesToRead = Math.min(remainder, 8192);
-            int bytesRead = in.read(buffer, 0, bytesToRead);
-            if (bytesRead != bytesToRead) {
-                throw new IOException("Failed to copy the given amount of bytes from the input"
-                        + "stream to the output stream.");
+    static long copy(FileChannel in, FileChannel out) throws IOException {
+        final long start = in.position();
+        final long size = in.size();
+        long position = start;
+        while (position < size) {
+            long transferred = in.transferTo(position, size - position, out);
+            if (transferred <= 0) {
+                break;
             }
-            remainder -= bytesRead;
-            out.write(buffer, 0, bytesRead);
+            position += transferred;
         }
+        in.position(position);
+        return position - start;
     }
 
     /**
@@ -103,6 +108,26 @@ class ExifInterfaceUtils {
         return true;
     }
 
+    /**
+     * androidxc: checks whether the remaining bytes of {@code cur} start with {@code val}, without
+     * changing the position of {@code cur}.
+     */
+    static boolean startsWith(ByteBuffer cur, byte[] val) {
+        if (cur == null || val == null) {
+            return false;
+        }
+        if (cur.remaining() < val.length) {
+            return false;
+        }
+        int position = cur.position();
+        for (int i = 0; i < val.length; i++) {
+            if (cur.get(position + i) != val[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     static String byteArrayToHexString(byte[] bytes) {
         StringBuilder sb = new StringBuilder(bytes.length * 2);
         for (int i = 0; i < bytes.length; i++) {
@@ -111,20 +136,6 @@ class ExifInterfaceUtils {
         return sb.toString();
     }
 
-    static long parseSubSeconds(String subSec) {
-        try {
-            final int len = Math.min(subSec.length(), 3);
-            long sub = Long.parseLong(subSec.substring(0, len));
-            for (int i = len; i < 3; i++) {
-                sub *= 10;
-            }
-            return sub;
-        } catch (NumberFormatException e) {
-            // Ignored
-        }
-        return 0L;
-    }
-
 
     /**
      * Closes 'closeable', ignoring any checked exceptions. Does nothing if 'closeable' is null.
@@ -151,6 +162,78 @@ class ExifInterfaceUtils {
         }
     }
 
+    /**
+     * androidxc: Writes the remaining bytes of all of the given buffers to {@code fd}, in order.
+     * Heap buffers are written with a single gather write unless it comes back short. The
+     * positions of the buffers are not updated.
+     */
+    static void writeFully(FileDescriptor fd, ByteBuffer... buffers) throws IOException {
+        try {
+            boolean hasArrays = true;
+            for (ByteBuffer buffer : buffers) {
+                hasArrays &= buffer.hasArray();
+            }
+            if (!hasArrays) {
+                for (ByteBuffer buffer : buffers) {
+                    ByteBuffer view = buffer.duplicate();
+                    while (view.hasRemaining()) {
+                        // Advances the position of the view. "-1" is never returned to indicate
+                        // an error, ErrnoException is thrown instead
+                        Os.write(fd, view);
+                    }
+                }
+                return;
+            }
+
+            int count = buffers.length;
+            Object[] arrays = new Object[count];
+            int[] offsets = new int[count];
+            int[] byteCounts = new int[count];
+            for (int i = 0; i < count; i++) {
+                ByteBuffer buffer = buffers[i];
+                arrays[i] = buffer.array();
+                offsets[i] = buffer.arrayOffset() + buffer.position();
+                byteCounts[i] = buffer.remaining();
+            }
+            int first = 0;
+            while (true) {
+                while (first < count && byteCounts[first] == 0) {
+                    first++;
+                }
+                if (first == count) {
+                    return;
+                }
+                int written = Os.writev(fd,
+                        Arrays.copyOfRange(arrays, first, count),
+                        Arrays.copyOfRange(offsets, first, count),
+                        Arrays.copyOfRange(byteCounts, first, count));
+                for (int i = first; i < count && written > 0; i++) {
+                    int consumed = Math.min(written, byteCounts[i]);
+                    offsets[i] += consumed;
+                    byteCounts[i] -= consumed;
+                    written -= consumed;
+                }
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to write to the file descriptor", e);
+        }
+    }
+
+    /**
+     * androidxc: Writes all of {@code bytes} to {@code fd} at the given file offset. The file
+     * offset of {@code fd} is not updated.
+     */
+    static void pwriteFully(FileDescriptor fd, byte[] bytes, long offset) throws IOException {
+        try {
+            int written = 0;
+            while (written < bytes.length) {
+                written += Os.pwrite(fd, bytes, written, bytes.length - written, offset + written);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to write to the file descriptor", e);
+        }
+    }
+
     @RequiresApi(23)
     static class Api23Impl {
         private Api23Impl() {}
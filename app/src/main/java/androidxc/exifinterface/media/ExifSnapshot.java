@@ -0,0 +1,227 @@
+package androidxc.exifinterface.media;
+
+import android.graphics.BitmapFactory;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * androidxc: An immutable copy of the attributes of an image, taken with
+ * {@link ExifInterface#snapshot()} or
+ * {@link ExifInterface#snapshot(java.util.Collection, boolean)}. The values are decoded when the
+ * snapshot is taken, so reading them touches neither the file nor the {@link ExifInterface} it
+ * was taken from, and a snapshot can be read from any number of threads at once.
+ *
+ * <p>The getters behave like the ones of {@link ExifInterface} with the same name did when the
+ * snapshot was taken. Tags are kept in parallel arrays sorted by name, which are looked up with a
+ * binary search.
+ */
+public final class ExifSnapshot {
+    // marks the values of mIntValues that aren't integers, NaN does the same in mDoubleValues
+    static final long NOT_AN_INT = Long.MIN_VALUE;
+
+    private final String[] mTags;
+    private final String[] mValues;
+    private final long[] mIntValues;
+    private final double[] mDoubleValues;
+    private final byte @Nullable [] mThumbnail;
+
+    // takes ownership of the arrays, mTags has to be sorted
+    ExifSnapshot(String @NonNull [] tags, String @NonNull [] values, long @NonNull [] intValues,
+            double @NonNull [] doubleValues, byte @Nullable [] thumbnail) {
+        mTags = tags;
+        mValues = values;
+        mIntValues = intValues;
+        mDoubleValues = doubleValues;
+        mThumbnail = thumbnail;
+    }
+
+    @SuppressWarnings("deprecation")
+    private int indexOf(@NonNull String tag) {
+        if (tag == null) {
+            throw new NullPointerException("tag shouldn't be null");
+        }
+        // Maintain compatibility, see ExifInterface.getExifAttribute()
+        if (ExifInterface.TAG_ISO_SPEED_RATINGS.equals(tag)) {
+            tag = ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY;
+        }
+        return Arrays.binarySearch(mTags, tag);
+    }
+
+    /**
+     * Returns the names of the tags in this snapshot in ascending order. The array is a copy.
+     */
+    public String @NonNull [] getTags() {
+        return mTags.clone();
+    }
+
+    /**
+     * Returns true if the snapshot has a value for the given tag.
+     *
+     * @param tag the name of the tag.
+     */
+    public boolean hasAttribute(@NonNull String tag) {
+        return indexOf(tag) >= 0;
+    }
+
+    /**
+     * Returns the value of the specified tag or {@code null} if there is no such tag in the
+     * snapshot.
+     *
+     * @param tag the name of the tag.
+     */
+    public @Nullable String getAttribute(@NonNull String tag) {
+        int i = indexOf(tag);
+        return i >= 0 ? mValues[i] : null;
+    }
+
+    /**
+     * Returns the integer value of the specified tag. If there is no such tag in the snapshot or
+     * the value cannot be parsed as integer, return <var>defaultValue</var>.
+     *
+     * @param tag the name of the tag.
+     * @param defaultValue the value to return if the tag is not available.
+     */
+    public int getAttributeInt(@NonNull String tag, int defaultValue) {
+        int i = indexOf(tag);
+        return i >= 0 && mIntValues[i] != NOT_AN_INT ? (int) mIntValues[i] : defaultValue;
+    }
+
+    /**
+     * Returns the double value of the tag that is specified as rational or contains a
+     * double-formatted value. If there is no such tag in the snapshot or the value cannot be
+     * parsed as double, return <var>defaultValue</var>.
+     *
+     * @param tag the name of the tag.
+     * @param defaultValue the value to return if the tag is not available.
+     */
+    public double getAttributeDouble(@NonNull String tag, double defaultValue) {
+        int i = indexOf(tag);
+        return i >= 0 && !Double.isNaN(mDoubleValues[i]) ? mDoubleValues[i] : defaultValue;
+    }
+
+    /**
+     * Returns the value of {@link ExifInterface#TAG_ORIENTATION}, or
+     * {@link ExifInterface#ORIENTATION_UNDEFINED} if there is none.
+     */
+    public int getOrientation() {
+        return getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+    }
+
+    /**
+     * Returns if the image orientation is flipped, see {@link ExifInterface#isFlipped()}.
+     */
+    public boolean isFlipped() {
+        switch (getOrientation()) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the rotation degrees for the image orientation, see
+     * {@link ExifInterface#getRotationDegrees()}.
+     */
+    public int getRotationDegrees() {
+        switch (getOrientation()) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns parsed {@link ExifInterface#TAG_DATETIME} value, see
+     * {@link ExifInterface#getDateTime()}. The sub-second and offset tags it takes into account
+     * have to be in the snapshot as well.
+     *
+     * @return null if date time information is unavailable or invalid.
+     */
+    public @Nullable Long getDateTime() {
+        return ExifInterface.parseDateTime(getAttribute(ExifInterface.TAG_DATETIME),
+                getAttribute(ExifInterface.TAG_SUBSEC_TIME),
+                getAttribute(ExifInterface.TAG_OFFSET_TIME));
+    }
+
+    /**
+     * Returns parsed {@link ExifInterface#TAG_DATETIME_ORIGINAL} value, see
+     * {@link ExifInterface#getDateTimeOriginal()}.
+     *
+     * @return null if original date time information is unavailable or invalid.
+     */
+    public @Nullable Long getDateTimeOriginal() {
+        return ExifInterface.parseDateTime(getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL),
+                getAttribute(ExifInterface.TAG_SUBSEC_TIME_ORIGINAL),
+                getAttribute(ExifInterface.TAG_OFFSET_TIME_ORIGINAL));
+    }
+
+    /**
+     * Returns parsed {@link ExifInterface#TAG_DATETIME_DIGITIZED} value, see
+     * {@link ExifInterface#getDateTimeDigitized()}.
+     *
+     * @return null if digitized date time information is unavailable or invalid.
+     */
+    public @Nullable Long getDateTimeDigitized() {
+        return ExifInterface.parseDateTime(getAttribute(ExifInterface.TAG_DATETIME_DIGITIZED),
+                getAttribute(ExifInterface.TAG_SUBSEC_TIME_DIGITIZED),
+                getAttribute(ExifInterface.TAG_OFFSET_TIME_DIGITIZED));
+    }
+
+    /**
+     * Returns true if the snapshot was taken with the JPEG compressed thumbnail of the image.
+     */
+    public boolean hasThumbnail() {
+        return mThumbnail != null;
+    }
+
+    /**
+     * Returns a copy of the JPEG compressed thumbnail the snapshot was taken with, or
+     * {@code null}. The returned data can be decoded using
+     * {@link BitmapFactory#decodeByteArray(byte[],int,int)}
+     */
+    public byte @Nullable [] getThumbnail() {
+        return mThumbnail != null ? mThumbnail.clone() : null;
+    }
+
+    /**
+     * Returns the number of bytes the snapshot holds on to, roughly. Meant for sizing caches.
+     */
+    public int getSizeInBytes() {
+        // the arrays and their headers, and each string with its header and backing array
+        int size = 4 * 16 + mTags.length * (4 * 4 + 8 + 8);
+        for (int i = 0; i < mTags.length; ++i) {
+            size += 2 * 40 + mTags[i].length() + (mValues[i] != null ? mValues[i].length() : 0);
+        }
+        return mThumbnail != null ? size + 16 + mThumbnail.length : size;
+    }
+
+    @Override
+    public @NonNull String toString() {
+        StringBuilder sb = new StringBuilder("ExifSnapshot{");
+        for (int i = 0; i < mTags.length; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mTags[i]).append('=').append(mValues[i]);
+        }
+        if (mThumbnail != null) {
+            sb.append(", thumbnail=").append(mThumbnail.length).append(" bytes");
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,902 @@
+package androidxc.exifinterface.media;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * androidxc: Rewrites the Exif and XMP items of the primary image of a HEIF or AVIF file, see
+ * ISO/IEC 23008-12 and ISO/IEC 14496-12. The image data is copied as it is.
+ *
+ * <p>The new metadata items are written into a media data box of their own right after the meta
+ * box, so that readers find them without reading past the image data. The bytes of the items they
+ * replace are left out of the box that held them, and the sizes of the boxes and the locations of
+ * all other items are adjusted to that. The input is read once from start to end, which requires
+ * the meta box to come before the media data, as it does in the files cameras write. Image
+ * sequences, which locate their samples in the movie box, and metadata items stored in the meta
+ * box itself aren't supported. The boxes after the meta box are checked before anything is
+ * written, which reads them twice, so that an unsupported file doesn't leave a partial copy behind.
+ */
+final class HeifItemWriter {
+    static final String XMP_CONTENT_TYPE = "application/rdf+xml";
+
+    private static final int BOX_FTYP = fourCc("ftyp");
+    private static final int BOX_META = fourCc("meta");
+    private static final int BOX_MDAT = fourCc("mdat");
+    private static final int BOX_MOOV = fourCc("moov");
+    private static final int BOX_PITM = fourCc("pitm");
+    private static final int BOX_IINF = fourCc("iinf");
+    private static final int BOX_INFE = fourCc("infe");
+    private static final int BOX_ILOC = fourCc("iloc");
+    private static final int BOX_IREF = fourCc("iref");
+    private static final int ITEM_TYPE_EXIF = fourCc("Exif");
+    private static final int ITEM_TYPE_MIME = fourCc("mime");
+    private static final int REFERENCE_TYPE_CDSC = fourCc("cdsc");
+    // brands of files with image sequences, see ISO/IEC 23008-12 Annex B and AV1-ISOBMFF
+    private static final int[] SEQUENCE_BRANDS = {fourCc("msf1"), fourCc("avis")};
+
+    // Boxes in front of the meta box are kept in memory until it has been read
+    private static final int MAX_BOX_SIZE_BEFORE_DATA = 16 * 1024 * 1024;
+
+    private static final byte[] IDENTIFIER_EXIF = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final class Item {
+        int mId;
+        int mType;
+        @Nullable String mContentType;
+        ByteBuffer mInfe;
+    }
+
+    private static final class Location {
+        int mItemId;
+        int mConstructionMethod;
+        int mDataReferenceIndex;
+        long mBaseOffset;
+        // the index, offset and length of each extent
+        long[] mExtents;
+    }
+
+    private static final class Reference {
+        int mType;
+        int mFromItemId;
+        int[] mToItemIds;
+    }
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[65536];
+    private long mPosition;
+
+    // parsed from the meta box
+    private int mMetaVersionAndFlags;
+    private final List<ByteBuffer> mMetaChildren = new ArrayList<>();
+    private int mPrimaryItemId = -1;
+    private int mIinfVersion;
+    private final List<Item> mItems = new ArrayList<>();
+    private int mIlocVersion;
+    private int mOffsetSize;
+    private int mLengthSize;
+    private int mBaseOffsetSize;
+    private int mIndexSize;
+    private final List<Location> mLocations = new ArrayList<>();
+    private int mIrefVersion = -1;
+    private final List<Reference> mReferences = new ArrayList<>();
+
+    // sorted, non-overlapping ranges of the input to leave out, as pairs of start and end
+    private long[] mRemovedRanges = new long[0];
+    // the header of the box after the meta box, which is read ahead
+    private long @Nullable [] mNextBoxHeader;
+
+    private HeifItemWriter(InputStream in, OutputStream out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    /**
+     * Copies the HEIF or AVIF image from {@code in} to {@code out} with {@code tiff} as the Exif
+     * data of the primary image and, if {@code replaceXmp} is set, {@code xmp} as its XMP data,
+     * which removes its XMP item if it's {@code null}. Neither stream is closed.
+     *
+     * @return the offset of the TIFF header in {@code out}
+     */
+    static long write(InputStream in, OutputStream out, byte[] tiff, boolean replaceXmp,
+            byte @Nullable [] xmp) throws IOException {
+        if (!in.markSupported()) {
+            // holds the input from the meta box on while it's checked
+            in = new BufferedInputStream(in);
+        }
+        try {
+            return new HeifItemWriter(in, out).write(tiff, replaceXmp, xmp);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed HEIF file", e);
+        }
+    }
+
+    private long write(byte[] tiff, boolean replaceXmp, byte @Nullable [] xmp)
+            throws IOException {
+        // Everything in front of the meta box is written as it is, the offsets in it don't change
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        ByteBuffer meta = null;
+        int metaHeaderSize = 0;
+        while (meta == null) {
+            long[] header = readBoxHeader();
+            if (header == null || header[0] < 0) {
+                throw new IOException("No meta box");
+            }
+            int type = (int) header[1];
+            if (type == BOX_MDAT || type == BOX_MOOV) {
+                throw new IOException("Media data in front of the meta box isn't supported");
+            }
+            long payloadSize = header[0] - header[2];
+            if (payloadSize > MAX_BOX_SIZE_BEFORE_DATA) {
+                throw new IOException("Box too large: " + payloadSize);
+            }
+            byte[] payload = new byte[(int) payloadSize];
+            readFully(payload, payload.length);
+            if (type == BOX_FTYP) {
+                checkBrands(ByteBuffer.wrap(payload));
+            }
+            if (type == BOX_META) {
+                meta = ByteBuffer.wrap(payload);
+                metaHeaderSize = (int) header[2];
+            } else {
+                head.write(boxHeader(header[0], type, (int) header[2]));
+                head.write(payload);
+            }
+        }
+        final long metaEnd = mPosition;
+        final long metaStart = metaEnd - meta.capacity() - metaHeaderSize;
+        readMeta(meta);
+
+        // The Exif and XMP items of the primary image are replaced, by items with the same ids if
+        // there are any so that the references to them stay valid
+        List<Item> exifItems = new ArrayList<>();
+        List<Item> xmpItems = new ArrayList<>();
+        for (Item item : mItems) {
+            if (!describesPrimaryItem(item.mId)) {
+                continue;
+            }
+            if (item.mType == ITEM_TYPE_EXIF) {
+                exifItems.add(item);
+            } else if (replaceXmp && item.mType == ITEM_TYPE_MIME
+                    && XMP_CONTENT_TYPE.equals(item.mContentType)) {
+                xmpItems.add(item);
+            }
+        }
+        int nextItemId = 1;
+        for (Item item : mItems) {
+            nextItemId = Math.max(nextItemId, item.mId + 1);
+        }
+        List<Integer> newItemIds = new ArrayList<>();
+        final int exifItemId;
+        if (!exifItems.isEmpty()) {
+            exifItemId = exifItems.get(0).mId;
+        } else {
+            exifItemId = nextItemId++;
+            newItemIds.add(exifItemId);
+            mItems.add(newItem(exifItemId, ITEM_TYPE_EXIF));
+        }
+        int xmpItemId = -1;
+        if (xmp != null) {
+            if (!xmpItems.isEmpty()) {
+                xmpItemId = xmpItems.get(0).mId;
+            } else {
+                xmpItemId = nextItemId++;
+                newItemIds.add(xmpItemId);
+                mItems.add(newItem(xmpItemId, ITEM_TYPE_MIME));
+            }
+        }
+        List<Integer> replacedItemIds = new ArrayList<>();
+        for (Item item : exifItems) {
+            replacedItemIds.add(item.mId);
+        }
+        for (Item item : xmpItems) {
+            replacedItemIds.add(item.mId);
+        }
+        List<Integer> removedItemIds = new ArrayList<>(replacedItemIds);
+        removedItemIds.remove((Integer) exifItemId);
+        removedItemIds.remove((Integer) xmpItemId);
+        if (!newItemIds.isEmpty() && nextItemId - 1 > 0xffff) {
+            // would need newer versions of the boxes that refer to items
+            throw new IOException("Too many items");
+        }
+
+        collectRemovedRanges(replacedItemIds, metaStart, metaEnd);
+        // A media data box right after the meta box that only holds replaced items, like the one
+        // written by an earlier save, is left out as a whole
+        mNextBoxHeader = readBoxHeader();
+        if (mNextBoxHeader != null && (int) mNextBoxHeader[1] == BOX_MDAT
+                && mNextBoxHeader[0] > 0) {
+            long payloadStart = metaEnd + mNextBoxHeader[2];
+            long end = metaEnd + mNextBoxHeader[0];
+            if (removedBefore(end) - removedBefore(payloadStart) == end - payloadStart) {
+                if (mRemovedRanges.length > 0 && mRemovedRanges[0] == payloadStart) {
+                    mRemovedRanges[0] = metaEnd;
+                } else {
+                    long[] ranges = new long[mRemovedRanges.length + 2];
+                    ranges[0] = metaEnd;
+                    ranges[1] = payloadStart;
+                    System.arraycopy(mRemovedRanges, 0, ranges, 2, mRemovedRanges.length);
+                    mRemovedRanges = ranges;
+                }
+            }
+        }
+        mItems.removeIf(item -> removedItemIds.contains(item.mId));
+        mLocations.removeIf(location -> replacedItemIds.contains(location.mItemId));
+        removeReferences(removedItemIds);
+        if (mPrimaryItemId >= 0) {
+            for (int itemId : newItemIds) {
+                Reference reference = new Reference();
+                reference.mType = REFERENCE_TYPE_CDSC;
+                reference.mFromItemId = itemId;
+                reference.mToItemIds = new int[] {mPrimaryItemId};
+                mReferences.add(reference);
+            }
+        }
+
+        // The Exif item is the offset of the TIFF header from the end of the offset, then the
+        // TIFF data. The offset is there to allow for an identifier in front of it.
+        final int exifItemLength = 4 + IDENTIFIER_EXIF.length + tiff.length;
+        final int xmpItemLength = xmp != null ? xmp.length : 0;
+        final long dataBoxSize = 8L + exifItemLength + xmpItemLength;
+
+        // The location box is written with 4 byte offsets unless they don't fit
+        if (mOffsetSize == 0) {
+            mOffsetSize = 4;
+        }
+        if (mLengthSize == 0) {
+            mLengthSize = 4;
+        }
+        // The size of the meta box only depends on the field sizes, not on the offsets
+        long newMetaEnd;
+        long[][] newExtents;
+        while (true) {
+            newMetaEnd = metaStart
+                    + buildMeta(exifItemId, xmpItemId, exifItemLength, xmpItemLength, 0).length;
+            newExtents = mapExtents(metaStart, metaEnd, newMetaEnd + dataBoxSize);
+            if (newExtents != null) {
+                break;
+            }
+            if (mOffsetSize == 8) {
+                throw new IOException("Item offsets out of range");
+            }
+            mOffsetSize = 8;
+        }
+        applyExtents(newExtents);
+        final long exifItemOffset = newMetaEnd + 8;
+        byte[] newMeta =
+                buildMeta(exifItemId, xmpItemId, exifItemLength, xmpItemLength, exifItemOffset);
+
+        final long dataPosition = mPosition;
+        mIn.mark(Integer.MAX_VALUE);
+        copyBoxesAfterMeta(true);
+        mIn.reset();
+        mPosition = dataPosition;
+
+        head.writeTo(mOut);
+        mOut.write(newMeta);
+        mOut.write(boxHeader(dataBoxSize, BOX_MDAT, 8));
+        ByteBuffer exifHeader = ByteBuffer.allocate(4 + IDENTIFIER_EXIF.length);
+        exifHeader.putInt(IDENTIFIER_EXIF.length).put(IDENTIFIER_EXIF);
+        mOut.write(exifHeader.array());
+        mOut.write(tiff);
+        if (xmp != null) {
+            mOut.write(xmp);
+        }
+        copyBoxesAfterMeta(false);
+        return exifItemOffset + exifHeader.capacity();
+    }
+
+    // Whether the metadata item describes the primary image, or nothing in particular.
+    private boolean describesPrimaryItem(int itemId) {
+        boolean describesAnything = false;
+        for (Reference reference : mReferences) {
+            if (reference.mType != REFERENCE_TYPE_CDSC || reference.mFromItemId != itemId) {
+                continue;
+            }
+            for (int toItemId : reference.mToItemIds) {
+                if (toItemId == mPrimaryItemId) {
+                    return true;
+                }
+                describesAnything = true;
+            }
+        }
+        return !describesAnything;
+    }
+
+    private void collectRemovedRanges(List<Integer> itemIds, long metaStart, long metaEnd)
+            throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        for (Location location : mLocations) {
+            if (!itemIds.contains(location.mItemId)) {
+                continue;
+            }
+            if (location.mConstructionMethod != 0 || location.mDataReferenceIndex != 0) {
+                throw new IOException("Metadata items that aren't stored in the media data "
+                        + "aren't supported");
+            }
+            for (int i = 0; i < location.mExtents.length; i += 3) {
+                long start = location.mBaseOffset + location.mExtents[i + 1];
+                long length = location.mExtents[i + 2];
+                if (length <= 0 || start < metaEnd) {
+                    throw new IOException("Unsupported metadata item location");
+                }
+                ranges.add(new long[] {start, start + length});
+            }
+        }
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<Long> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            int last = merged.size() - 1;
+            if (last > 0 && range[0] <= merged.get(last)) {
+                merged.set(last, Math.max(merged.get(last), range[1]));
+            } else {
+                merged.add(range[0]);
+                merged.add(range[1]);
+            }
+        }
+        mRemovedRanges = new long[merged.size()];
+        for (int i = 0; i < mRemovedRanges.length; ++i) {
+            mRemovedRanges[i] = merged.get(i);
+        }
+
+        // The data of the remaining items has to be outside of what is left out
+        for (Location location : mLocations) {
+            if (itemIds.contains(location.mItemId) || location.mConstructionMethod != 0
+                    || location.mDataReferenceIndex != 0) {
+                continue;
+            }
+            for (int i = 0; i < location.mExtents.length; i += 3) {
+                long start = location.mBaseOffset + location.mExtents[i + 1];
+                long length = location.mExtents[i + 2];
+                if (start + length > metaStart && start < metaEnd) {
+                    throw new IOException("Item data inside the meta box");
+                }
+                for (int j = 0; j < mRemovedRanges.length; j += 2) {
+                    if (start < mRemovedRanges[j + 1]
+                            && (length == 0 || start + length > mRemovedRanges[j])) {
+                        throw new IOException("Item data shared with a metadata item");
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeReferences(List<Integer> itemIds) {
+        List<Reference> references = new ArrayList<>();
+        for (Reference reference : mReferences) {
+            if (itemIds.contains(reference.mFromItemId)) {
+                continue;
+            }
+            int[] toItemIds = Arrays.stream(reference.mToItemIds)
+                    .filter(itemId -> !itemIds.contains(itemId))
+                    .toArray();
+            if (toItemIds.length > 0) {
+                reference.mToItemIds = toItemIds;
+                references.add(reference);
+            }
+        }
+        mReferences.clear();
+        mReferences.addAll(references);
+    }
+
+    // Returns the new offsets of the extents stored in the file, or null if one doesn't fit the
+    // offset size.
+    private long @Nullable [][] mapExtents(long metaStart, long metaEnd, long dataStart) {
+        long maxOffset = mOffsetSize == 8 ? Long.MAX_VALUE : 0xffffffffL;
+        long[][] extents = new long[mLocations.size()][];
+        for (int i = 0; i < extents.length; ++i) {
+            Location location = mLocations.get(i);
+            if (location.mConstructionMethod != 0 || location.mDataReferenceIndex != 0) {
+                continue;
+            }
+            extents[i] = new long[location.mExtents.length / 3];
+            for (int j = 0; j < extents[i].length; ++j) {
+                long offset = location.mBaseOffset + location.mExtents[3 * j + 1];
+                if (offset >= metaEnd) {
+                    offset = dataStart + (offset - metaEnd) - removedBefore(offset);
+                }
+                if (offset > maxOffset) {
+                    return null;
+                }
+                extents[i][j] = offset;
+            }
+        }
+        return extents;
+    }
+
+    private void applyExtents(long[][] extents) {
+        for (int i = 0; i < extents.length; ++i) {
+            if (extents[i] == null) {
+                continue;
+            }
+            Location location = mLocations.get(i);
+            location.mBaseOffset = 0;
+            for (int j = 0; j < extents[i].length; ++j) {
+                location.mExtents[3 * j + 1] = extents[i][j];
+            }
+        }
+    }
+
+    private long removedBefore(long offset) {
+        long removed = 0;
+        for (int i = 0; i < mRemovedRanges.length && mRemovedRanges[i] < offset; i += 2) {
+            removed += Math.min(mRemovedRanges[i + 1], offset) - mRemovedRanges[i];
+        }
+        return removed;
+    }
+
+    // Only reads the boxes if checkOnly is set, which throws the same exceptions as copying them.
+    private void copyBoxesAfterMeta(boolean checkOnly) throws IOException {
+        long[] header = mNextBoxHeader;
+        for (; header != null; header = readBoxHeader()) {
+            int type = (int) header[1];
+            if (type == BOX_MOOV) {
+                throw new IOException("Image sequences aren't supported");
+            }
+            long start = mPosition - header[2];
+            long end = header[0] < 0 ? Long.MAX_VALUE : start + header[0];
+            long removed = 0;
+            for (int i = 0; i < mRemovedRanges.length; i += 2) {
+                if (mRemovedRanges[i] < end && mRemovedRanges[i + 1] > start) {
+                    if (mRemovedRanges[i] <= start && mRemovedRanges[i + 1] >= end) {
+                        removed = header[0];
+                    } else if (type != BOX_MDAT || mRemovedRanges[i] < mPosition
+                            || mRemovedRanges[i + 1] > end) {
+                        throw new IOException("Unsupported metadata item location");
+                    } else {
+                        removed += mRemovedRanges[i + 1] - mRemovedRanges[i];
+                    }
+                }
+            }
+            if (removed != header[0] && !checkOnly) {
+                mOut.write(boxHeader(header[0] < 0 ? 0 : header[0] - removed, type,
+                        (int) header[2]));
+            }
+            copyTo(end, checkOnly);
+            if (header[0] < 0) {
+                break;
+            }
+        }
+        if (mRemovedRanges.length > 0 && mRemovedRanges[mRemovedRanges.length - 1] > mPosition) {
+            throw new IOException("Metadata item outside of the file");
+        }
+    }
+
+    // Copies the input up to the given offset, or its end, leaving out the removed ranges. Only
+    // skips it if skipOnly is set.
+    private void copyTo(long end, boolean skipOnly) throws IOException {
+        while (mPosition < end) {
+            long skipTo = -1;
+            long copyEnd = end;
+            for (int i = 0; i < mRemovedRanges.length; i += 2) {
+                if (mRemovedRanges[i + 1] <= mPosition) {
+                    continue;
+                }
+                if (mRemovedRanges[i] <= mPosition) {
+                    skipTo = mRemovedRanges[i + 1];
+                } else {
+                    copyEnd = Math.min(copyEnd, mRemovedRanges[i]);
+                }
+                break;
+            }
+            int length = (int) Math.min(mBuffer.length,
+                    (skipTo >= 0 ? skipTo : copyEnd) - mPosition);
+            int read = skipTo >= 0 || skipOnly ? skip(length) : mIn.read(mBuffer, 0, length);
+            if (read < 0) {
+                if (end != Long.MAX_VALUE) {
+                    throw new EOFException();
+                }
+                return;
+            }
+            mPosition += read;
+            if (skipTo < 0 && !skipOnly) {
+                mOut.write(mBuffer, 0, read);
+            }
+        }
+    }
+
+    // Returns the number of bytes skipped, or -1 at the end of the input.
+    private int skip(int length) throws IOException {
+        long skipped = mIn.skip(length);
+        if (skipped > 0) {
+            return (int) skipped;
+        }
+        // skip() doesn't tell the end of the input apart
+        return mIn.read(mBuffer, 0, length);
+    }
+
+    private void readMeta(ByteBuffer meta) throws IOException {
+        mMetaVersionAndFlags = meta.getInt();
+        while (meta.remaining() >= 8) {
+            int start = meta.position();
+            long size = meta.getInt() & 0xffffffffL;
+            int type = meta.getInt();
+            if (size == 1) {
+                size = meta.getLong();
+            } else if (size == 0) {
+                size = meta.limit() - start;
+            }
+            if (size < meta.position() - start || size > meta.limit() - start) {
+                throw new IOException("Invalid box size: " + size);
+            }
+            int end = start + (int) size;
+            ByteBuffer payload = meta.duplicate();
+            payload.limit(end);
+            payload = payload.slice();
+            if (type == BOX_PITM) {
+                int version = payload.get();
+                payload.position(4);
+                mPrimaryItemId = version == 0 ? payload.getShort() & 0xffff : payload.getInt();
+            } else if (type == BOX_IINF) {
+                readItemInfo(payload);
+            } else if (type == BOX_ILOC) {
+                readItemLocations(payload);
+            } else if (type == BOX_IREF) {
+                readItemReferences(payload);
+            }
+            ByteBuffer box = meta.duplicate();
+            box.position(start).limit(end);
+            mMetaChildren.add(box.slice());
+            meta.position(end);
+        }
+    }
+
+    private void readItemInfo(ByteBuffer iinf) throws IOException {
+        mIinfVersion = iinf.get();
+        iinf.position(4);
+        long count = mIinfVersion == 0 ? iinf.getShort() & 0xffff : iinf.getInt() & 0xffffffffL;
+        for (long i = 0; i < count; ++i) {
+            int start = iinf.position();
+            int size = iinf.getInt();
+            int type = iinf.getInt();
+            if (type != BOX_INFE || size < 12 || size > iinf.limit() - start) {
+                throw new IOException("Invalid item info entry");
+            }
+            ByteBuffer infe = iinf.duplicate();
+            infe.position(start).limit(start + size);
+            infe = infe.slice();
+            iinf.position(start + size);
+
+            Item item = new Item();
+            item.mInfe = infe.duplicate();
+            int version = infe.get(8);
+            infe.position(12);
+            item.mId = version < 3 ? infe.getShort() & 0xffff : infe.getInt();
+            if (version >= 2) {
+                infe.getShort(); // protection index
+                item.mType = infe.getInt();
+                readString(infe); // name
+                if (item.mType == ITEM_TYPE_MIME) {
+                    item.mContentType = readString(infe);
+                }
+            }
+            mItems.add(item);
+        }
+    }
+
+    private void readItemLocations(ByteBuffer iloc) throws IOException {
+        mIlocVersion = iloc.get();
+        if (mIlocVersion > 2) {
+            throw new IOException("Unsupported item location box version: " + mIlocVersion);
+        }
+        iloc.position(4);
+        int sizes = iloc.getShort() & 0xffff;
+        mOffsetSize = sizes >> 12;
+        mLengthSize = (sizes >> 8) & 0xf;
+        mBaseOffsetSize = (sizes >> 4) & 0xf;
+        mIndexSize = mIlocVersion > 0 ? sizes & 0xf : 0;
+        long count = mIlocVersion < 2 ? iloc.getShort() & 0xffff : iloc.getInt() & 0xffffffffL;
+        for (long i = 0; i < count; ++i) {
+            Location location = new Location();
+            location.mItemId = mIlocVersion < 2 ? iloc.getShort() & 0xffff : iloc.getInt();
+            location.mConstructionMethod = mIlocVersion > 0 ? iloc.getShort() & 0xf : 0;
+            location.mDataReferenceIndex = iloc.getShort() & 0xffff;
+            location.mBaseOffset = readSized(iloc, mBaseOffsetSize);
+            int extentCount = iloc.getShort() & 0xffff;
+            location.mExtents = new long[3 * extentCount];
+            for (int j = 0; j < extentCount; ++j) {
+                location.mExtents[3 * j] = readSized(iloc, mIndexSize);
+                location.mExtents[3 * j + 1] = readSized(iloc, mOffsetSize);
+                location.mExtents[3 * j + 2] = readSized(iloc, mLengthSize);
+            }
+            mLocations.add(location);
+        }
+    }
+
+    private void readItemReferences(ByteBuffer iref) throws IOException {
+        mIrefVersion = iref.get();
+        iref.position(4);
+        final int idSize = mIrefVersion == 0 ? 2 : 4;
+        while (iref.remaining() >= 8) {
+            int start = iref.position();
+            int size = iref.getInt();
+            // the header, the from item id and the reference count
+            if (size < 8 + idSize + 2 || size > iref.limit() - start) {
+                throw new IOException("Invalid item reference box");
+            }
+            // the references can't be read past the end of the box
+            ByteBuffer box = iref.duplicate();
+            box.limit(start + size);
+            iref.position(start + size);
+
+            Reference reference = new Reference();
+            reference.mType = box.getInt();
+            reference.mFromItemId = idSize == 2 ? box.getShort() & 0xffff : box.getInt();
+            reference.mToItemIds = new int[box.getShort() & 0xffff];
+            for (int i = 0; i < reference.mToItemIds.length; ++i) {
+                reference.mToItemIds[i] = idSize == 2 ? box.getShort() & 0xffff : box.getInt();
+            }
+            mReferences.add(reference);
+        }
+    }
+
+    private byte[] buildMeta(int exifItemId, int xmpItemId, int exifItemLength,
+            int xmpItemLength, long exifItemOffset) throws IOException {
+        ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        meta.write(new byte[12]);
+        boolean wroteReferences = false;
+        for (ByteBuffer child : mMetaChildren) {
+            int type = child.getInt(4);
+            if (type == BOX_IINF) {
+                meta.write(buildItemInfo());
+            } else if (type == BOX_ILOC) {
+                meta.write(buildItemLocations(exifItemId, xmpItemId, exifItemLength,
+                        xmpItemLength, exifItemOffset));
+            } else if (type == BOX_IREF) {
+                meta.write(buildItemReferences());
+                wroteReferences = true;
+            } else {
+                meta.write(child.array(), child.arrayOffset(), child.capacity());
+            }
+        }
+        if (!wroteReferences && !mReferences.isEmpty()) {
+            meta.write(buildItemReferences());
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(meta.toByteArray());
+        bytes.putInt(bytes.capacity()).putInt(BOX_META).putInt(mMetaVersionAndFlags);
+        return bytes.array();
+    }
+
+    private byte[] buildItemInfo() throws IOException {
+        ByteArrayOutputStream iinf = new ByteArrayOutputStream();
+        iinf.write(new byte[8]);
+        writeInt(iinf, mIinfVersion << 24);
+        if (mIinfVersion == 0) {
+            writeShort(iinf, mItems.size());
+        } else {
+            writeInt(iinf, mItems.size());
+        }
+        for (Item item : mItems) {
+            iinf.write(item.mInfe.array(), item.mInfe.arrayOffset(), item.mInfe.capacity());
+        }
+        return finishBox(iinf, BOX_IINF);
+    }
+
+    private byte[] buildItemLocations(int exifItemId, int xmpItemId, int exifItemLength,
+            int xmpItemLength, long exifItemOffset) throws IOException {
+        List<Location> locations = new ArrayList<>(mLocations);
+        locations.add(newLocation(exifItemId, exifItemOffset, exifItemLength));
+        if (xmpItemId >= 0) {
+            locations.add(newLocation(xmpItemId, exifItemOffset + exifItemLength, xmpItemLength));
+        }
+
+        ByteArrayOutputStream iloc = new ByteArrayOutputStream();
+        iloc.write(new byte[8]);
+        writeInt(iloc, mIlocVersion << 24);
+        writeShort(iloc, mOffsetSize << 12 | mLengthSize << 8 | mBaseOffsetSize << 4 | mIndexSize);
+        if (mIlocVersion < 2) {
+            writeShort(iloc, locations.size());
+        } else {
+            writeInt(iloc, locations.size());
+        }
+        for (Location location : locations) {
+            if (mIlocVersion < 2) {
+                writeShort(iloc, location.mItemId);
+            } else {
+                writeInt(iloc, location.mItemId);
+            }
+            if (mIlocVersion > 0) {
+                writeShort(iloc, location.mConstructionMethod);
+            }
+            writeShort(iloc, location.mDataReferenceIndex);
+            writeSized(iloc, location.mBaseOffset, mBaseOffsetSize);
+            writeShort(iloc, location.mExtents.length / 3);
+            for (int i = 0; i < location.mExtents.length; i += 3) {
+                writeSized(iloc, location.mExtents[i], mIndexSize);
+                writeSized(iloc, location.mExtents[i + 1], mOffsetSize);
+                writeSized(iloc, location.mExtents[i + 2], mLengthSize);
+            }
+        }
+        return finishBox(iloc, BOX_ILOC);
+    }
+
+    private byte[] buildItemReferences() throws IOException {
+        if (mIrefVersion < 0) {
+            mIrefVersion = 0;
+        }
+        ByteArrayOutputStream iref = new ByteArrayOutputStream();
+        iref.write(new byte[8]);
+        writeInt(iref, mIrefVersion << 24);
+        int idSize = mIrefVersion == 0 ? 2 : 4;
+        for (Reference reference : mReferences) {
+            writeInt(iref, 8 + idSize + 2 + idSize * reference.mToItemIds.length);
+            writeInt(iref, reference.mType);
+            writeSized(iref, reference.mFromItemId, idSize);
+            writeShort(iref, reference.mToItemIds.length);
+            for (int toItemId : reference.mToItemIds) {
+                writeSized(iref, toItemId, idSize);
+            }
+        }
+        return finishBox(iref, BOX_IREF);
+    }
+
+    private Item newItem(int id, int type) throws IOException {
+        ByteArrayOutputStream infe = new ByteArrayOutputStream();
+        infe.write(new byte[8]);
+        // version 2, hidden, since it's not an image to show
+        writeInt(infe, 2 << 24 | 1);
+        writeShort(infe, id);
+        writeShort(infe, 0); // protection index
+        writeInt(infe, type);
+        infe.write(0); // no name
+        if (type == ITEM_TYPE_MIME) {
+            infe.write(XMP_CONTENT_TYPE.getBytes(StandardCharsets.US_ASCII));
+            infe.write(0);
+        }
+        Item item = new Item();
+        item.mId = id;
+        item.mType = type;
+        item.mContentType = type == ITEM_TYPE_MIME ? XMP_CONTENT_TYPE : null;
+        item.mInfe = ByteBuffer.wrap(finishBox(infe, BOX_INFE));
+        return item;
+    }
+
+    private static Location newLocation(int itemId, long offset, long length) {
+        Location location = new Location();
+        location.mItemId = itemId;
+        location.mExtents = new long[] {0, offset, length};
+        return location;
+    }
+
+    private void checkBrands(ByteBuffer ftyp) throws IOException {
+        // the major brand, the minor version, then the compatible brands
+        for (int i = 0; i + 4 <= ftyp.limit(); i += 4) {
+            int brand = ftyp.getInt(i);
+            for (int sequenceBrand : SEQUENCE_BRANDS) {
+                if (i != 4 && brand == sequenceBrand) {
+                    throw new IOException("Image sequences aren't supported");
+                }
+            }
+        }
+    }
+
+    // Returns the size, or -1 if the box extends to the end of the file, the type and the size of
+    // the header, or null at the end of the input.
+    private long @Nullable [] readBoxHeader() throws IOException {
+        byte[] header = new byte[16];
+        int first = mIn.read();
+        if (first < 0) {
+            return null;
+        }
+        header[0] = (byte) first;
+        ++mPosition;
+        readFully(header, 1, 7);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        long size = buffer.getInt() & 0xffffffffL;
+        int type = buffer.getInt();
+        int headerSize = 8;
+        if (size == 1) {
+            readFully(header, 8, 8);
+            size = buffer.getLong();
+            headerSize = 16;
+        } else if (size == 0) {
+            size = -1;
+        }
+        if (size >= 0 && size < headerSize) {
+            throw new IOException("Invalid box size: " + size);
+        }
+        return new long[] {size, type, headerSize};
+    }
+
+    private static byte[] boxHeader(long size, int type, int headerSize) {
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        if (headerSize == 16) {
+            header.putInt(1).putInt(type).putLong(size);
+        } else {
+            header.putInt((int) size).putInt(type);
+        }
+        return header.array();
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        readFully(bytes, 0, length);
+    }
+
+    private void readFully(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = mIn.read(bytes, offset, length);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+            length -= read;
+            mPosition += read;
+        }
+    }
+
+    private static byte[] finishBox(ByteArrayOutputStream box, int type) {
+        ByteBuffer bytes = ByteBuffer.wrap(box.toByteArray());
+        bytes.putInt(0, bytes.capacity()).putInt(4, type);
+        return bytes.array();
+    }
+
+    private static long readSized(ByteBuffer buffer, int size) throws IOException {
+        switch (size) {
+            case 0:
+                return 0;
+            case 4:
+                return buffer.getInt() & 0xffffffffL;
+            case 8:
+                return buffer.getLong();
+            default:
+                throw new IOException("Invalid field size: " + size);
+        }
+    }
+
+    private static void writeSized(OutputStream out, long value, int size) throws IOException {
+        switch (size) {
+            case 0:
+                break;
+            case 2:
+                writeShort(out, (int) value);
+                break;
+            case 4:
+                writeInt(out, (int) value);
+                break;
+            case 8:
+                writeInt(out, (int) (value >>> 32));
+                writeInt(out, (int) value);
+                break;
+            default:
+                throw new IOException("Invalid field size: " + size);
+        }
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        writeShort(out, value >>> 16);
+        writeShort(out, value);
+    }
+
+    private static @Nullable String readString(ByteBuffer buffer) {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (buffer.get() == 0) {
+                byte[] bytes = new byte[buffer.position() - start - 1];
+                buffer.duplicate().position(start).get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static int fourCc(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+}
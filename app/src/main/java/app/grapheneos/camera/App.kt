@@ -12,6 +12,9 @@ import android.os.SystemClock
 import android.view.WindowManager
 import androidx.annotation.RequiresPermission
 import androidx.appcompat.app.AppCompatActivity
+import app.grapheneos.camera.capturer.ImageSaverService
+import app.grapheneos.camera.capturer.PendingImageSlot
+import app.grapheneos.camera.capturer.SafStagingQueue
 import app.grapheneos.camera.capturer.deleteStalePendingRecordings
 import app.grapheneos.camera.ui.activities.MainActivity
 import com.google.android.material.color.DynamicColors
@@ -26,6 +29,24 @@ class App : Application() {
     }
 
     private var activity: MainActivity? = null
+
+    val pendingImageSlot by lazy {
+        PendingImageSlot(contentResolver)
+    }
+
+    val safStagingQueue by lazy {
+        SafStagingQueue(this).apply {
+            listener = object : SafStagingQueue.Listener {
+                override fun onDepthChanged(depth: Int) {
+                    activity?.updateStagingCounter(depth)
+                }
+
+                override fun onImageCopied(item: CapturedItem, resultScope: Any) {
+                    ImageSaverService.onStagedImageCopied(this@App, item, resultScope)
+                }
+            }
+        }
+    }
     private var location: Location? = null
 
     private var isLocationFetchInProgress = false
@@ -91,6 +112,13 @@ class App : Application() {
         thread {
             deleteStalePendingRecordings(this)
         }
+        pendingImageSlot.deleteStalePendingImages()
+        safStagingQueue.resume()
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        ImageSaverService.bufferPool.onTrimMemory(level)
     }
 
     @RequiresPermission(allOf = [Manifest.permission.ACCESS_COARSE_LOCATION])
@@ -49,6 +49,7 @@ import androidx.camera.video.internal.muxer.MediaMuxerImpl
 import androidx.core.content.ContextCompat
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.Observer
+import androidxc.exifinterface.media.ExifInterface
 import app.grapheneos.camera.analyzer.QRAnalyzer
 import app.grapheneos.camera.ktx.applyPreviewRatio
 import app.grapheneos.camera.ui.activities.CaptureActivity
@@ -109,6 +110,7 @@ class CamConfig(private val mActivity: MainActivity) {
 
             const val STORAGE_LOCATION = "storage_location"
             const val PREVIOUS_SAF_TREES = "previous_saf_trees"
+            const val STAGE_SAF_WRITES = "stage_saf_writes"
 
             const val LAST_CAPTURED_ITEM_TYPE = "last_captured_item_type"
             const val LAST_CAPTURED_ITEM_DATE_STRING = "last_captured_item_date_string"
@@ -118,6 +120,10 @@ class CamConfig(private val mActivity: MainActivity) {
 
             const val REMOVE_EXIF_AFTER_CAPTURE = "remove_exif_after_capture"
 
+            const val EMBED_EXIF_THUMBNAIL = "embed_exif_thumbnail"
+
+            const val PARALLEL_JPEG_ENCODER = "parallel_jpeg_encoder"
+
             const val GYROSCOPE_SUGGESTIONS = "gyroscope_suggestions"
 
             const val CAMERA_SOUNDS = "camera_sounds"
@@ -160,10 +166,16 @@ class CamConfig(private val mActivity: MainActivity) {
 
             const val STORAGE_LOCATION = ""
 
+            const val STAGE_SAF_WRITES = true
+
             const val PHOTO_QUALITY = 95
 
             const val REMOVE_EXIF_AFTER_CAPTURE = true
 
+            const val EMBED_EXIF_THUMBNAIL = false
+
+            const val PARALLEL_JPEG_ENCODER = false
+
             const val GYROSCOPE_SUGGESTIONS = false
 
             const val CAMERA_SOUNDS = true
@@ -205,6 +217,13 @@ class CamConfig(private val mActivity: MainActivity) {
 
         const val COMMON_SHARED_PREFS_NAME = "commons"
 
+        // also used while no activity is attached, see SafStagingQueue
+        fun saveLastCapturedItem(item: CapturedItem, editor: SharedPreferences.Editor) {
+            editor.putInt(SettingValues.Key.LAST_CAPTURED_ITEM_TYPE, item.type)
+            editor.putString(SettingValues.Key.LAST_CAPTURED_ITEM_DATE_STRING, item.dateString)
+            editor.putString(SettingValues.Key.LAST_CAPTURED_ITEM_URI, item.uri.toString())
+        }
+
         val FRONT_CAMERA_SELECTOR = CameraSelector.Builder()
             .requireLensFacing(CameraSelector.LENS_FACING_FRONT)
             .build()
@@ -248,6 +267,12 @@ class CamConfig(private val mActivity: MainActivity) {
     var imageCapture: ImageCapture? = null
         private set
 
+    // Captures of one session carry the same set of EXIF tags, so the layout of the EXIF segment
+    // worked out for the first one is reused to write the rest, whose EXIF data is still parsed in
+    // full. Replaced on every bind, since a different camera or mode may write different tags.
+    var exifSegmentTemplate = ExifInterface.SegmentTemplate()
+        private set
+
     var preview: Preview? = null
 
     val allowedFormats: ArrayList<BarcodeFormat> = arrayListOf()
@@ -589,6 +614,54 @@ class CamConfig(private val mActivity: MainActivity) {
             editor.apply()
         }
 
+    var stageSafWrites: Boolean
+        get() {
+            return commonPref.getBoolean(
+                SettingValues.Key.STAGE_SAF_WRITES,
+                SettingValues.Default.STAGE_SAF_WRITES
+            )
+        }
+        set(value) {
+            val editor = commonPref.edit()
+            editor.putBoolean(
+                SettingValues.Key.STAGE_SAF_WRITES,
+                value
+            )
+            editor.apply()
+        }
+
+    var embedExifThumbnail: Boolean
+        get() {
+            return commonPref.getBoolean(
+                SettingValues.Key.EMBED_EXIF_THUMBNAIL,
+                SettingValues.Default.EMBED_EXIF_THUMBNAIL
+            )
+        }
+        set(value) {
+            val editor = commonPref.edit()
+            editor.putBoolean(
+                SettingValues.Key.EMBED_EXIF_THUMBNAIL,
+                value
+            )
+            editor.apply()
+        }
+
+    var useParallelJpegEncoder: Boolean
+        get() {
+            return commonPref.getBoolean(
+                SettingValues.Key.PARALLEL_JPEG_ENCODER,
+                SettingValues.Default.PARALLEL_JPEG_ENCODER
+            )
+        }
+        set(value) {
+            val editor = commonPref.edit()
+            editor.putBoolean(
+                SettingValues.Key.PARALLEL_JPEG_ENCODER,
+                value
+            )
+            editor.apply()
+        }
+
     var gSuggestions: Boolean
         get() {
             return commonPref.getBoolean(
@@ -642,7 +715,7 @@ class CamConfig(private val mActivity: MainActivity) {
         return isInPhotoMode && gSuggestions
     }
 
-    private val isInPhotoMode: Boolean
+    val isInPhotoMode: Boolean
         get() {
             return !(isQRMode || isVideoMode)
         }
@@ -652,12 +725,6 @@ class CamConfig(private val mActivity: MainActivity) {
             return mActivity is CaptureActivity
         }
 
-    private fun saveLastCapturedItem(item: CapturedItem, editor: SharedPreferences.Editor) {
-        editor.putInt(SettingValues.Key.LAST_CAPTURED_ITEM_TYPE, item.type)
-        editor.putString(SettingValues.Key.LAST_CAPTURED_ITEM_DATE_STRING, item.dateString)
-        editor.putString(SettingValues.Key.LAST_CAPTURED_ITEM_URI, item.uri.toString())
-    }
-
     fun updateLastCapturedItem(item: CapturedItem) {
         commonPref.edit {
             saveLastCapturedItem(item, this)
@@ -1387,6 +1454,13 @@ class CamConfig(private val mActivity: MainActivity) {
         return cameraProvider?.hasCamera(tCameraSelector) ?: false
     }
 
+    // Unbinding releases the surface of the preview and the buffers of the capture use case right
+    // away, while the lifecycle would only close the camera and keep them. The images that are
+    // still being saved don't need them, see ImageSaverService. startCamera() binds them again
+    fun releaseCamera() {
+        cameraProvider?.unbindAll()
+    }
+
     // Start the camera with latest hard configuration
     @SuppressLint("RestrictedApi")
     fun startCamera(forced: Boolean = false) {
@@ -1394,6 +1468,7 @@ class CamConfig(private val mActivity: MainActivity) {
 
         // Cancel any pending capture requests
         mActivity.imageCapturer.cancelPendingCaptureRequest()
+        mActivity.imageCapturer.prepareOutputSlot()
 
         mActivity.exposureBar.hidePanel()
         modePref = mActivity.getSharedPreferences(currentMode.name, Context.MODE_PRIVATE)
@@ -1438,6 +1513,7 @@ class CamConfig(private val mActivity: MainActivity) {
 
         // Unbind/close all other camera(s) [if any]
         cameraProvider?.unbindAll()
+        exifSegmentTemplate = ExifInterface.SegmentTemplate()
 
         val extMode = currentMode.extensionMode
         var appliedExtension: Pair<Int, Int>? = null
@@ -16,12 +16,11 @@ import android.provider.DocumentsContract
 import android.provider.MediaStore
 import android.util.Log
 import androidx.annotation.StringRes
+import androidxc.exifinterface.media.ExifDateTime
 import app.grapheneos.camera.CamConfig.SettingValues
 import app.grapheneos.camera.util.EphemeralSharedPrefs
 import app.grapheneos.camera.util.edit
-import java.text.ParseException
-import java.text.SimpleDateFormat
-import java.util.Locale
+import java.util.TimeZone
 import kotlin.jvm.Throws
 
 typealias ItemType = Int
@@ -29,6 +28,8 @@ const val ITEM_TYPE_IMAGE: ItemType = 0
 const val ITEM_TYPE_VIDEO: ItemType = 1
 const val IMAGE_NAME_PREFIX = "IMG_"
 const val VIDEO_NAME_PREFIX = "VID_"
+// follows the stamp of the burst in the names of burst shots, along with the number of the shot
+const val BURST_NAME_INFIX = "_BURST"
 
 class CapturedItem(
     val type: ItemType,
@@ -63,17 +64,11 @@ class CapturedItem(
         // whatever the default time zone was at capture, which nothing records, so the name is read
         // back in the current one: the wall-clock digits survive a change of zone, the instant does
         // not. Callers must not present this as a zoned timestamp.
-        return parseDateString("yyyyMMdd_HHmmss_SSS") ?: parseDateString("yyyyMMdd_HHmmss")
-    }
-
-    private fun parseDateString(pattern: String): Long? {
-        val format = SimpleDateFormat(pattern, Locale.US)
-        format.isLenient = false
-        return try {
-            format.parse(dateString)?.time
-        } catch (e: ParseException) {
-            null
+        val localMillis = ExifDateTime.parseFileNameStamp(dateString)
+        if (localMillis == ExifDateTime.INVALID) {
+            return null
         }
+        return ExifDateTime.toUtcMillis(localMillis, TimeZone.getDefault())
     }
 
     override fun writeToParcel(dest: Parcel, flags: Int) {
@@ -450,11 +445,20 @@ object CapturedItems {
             return null
         }
 
+        val burstStart = fileName.indexOf(BURST_NAME_INFIX, prefixLen)
+        val stampEnd = if (burstStart in 0 until end) burstStart else end
         for (i in prefixLen until end) {
             val ch = fileName[i]
-            if ((ch >= '0' && ch <= '9') || ch == '_') {
+            if ((ch >= '0' && ch <= '9') || (ch == '_' && i < stampEnd)) {
                 continue
             }
+            if (i >= stampEnd && i < stampEnd + BURST_NAME_INFIX.length) {
+                continue
+            }
+            return null
+        }
+        if (stampEnd + BURST_NAME_INFIX.length == end) {
+            // the number of the burst shot is missing
             return null
         }
 
@@ -14,6 +14,7 @@ import app.grapheneos.camera.ui.ZoomableImageView
 import app.grapheneos.camera.ui.activities.InAppGallery
 import app.grapheneos.camera.ui.activities.VideoPlayer
 import app.grapheneos.camera.ui.fragment.GallerySlide
+import app.grapheneos.camera.util.decodeExifThumbnail
 import app.grapheneos.camera.util.executeIfAlive
 import kotlin.math.max
 
@@ -61,6 +62,10 @@ class GallerySliderAdapter(
         holder.currentPostion = position
 
         gActivity.asyncImageLoader.executeIfAlive {
+            if (item.type == ITEM_TYPE_IMAGE) {
+                showExifThumbnail(holder, position, item)
+            }
+
             val bitmap: Bitmap? = try {
                 if (item.type == ITEM_TYPE_VIDEO) {
                     getVideoThumbnail(gActivity, item.uri)
@@ -116,6 +121,26 @@ class GallerySliderAdapter(
         }
     }
 
+    // Decoding a large image takes a while, the thumbnail embedded into its EXIF data (if any) is
+    // shown in the meantime
+    private fun showExifThumbnail(holder: GallerySlide, position: Int, item: CapturedItem) {
+        val metrics = gActivity.resources.displayMetrics
+        val thumbnail = try {
+            decodeExifThumbnail(gActivity.contentResolver, item.uri,
+                metrics.widthPixels, metrics.heightPixels, allowUpscaling = true)
+        } catch (e: Exception) { null } ?: return
+
+        gActivity.mainExecutor.execute {
+            if (holder.currentPostion == position) {
+                holder.binding.placeholderText.root.visibility = View.GONE
+                holder.binding.slidePreview.visibility = View.VISIBLE
+                holder.binding.slidePreview.setImageBitmap(thumbnail)
+            } else {
+                thumbnail.recycle()
+            }
+        }
+    }
+
     fun removeItem(item: CapturedItem) {
         removeChildAt(items.indexOf(item))
     }
@@ -0,0 +1,147 @@
+package app.grapheneos.camera.capturer
+
+import android.content.ComponentCallbacks2
+import java.io.OutputStream
+import java.util.ArrayDeque
+
+/*
+Keeps the large byte arrays of the capture path for reuse, see ImageSaver.
+
+Each capture needs arrays of several megabytes. Allocating them anew for every image lets them pile
+up in the large object space until the collector runs, which shows up as preview stutter right after
+the shutter. Arrays that are returned with release() are handed out again by acquire() instead.
+
+Requested sizes are rounded up to size classes, four for each power of two, so that images of
+slightly different sizes still share arrays. A free array is reused for any request that it fits
+without wasting more than a class, the free arrays that were released least recently are dropped
+once more than maxRetainedBytes are kept, and onTrimMemory() drops them when the system asks the
+app to release memory. Arrays that are in use aren't tracked, the memory they hold is bounded by
+CapturePipeline.
+ */
+class BufferPool(private val maxRetainedBytes: Long) {
+    // free arrays, least recently released first, guarded by this
+    private val free = ArrayDeque<ByteArray>()
+    private var retainedBytes = 0L
+
+    /** Returns an array that is at least minSize bytes long, its contents are undefined. */
+    fun acquire(minSize: Int): ByteArray {
+        require(minSize >= 0)
+        if (minSize < MIN_POOLED_SIZE) {
+            return ByteArray(minSize)
+        }
+        val size = sizeClass(minSize)
+        synchronized(this) {
+            // the smallest fitting array, to leave the larger ones to larger requests
+            var best: ByteArray? = null
+            for (array in free) {
+                if (array.size >= minSize && array.size <= size + size / CLASSES_PER_DOUBLING
+                        && (best == null || array.size < best.size)) {
+                    best = array
+                }
+            }
+            if (best != null) {
+                free.removeFirstOccurrence(best)
+                retainedBytes -= best.size
+                return best
+            }
+        }
+        return ByteArray(size)
+    }
+
+    /**
+     * Makes array available to acquire(). It must not be used after this, by the caller or by
+     * anything it was passed to. Arrays that didn't come from acquire() are accepted too.
+     */
+    fun release(array: ByteArray) {
+        if (array.size < MIN_POOLED_SIZE || array.size > maxRetainedBytes) {
+            return
+        }
+        synchronized(this) {
+            free.addLast(array)
+            retainedBytes += array.size
+            trimTo(maxRetainedBytes)
+        }
+    }
+
+    @Synchronized
+    fun retainedBytes() = retainedBytes
+
+    @Synchronized
+    fun clear() {
+        trimTo(0)
+    }
+
+    /** See ComponentCallbacks2.onTrimMemory(). */
+    fun onTrimMemory(level: Int) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // nothing is captured while the UI is hidden
+            clear()
+        } else {
+            synchronized(this) {
+                trimTo(maxRetainedBytes / 2)
+            }
+        }
+    }
+
+    private fun trimTo(maxBytes: Long) {
+        while (retainedBytes > maxBytes) {
+            retainedBytes -= free.removeFirst().size
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that writes into arrays of the pool. The bytes that were written are
+     * the first size() bytes of array(), which has to be released by the user of the stream.
+     */
+    inner class Output(initialSize: Int) : OutputStream() {
+        private var buf = acquire(initialSize)
+        private var count = 0
+
+        fun array() = buf
+
+        fun size() = count
+
+        override fun write(b: Int) {
+            ensureCapacity(count + 1)
+            buf[count++] = b.toByte()
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (off < 0 || len < 0 || off + len > b.size) {
+                throw IndexOutOfBoundsException()
+            }
+            ensureCapacity(count + len)
+            System.arraycopy(b, off, buf, count, len)
+            count += len
+        }
+
+        private fun ensureCapacity(minCapacity: Int) {
+            if (minCapacity < 0) {
+                throw OutOfMemoryError()
+            }
+            if (minCapacity <= buf.size) {
+                return
+            }
+            val grown = acquire(maxOf(minCapacity, buf.size + buf.size / 2))
+            System.arraycopy(buf, 0, grown, 0, count)
+            release(buf)
+            buf = grown
+        }
+    }
+
+    companion object {
+        // smaller arrays are cheap to allocate and are left to the collector
+        const val MIN_POOLED_SIZE = 64 * 1024
+        private const val CLASSES_PER_DOUBLING = 4
+
+        /** Rounds size up to the next size class, which wastes less than a quarter of it. */
+        fun sizeClass(size: Int): Int {
+            if (size <= MIN_POOLED_SIZE) {
+                return MIN_POOLED_SIZE
+            }
+            val step = Integer.highestOneBit(size - 1) / CLASSES_PER_DOUBLING
+            val rounded = (size.toLong() + step - 1) / step * step
+            return if (rounded <= Int.MAX_VALUE - 8) rounded.toInt() else size
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package app.grapheneos.camera.capturer
+
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/*
+Durations of the stages of the capture path, see ImageSaver.
+
+Recording is always on and cheap enough for that: a few atomic increments per stage, no locks and
+no allocation. Durations go into histogram buckets, four for each power of two microseconds, so
+that percentiles are known to within a quarter of their value.
+
+The histograms are shown by the hidden debug dialog of MoreSettings and are dumped along with the
+state of MainActivity, by "adb shell dumpsys activity app.grapheneos.camera". They cover the whole
+lifetime of the process.
+ */
+object CaptureMetrics {
+
+    enum class Metric(val label: String) {
+        EXTRACTION("extraction"),
+        CROPPING("cropping"),
+        EXIF_PROCESSING("EXIF processing"),
+        // ContentResolver.insert() of MediaStore or DocumentsContract.createDocument(), which are
+        // binder calls to the provider
+        URI_CREATION("output URI creation"),
+        WRITE("write"),
+        FSYNC("fsync"),
+        // one call for each group of images if they are committed in groups, see GroupCommit
+        PENDING_FLAG_CLEAR("pending flag clear"),
+        THUMBNAIL("thumbnail generation"),
+        // from the capture callback until the image is saved, including the time spent waiting
+        // for the workers of the pipeline and for the other images of its group
+        SAVE("capture to saved image"),
+    }
+
+    private val histograms = Array(Metric.entries.size) { Histogram() }
+
+    fun record(metric: Metric, startNanos: Long) {
+        val micros = (System.nanoTime() - startNanos) / 1000
+        histograms[metric.ordinal].record(micros)
+    }
+
+    /** Records the duration of block, also when it throws. */
+    inline fun <T> measure(metric: Metric, block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(metric, start)
+        }
+    }
+
+    fun snapshot(metric: Metric) = histograms[metric.ordinal].snapshot()
+
+    fun reset() {
+        histograms.forEach { it.reset() }
+    }
+
+    /** Returns one line for each metric that was recorded. */
+    fun dump(): List<String> {
+        return Metric.entries.mapNotNull { metric ->
+            val s = snapshot(metric)
+            if (s.count == 0L) {
+                null
+            } else {
+                String.format(Locale.ROOT, "%s: %d, mean %s, p50 %s, p90 %s, p99 %s, max %s",
+                    metric.label, s.count, formatMicros(s.meanMicros()),
+                    formatMicros(s.percentileMicros(0.5)), formatMicros(s.percentileMicros(0.9)),
+                    formatMicros(s.percentileMicros(0.99)), formatMicros(s.maxMicros))
+            }
+        }
+    }
+
+    private fun formatMicros(us: Long) = if (us < 10_000) {
+        "$us us"
+    } else {
+        String.format(Locale.ROOT, "%.1f ms", us / 1000.0)
+    }
+
+    class Histogram {
+        private val buckets = AtomicLongArray(BUCKET_COUNT)
+        private val count = AtomicLong()
+        private val sum = AtomicLong()
+        private val max = AtomicLong()
+
+        fun record(micros: Long) {
+            val value = micros.coerceAtLeast(0)
+            buckets.incrementAndGet(bucketIndex(value))
+            count.incrementAndGet()
+            sum.addAndGet(value)
+            var prev = max.get()
+            while (value > prev && !max.compareAndSet(prev, value)) {
+                prev = max.get()
+            }
+        }
+
+        // values recorded while the snapshot is taken may be missing from some of its fields
+        fun snapshot(): Snapshot {
+            val counts = LongArray(BUCKET_COUNT) { buckets.get(it) }
+            return Snapshot(counts, count.get(), sum.get(), max.get())
+        }
+
+        fun reset() {
+            for (i in 0 until BUCKET_COUNT) {
+                buckets.set(i, 0)
+            }
+            count.set(0)
+            sum.set(0)
+            max.set(0)
+        }
+    }
+
+    class Snapshot(
+        private val buckets: LongArray,
+        val count: Long,
+        val sumMicros: Long,
+        val maxMicros: Long,
+    ) {
+        fun meanMicros() = if (count == 0L) 0 else sumMicros / count
+
+        /**
+         * Returns the value that the fraction p of the values are at or below, rounded up to the
+         * end of its bucket, but not past the maximum.
+         */
+        fun percentileMicros(p: Double): Long {
+            val total = buckets.sum()
+            if (total == 0L) {
+                return 0
+            }
+            val rank = Math.ceil(p * total).toLong().coerceIn(1, total)
+            var seen = 0L
+            for (i in buckets.indices) {
+                seen += buckets[i]
+                if (seen >= rank) {
+                    return minOf(bucketLimit(i) - 1, maxMicros)
+                }
+            }
+            return maxMicros
+        }
+    }
+
+    // values below 4 have buckets of their own, larger ones are split into 4 buckets for each
+    // power of two
+    private const val SUB_BUCKETS = 4
+    // values from 2^37 us, more than a day, share the last bucket
+    private const val MAX_EXPONENT = 36
+    const val BUCKET_COUNT = MAX_EXPONENT * SUB_BUCKETS
+
+    fun bucketIndex(micros: Long): Int {
+        if (micros < SUB_BUCKETS) {
+            return micros.toInt()
+        }
+        val exponent = 63 - java.lang.Long.numberOfLeadingZeros(micros)
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1
+        }
+        val sub = (micros shr (exponent - 2)).toInt() and (SUB_BUCKETS - 1)
+        return (exponent - 1) * SUB_BUCKETS + sub
+    }
+
+    /** Returns the smallest value that is past the bucket with the given index. */
+    fun bucketLimit(index: Int): Long {
+        if (index < SUB_BUCKETS) {
+            return index + 1L
+        }
+        if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE
+        }
+        val exponent = index / SUB_BUCKETS + 1
+        val sub = index % SUB_BUCKETS
+        return (SUB_BUCKETS + sub + 1L) shl (exponent - 2)
+    }
+}
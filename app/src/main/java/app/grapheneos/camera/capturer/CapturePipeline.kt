@@ -0,0 +1,180 @@
+package app.grapheneos.camera.capturer
+
+import java.util.ArrayDeque
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/*
+Schedules the stages of image saving, see ImageSaver.
+
+Each stage has a pool of its own, so that different stages of different images run concurrently,
+as does the same stage of several images. A capture has to be admitted before it's taken: the
+number of captures in flight and the bytes they hold are bounded, which also bounds the queue of
+each stage, since a capture has at most one task queued at a time. ImageCapturer keeps the shutter
+disabled while no capture can be admitted. The pipeline belongs to ImageSaverService, captures
+outlive the activity that admitted them.
+
+Whichever capture finishes first, the callbacks of a capture are delivered after those of the
+captures that were admitted before it, so the last captured item and the gallery button follow the
+order the images were taken in.
+
+The stage each capture is at is tracked, which tells GroupCommit whether more images are about to
+reach the COMMIT stage, whose pool commits the written images, in groups if that's enabled.
+ */
+class CapturePipeline(
+    threadsPerStage: Int,
+    private val maxInFlight: Int,
+    private val memoryBudget: Long,
+    initialSizeEstimate: Long,
+    private val callbackExecutor: Executor,
+) {
+    enum class Stage {
+        EXTRACTION,
+        CROPPING,
+        METADATA,
+        WRITING,
+        COMMIT,
+        THUMBNAIL,
+    }
+
+    private val executors = Stage.entries.map { stage ->
+        val name = "CapturePipeline-" + stage.name.lowercase()
+        ThreadPoolExecutor(threadsPerStage, threadsPerStage, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                ArrayBlockingQueue(maxInFlight), ThreadFactory { Thread(it, name) }).apply {
+            allowCoreThreadTimeOut(true)
+        }
+    }
+
+    // the rest is guarded by this
+
+    // admitted captures in the order of admission, finished ones are removed once all the
+    // earlier ones have finished too
+    private val captures = ArrayDeque<Capture>()
+    private var inFlight = 0
+    private var reservedBytes = 0L
+    // the size of the last capture, reserved for the next one until its size is known
+    private var sizeEstimate = initialSizeEstimate
+
+    /**
+     * Called on the callback executor after a capture finishes, which may let another one be
+     * admitted.
+     */
+    @Volatile
+    var onCaptureFinished: (() -> Unit)? = null
+
+    fun executor(stage: Stage): Executor = executors[stage.ordinal]
+
+    /**
+     * Returns true if tryAdmit() would admit a capture. A capture is always admitted when none is
+     * in flight, however large it may be.
+     */
+    @Synchronized
+    fun hasCapacity(): Boolean {
+        return inFlight == 0 ||
+                (inFlight < maxInFlight && reservedBytes + sizeEstimate <= memoryBudget)
+    }
+
+    /** Reserves room for a capture of the estimated size, or returns null if there is none. */
+    @Synchronized
+    fun tryAdmit(): Capture? {
+        if (!hasCapacity()) {
+            return null
+        }
+        val capture = Capture(sizeEstimate)
+        captures.addLast(capture)
+        ++inFlight
+        reservedBytes += sizeEstimate
+        return capture
+    }
+
+    @Synchronized
+    fun bytesInFlight() = reservedBytes
+
+    /** Returns true if no capture is in flight. */
+    @Synchronized
+    fun isIdle() = inFlight == 0
+
+    /**
+     * Returns the number of captures in flight that haven't reached stage yet, including the ones
+     * whose image hasn't arrived.
+     */
+    @Synchronized
+    fun countBefore(stage: Stage): Int {
+        return captures.count { !it.finished && (it.stage?.let { s -> s < stage } ?: true) }
+    }
+
+    inner class Capture internal constructor(private var size: Long) {
+        // guarded by the pipeline
+        private val callbacks = ArrayList<Runnable>()
+        internal var finished = false
+            private set
+        // the last stage this capture has entered, null until its image has arrived
+        internal var stage: Stage? = null
+            private set
+
+        fun execute(stage: Stage, task: Runnable) {
+            enter(stage)
+            executors[stage.ordinal].execute(task)
+        }
+
+        /** Records that this capture has reached stage, for stages whose work is batched. */
+        fun enter(stage: Stage) {
+            synchronized(this@CapturePipeline) {
+                this.stage = stage
+            }
+        }
+
+        /**
+         * Replaces the estimate this capture was admitted with by the number of bytes it holds
+         * at its peak, which becomes the estimate for the next ones.
+         */
+        fun setSize(bytes: Long) {
+            synchronized(this@CapturePipeline) {
+                check(!finished)
+                reservedBytes += bytes - size
+                size = bytes
+                sizeEstimate = bytes
+            }
+        }
+
+        /**
+         * Runs callback on the callback executor once the callbacks of the earlier captures
+         * have run and they have finished.
+         */
+        fun deliver(callback: Runnable) {
+            synchronized(this@CapturePipeline) {
+                check(!finished)
+                if (captures.peekFirst() === this) {
+                    callbackExecutor.execute(callback)
+                } else {
+                    callbacks.add(callback)
+                }
+            }
+        }
+
+        /** Releases the bytes of this capture. Nothing can be delivered after this. */
+        fun finish() {
+            synchronized(this@CapturePipeline) {
+                check(!finished)
+                finished = true
+                --inFlight
+                reservedBytes -= size
+                while (captures.peekFirst()?.finished == true) {
+                    captures.removeFirst()
+                    captures.peekFirst()?.let { next ->
+                        next.callbacks.forEach(callbackExecutor::execute)
+                        next.callbacks.clear()
+                    }
+                }
+            }
+            callbackExecutor.execute { onCaptureFinished?.invoke() }
+        }
+    }
+
+    companion object {
+        private const val KEEP_ALIVE_SECONDS = 10L
+    }
+}
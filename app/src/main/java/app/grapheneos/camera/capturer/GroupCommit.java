@@ -0,0 +1,134 @@
+package app.grapheneos.camera.capturer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Commits the items that are submitted to it in groups, see ImageSaver.
+ *
+ * <p>Items that are submitted while more are expected to follow are held for up to a commit
+ * window, counted from the first item of the group, so that the images of a burst are synced and
+ * published together. An item that is submitted while no more are expected is committed right
+ * away, as is a group that reaches the maximum size. Items that are submitted while a group is
+ * being committed join the next one, and those past the maximum size the one after it.
+ *
+ * <p>Groups are committed one at a time on the given executor, in the order of submission. This
+ * class is in Java so that the benchmark can run it on the JVM.
+ */
+public final class GroupCommit<T> {
+    public interface Committer<T> {
+        /** Commits the items, it handles the failures of each of them itself. */
+        void commit(List<T> group);
+    }
+
+    private final Executor mExecutor;
+    private final long mWindowNanos;
+    private final int mMaxGroupSize;
+    private final BooleanSupplier mMoreExpected;
+    private final Committer<T> mCommitter;
+
+    private final Object mLock = new Object();
+    // the rest is guarded by mLock
+    private final ArrayList<T> mPending = new ArrayList<>();
+    private long mGroupStartNanos;
+    private boolean mDraining;
+
+    /**
+     * @param moreExpected returns whether more items are about to be submitted, it's called with
+     * the lock of this object held, so it must not call back into it
+     */
+    public GroupCommit(Executor executor, long windowNanos, int maxGroupSize,
+            BooleanSupplier moreExpected, Committer<T> committer) {
+        if (maxGroupSize < 1) {
+            throw new IllegalArgumentException("maxGroupSize: " + maxGroupSize);
+        }
+        mExecutor = executor;
+        mWindowNanos = windowNanos;
+        mMaxGroupSize = maxGroupSize;
+        mMoreExpected = moreExpected;
+        mCommitter = committer;
+    }
+
+    public void submit(T item) {
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                mGroupStartNanos = System.nanoTime();
+            }
+            mPending.add(item);
+            if (mDraining) {
+                mLock.notifyAll();
+                return;
+            }
+            mDraining = true;
+        }
+        mExecutor.execute(this::drain);
+    }
+
+    /** Re-evaluates moreExpected, which has to be called when it turns false without a submit. */
+    public void wakeUp() {
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    private void drain() {
+        boolean failed = true;
+        try {
+            List<T> group;
+            while ((group = nextGroup()) != null) {
+                mCommitter.commit(group);
+            }
+            failed = false;
+        } finally {
+            if (failed) {
+                // the next submit starts draining again
+                synchronized (mLock) {
+                    mDraining = false;
+                }
+            }
+        }
+    }
+
+    // returns null and stops draining when nothing is pending, in one step so that a concurrent
+    // submit either joins the group or starts draining again
+    private List<T> nextGroup() {
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                mDraining = false;
+                return null;
+            }
+            awaitGroup();
+            List<T> taken = mPending.subList(0, Math.min(mPending.size(), mMaxGroupSize));
+            List<T> group = new ArrayList<>(taken);
+            taken.clear();
+            // the window of the items that are left was counted from the start of this group,
+            // they have waited as long
+            return group;
+        }
+    }
+
+    // waits until the pending items are to be committed, with mLock held
+    private void awaitGroup() {
+        long deadline = mGroupStartNanos + mWindowNanos;
+        boolean interrupted = false;
+        while (mPending.size() < mMaxGroupSize && mMoreExpected.getAsBoolean()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            } catch (InterruptedException e) {
+                // the items are committed all the same, the interrupt is left to the executor
+                interrupted = true;
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,14 +1,12 @@
 package app.grapheneos.camera.capturer
 
 import android.annotation.SuppressLint
-import android.app.Notification
-import android.app.NotificationChannel
-import android.app.NotificationManager
 import android.content.ClipData
 import android.content.ClipboardManager
 import android.graphics.Bitmap
 import android.os.Build
 import android.util.Log
+import android.view.Surface
 import android.view.View
 import android.view.animation.AlphaAnimation
 import android.view.animation.Animation
@@ -16,26 +14,80 @@ import android.view.animation.LinearInterpolator
 import androidx.camera.core.CameraSelector
 import androidx.camera.core.ImageCapture
 import androidx.camera.core.ImageCaptureException
+import androidxc.exifinterface.media.ExifDateTime
 import app.grapheneos.camera.App
+import app.grapheneos.camera.CamConfig
 import app.grapheneos.camera.CapturedItem
 import app.grapheneos.camera.R
 import app.grapheneos.camera.ui.activities.MainActivity
+import app.grapheneos.camera.ui.activities.SecureActivity
 import app.grapheneos.camera.ui.activities.SecureMainActivity
 import app.grapheneos.camera.ui.showIgnoringShortEdgeMode
+import app.grapheneos.camera.util.grabPreviewFrame
 import app.grapheneos.camera.util.printStackTraceToString
+import app.grapheneos.camera.util.scaleAndRotate
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
+import java.util.TimeZone
+import kotlin.math.max
 
 private const val imageFileFormat = ".jpg"
 
-class ImageCapturer(val mActivity: MainActivity) {
+class ImageCapturer(val mActivity: MainActivity) : ImageSaverService.Listener {
     val camConfig = mActivity.camConfig
+    private val pendingImageSlot = (mActivity.applicationContext as App).pendingImageSlot
 
     val isTakingPicture: Boolean
-        get() = currentImageSaver != null
+        get() = pendingImageSavers.isNotEmpty()
+
+    // the image savers whose capture requests haven't completed yet, in the order of the requests
+    private val pendingImageSavers = ArrayList<ImageSaver>()
+
+    /**
+     * The frames of a burst are requested back to back for as long as the capture button or a
+     * volume key is held, and are named after the time the burst started. Only accessed on the
+     * main thread.
+     */
+    class Burst(val stamp: String) {
+        var framesRequested = 0
+        var framesCaptured = 0
+        var framesSaved = 0
+    }
+
+    private var burst: Burst? = null
+
+    val isBursting: Boolean
+        get() = burst != null
+
+    // the burst whose frames the counter shows, it stays shown until they are all saved
+    private var countedBurst: Burst? = null
+
+    // the image saver whose provisional thumbnail is shown until its own thumbnail is generated,
+    // the thumbnails of the images that were taken before it are stale by then
+    private var provisionalThumbnailOwner: ImageSaver? = null
+
+    // the images of a secure activity are kept from the other activities, see ImageSaverService
+    override val resultScope: Any =
+        if (mActivity is SecureActivity) Any() else ImageSaverService.PUBLIC_RESULT_SCOPE
 
-    private var currentImageSaver : ImageSaver? = null
+    override fun onCapacityChanged() {
+        updateCaptureButton()
+    }
+
+    // The capture button is faded out while another picture can't be taken: while a capture is
+    // requested and while the images that are being saved hold as much memory as they are allowed
+    // to. It stays enabled during a burst, so that releasing it can end the burst.
+    private fun updateCaptureButton() {
+        if (isBursting || (!isTakingPicture && ImageSaverService.pipeline.hasCapacity())) {
+            unfadeCaptureButton()
+        } else {
+            fadeCaptureButton()
+        }
+    }
 
     private fun fadeCaptureButton() {
+        if (!mActivity.captureButton.isEnabled) {
+            return
+        }
         mActivity.captureButton.isEnabled = false
 
         val animation: Animation = AlphaAnimation(mActivity.captureButton.alpha, 0.6f)
@@ -47,6 +99,9 @@ class ImageCapturer(val mActivity: MainActivity) {
     }
 
     private fun unfadeCaptureButton() {
+        if (mActivity.captureButton.isEnabled) {
+            return
+        }
         mActivity.captureButton.isEnabled = true
 
         val animation: Animation = AlphaAnimation(mActivity.captureButton.alpha, 1f)
@@ -57,21 +112,100 @@ class ImageCapturer(val mActivity: MainActivity) {
         mActivity.captureButton.startAnimation(animation)
     }
 
-    @SuppressLint("RestrictedApi")
-    fun takePicture() {
+    private fun canTakePicture(): Boolean {
         if (camConfig.camera == null) {
-            return
+            return false
         }
 
         if (!camConfig.canTakePicture) {
             mActivity.showMessage(R.string.unsupported_taking_picture_while_recording)
+            return false
+        }
+
+        return !isTakingPicture && !isBursting
+    }
+
+    fun takePicture() {
+        if (!canTakePicture()) {
             return
         }
 
-        if (isTakingPicture) {
+        val capture = ImageSaverService.tryAdmit(mActivity)
+        if (capture == null) {
+            updateCaptureButton()
+            return
+        }
+
+        requestCapture(capture, null)
+        updateCaptureButton()
+    }
+
+    fun startBurst() {
+        if (!canTakePicture()) {
+            return
+        }
+
+        val stamp = ExifDateTime.formatFileNameStamp(
+            ExifDateTime.toLocalMillis(System.currentTimeMillis(), TimeZone.getDefault()), true)
+        val burst = Burst(stamp)
+        this.burst = burst
+        countedBurst = burst
+        requestBurstFrames()
+        updateBurstCounter()
+    }
+
+    fun stopBurst() {
+        if (burst == null) {
+            return
+        }
+        burst = null
+        updateCaptureButton()
+        updateBurstCounter()
+    }
+
+    // keeps MAX_BURST_REQUESTS frames requested, so that the camera doesn't wait for the next
+    // request after each frame
+    private fun requestBurstFrames() {
+        val burst = burst ?: return
+        while (pendingImageSavers.size < MAX_BURST_REQUESTS) {
+            if (burst.framesRequested == MAX_BURST_FRAMES) {
+                stopBurst()
+                return
+            }
+            val capture = ImageSaverService.tryAdmit(mActivity)
+            if (capture == null) {
+                // the frames that are being saved hold as much memory as they are allowed to
+                if (!isTakingPicture) {
+                    stopBurst()
+                    mActivity.showMessage(R.string.burst_stopped)
+                }
+                return
+            }
+            ++burst.framesRequested
+            requestCapture(capture, burst)
+        }
+    }
+
+    private fun updateBurstCounter() {
+        val burst = countedBurst
+        val counter = mActivity.burstCounterView
+        if (burst == null) {
+            counter.visibility = View.GONE
             return
         }
+        val framesPending = burst.framesCaptured - burst.framesSaved
+        val isComplete = framesPending == 0 && burst.framesCaptured == burst.framesRequested
+        if (burst !== this.burst && isComplete) {
+            countedBurst = null
+            counter.visibility = View.GONE
+            return
+        }
+        counter.text = mActivity.getString(R.string.burst_counter, burst.framesCaptured, framesPending)
+        counter.visibility = View.VISIBLE
+    }
 
+    @SuppressLint("RestrictedApi")
+    private fun requestCapture(capture: CapturePipeline.Capture, burst: Burst?) {
         val imageMetadata = ImageCapture.Metadata()
         imageMetadata.isReversedHorizontal = camConfig.lensFacing == CameraSelector.LENS_FACING_FRONT
                 && camConfig.saveImageAsPreviewed
@@ -90,40 +224,65 @@ class ImageCapturer(val mActivity: MainActivity) {
         val imageCapture = camConfig.imageCapture!!
 
         val imageSaver = ImageSaver(
-            this,
+            resultScope,
+            capture,
             mActivity.applicationContext,
             imageCapture.jpegQuality,
             camConfig.storageLocation,
             imageFileFormat,
             imageMetadata,
             camConfig.removeExifAfterCapture,
+            camConfig.embedExifThumbnail,
+            camConfig.stageSafWrites,
+            camConfig.useParallelJpegEncoder,
+            camConfig.exifSegmentTemplate,
             targetThumbnailWidth = preview.width,
             targetThumbnailHeight = preview.height,
+            burst = burst,
+            burstIndex = burst?.framesRequested ?: 0,
         )
 
-        currentImageSaver = imageSaver
+        pendingImageSavers.add(imageSaver)
 
-        imageCapture.takePicture(ImageSaver.imageCaptureCallbackExecutor, imageSaver)
-        fadeCaptureButton()
+        imageCapture.takePicture(ImageSaverService.pipeline.executor(CapturePipeline.Stage.EXTRACTION),
+            imageSaver)
     }
 
     fun cancelPendingCaptureRequest() {
+        burst = null
+        // the errors of cancelled requests aren't reported, so the counter wouldn't be complete
+        countedBurst = null
         if (isTakingPicture) {
-            currentImageSaver?.cancelCaptureRequest()
-
-            unfadeCaptureButton()
-            currentImageSaver = null
+            pendingImageSavers.forEach { it.cancelCaptureRequest() }
+            pendingImageSavers.clear()
         }
+        updateCaptureButton()
+        updateBurstCounter()
     }
 
-    fun onCaptureSuccess() {
-        unfadeCaptureButton()
-        currentImageSaver = null
+    override fun onCaptureSuccess(imageSaver: ImageSaver) {
+        if (!pendingImageSavers.remove(imageSaver)) {
+            // the request was cancelled or made by another activity, the image is saved all the
+            // same but there is nothing to show for it here
+            return
+        }
+        val frameBurst = imageSaver.burst
+        if (frameBurst != null) {
+            ++frameBurst.framesCaptured
+            requestBurstFrames()
+            updateBurstCounter()
+        }
+        updateCaptureButton()
 
         camConfig.mPlayer.playShutterSound()
+        if (frameBurst != null && frameBurst.framesCaptured > 1) {
+            // the preview animations are played for the first frame of a burst only
+            return
+        }
         camConfig.snapPreview()
 
         mActivity.previewLoader.visibility = View.VISIBLE
+        showProvisionalThumbnail(imageSaver)
         if (camConfig.selfIlluminate) {
 
             val animation: Animation = AlphaAnimation(0.8f, 0f)
@@ -153,11 +312,57 @@ class ImageCapturer(val mActivity: MainActivity) {
         }
     }
 
-    fun onCaptureError(exception: ImageCaptureException) {
+    // The thumbnail of the saved image is only generated once it has been processed and written,
+    // the current preview frame is shown in its place until then. It's turned and mirrored the
+    // same way as the image: upright for the rotation the image is taken with, and mirrored only
+    // if the image of the front camera is saved as previewed.
+    private fun showProvisionalThumbnail(imageSaver: ImageSaver) {
+        val targetRotation = camConfig.imageCapture?.targetRotation ?: return
+        val displayRotation = mActivity.previewView.display?.rotation ?: Surface.ROTATION_0
+        val rotationDegrees = (surfaceRotationDegrees(displayRotation)
+                - surfaceRotationDegrees(targetRotation) + 360) % 360
+        val mirror = camConfig.lensFacing == CameraSelector.LENS_FACING_FRONT
+                && !imageSaver.imageCaptureMetadata.isReversedHorizontal
+        val preview = mActivity.imagePreview
+        val width = preview.width
+        val height = preview.height
+        // a frame the size of the thumbnail is enough, it's copied asynchronously
+        provisionalThumbnailOwner = imageSaver
+        grabPreviewFrame(mActivity.previewView, max(width, height)) { frame ->
+            if (frame == null) {
+                return@grabPreviewFrame
+            }
+            if (provisionalThumbnailOwner !== imageSaver) {
+                // the thumbnail of the image, or its error, arrived first
+                frame.recycle()
+                return@grabPreviewFrame
+            }
+            val thumbnail = scaleAndRotate(frame, rotationDegrees, mirror, width, height)
+            frame.recycle()
+            preview.setImageBitmap(thumbnail)
+        }
+    }
+
+    private fun surfaceRotationDegrees(rotation: Int) = when (rotation) {
+        Surface.ROTATION_90 -> 90
+        Surface.ROTATION_180 -> 180
+        Surface.ROTATION_270 -> 270
+        else -> 0
+    }
+
+    override fun onCaptureError(imageSaver: ImageSaver, exception: ImageCaptureException) {
         Log.e(TAG, "onCaptureError", exception)
 
-        unfadeCaptureButton()
-        currentImageSaver = null
+        if (!pendingImageSavers.remove(imageSaver)) {
+            return
+        }
+        if (imageSaver.burst != null) {
+            // the frame will never be captured, so it's counted as saved for the counter
+            ++imageSaver.burst.framesCaptured
+            ++imageSaver.burst.framesSaved
+            stopBurst()
+        }
+        updateCaptureButton()
         mActivity.previewLoader.visibility = View.GONE
 
         if (mActivity.isStarted) {
@@ -166,7 +371,17 @@ class ImageCapturer(val mActivity: MainActivity) {
         }
     }
 
-    fun onImageSaverSuccess(item: CapturedItem) {
+    private fun onFrameSaved(imageSaver: ImageSaver) {
+        val burst = imageSaver.burst ?: return
+        ++burst.framesSaved
+        if (burst === countedBurst) {
+            updateBurstCounter()
+        }
+    }
+
+    override fun onImageSaverSuccess(imageSaver: ImageSaver, item: CapturedItem) {
+        onFrameSaved(imageSaver)
+        prepareOutputSlot()
         camConfig.updateLastCapturedItem(item)
 
         if (mActivity is SecureMainActivity) {
@@ -174,29 +389,51 @@ class ImageCapturer(val mActivity: MainActivity) {
         }
     }
 
-    fun onStorageLocationNotFound() {
-        camConfig.onStorageLocationNotFound()
+    // the image is staged, its captured item is reported by SafStagingQueue once it has been
+    // copied into the storage location, see onStagedImageCopied()
+    override fun onImageStaged(imageSaver: ImageSaver) {
+        onFrameSaved(imageSaver)
+        prepareOutputSlot()
     }
 
-    fun onImageSaverError(exception: ImageSaverException, skipErrorDialog: Boolean) {
-        Log.e(TAG, "onImageSaverError", exception)
-        mActivity.previewLoader.visibility = View.GONE
+    override fun onStagedImageCopied(item: CapturedItem) {
+        camConfig.updateLastCapturedItem(item)
 
-        if (!mActivity.isStarted) {
-            val channelId = "image_saver_error"
-            val channel = NotificationChannel(channelId, mActivity.getString(R.string.unable_to_save_image),
-                NotificationManager.IMPORTANCE_HIGH)
+        if (mActivity is SecureMainActivity) {
+            mActivity.capturedItems.add(item)
+        }
+    }
 
-            val notif = Notification.Builder(mActivity, channelId).apply {
-                setSmallIcon(R.drawable.info)
-                setContentTitle(mActivity.getString(R.string.unable_to_save_image))
-            }.build()
+    // the MediaStore entry of the next image is inserted ahead of the capture while the camera is
+    // in photo mode, see PendingImageSlot
+    fun prepareOutputSlot() {
+        // images of capture intents are returned to the caller instead
+        if (camConfig.isInPhotoMode && !camConfig.isInCaptureMode && !mActivity.isFinishing
+                && camConfig.storageLocation == CamConfig.SettingValues.Default.STORAGE_LOCATION) {
+            pendingImageSlot.prepare(imageFileFormat)
+        } else {
+            pendingImageSlot.discard()
+        }
+    }
 
-            mActivity.getSystemService(NotificationManager::class.java).let {
-                it.createNotificationChannel(channel)
-                it.notify(1, notif)
-            }
-            return
+    fun discardOutputSlot() {
+        pendingImageSlot.discard()
+    }
+
+    override fun onStorageLocationNotFound() {
+        camConfig.onStorageLocationNotFound()
+    }
+
+    override fun onImageSaverError(imageSaver: ImageSaver, exception: ImageSaverException,
+            skipErrorDialog: Boolean) {
+        Log.e(TAG, "onImageSaverError", exception)
+        onFrameSaved(imageSaver)
+        stopBurst()
+        mActivity.previewLoader.visibility = View.GONE
+        if (provisionalThumbnailOwner === imageSaver) {
+            // the image the provisional thumbnail stands for doesn't exist
+            provisionalThumbnailOwner = null
+            mActivity.updateThumbnail()
         }
 
         if (skipErrorDialog) {
@@ -234,12 +471,28 @@ class ImageCapturer(val mActivity: MainActivity) {
         }
     }
 
-    fun onThumbnailGenerated(thumbnail: Bitmap) {
+    override fun onThumbnailGenerated(imageSaver: ImageSaver, thumbnail: Bitmap?) {
+        val owner = provisionalThumbnailOwner
+        if (owner != null && owner !== imageSaver) {
+            // a later image is still being saved
+            return
+        }
+        provisionalThumbnailOwner = null
         mActivity.previewLoader.visibility = View.GONE
-        mActivity.imagePreview.setImageBitmap(thumbnail)
+        if (thumbnail != null) {
+            mActivity.imagePreview.setImageBitmap(thumbnail)
+        } else {
+            // the image has been saved, its thumbnail is loaded from it like the one of an older
+            // image
+            mActivity.updateThumbnail()
+        }
     }
 
     companion object {
         private const val TAG = "ImageCapturer"
+
+        private const val MAX_BURST_REQUESTS = 2
+        // the frame numbers of a burst have three digits
+        private const val MAX_BURST_FRAMES = 999
     }
 }
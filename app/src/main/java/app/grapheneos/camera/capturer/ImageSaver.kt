@@ -1,12 +1,18 @@
 package app.grapheneos.camera.capturer
 
 import android.annotation.SuppressLint
+import android.content.ContentProviderOperation
+import android.content.ContentResolver
 import android.content.ContentValues
+import android.content.res.AssetFileDescriptor
 import android.content.Context
-import android.graphics.ImageDecoder
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
 import android.graphics.ImageFormat
 import android.graphics.Rect
 import android.net.Uri
+import android.os.Build
 import android.provider.DocumentsContract
 import android.provider.MediaStore
 import android.system.Os
@@ -19,25 +25,32 @@ import androidx.camera.core.ImageProxy
 import androidx.camera.core.internal.compat.workaround.ExifRotationAvailability
 import androidx.camera.core.internal.utils.ImageUtil
 import androidxc.camera.core.impl.utils.Exif
+import androidxc.exifinterface.media.ExifDateTime
+import androidxc.exifinterface.media.ExifInterface
+import app.grapheneos.camera.App
+import app.grapheneos.camera.BURST_NAME_INFIX
 import app.grapheneos.camera.CamConfig
 import app.grapheneos.camera.CapturedItem
 import app.grapheneos.camera.IMAGE_NAME_PREFIX
 import app.grapheneos.camera.ITEM_TYPE_IMAGE
+import app.grapheneos.camera.capturer.CaptureMetrics.Metric
+import app.grapheneos.camera.capturer.CapturePipeline.Stage
 import app.grapheneos.camera.capturer.ImageSaverException.Place
+import app.grapheneos.camera.capturer.ImageSaverService.Companion.bufferPool
+import app.grapheneos.camera.capturer.ImageSaverService.Companion.encoderPool
+import app.grapheneos.camera.capturer.ImageSaverService.Companion.pipeline
 import app.grapheneos.camera.clearExif
 import app.grapheneos.camera.fixExif
-import app.grapheneos.camera.util.ImageResizer
-import app.grapheneos.camera.util.executeIfAlive
+import app.grapheneos.camera.jpeg.JpegCropper
+import app.grapheneos.camera.jpeg.ParallelJpegEncoder
+import app.grapheneos.camera.util.decodeJpegThumbnail
 import app.grapheneos.camera.util.getTreeDocumentUri
 import app.grapheneos.camera.util.removePendingFlagFromUri
-import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
-import java.io.IOException
 import java.nio.ByteBuffer
-import java.text.SimpleDateFormat
 import java.util.Date
-import java.util.Locale
-import java.util.concurrent.Executors
+import java.util.TimeZone
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 
 // see com.android.externalstorage.ExternalStorageProvider and
@@ -50,24 +63,51 @@ const val DEFAULT_MEDIA_STORE_CAPTURE_PATH = "DCIM/Camera"
 Based on androidx.camera.core.ImageSaver
 
 Main differences:
-- image saving stages are pipelined: extractJpegBytes(), saveImage() and generateThumbnail() can
-execute concurrently, each processing a different image
+- image saving stages are pipelined: extraction, cropping, EXIF processing, writing and thumbnail
+generation each run on their own pool of CapturePipeline, so several images are processed at
+once, and the number of images in flight is bounded by the memory they hold
 - image is written to storage only once, after all the processing is completed. androidx ImageSaver
 writes and reads it back from storage multiple times
 - generateThumbnail() stage which removes the need to do an expensive ContentResolver call to
 open a Uri during the thumbnail generation
 - ImageProxy isn't held open for the whole duration of storage IO, it's closed as soon as possible
+- the updated EXIF segment is spliced in front of the original image data while it's written out,
+the processed image is never assembled in memory
+- cropping is lossless, see JpegCropper
+- the image data is held in arrays of bufferPool, which are reused by the next images instead of
+being left to the collector
+- the duration of each stage is recorded in CaptureMetrics
+- the MediaStore entry of the image is usually inserted before the capture, see PendingImageSlot
+- images that are written around the same time are fsynced back to back and published with a
+single ContentResolver call, see commit()
+- images whose storage location is a SAF tree can be written to app-private storage and copied
+into the tree in the background, see SafStagingQueue
+- YUV_420_888 images and crops that can't be made losslessly can be encoded on several threads,
+see ParallelJpegEncoder
+- the stages run on the executors of ImageSaverService and report to the ImageCapturer that is
+attached when they finish, so images are saved after the activity that took them has stopped
  */
 class ImageSaver(
-    val imageCapturer: ImageCapturer,
+    // see ImageSaverService.Listener.resultScope
+    val resultScope: Any,
+    val capture: CapturePipeline.Capture,
     val appContext: Context,
     val jpegQuality: Int,
     val storageLocation: String,
     val imageFileFormat: String,
     val imageCaptureMetadata: ImageCapture.Metadata,
     val removeExifAfterCapture: Boolean,
+    val embedExifThumbnail: Boolean,
+    // images whose storage location is a SAF tree are written to SafStagingQueue first
+    val stageSafWrites: Boolean,
+    // YUV_420_888 images and the crop fallback are encoded by ParallelJpegEncoder
+    val useParallelJpegEncoder: Boolean,
+    val exifSegmentTemplate: ExifInterface.SegmentTemplate,
     @Px val targetThumbnailWidth: Int,
     @Px val targetThumbnailHeight: Int,
+    val burst: ImageCapturer.Burst?,
+    // the number of this image in its burst, starting from 1
+    val burstIndex: Int,
 ) : ImageCapture.OnImageCapturedCallback()
 {
     val captureTime = Date()
@@ -75,22 +115,46 @@ class ImageSaver(
     val mainThreadExecutor = appContext.mainExecutor
 
     private var isCancelled = false
+    private var startOfSaving = 0L
+    // the output URI is a slot of PendingImageSlot, which is renamed when it's published
+    private var usesPendingSlot = false
+    // the output URI is the data file of this image in SafStagingQueue
+    private var stagedImage: SafStagingQueue.StagedImage? = null
 
     fun cancelCaptureRequest() {
         isCancelled = true
     }
 
     override fun onCaptureSuccess(image: ImageProxy) {
-        mainThreadExecutor.execute(imageCapturer::onCaptureSuccess)
+        startOfSaving = System.nanoTime()
+        mainThreadExecutor.execute { ImageSaverService.onCaptureSuccess(this) }
 
         try {
-            extractJpegBytes(image)
+            CaptureMetrics.measure(Metric.EXTRACTION) { extractJpegBytes(image) }
         } catch (e: Exception) {
             handleError(ImageSaverException(Place.IMAGE_EXTRACTION, e))
             return
         }
 
-        imageWriterExecutor.execute(this::saveImage)
+        // the cropped copy is made while the original is still held
+        val jpegSize = origJpeg!!.array().size.toLong()
+        capture.setSize(if (cropRect != null) 2 * jpegSize else jpegSize)
+        runStage(Stage.CROPPING, Place.IMAGE_CROPPING, this::cropImage)
+    }
+
+    // runs the next stage of this image on its pool of the pipeline. Any exception ends the
+    // capture, as one of place if it isn't an ImageSaverException already, an exception that
+    // reached the thread of the pool would crash the process and leave the capture unfinished.
+    private fun runStage(stage: Stage, place: Place, block: () -> Unit) {
+        capture.execute(stage) {
+            try {
+                block()
+            } catch (e: ImageSaverException) {
+                handleError(e)
+            } catch (e: Exception) {
+                handleError(ImageSaverException(place, e))
+            }
+        }
     }
 
     // based on androidx.camera.core.ImageSaver#imageToJpegByteArray(),
@@ -102,10 +166,23 @@ class ImageSaver(
             cropRect = if (ImageUtil.shouldCropImage(image)) image.cropRect else null
             val imageFormat = image.format
 
-            origJpegBytes = if (imageFormat == ImageFormat.JPEG) {
-                ImageUtil.jpegImageToJpegByteArray(image)
+            origJpeg = if (imageFormat == ImageFormat.JPEG) {
+                // same as ImageUtil.jpegImageToJpegByteArray(), into an array of the pool
+                val buffer = image.planes[0].buffer
+                buffer.rewind()
+                val size = buffer.remaining()
+                val bytes = bufferPool.acquire(size)
+                buffer.get(bytes, 0, size)
+                ByteBuffer.wrap(bytes, 0, size)
             } else if (imageFormat == ImageFormat.YUV_420_888) {
-                ImageUtil.yuvImageToJpegByteArray(image, cropRect, jpegQuality, 0)
+                if (useParallelJpegEncoder) {
+                    encodeYuvImage(image, cropRect)
+                } else {
+                    // YuvImage compresses into a stream of its own, the result is released into
+                    // the pool all the same
+                    ByteBuffer.wrap(ImageUtil.yuvImageToJpegByteArray(image, cropRect,
+                        jpegQuality, 0))
+                }
             } else {
                 throw IllegalStateException("unknown imageFormat $imageFormat")
             }
@@ -123,51 +200,147 @@ class ImageSaver(
         }
     }
 
-    private fun saveImage() {
+    // encodes the same image as ImageUtil.yuvImageToJpegByteArray(), on several threads and into
+    // an array of the pool
+    private fun encodeYuvImage(image: ImageProxy, cropRect: Rect?): ByteBuffer {
+        val rect = cropRect ?: Rect(0, 0, image.width, image.height)
+        // YuvImage moves the origin of the crop to even coordinates too
+        val left = rect.left and 1.inv()
+        val top = rect.top and 1.inv()
+        val (yPlane, uPlane, vPlane) = image.planes
+        val source = ParallelJpegEncoder.Yuv420Source(yPlane.buffer, yPlane.rowStride,
+            uPlane.buffer, vPlane.buffer, uPlane.rowStride, uPlane.pixelStride, left, top)
+        return encode(source, rect.width(), rect.height(), rect.width() * rect.height() / 2)
+    }
+
+    private fun encode(source: ParallelJpegEncoder.Source, width: Int, height: Int,
+            initialSize: Int): ByteBuffer {
+        val out = bufferPool.Output(initialSize)
         try {
-            saveImageInner()
-        } catch (e: ImageSaverException) {
-            handleError(e)
-            return
+            ParallelJpegEncoder.encode(source, width, height, jpegQuality, encoderPool, out)
+        } catch (e: Exception) {
+            bufferPool.release(out.array())
+            throw e
         }
-
-        imageCapturer.mActivity.thumbnailLoaderExecutor.executeIfAlive(this::generateThumbnail)
+        return ByteBuffer.wrap(out.array(), 0, out.size())
     }
 
     private var cropRect: Rect? = null
-    private var origJpegBytes: ByteArray? = null
-    private lateinit var processedJpegBytes: ByteArray
+    // the image data is the remaining bytes of these buffers, whose arrays come from bufferPool.
+    // origJpeg is the cropped image once the image has been cropped, uncroppedJpeg is only set
+    // until the EXIF of the original has been copied to it
+    private var origJpeg: ByteBuffer? = null
+    private var uncroppedJpeg: ByteBuffer? = null
+    private var exifInterface: ExifInterface? = null
+    private var exifOrientation = ExifInterface.ORIENTATION_UNDEFINED
     private var shouldUseExifOrientation = false
     private var orientation = 0
 
     @Throws(ImageSaverException::class)
-    private fun saveImageInner() {
-        val uncroppedJpegBytes = origJpegBytes!!
+    private fun cropImage() {
+        val cropRect = cropRect
         if (cropRect != null) {
-            try {
-                // cropJpegByteArray call is slow, overhead from reflection doesn't matter in this case
-                // copying out cropJpegByteArray method isn't worth the maintenance burden
-                val cropJpegByteArray = ImageUtil::class.java.getDeclaredMethod(
-                    "cropJpegByteArray",
-                    ByteArray::class.java, Rect::class.java, Int::class.javaPrimitiveType)
-                cropJpegByteArray.isAccessible = true
-                origJpegBytes = cropJpegByteArray.invoke(null, uncroppedJpegBytes, cropRect, jpegQuality) as ByteArray
+            val uncroppedJpeg = origJpeg!!
+            val croppedJpeg = try {
+                CaptureMetrics.measure(Metric.CROPPING) { cropJpeg(uncroppedJpeg, cropRect) }
             } catch (e: Exception) {
                 throw ImageSaverException(Place.IMAGE_CROPPING, e)
             }
+            this.uncroppedJpeg = uncroppedJpeg
+            origJpeg = croppedJpeg
         }
 
-        processedJpegBytes = processExif(uncroppedJpegBytes)
+        runStage(Stage.METADATA, Place.EXIF_PROCESSING, this::processMetadata)
+    }
 
-        val startOfWriting = timestamp()
+    private fun cropJpeg(jpeg: ByteBuffer, cropRect: Rect): ByteBuffer {
+        val array = jpeg.array()
+        val offset = jpeg.arrayOffset() + jpeg.position()
+        // the cropped image is smaller than the original
+        val lossless = bufferPool.Output(jpeg.remaining())
+        // moves the crop by less than an MCU, the preview doesn't match the image that closely
+        if (JpegCropper.crop(array, offset, jpeg.remaining(), cropRect.left, cropRect.top,
+                cropRect.width(), cropRect.height(), lossless)) {
+            return ByteBuffer.wrap(lossless.array(), 0, lossless.size())
+        }
+        bufferPool.release(lossless.array())
+        Log.d(TAG, "unable to crop the image losslessly, it's decoded and encoded again")
+        return decodeAndCropJpeg(jpeg, cropRect)
+    }
+
+    // based on androidx.camera.core.internal.utils.ImageUtil#cropJpegByteArray(), which used to be
+    // called through reflection. The cropped image is compressed into an array of the pool instead
+    // of into a ByteArrayOutputStream that is then copied
+    private fun decodeAndCropJpeg(jpeg: ByteBuffer, cropRect: Rect): ByteBuffer {
+        val array = jpeg.array()
+        val offset = jpeg.arrayOffset() + jpeg.position()
+        val decoder = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            BitmapRegionDecoder.newInstance(array, offset, jpeg.remaining())
+        } else {
+            @Suppress("DEPRECATION")
+            BitmapRegionDecoder.newInstance(array, offset, jpeg.remaining(), false)
+        }
+        val bitmap: Bitmap? = try {
+            decoder.decodeRegion(cropRect, BitmapFactory.Options())
+        } finally {
+            decoder.recycle()
+        }
+        checkNotNull(bitmap) { "unable to decode the image" }
+
+        if (useParallelJpegEncoder) {
+            try {
+                // the rows are read concurrently, which doesn't modify the bitmap
+                val source = ParallelJpegEncoder.ArgbSource { top, rows, argb ->
+                    bitmap.getPixels(argb, 0, bitmap.width, 0, top, bitmap.width, rows)
+                }
+                return encode(source, bitmap.width, bitmap.height, jpeg.remaining())
+            } finally {
+                bitmap.recycle()
+            }
+        }
+
+        // the cropped image is smaller, unless it's compressed with a much higher quality
+        val out = bufferPool.Output(jpeg.remaining())
+        try {
+            check(bitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, out)) {
+                "unable to encode the cropped image"
+            }
+        } catch (e: Exception) {
+            bufferPool.release(out.array())
+            throw e
+        } finally {
+            bitmap.recycle()
+        }
+        return ByteBuffer.wrap(out.array(), 0, out.size())
+    }
+
+    @Throws(ImageSaverException::class)
+    private fun processMetadata() {
+        val exifInterface = CaptureMetrics.measure(Metric.EXIF_PROCESSING) {
+            processExif(uncroppedJpeg ?: origJpeg!!)
+        }
+        // the uncropped image isn't needed anymore, if the image was cropped
+        uncroppedJpeg?.let { bufferPool.release(it.array()) }
+        uncroppedJpeg = null
+        exifOrientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.ORIENTATION_UNDEFINED)
+        this.exifInterface = exifInterface
+
+        runStage(Stage.WRITING, Place.FILE_WRITE, this::writeImage)
+    }
+
+    @Throws(ImageSaverException::class)
+    private fun writeImage() {
+        val exifInterface = this.exifInterface!!
+        this.exifInterface = null
 
         val uri = try {
-            obtainOutputUri()!!
+            CaptureMetrics.measure(Metric.URI_CREATION) { obtainOutputUri()!! }
         } catch (e: Exception) {
             throw ImageSaverException(Place.FILE_CREATION, e)
         }
 
-        val shouldFsync = when (uri.host) {
+        val shouldFsync = stagedImage != null || when (uri.host) {
             MediaStore.AUTHORITY,
             SAF_URI_HOST_EXTERNAL_STORAGE ->
                 true
@@ -175,51 +348,109 @@ class ImageSaver(
                 false
         }
 
+        val file = try {
+            contentResolver.openAssetFileDescriptor(uri, "w")!!
+        } catch (e: Exception) {
+            deleteIncompleteImage(uri)
+            throw ImageSaverException(Place.FILE_WRITE, e)
+        }
         try {
-            contentResolver.openAssetFileDescriptor(uri, "w")!!.use {
-                val fd = it.fileDescriptor
-                val bytes = processedJpegBytes
-                var off = 0
-                val len = bytes.size
-                do {
-                    // "-1" is never returned to indicate an error, ErrnoException is thrown instead
-                    off += Os.write(fd, bytes, off, len - off)
-                } while (off != len)
-
-                if (shouldFsync) {
-                    Os.fsync(fd)
-                }
+            // new EXIF segment is spliced in front of the image data of the original, which
+            // is written out directly instead of being copied into a processed JPEG first
+            CaptureMetrics.measure(Metric.WRITE) {
+                exifInterface.saveAttributes(origJpeg!!, file.fileDescriptor)
             }
         } catch (e: Exception) {
+            try {
+                file.close()
+            } catch (ignored: Exception) {}
             deleteIncompleteImage(uri)
             throw ImageSaverException(Place.FILE_WRITE, e)
         }
 
-        if (saveToMediaStore()) {
+        // the file is synced, closed and published on its own, or along with the other images that
+        // are written around the same time, see commit()
+        writtenFile = WrittenFile(uri, file, shouldFsync)
+        capture.enter(Stage.COMMIT)
+        if (GROUP_COMMITS) {
+            groupCommit.submit(this)
+        } else {
+            pipeline.executor(Stage.COMMIT).execute { commit(listOf(this)) }
+        }
+    }
+
+    // The slot was inserted ahead of the capture under a name of its own, see PendingImageSlot.
+    // It's given the name and the dates of the image when it's published
+    private fun pendingSlotValues(): ContentValues? {
+        if (!usesPendingSlot) {
+            return null
+        }
+        return ContentValues().apply {
+            put(MediaStore.MediaColumns.DISPLAY_NAME, fileName())
+            put(MediaStore.MediaColumns.DATE_ADDED, System.currentTimeMillis() / 1000L)
+            put(MediaStore.MediaColumns.DATE_TAKEN, captureTime.time)
+        }
+    }
+
+    private class WrittenFile(val uri: Uri, val file: AssetFileDescriptor, val shouldFsync: Boolean)
+
+    // set from writing until the image is committed
+    private var writtenFile: WrittenFile? = null
+
+    // returns false if the image couldn't be synced, after handling the error
+    private fun syncAndClose(): Boolean {
+        val writtenFile = writtenFile!!
+        try {
+            writtenFile.file.use {
+                if (writtenFile.shouldFsync) {
+                    CaptureMetrics.measure(Metric.FSYNC) { Os.fsync(it.fileDescriptor) }
+                }
+            }
+        } catch (e: Exception) {
+            deleteIncompleteImage(writtenFile.uri)
+            handleError(ImageSaverException(Place.FILE_WRITE, e))
+            return false
+        }
+        return true
+    }
+
+    private fun onCommitted() {
+        CaptureMetrics.record(Metric.SAVE, startOfSaving)
+
+        val stagedImage = stagedImage
+        if (stagedImage != null) {
             try {
-                removePendingFlagFromUri(contentResolver, uri)
+                (appContext as App).safStagingQueue.enqueue(stagedImage, storageLocation,
+                    fileName(), mimeType(), dateString(), resultScope)
             } catch (e: Exception) {
-                // don't delete the image in this case, since it's already fully written out
-                throw ImageSaverException(Place.FILE_WRITE_COMPLETION, e)
+                deleteIncompleteImage(writtenFile!!.uri)
+                handleError(ImageSaverException(Place.FILE_WRITE_COMPLETION, e))
+                return
             }
+            writtenFile = null
+            // the captured item is reported by the queue once the image has been copied
+            capture.deliver { ImageSaverService.onImageStaged(this) }
+            capture.execute(Stage.THUMBNAIL, this::generateThumbnail)
+            return
         }
-        logDuration(startOfWriting) {"image writing (saveToMediaStore: ${saveToMediaStore()})"}
 
-        val capturedItem = CapturedItem(ITEM_TYPE_IMAGE, dateString(), uri)
-        mainThreadExecutor.execute { imageCapturer.onImageSaverSuccess(capturedItem) }
+        val capturedItem = CapturedItem(ITEM_TYPE_IMAGE, dateString(), writtenFile!!.uri)
+        writtenFile = null
+        capture.deliver { ImageSaverService.onImageSaverSuccess(this, capturedItem) }
+
+        capture.execute(Stage.THUMBNAIL, this::generateThumbnail)
     }
 
     // based on EXIF update sequence in androidx.camera.core.ImageSaver#saveImageToTempFile(),
     // optimized to skip writing of the unfinished image to storage
     @Throws(ImageSaverException::class)
-    private fun processExif(uncroppedJpegBytes: ByteArray): ByteArray {
-        val startOfExifProcessing = timestamp()
-
+    private fun processExif(uncroppedJpeg: ByteBuffer): ExifInterface {
         val exif: Exif
         try {
-            exif = Exif.createFromInputStream(ByteArrayInputStream(origJpegBytes))
+            // EXIF is parsed in place, the JPEG bytes aren't copied
+            exif = Exif.createFromByteBuffer(origJpeg!!)
             if (cropRect != null) {
-                val orig = Exif.createFromInputStream(ByteArrayInputStream(uncroppedJpegBytes))
+                val orig = Exif.createFromByteBuffer(uncroppedJpeg)
                 orig.copyToCroppedImage(exif)
             }
         } catch (e: Exception) {
@@ -239,9 +470,10 @@ class ImageSaver(
         }
 
         val exifInterface = exif.exifInterface
+        exifInterface.setSegmentTemplate(exifSegmentTemplate)
+        exifInterface.setExifSegmentPadding(EXIF_SEGMENT_PADDING)
 
         if (removeExifAfterCapture) {
-            // TODO improve clearExif() by moving it into ExifInterface
             exifInterface.clearExif()
         } else {
             exifInterface.fixExif(captureTime)
@@ -253,67 +485,96 @@ class ImageSaver(
             exif.attachLocation(location)
         }
 
-        val baos = ByteArrayOutputStream(origJpegBytes!!.size +
-                // make sure buffer doesn't need to be resized due to additional EXIF attributes
-                (100 * 1024))
-
-        try {
-            exifInterface.saveAttributes(ByteArrayInputStream(origJpegBytes), baos)
-        } catch (e: Exception) {
-            throw ImageSaverException(Place.EXIF_PARSING, e)
+        if (embedExifThumbnail) {
+            embedThumbnail(exifInterface)
         }
 
-        // let GC collect this large buffer
-        origJpegBytes = null
-
-        val res = baos.toByteArray()
-
-        logDuration(startOfExifProcessing) {"exif processing"}
+        return exifInterface
+    }
 
-        return res
+    // Stores a small copy of the image in the thumbnail IFD, which lets previews of it skip
+    // decoding the whole image, see decodeExifThumbnail()
+    private fun embedThumbnail(exifInterface: ExifInterface) {
+        // the orientation tag applies to the thumbnail too, its pixels aren't transformed
+        val bitmap = decodeJpegThumbnail(origJpeg!!, ExifInterface.ORIENTATION_NORMAL,
+                EXIF_THUMBNAIL_SIZE, EXIF_THUMBNAIL_SIZE)
+        if (bitmap == null) {
+            Log.w(TAG, "unable to decode the image for the EXIF thumbnail")
+            return
+        }
+        val jpeg = ByteArrayOutputStream().use {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, EXIF_THUMBNAIL_QUALITY, it)
+            it.toByteArray()
+        }
+        // too small for the thumbnail of the capture, which is decoded from the image
+        bitmap.recycle()
+        // the whole EXIF segment has to fit into 64 KiB
+        if (jpeg.size > EXIF_THUMBNAIL_MAX_BYTES) {
+            Log.w(TAG, "EXIF thumbnail is too large: ${jpeg.size} bytes")
+            return
+        }
+        exifInterface.setThumbnail(jpeg)
     }
 
     private fun generateThumbnail() {
-        val source = ImageDecoder.createSource(ByteBuffer.wrap(processedJpegBytes))
-        val bitmap = try {
-            ImageDecoder.decodeBitmap(source, ImageResizer(targetThumbnailWidth, targetThumbnailHeight))
-        } catch (e: IOException) {
-            // reading from a ByteBuffer should never cause an IOException
-            throw IllegalStateException("unable to generate a thumbnail", e)
-        }
-        mainThreadExecutor.execute { imageCapturer.onThumbnailGenerated(bitmap) }
+        try {
+            val jpeg = origJpeg!!
+            // EXIF orientation of the saved image is only present in the written file, the original
+            // bytes are decoded without it and then transformed
+            val bitmap = CaptureMetrics.measure(Metric.THUMBNAIL) {
+                decodeJpegThumbnail(jpeg, exifOrientation, targetThumbnailWidth,
+                        targetThumbnailHeight)
+            } ?: throw IllegalStateException("unable to generate a thumbnail")
+            capture.deliver { ImageSaverService.onThumbnailGenerated(this, bitmap) }
+        } catch (e: Exception) {
+            // the image has been saved, only its thumbnail is missing
+            Log.w(TAG, "unable to generate a thumbnail", e)
+            capture.deliver { ImageSaverService.onThumbnailGenerated(this, null) }
+        } finally {
+            releaseBuffers()
+            capture.finish()
+        }
     }
 
     fun saveToMediaStore() = storageLocation == CamConfig.SettingValues.Default.STORAGE_LOCATION
 
-    private fun dateString() =
+    private fun dateString(): String {
+        if (burst != null) {
+            // the frames of a burst are named after the time it started, see parseCapturedItem()
+            return burst.stamp + BURST_NAME_INFIX + burstIndex.toString().padStart(3, '0')
+        }
         // it's important to include milliseconds (SSS), otherwise new image may overwrite the previous one
-        SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(captureTime)
+        return ExifDateTime.formatFileNameStamp(
+            ExifDateTime.toLocalMillis(captureTime.time, TimeZone.getDefault()), true)
+    }
 
     private fun fileName(): String {
         return IMAGE_NAME_PREFIX + dateString() + imageFileFormat
     }
 
-    private fun mimeType() = MimeTypeMap.getSingleton().getMimeTypeFromExtension(imageFileFormat) ?: "image/*"
+    private fun mimeType() = mimeType(imageFileFormat)
 
     @Throws(Exception::class)
     fun obtainOutputUri(): Uri? {
         if (saveToMediaStore()) {
-            val cv = ContentValues().apply {
-                put(MediaStore.MediaColumns.DISPLAY_NAME, fileName())
-                put(MediaStore.MediaColumns.MIME_TYPE, mimeType())
-                put(MediaStore.MediaColumns.RELATIVE_PATH, DEFAULT_MEDIA_STORE_CAPTURE_PATH)
-                put(MediaStore.MediaColumns.IS_PENDING, 1)
+            val slot = (appContext as App).pendingImageSlot.take(imageFileFormat)
+            if (slot != null) {
+                usesPendingSlot = true
+                return slot
             }
-
-            return contentResolver.insert(CamConfig.imageCollectionUri, cv)
+            return insertPendingImage(contentResolver, fileName(), mimeType())
+        } else if (stageSafWrites) {
+            // the tree is only accessed by the queue, see SafStagingQueue
+            val stagedImage = (appContext as App).safStagingQueue.newImage()
+            this.stagedImage = stagedImage
+            return Uri.fromFile(stagedImage.dataFile)
         } else {
             try {
                 val treeUri = Uri.parse(storageLocation)
                 val treeDocumentUri = getTreeDocumentUri(treeUri)
                 return DocumentsContract.createDocument(contentResolver, treeDocumentUri, mimeType(), fileName())!!
             } catch (e: Exception) {
-                appContext.mainExecutor.execute(imageCapturer::onStorageLocationNotFound)
+                appContext.mainExecutor.execute { ImageSaverService.onStorageLocationNotFound(this) }
                 skipErrorDialog = true
                 throw e
             }
@@ -321,6 +582,10 @@ class ImageSaver(
     }
 
     private fun deleteIncompleteImage(uri: Uri) {
+        stagedImage?.let {
+            (appContext as App).safStagingQueue.discard(it)
+            return
+        }
         try {
             val num = contentResolver.delete(uri, null, null)
             check(num == 1) { "unexpected number of deleted rows: $num" }
@@ -333,32 +598,124 @@ class ImageSaver(
     override fun onError(exception: ImageCaptureException) {
         mainThreadExecutor.execute {
             if (isCancelled) return@execute
-            imageCapturer.onCaptureError(exception)
+            ImageSaverService.onCaptureError(this, exception)
         }
+        capture.finish()
+        groupCommit.wakeUp()
     }
 
     private var skipErrorDialog = false
 
+    // returns the arrays of the image to the pool, nothing may use them afterwards
+    private fun releaseBuffers() {
+        uncroppedJpeg?.let { bufferPool.release(it.array()) }
+        uncroppedJpeg = null
+        origJpeg?.let { bufferPool.release(it.array()) }
+        origJpeg = null
+    }
+
     private fun handleError(e: ImageSaverException) {
-        mainThreadExecutor.execute { imageCapturer.onImageSaverError(e, skipErrorDialog) }
+        try {
+            releaseBuffers()
+            val skipErrorDialog = skipErrorDialog
+            capture.deliver { ImageSaverService.onImageSaverError(this, e, skipErrorDialog) }
+        } finally {
+            // the later captures are delivered once this one has finished
+            capture.finish()
+            // the group that is being held may not have to wait for this image anymore
+            groupCommit.wakeUp()
+        }
     }
 
     companion object {
-        val imageCaptureCallbackExecutor = Executors.newSingleThreadExecutor()
-        private val imageWriterExecutor = Executors.newSingleThreadExecutor()
+        // a group is held for as long as images that are still being processed may join it, up
+        // to the commit window
+        private val groupCommit = GroupCommit<ImageSaver>(
+            pipeline.executor(Stage.COMMIT),
+            TimeUnit.MILLISECONDS.toNanos(COMMIT_WINDOW_MILLIS),
+            MAX_GROUP_SIZE,
+            { pipeline.countBefore(Stage.COMMIT) > 0 },
+            ::commit,
+        )
+
+        // Each fsync commits the journal of the file system and flushes the cache of the storage
+        // device. Done back to back, after all the images of the group have been written, the
+        // later ones of them find little left to do. Images are only published, and reported as
+        // saved, once they have been synced, as before.
+        private fun commit(group: List<ImageSaver>) {
+            val synced = group.filter { it.syncAndClose() }
+            publish(synced.filter { it.saveToMediaStore() })
+            synced.filter { !it.saveToMediaStore() }.forEach { it.onCommitted() }
+        }
 
-        private const val TAG = "ImageSaver"
-        private const val LOG_DURATION = false
-    }
+        // clears IS_PENDING of the MediaStore images with a single call, one by one if it fails
+        // for some of them, to tell which ones
+        private fun publish(savers: List<ImageSaver>) {
+            if (savers.isEmpty()) {
+                return
+            }
+            val operations = savers.mapTo(ArrayList()) { saver ->
+                ContentProviderOperation.newUpdate(saver.writtenFile!!.uri).apply {
+                    saver.pendingSlotValues()?.let { withValues(it) }
+                    withValue(MediaStore.MediaColumns.IS_PENDING, 0)
+                }.build()
+            }
+            val results = try {
+                CaptureMetrics.measure(Metric.PENDING_FLAG_CLEAR) {
+                    savers[0].contentResolver.applyBatch(MediaStore.AUTHORITY, operations)
+                }
+            } catch (e: Exception) {
+                Log.w(TAG, "unable to publish ${savers.size} images at once", e)
+                null
+            }
+            savers.forEachIndexed { i, saver ->
+                if (results?.get(i)?.count != 1) {
+                    try {
+                        removePendingFlagFromUri(saver.contentResolver, saver.writtenFile!!.uri,
+                            saver.pendingSlotValues())
+                    } catch (e: Exception) {
+                        // don't delete the image in this case, since it's already fully written out
+                        saver.handleError(ImageSaverException(Place.FILE_WRITE_COMPLETION, e))
+                        return@forEachIndexed
+                    }
+                }
+                saver.onCommitted()
+            }
+        }
 
-    private fun timestamp() = if (LOG_DURATION) System.nanoTime() else 0
+        private const val TAG = "ImageSaver"
 
-    private fun logDuration(start: Long, lazyMessage: () -> String) {
-        if (LOG_DURATION) {
-            val now = timestamp()
-            val us = (now - start) / 1000
-            val durationStr = if (us < 10_000) "$us us" else "${us / 1000} ms"
-            Log.d(TAG, "${lazyMessage()}: $durationStr")
+        // longer side of the EXIF thumbnail, large enough for the gallery button and for the grid
+        // thumbnails of most gallery apps
+        private const val EXIF_THUMBNAIL_SIZE = 320
+        private const val EXIF_THUMBNAIL_QUALITY = 85
+        private const val EXIF_THUMBNAIL_MAX_BYTES = 32 * 1024
+
+        // room for later metadata edits to grow the EXIF segment without rewriting the whole
+        // image, see editExif()
+        private const val EXIF_SEGMENT_PADDING = 4 * 1024
+
+        // Whether the written images are committed in groups. Off, since the groups are committed
+        // one at a time and may be held for the window, which loses to syncing the images in
+        // parallel as soon as they are written in the "commit." benchmarks so far. Turn it on
+        // where they show otherwise
+        private const val GROUP_COMMITS = false
+        private const val COMMIT_WINDOW_MILLIS = 20L
+        private const val MAX_GROUP_SIZE = 8
+
+        fun mimeType(imageFileFormat: String) =
+            MimeTypeMap.getSingleton().getMimeTypeFromExtension(imageFileFormat) ?: "image/*"
+
+        @Throws(Exception::class)
+        fun insertPendingImage(contentResolver: ContentResolver, displayName: String,
+                mimeType: String): Uri? {
+            val cv = ContentValues().apply {
+                put(MediaStore.MediaColumns.DISPLAY_NAME, displayName)
+                put(MediaStore.MediaColumns.MIME_TYPE, mimeType)
+                put(MediaStore.MediaColumns.RELATIVE_PATH, DEFAULT_MEDIA_STORE_CAPTURE_PATH)
+                put(MediaStore.MediaColumns.IS_PENDING, 1)
+            }
+            return contentResolver.insert(CamConfig.imageCollectionUri, cv)
         }
     }
 }
@@ -5,6 +5,7 @@ class ImageSaverException(val place: Place, cause: Exception? = null) : Exceptio
         IMAGE_EXTRACTION,
         IMAGE_CROPPING,
         EXIF_PARSING,
+        EXIF_PROCESSING,
         FILE_CREATION,
         FILE_WRITE,
         FILE_WRITE_COMPLETION,
@@ -0,0 +1,266 @@
+package app.grapheneos.camera.capturer
+
+import android.annotation.SuppressLint
+import android.app.Notification
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.Service
+import android.content.Context
+import android.content.Intent
+import android.graphics.Bitmap
+import android.os.Handler
+import android.os.IBinder
+import android.os.Looper
+import android.util.Log
+import androidx.camera.core.ImageCaptureException
+import app.grapheneos.camera.CamConfig
+import app.grapheneos.camera.CapturedItem
+import app.grapheneos.camera.R
+import app.grapheneos.camera.util.edit
+import java.util.concurrent.ForkJoinPool
+
+/*
+The app-level part of image saving, which outlives the activity that took the images.
+
+The stages of ImageSaver run on the executors of this service instead of on ones that belong to an
+activity, so an activity can release the camera and the surface of the preview as soon as it's
+stopped while the images it has taken are still being saved. The service is started while captures
+are in flight, which keeps the process from being treated as a cached one, and stops itself once
+the last of them has finished.
+
+The results of a capture are delivered to the ImageCapturer that is attached at the time, which
+may belong to another activity than the one that took the image. The images of a secure activity,
+which is shown on top of the lock screen, are only delivered to the capturer that took them, the
+images of the other activities to any of their capturers, see Listener.resultScope. The results
+of a secure activity that is stopped are held until it's started again, since no other activity
+may take them. When no capturer is attached for the other images, their results are handled here:
+the last captured item is stored for the next activity to pick up and errors are reported with a
+notification.
+ */
+class ImageSaverService : Service() {
+    /** Receives the results of captures on the main thread, see ImageCapturer. */
+    interface Listener {
+        /**
+         * The results of the images that were taken with the same scope are delivered to this
+         * listener. Equal to PUBLIC_RESULT_SCOPE unless the results are private to the listener.
+         */
+        val resultScope: Any
+
+        fun onCaptureSuccess(imageSaver: ImageSaver)
+
+        fun onCaptureError(imageSaver: ImageSaver, exception: ImageCaptureException)
+
+        fun onImageSaverSuccess(imageSaver: ImageSaver, item: CapturedItem)
+
+        fun onImageStaged(imageSaver: ImageSaver)
+
+        fun onImageSaverError(imageSaver: ImageSaver, exception: ImageSaverException,
+            skipErrorDialog: Boolean)
+
+        /** thumbnail is null if it couldn't be generated. */
+        fun onThumbnailGenerated(imageSaver: ImageSaver, thumbnail: Bitmap?)
+
+        fun onStorageLocationNotFound()
+
+        /** Called when an image that was staged by SafStagingQueue has been copied. */
+        fun onStagedImageCopied(item: CapturedItem)
+
+        /** Called when the listener is attached and when a capture finishes. */
+        fun onCapacityChanged()
+    }
+
+    override fun onBind(intent: Intent?): IBinder? = null
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        // the captures of a process that has died aren't resumed
+        return START_NOT_STICKY
+    }
+
+    companion object {
+        private const val TAG = "ImageSaverService"
+
+        private const val ERROR_NOTIFICATION_CHANNEL_ID = "image_saver_error"
+        private const val ERROR_NOTIFICATION_ID = 1
+
+        /** The scope of the results that may be delivered to any activity that isn't secure. */
+        val PUBLIC_RESULT_SCOPE = Any()
+
+        private val mainHandler = Handler(Looper.getMainLooper())
+
+        // up to a quarter of the heap is spent on images that are being saved, and at least one
+        // image is always let through, whatever its size
+        val pipeline = CapturePipeline(
+            threadsPerStage = Runtime.getRuntime().availableProcessors(),
+            maxInFlight = 8,
+            memoryBudget = Runtime.getRuntime().maxMemory() / 4,
+            // replaced by the size of the first image
+            initialSizeEstimate = 16L * 1024 * 1024,
+            callbackExecutor = { mainHandler.post(it) },
+        ).apply {
+            onCaptureFinished = ::onCaptureFinished
+        }
+
+        // the free arrays are kept on top of the ones that are in use by the pipeline, enough of
+        // them for a few images
+        val bufferPool = BufferPool(maxRetainedBytes = Runtime.getRuntime().maxMemory() / 8)
+
+        // the images that are encoded at once share the cores, their stripes are interleaved.
+        // The threads of the pool exit when it's idle
+        val encoderPool = ForkJoinPool(Runtime.getRuntime().availableProcessors())
+
+        // the rest is only accessed on the main thread
+
+        private var listener: Listener? = null
+
+        // the results of the private scopes whose listener is detached, in the order they
+        // arrived, see forget()
+        private val heldResults = HashMap<Any, ArrayList<Listener.() -> Unit>>()
+
+        // the application context, set by the first capture
+        @SuppressLint("StaticFieldLeak")
+        private var appContext: Context? = null
+        private var isServiceStarted = false
+
+        /** Delivers the results of the captures that are in the scope of listener to it. */
+        fun attach(listener: Listener) {
+            this.listener = listener
+            heldResults.remove(listener.resultScope)?.forEach { listener.it() }
+            listener.onCapacityChanged()
+        }
+
+        /**
+         * Stops delivering results to listener. The results of a private scope are held for it
+         * until it's attached again or forgotten.
+         */
+        fun detach(listener: Listener) {
+            if (this.listener === listener) {
+                this.listener = null
+            }
+            if (listener.resultScope !== PUBLIC_RESULT_SCOPE) {
+                heldResults.getOrPut(listener.resultScope) { ArrayList() }
+            }
+        }
+
+        /** Drops the results that are held for listener, which won't be attached again. */
+        fun forget(listener: Listener) {
+            heldResults.remove(listener.resultScope)
+        }
+
+        /**
+         * Admits a capture into the pipeline, or returns null if there is no room for it, see
+         * CapturePipeline.tryAdmit(). Only called while an activity is in the foreground, the
+         * service can't be started otherwise.
+         */
+        fun tryAdmit(context: Context): CapturePipeline.Capture? {
+            val capture = pipeline.tryAdmit() ?: return null
+            if (!isServiceStarted) {
+                val appContext = context.applicationContext
+                this.appContext = appContext
+                try {
+                    appContext.startService(Intent(appContext, ImageSaverService::class.java))
+                    isServiceStarted = true
+                } catch (e: IllegalStateException) {
+                    // the image is saved all the same, as long as the process is kept around
+                    Log.w(TAG, "unable to start the service", e)
+                }
+            }
+            return capture
+        }
+
+        private fun onCaptureFinished() {
+            listener?.onCapacityChanged()
+            if (isServiceStarted && pipeline.isIdle()) {
+                isServiceStarted = false
+                appContext?.let { it.stopService(Intent(it, ImageSaverService::class.java)) }
+            }
+        }
+
+        // delivers result to the listener of scope if it's attached, or holds it for the
+        // listener. Returns false if neither is possible.
+        private fun deliver(scope: Any, result: Listener.() -> Unit): Boolean {
+            val listener = listener
+            if (listener != null && listener.resultScope === scope) {
+                listener.result()
+                return true
+            }
+            val held = heldResults[scope] ?: return false
+            held.add(result)
+            return true
+        }
+
+        fun onCaptureSuccess(imageSaver: ImageSaver) {
+            deliver(imageSaver.resultScope) { onCaptureSuccess(imageSaver) }
+        }
+
+        fun onCaptureError(imageSaver: ImageSaver, exception: ImageCaptureException) {
+            if (!deliver(imageSaver.resultScope) { onCaptureError(imageSaver, exception) }) {
+                Log.e(TAG, "onCaptureError", exception)
+            }
+        }
+
+        fun onImageSaverSuccess(imageSaver: ImageSaver, item: CapturedItem) {
+            if (!deliver(imageSaver.resultScope) { onImageSaverSuccess(imageSaver, item) }
+                    && imageSaver.resultScope === PUBLIC_RESULT_SCOPE) {
+                saveLastCapturedItem(imageSaver.appContext, item)
+            }
+        }
+
+        /**
+         * Called by SafStagingQueue when an image that was taken with resultScope has been copied
+         * into its storage location.
+         */
+        fun onStagedImageCopied(context: Context, item: CapturedItem, resultScope: Any) {
+            if (!deliver(resultScope) { onStagedImageCopied(item) }
+                    && resultScope === PUBLIC_RESULT_SCOPE) {
+                saveLastCapturedItem(context, item)
+            }
+        }
+
+        // picked up by the next activity that is resumed
+        private fun saveLastCapturedItem(context: Context, item: CapturedItem) {
+            context.getSharedPreferences(CamConfig.COMMON_SHARED_PREFS_NAME,
+                    Context.MODE_PRIVATE).edit {
+                CamConfig.saveLastCapturedItem(item, this)
+            }
+        }
+
+        fun onImageStaged(imageSaver: ImageSaver) {
+            deliver(imageSaver.resultScope) { onImageStaged(imageSaver) }
+        }
+
+        fun onImageSaverError(imageSaver: ImageSaver, exception: ImageSaverException,
+                skipErrorDialog: Boolean) {
+            if (!deliver(imageSaver.resultScope) {
+                        onImageSaverError(imageSaver, exception, skipErrorDialog)
+                    }) {
+                Log.e(TAG, "onImageSaverError", exception)
+                notifyError(imageSaver.appContext)
+            }
+        }
+
+        fun onThumbnailGenerated(imageSaver: ImageSaver, thumbnail: Bitmap?) {
+            deliver(imageSaver.resultScope) { onThumbnailGenerated(imageSaver, thumbnail) }
+        }
+
+        fun onStorageLocationNotFound(imageSaver: ImageSaver) {
+            // the next capture finds out again if no activity is attached
+            deliver(imageSaver.resultScope) { onStorageLocationNotFound() }
+        }
+
+        private fun notifyError(context: Context) {
+            val channel = NotificationChannel(ERROR_NOTIFICATION_CHANNEL_ID,
+                context.getString(R.string.unable_to_save_image),
+                NotificationManager.IMPORTANCE_HIGH)
+
+            val notif = Notification.Builder(context, ERROR_NOTIFICATION_CHANNEL_ID).apply {
+                setSmallIcon(R.drawable.info)
+                setContentTitle(context.getString(R.string.unable_to_save_image))
+            }.build()
+
+            context.getSystemService(NotificationManager::class.java).let {
+                it.createNotificationChannel(channel)
+                it.notify(ERROR_NOTIFICATION_ID, notif)
+            }
+        }
+    }
+}
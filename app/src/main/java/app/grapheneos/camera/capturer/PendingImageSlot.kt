@@ -0,0 +1,156 @@
+package app.grapheneos.camera.capturer
+
+import android.content.ContentResolver
+import android.content.ContentUris
+import android.net.Uri
+import android.provider.MediaStore
+import android.provider.MediaStore.MediaColumns
+import android.util.Log
+import app.grapheneos.camera.CamConfig
+import app.grapheneos.camera.IMAGE_NAME_PREFIX
+import java.util.concurrent.Executors
+
+/*
+A pending MediaStore image that is inserted ahead of the next capture, see
+ImageSaver.obtainOutputUri().
+
+ContentResolver.insert() is a binder call to MediaProvider that takes tens of milliseconds on some
+devices, and it used to be made after the image had arrived. The slot is inserted in the
+background instead, while the camera is in photo mode, and the image that takes it is renamed to
+its real name, and given the dates of the capture, in the same update that clears IS_PENDING,
+which has to be made anyway. Only one slot
+is kept, the images of a burst that find it taken are inserted the usual way.
+
+ImageCapturer prepares a slot when the camera starts in photo mode, when focus is requested and
+after each save, and discards it when the activity is paused and when the camera leaves photo
+mode. Slots that are left behind by a process that died are deleted by deleteStalePendingImages().
+Images are only saved to MediaStore this way, a SAF document would need a rename call of its own.
+ */
+class PendingImageSlot(private val contentResolver: ContentResolver) {
+    private class Slot(val uri: Uri, val imageFileFormat: String)
+
+    // guarded by this
+    private var slot: Slot? = null
+    private var isInserting = false
+    // incremented by discard(), a slot that was being inserted for an earlier generation is
+    // deleted as soon as it's inserted
+    private var generation = 0
+
+    // inserts and deletes are made in order, deleteStalePendingImages() is the first of them
+    private val executor = Executors.newSingleThreadExecutor()
+
+    /** Inserts a slot for images of the given format, unless there's one already. */
+    fun prepare(imageFileFormat: String) {
+        val stale: Slot?
+        val generation: Int
+        synchronized(this) {
+            if (isInserting || slot?.imageFileFormat == imageFileFormat) {
+                return
+            }
+            stale = slot
+            slot = null
+            isInserting = true
+            generation = this.generation
+        }
+        executor.execute {
+            stale?.let { delete(it.uri) }
+            val uri = try {
+                ImageSaver.insertPendingImage(contentResolver,
+                    PENDING_SLOT_NAME_PREFIX + System.currentTimeMillis() + imageFileFormat,
+                    ImageSaver.mimeType(imageFileFormat))
+            } catch (e: Exception) {
+                Log.w(TAG, "unable to insert a pending image", e)
+                null
+            }
+            synchronized(this) {
+                isInserting = false
+                if (uri != null && generation == this.generation) {
+                    slot = Slot(uri, imageFileFormat)
+                    return@execute
+                }
+            }
+            uri?.let { delete(it) }
+        }
+    }
+
+    /**
+     * Returns the slot if it's ready and is for images of the given format. The caller owns it
+     * afterwards, and has to rename it when it clears its IS_PENDING flag.
+     */
+    fun take(imageFileFormat: String): Uri? {
+        synchronized(this) {
+            val slot = slot
+            if (slot == null || slot.imageFileFormat != imageFileFormat) {
+                return null
+            }
+            this.slot = null
+            return slot.uri
+        }
+    }
+
+    /** Deletes the slot, along with the one that is being inserted, if any. */
+    fun discard() {
+        val slot = synchronized(this) {
+            ++generation
+            slot.also { slot = null }
+        } ?: return
+        executor.execute { delete(slot.uri) }
+    }
+
+    // An image whose process dies while it's saved is left pending, as is the slot of that
+    // process, see deleteStalePendingRecordings(). This is queued before any slot of this process
+    // is inserted, so all the slots that exist are stale. Other pending images are given a minute,
+    // far longer than saving one takes, to keep clear of the first capture of this process. Only
+    // the ones that were never written to are deleted: a slot keeps its name until the image that
+    // took it is published, and an image whose publishing failed is fully written, so they are
+    // left pending rather than lost.
+    fun deleteStalePendingImages() {
+        val selection = "${MediaColumns.IS_PENDING} = 1" +
+                " AND (${MediaColumns.DISPLAY_NAME} LIKE ?" +
+                " OR (${MediaColumns.DISPLAY_NAME} LIKE ? AND ${MediaColumns.DATE_ADDED} < ?))"
+        executor.execute {
+            val cutoffSeconds = (System.currentTimeMillis() - STALE_PENDING_IMAGE_AGE) / 1000L
+            val args = arrayOf("$PENDING_SLOT_NAME_PREFIX%", "$IMAGE_NAME_PREFIX%",
+                cutoffSeconds.toString())
+            try {
+                @Suppress("DEPRECATION")
+                val collection = MediaStore.setIncludePending(CamConfig.imageCollectionUri)
+                contentResolver.query(collection, arrayOf(MediaColumns._ID), selection, args,
+                        null)?.use { cursor ->
+                    while (cursor.moveToNext()) {
+                        val uri = ContentUris.withAppendedId(CamConfig.imageCollectionUri,
+                            cursor.getLong(0))
+                        if (isUnwritten(uri)) {
+                            delete(uri)
+                        }
+                    }
+                }
+            } catch (e: Exception) {
+                e.printStackTrace()
+            }
+        }
+    }
+
+    private fun isUnwritten(uri: Uri): Boolean {
+        return try {
+            contentResolver.openFileDescriptor(uri, "r")?.use { it.statSize == 0L } ?: false
+        } catch (e: Exception) {
+            Log.w(TAG, "unable to check the pending image $uri", e)
+            false
+        }
+    }
+
+    private fun delete(uri: Uri) {
+        try {
+            contentResolver.delete(uri, null, null)
+        } catch (e: Exception) {
+            Log.w(TAG, "unable to delete a pending image $uri", e)
+        }
+    }
+
+    companion object {
+        private const val TAG = "PendingImageSlot"
+        const val PENDING_SLOT_NAME_PREFIX = IMAGE_NAME_PREFIX + "SLOT_"
+        private const val STALE_PENDING_IMAGE_AGE = 60 * 1000L
+    }
+}
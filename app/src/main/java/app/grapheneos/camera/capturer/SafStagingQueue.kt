@@ -0,0 +1,365 @@
+package app.grapheneos.camera.capturer
+
+import android.content.ContentResolver
+import android.content.Context
+import android.net.Uri
+import android.provider.DocumentsContract
+import android.system.Os
+import android.util.AtomicFile
+import android.util.Log
+import app.grapheneos.camera.CapturedItem
+import app.grapheneos.camera.ITEM_TYPE_IMAGE
+import app.grapheneos.camera.util.getTreeDocumentUri
+import app.grapheneos.camera.util.removePendingFlagFromUri
+import java.io.File
+import java.io.FileDescriptor
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.util.ArrayDeque
+import java.util.Properties
+import java.util.concurrent.Executors
+
+/*
+The write-behind queue of images whose storage location is a SAF tree, see
+ImageSaver.obtainOutputUri().
+
+Creating a document in a SAF tree and opening it for writing are calls through the provider of the
+tree, which are slow on SD cards and on remote providers, and they used to be made by each capture.
+When staging is enabled, the image is written to a file of this queue instead, in app-private
+storage, and synced along with the other images, after which its capture is finished. The queue
+copies the staged images into their trees in the background, one at a time and in the order they
+were taken, with large sequential writes.
+
+Each staged image is a data file and an entry that describes it. The data file is synced before
+the entry is written, and the entry is written atomically, so an image is either fully staged or
+not at all. The document is created and recorded in the entry before it's written to, so that a
+copy that is interrupted by the death of the process is redone into the same document instead of
+leaving a partial one behind. Once the copy is synced, the data file is deleted, then the entry.
+The queue is resumed when the process starts: entries whose data file is gone have been copied,
+data files without an entry were never staged, and both are deleted. The remaining images of
+earlier processes are copied before the ones of this process, which are newer. Ids are times, but
+the clock may have been set back since an earlier process, so resume() skips the ids that this
+process has allocated rather than the ones above some time. They are never touched by resume(),
+even when they are staged while it runs.
+
+Each image is reported to ImageSaverService with the result scope of its capture once it has been
+copied, so that the images of a secure activity only reach that activity. The scope doesn't
+survive the process: the private images of an earlier process are copied without being reported
+to any activity.
+
+An image whose copy fails stays staged, and is retried the next time an image is staged or the
+queue is resumed. After MAX_ATTEMPTS failed copies, e.g. because the tree has been removed or
+access to it has been revoked, it's saved to MediaStore instead, so that it isn't lost.
+ */
+class SafStagingQueue(private val context: Context) {
+    /** Called on the main thread. */
+    interface Listener {
+        fun onDepthChanged(depth: Int)
+
+        fun onImageCopied(item: CapturedItem, resultScope: Any)
+    }
+
+    class StagedImage internal constructor(val id: Long, val dataFile: File)
+
+    private class Entry(
+        val id: Long,
+        val dataFile: File,
+        val file: AtomicFile,
+        val treeUri: String,
+        val displayName: String,
+        val mimeType: String,
+        val dateString: String,
+        // see ImageSaverService.Listener.resultScope
+        val resultScope: Any,
+        var documentUri: String?,
+        var attempts: Int,
+    )
+
+    private val contentResolver: ContentResolver = context.contentResolver
+    private val dir = File(context.noBackupFilesDir, STAGING_DIR_NAME)
+
+    // guarded by this
+    private val pending = ArrayDeque<Entry>()
+    // the entries whose last copy failed, they are retried by the next enqueue() or resume()
+    private val failed = ArrayList<Entry>()
+    private var depth = 0
+
+    private var lastId = System.currentTimeMillis()
+    // the ids that this process allocated before resume() listed the directory, which it skips
+    private var ownIds: HashSet<Long>? = HashSet()
+
+    // copies are made in order, resume() is the first task
+    private val executor = Executors.newSingleThreadExecutor()
+
+    @Volatile
+    var listener: Listener? = null
+
+    @Synchronized
+    fun depth() = depth
+
+    /** Allocates the data file of an image that is about to be staged. */
+    fun newImage(): StagedImage {
+        dir.mkdirs()
+        synchronized(this) {
+            while (true) {
+                // ids follow the order of the images unless the clock is set back
+                lastId = maxOf(lastId + 1, System.currentTimeMillis())
+                val id = lastId
+                val dataFile = File(dir, id.toString() + DATA_FILE_SUFFIX)
+                // an earlier process may have taken the id if the clock was set back since. The
+                // file is created along with the record of the id, so that resume() sees either
+                // both or neither
+                if (dataFile.createNewFile()) {
+                    ownIds?.add(id)
+                    return StagedImage(id, dataFile)
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the data file of image has been written and synced, which makes it staged, and
+     * queues its copy into the tree at treeUri.
+     */
+    @Throws(IOException::class)
+    fun enqueue(image: StagedImage, treeUri: String, displayName: String, mimeType: String,
+            dateString: String, resultScope: Any) {
+        val entry = Entry(image.id, image.dataFile, entryFile(image.id), treeUri, displayName,
+            mimeType, dateString, resultScope, documentUri = null, attempts = 0)
+        writeEntry(entry)
+        val depth = synchronized(this) {
+            pending.addAll(failed)
+            failed.clear()
+            pending.addLast(entry)
+            ++depth
+        }
+        notifyDepthChanged(depth)
+        executor.execute(this::drain)
+    }
+
+    /** Deletes the data file of an image that won't be staged. */
+    fun discard(image: StagedImage) {
+        if (!image.dataFile.delete() && image.dataFile.exists()) {
+            Log.w(TAG, "unable to delete ${image.dataFile}")
+        }
+    }
+
+    /** Copies the images that were staged by earlier processes. Called when the process starts. */
+    fun resume() {
+        executor.execute {
+            val entries = ArrayList<Entry>()
+            val names = dir.list()
+            // the data files of the images of this process may still be written and their
+            // entries are queued by enqueue(). The ids that are allocated from now on aren't in
+            // names
+            val skippedIds = synchronized(this) {
+                ownIds.also { ownIds = null }
+            } ?: return@execute
+            val ids = names?.mapNotNull { it.substringBefore('.').toLongOrNull() }
+                ?.filterNot { it in skippedIds }?.toSortedSet() ?: return@execute
+            for (id in ids) {
+                val dataFile = File(dir, id.toString() + DATA_FILE_SUFFIX)
+                val entry = readEntry(id, dataFile)
+                if (entry == null) {
+                    // never staged
+                    dataFile.delete()
+                } else if (!dataFile.exists()) {
+                    // copied, the process died before the entry was deleted
+                    entry.file.delete()
+                } else {
+                    entries.add(entry)
+                }
+            }
+            if (entries.isEmpty()) {
+                return@execute
+            }
+            val depth = synchronized(this) {
+                // ahead of the images of this process
+                for (entry in entries.asReversed()) {
+                    pending.addFirst(entry)
+                }
+                depth += entries.size
+                depth
+            }
+            Log.i(TAG, "resuming the copies of ${entries.size} staged images")
+            notifyDepthChanged(depth)
+            drain()
+        }
+    }
+
+    private fun drain() {
+        while (true) {
+            val entry = synchronized(this) { pending.pollFirst() } ?: return
+            val uri = try {
+                copy(entry)
+            } catch (e: Exception) {
+                Log.w(TAG, "unable to copy staged image ${entry.displayName} to ${entry.treeUri}",
+                    e)
+                ++entry.attempts
+                try {
+                    writeEntry(entry)
+                } catch (writeException: IOException) {
+                    Log.w(TAG, "unable to update the entry of ${entry.displayName}",
+                        writeException)
+                }
+                synchronized(this) { failed.add(entry) }
+                continue
+            }
+
+            if (!entry.dataFile.delete()) {
+                Log.w(TAG, "unable to delete ${entry.dataFile}")
+            }
+            entry.file.delete()
+            val depth = synchronized(this) { --depth }
+            notifyDepthChanged(depth)
+            val item = CapturedItem(ITEM_TYPE_IMAGE, entry.dateString, uri)
+            context.mainExecutor.execute { listener?.onImageCopied(item, entry.resultScope) }
+        }
+    }
+
+    // returns the URI of the copy
+    @Throws(Exception::class)
+    private fun copy(entry: Entry): Uri {
+        if (entry.attempts >= MAX_ATTEMPTS) {
+            return copyToMediaStore(entry)
+        }
+
+        val documentUri = entry.documentUri?.let { Uri.parse(it) } ?: run {
+            val treeDocumentUri = getTreeDocumentUri(Uri.parse(entry.treeUri))
+            val uri = DocumentsContract.createDocument(contentResolver, treeDocumentUri,
+                entry.mimeType, entry.displayName)
+                ?: throw FileNotFoundException("unable to create ${entry.displayName}")
+            // a copy that is interrupted is redone into this document
+            entry.documentUri = uri.toString()
+            writeEntry(entry)
+            uri
+        }
+        write(entry, documentUri, documentUri.host == SAF_URI_HOST_EXTERNAL_STORAGE)
+        return documentUri
+    }
+
+    @Throws(Exception::class)
+    private fun copyToMediaStore(entry: Entry): Uri {
+        Log.w(TAG, "saving ${entry.displayName} to MediaStore after ${entry.attempts} failed copies")
+        entry.documentUri?.let {
+            // the partial copy, if the tree is still there
+            try {
+                DocumentsContract.deleteDocument(contentResolver, Uri.parse(it))
+            } catch (e: Exception) {
+                Log.w(TAG, "unable to delete the partial copy $it", e)
+            }
+        }
+        val uri = ImageSaver.insertPendingImage(contentResolver, entry.displayName,
+            entry.mimeType) ?: throw IOException("unable to insert ${entry.displayName}")
+        try {
+            write(entry, uri, shouldFsync = true)
+            removePendingFlagFromUri(contentResolver, uri)
+        } catch (e: Exception) {
+            contentResolver.delete(uri, null, null)
+            throw e
+        }
+        return uri
+    }
+
+    @Throws(Exception::class)
+    private fun write(entry: Entry, uri: Uri, shouldFsync: Boolean) {
+        // "w" doesn't truncate on all providers, the document is rewritten from the start and a
+        // partial copy is never longer than the image
+        contentResolver.openAssetFileDescriptor(uri, "w")!!.use { output ->
+            val fd = output.fileDescriptor
+            FileInputStream(entry.dataFile).use { input ->
+                val buffer = ByteArray(COPY_BUFFER_SIZE)
+                while (true) {
+                    val count = input.read(buffer)
+                    if (count < 0) {
+                        break
+                    }
+                    writeFully(fd, buffer, count)
+                }
+            }
+            if (shouldFsync) {
+                Os.fsync(fd)
+            }
+        }
+    }
+
+    private fun writeFully(fd: FileDescriptor, buffer: ByteArray, count: Int) {
+        var offset = 0
+        while (offset < count) {
+            offset += Os.write(fd, buffer, offset, count - offset)
+        }
+    }
+
+    private fun entryFile(id: Long) = AtomicFile(File(dir, id.toString() + ENTRY_FILE_SUFFIX))
+
+    @Throws(IOException::class)
+    private fun writeEntry(entry: Entry) {
+        val properties = Properties().apply {
+            setProperty(KEY_TREE_URI, entry.treeUri)
+            setProperty(KEY_DISPLAY_NAME, entry.displayName)
+            setProperty(KEY_MIME_TYPE, entry.mimeType)
+            setProperty(KEY_DATE_STRING, entry.dateString)
+            setProperty(KEY_PRIVATE,
+                (entry.resultScope !== ImageSaverService.PUBLIC_RESULT_SCOPE).toString())
+            entry.documentUri?.let { setProperty(KEY_DOCUMENT_URI, it) }
+            setProperty(KEY_ATTEMPTS, entry.attempts.toString())
+        }
+        val stream = entry.file.startWrite()
+        try {
+            properties.store(stream, null)
+            // syncs the file before it replaces the previous version
+            entry.file.finishWrite(stream)
+        } catch (e: IOException) {
+            entry.file.failWrite(stream)
+            throw e
+        }
+    }
+
+    private fun readEntry(id: Long, dataFile: File): Entry? {
+        val file = entryFile(id)
+        val properties = Properties()
+        try {
+            file.openRead().use { properties.load(it) }
+        } catch (e: FileNotFoundException) {
+            return null
+        } catch (e: Exception) {
+            Log.w(TAG, "unable to read the entry of staged image $id", e)
+            return null
+        }
+        return Entry(id, dataFile, file,
+            treeUri = properties.getProperty(KEY_TREE_URI) ?: return null,
+            displayName = properties.getProperty(KEY_DISPLAY_NAME) ?: return null,
+            mimeType = properties.getProperty(KEY_MIME_TYPE) ?: return null,
+            dateString = properties.getProperty(KEY_DATE_STRING) ?: return null,
+            // the activity that a private image belongs to is gone along with its process
+            resultScope = if (properties.getProperty(KEY_PRIVATE).toBoolean()) Any()
+                else ImageSaverService.PUBLIC_RESULT_SCOPE,
+            documentUri = properties.getProperty(KEY_DOCUMENT_URI),
+            attempts = properties.getProperty(KEY_ATTEMPTS)?.toIntOrNull() ?: 0,
+        )
+    }
+
+    private fun notifyDepthChanged(depth: Int) {
+        context.mainExecutor.execute { listener?.onDepthChanged(depth) }
+    }
+
+    companion object {
+        private const val TAG = "SafStagingQueue"
+
+        private const val STAGING_DIR_NAME = "saf_staging"
+        private const val DATA_FILE_SUFFIX = ".data"
+        private const val ENTRY_FILE_SUFFIX = ".entry"
+
+        private const val KEY_TREE_URI = "treeUri"
+        private const val KEY_DISPLAY_NAME = "displayName"
+        private const val KEY_MIME_TYPE = "mimeType"
+        private const val KEY_DATE_STRING = "dateString"
+        private const val KEY_PRIVATE = "private"
+        private const val KEY_DOCUMENT_URI = "documentUri"
+        private const val KEY_ATTEMPTS = "attempts"
+
+        private const val MAX_ATTEMPTS = 3
+        private const val COPY_BUFFER_SIZE = 1024 * 1024
+    }
+}
@@ -27,6 +27,7 @@ import androidx.camera.video.Recorder
 import androidx.camera.video.Recording
 import androidx.camera.video.VideoRecordEvent
 import app.grapheneos.camera.App
+import androidxc.exifinterface.media.ExifDateTime
 import app.grapheneos.camera.CamConfig
 import app.grapheneos.camera.CapturedItem
 import app.grapheneos.camera.ITEM_TYPE_VIDEO
@@ -38,9 +39,7 @@ import app.grapheneos.camera.ui.activities.VideoCaptureActivity
 import app.grapheneos.camera.util.formatVideoDuration
 import app.grapheneos.camera.util.getTreeDocumentUri
 import app.grapheneos.camera.util.removePendingFlagFromUri
-import java.text.SimpleDateFormat
-import java.util.Date
-import java.util.Locale
+import java.util.TimeZone
 
 class VideoCapturer(private val mActivity: MainActivity) {
 
@@ -150,7 +149,8 @@ class VideoCapturer(private val mActivity: MainActivity) {
         if (isRecording) return
         isRecording = true
 
-        val dateString = SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(Date())
+        val dateString = ExifDateTime.formatFileNameStamp(
+            ExifDateTime.toLocalMillis(System.currentTimeMillis(), TimeZone.getDefault()), false)
         val fileName = VIDEO_NAME_PREFIX + dateString + videoFileFormat
 
         includeAudio = false
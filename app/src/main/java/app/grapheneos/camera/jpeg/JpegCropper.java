@@ -0,0 +1,778 @@
+package app.grapheneos.camera.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Crops JPEG images without decoding their pixels, so nothing is lost to a second round of
+ * compression and the crop costs a fraction of a decode and encode.
+ *
+ * <p>The Huffman coded blocks are parsed, the MCUs outside the crop are dropped and the ones
+ * inside are copied bit for bit, except for the DC differences of the blocks whose preceding block
+ * is dropped, which are coded again relative to their new predecessor. The first MCU of the crop
+ * has to start on an MCU boundary, so the crop is moved to the nearest one, by less than an MCU
+ * (16 pixels for 4:2:0 images). Its size isn't changed. The right and bottom edges don't have to be
+ * aligned: the MCUs that they cross are kept, the decoders discard the pixels past the dimensions
+ * of the frame.
+ *
+ * <p>Sequential Huffman coded images with a single scan that contains all the components are
+ * supported, which is what camera HALs and common encoders produce. If restart markers are present,
+ * the intervals that contain no MCU of the crop are skipped without being parsed. The output has
+ * no restart markers, and only keeps the JFIF and ICC profile segments of the metadata.
+ */
+public final class JpegCropper {
+    private static final int M_SOF0 = 0xc0;
+    private static final int M_SOF1 = 0xc1;
+    private static final int M_DHT = 0xc4;
+    private static final int M_JPG = 0xc8;
+    private static final int M_DAC = 0xcc;
+    private static final int M_SOF15 = 0xcf;
+    private static final int M_RST0 = 0xd0;
+    private static final int M_RST7 = 0xd7;
+    private static final int M_EOI = 0xd9;
+    private static final int M_SOI = 0xd8;
+    private static final int M_SOS = 0xda;
+    private static final int M_DQT = 0xdb;
+    private static final int M_DRI = 0xdd;
+    private static final int M_APP0 = 0xe0;
+    private static final int M_APP2 = 0xe2;
+    private static final int M_TEM = 0x01;
+
+    private static final byte[] ICC_PROFILE_ID =
+            "ICC_PROFILE\0".getBytes(StandardCharsets.US_ASCII);
+
+    // the largest DC difference category of 8 bit samples
+    private static final int MAX_DC_CATEGORY = 11;
+
+    private final byte[] mData;
+    private final int mStart;
+    private final int mEnd;
+
+    private int mWidth;
+    private int mHeight;
+    private Component[] mFrameComponents;
+    // in the order of the scan, which is the order of their blocks in an MCU
+    private Component[] mScanComponents;
+    private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+    private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+    private int mRestartInterval;
+    private int mMcuWidth;
+    private int mMcuHeight;
+    // the position of the SOF segment, and of each segment that is copied to the output
+    private int mFrameSegment;
+    private final ArrayList<int[]> mKeptSegments = new ArrayList<>();
+    private int mScanData;
+
+    private JpegCropper(byte[] data, int offset, int length) {
+        mData = data;
+        mStart = offset;
+        mEnd = offset + length;
+    }
+
+    /**
+     * Writes the part of the JPEG image in data[offset, offset + length) that is given by left,
+     * top, width and height to out, after moving it to the nearest MCU boundary.
+     *
+     * @return false if the image can't be cropped losslessly, because of the way it's coded or
+     * because it's corrupt. Whatever was written to out has to be discarded then.
+     * @throws IllegalArgumentException if the crop isn't within the image
+     */
+    public static boolean crop(byte[] data, int offset, int length, int left, int top, int width,
+            int height, OutputStream out) throws IOException {
+        JpegCropper cropper = new JpegCropper(data, offset, length);
+        try {
+            if (!cropper.parseHeaders()) {
+                return false;
+            }
+            return cropper.write(left, top, width, height, out);
+        } catch (FormatException e) {
+            return false;
+        }
+    }
+
+    private int u8(int pos) {
+        return mData[pos] & 0xff;
+    }
+
+    private int u16(int pos) {
+        return (mData[pos] & 0xff) << 8 | (mData[pos + 1] & 0xff);
+    }
+
+    // Reads the segments up to the start of the scan, returns false if the image isn't supported.
+    private boolean parseHeaders() throws FormatException {
+        int pos = mStart;
+        if (mEnd - pos < 4 || u8(pos) != 0xff || u8(pos + 1) != M_SOI) {
+            return false;
+        }
+        pos += 2;
+        while (true) {
+            if (pos >= mEnd || u8(pos) != 0xff) {
+                throw new FormatException();
+            }
+            // markers may be preceded by any number of fill bytes
+            while (pos < mEnd && u8(pos) == 0xff) {
+                ++pos;
+            }
+            if (pos >= mEnd) {
+                throw new FormatException();
+            }
+            int marker = u8(pos++);
+            if (marker == M_TEM || (marker >= M_RST0 && marker <= M_RST7)) {
+                continue;
+            }
+            if (marker == M_EOI || pos + 2 > mEnd) {
+                throw new FormatException();
+            }
+            int segmentStart = pos - 2;
+            int segmentEnd = pos + u16(pos);
+            if (segmentEnd < pos + 2 || segmentEnd > mEnd) {
+                throw new FormatException();
+            }
+            int payload = pos + 2;
+            switch (marker) {
+                case M_SOF0:
+                case M_SOF1:
+                    if (!parseFrame(payload, segmentEnd)) {
+                        return false;
+                    }
+                    mFrameSegment = segmentStart;
+                    keep(segmentStart, segmentEnd);
+                    break;
+                case M_DHT:
+                    parseHuffmanTables(payload, segmentEnd);
+                    keep(segmentStart, segmentEnd);
+                    break;
+                case M_DRI:
+                    if (segmentEnd - payload != 2) {
+                        throw new FormatException();
+                    }
+                    mRestartInterval = u16(payload);
+                    break;
+                case M_DQT:
+                case M_APP0:
+                    keep(segmentStart, segmentEnd);
+                    break;
+                case M_APP2:
+                    if (startsWith(payload, segmentEnd, ICC_PROFILE_ID)) {
+                        keep(segmentStart, segmentEnd);
+                    }
+                    break;
+                case M_SOS:
+                    if (!parseScan(payload, segmentEnd)) {
+                        return false;
+                    }
+                    keep(segmentStart, segmentEnd);
+                    mScanData = segmentEnd;
+                    return true;
+                default:
+                    if (marker >= M_SOF0 && marker <= M_SOF15 && marker != M_DHT
+                            && marker != M_JPG && marker != M_DAC) {
+                        // progressive, lossless or arithmetic coded
+                        return false;
+                    }
+                    // the rest of the metadata is dropped, ImageSaver writes it anew
+                    break;
+            }
+            pos = segmentEnd;
+        }
+    }
+
+    private void keep(int start, int end) {
+        mKeptSegments.add(new int[] {start, end});
+    }
+
+    private boolean startsWith(int pos, int end, byte[] prefix) {
+        if (end - pos < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (mData[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseFrame(int pos, int end) throws FormatException {
+        if (mFrameComponents != null || end - pos < 6) {
+            throw new FormatException();
+        }
+        int precision = u8(pos);
+        mHeight = u16(pos + 1);
+        mWidth = u16(pos + 3);
+        int count = u8(pos + 5);
+        if (end - pos != 6 + 3 * count || count == 0 || mWidth == 0) {
+            throw new FormatException();
+        }
+        if (precision != 8 || mHeight == 0) {
+            // 12 bit samples, or the height is defined by a DNL segment after the scan
+            return false;
+        }
+        mFrameComponents = new Component[count];
+        int maxH = 1;
+        int maxV = 1;
+        for (int i = 0; i < count; ++i) {
+            int p = pos + 6 + 3 * i;
+            int h = u8(p + 1) >> 4;
+            int v = u8(p + 1) & 0xf;
+            if (h < 1 || h > 4 || v < 1 || v > 4) {
+                throw new FormatException();
+            }
+            // a single component is coded in blocks rather than in MCUs of its sampling factors
+            int blocks = count == 1 ? 1 : h * v;
+            mFrameComponents[i] = new Component(u8(p), blocks);
+            maxH = Math.max(maxH, h);
+            maxV = Math.max(maxV, v);
+        }
+        mMcuWidth = count == 1 ? 8 : 8 * maxH;
+        mMcuHeight = count == 1 ? 8 : 8 * maxV;
+        return true;
+    }
+
+    private void parseHuffmanTables(int pos, int end) throws FormatException {
+        while (pos < end) {
+            if (end - pos < 17) {
+                throw new FormatException();
+            }
+            int tableClass = u8(pos) >> 4;
+            int id = u8(pos) & 0xf;
+            if (tableClass > 1 || id > 3) {
+                throw new FormatException();
+            }
+            int[] counts = new int[17];
+            int total = 0;
+            for (int length = 1; length <= 16; ++length) {
+                counts[length] = u8(pos + length);
+                total += counts[length];
+            }
+            if (total > 256 || end - pos < 17 + total) {
+                throw new FormatException();
+            }
+            HuffmanTable table = new HuffmanTable(counts, mData, pos + 17);
+            if (tableClass == 0) {
+                mDcTables[id] = table;
+            } else {
+                mAcTables[id] = table;
+            }
+            pos += 17 + total;
+        }
+    }
+
+    private boolean parseScan(int pos, int end) throws FormatException {
+        if (mFrameComponents == null || end - pos < 1) {
+            throw new FormatException();
+        }
+        int count = u8(pos);
+        if (end - pos != 1 + 2 * count + 3) {
+            throw new FormatException();
+        }
+        if (count != mFrameComponents.length) {
+            // the components are coded in separate scans
+            return false;
+        }
+        mScanComponents = new Component[count];
+        for (int i = 0; i < count; ++i) {
+            int p = pos + 1 + 2 * i;
+            Component component = null;
+            for (Component c : mFrameComponents) {
+                if (c.mId == u8(p)) {
+                    component = c;
+                }
+            }
+            int dc = u8(p + 1) >> 4;
+            int ac = u8(p + 1) & 0xf;
+            if (component == null || dc > 3 || ac > 3
+                    || mDcTables[dc] == null || mAcTables[ac] == null) {
+                throw new FormatException();
+            }
+            component.mDcTable = mDcTables[dc];
+            component.mAcTable = mAcTables[ac];
+            mScanComponents[i] = component;
+        }
+        int p = pos + 1 + 2 * count;
+        // the spectral selection and successive approximation of a sequential scan
+        return u8(p) == 0 && u8(p + 1) == 63 && u8(p + 2) == 0;
+    }
+
+    // Returns the multiple of mcuSize nearest to start, at which a crop of size still fits.
+    private static int align(int start, int size, int mcuSize, int imageSize) {
+        int aligned = (start + mcuSize / 2) / mcuSize * mcuSize;
+        return aligned + size <= imageSize ? aligned : start / mcuSize * mcuSize;
+    }
+
+    private boolean write(int left, int top, int width, int height, OutputStream out)
+            throws IOException, FormatException {
+        if (left < 0 || top < 0 || width <= 0 || height <= 0
+                || left > mWidth - width || top > mHeight - height) {
+            throw new IllegalArgumentException("Crop " + width + "x" + height + "+" + left + "+"
+                    + top + " isn't within the image of " + mWidth + "x" + mHeight);
+        }
+        for (Component component : mScanComponents) {
+            // the DC differences of the first blocks of each row of the crop are coded anew
+            if (!component.mDcTable.canEncodeDcDifferences()) {
+                return false;
+            }
+        }
+
+        out.write(new byte[] {(byte) 0xff, (byte) M_SOI});
+        for (int[] segment : mKeptSegments) {
+            int start = segment[0];
+            int length = segment[1] - start;
+            if (start != mFrameSegment) {
+                out.write(mData, start, length);
+                continue;
+            }
+            byte[] frame = new byte[length];
+            System.arraycopy(mData, start, frame, 0, length);
+            // the marker, the length and the precision precede the dimensions
+            frame[5] = (byte) (height >> 8);
+            frame[6] = (byte) height;
+            frame[7] = (byte) (width >> 8);
+            frame[8] = (byte) width;
+            out.write(frame);
+        }
+
+        int mcuLeft = align(left, width, mMcuWidth, mWidth) / mMcuWidth;
+        int mcuTop = align(top, height, mMcuHeight, mHeight) / mMcuHeight;
+        BitWriter writer = new BitWriter(out);
+        writeScan(new BitReader(mData, mScanData, mEnd), writer, mcuLeft, mcuTop,
+                mcuLeft + ceilDiv(width, mMcuWidth), mcuTop + ceilDiv(height, mMcuHeight));
+        writer.finish();
+        out.write(new byte[] {(byte) 0xff, (byte) M_EOI});
+        return true;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    // Copies the MCUs in columns [left, right) of rows [top, bottom) from reader to writer.
+    private void writeScan(BitReader reader, BitWriter writer, int left, int top, int right,
+            int bottom) throws IOException, FormatException {
+        int mcusPerRow = ceilDiv(mWidth, mMcuWidth);
+        int last = (bottom - 1) * mcusPerRow + right - 1;
+        int interval = mRestartInterval;
+
+        int mcu = 0;
+        for (Component component : mScanComponents) {
+            component.mOutputPredictor = 0;
+        }
+        while (mcu <= last) {
+            if (interval != 0 && mcu % interval == 0) {
+                if (mcu != 0 && (reader.isOverrun() || !reader.skipRestartMarker(false))) {
+                    throw new FormatException();
+                }
+                // nothing of the intervals before the crop, or in its margins, has to be parsed
+                while (!intervalIntersects(mcu, interval, mcusPerRow, left, top, right)) {
+                    if (!reader.skipRestartMarker(true)) {
+                        throw new FormatException();
+                    }
+                    mcu += interval;
+                }
+                for (Component component : mScanComponents) {
+                    component.mPredictor = 0;
+                }
+            }
+            int row = mcu / mcusPerRow;
+            int column = mcu - row * mcusPerRow;
+            boolean kept = row >= top && column >= left && column < right;
+            for (Component component : mScanComponents) {
+                for (int i = 0; i < component.mBlocksPerMcu; ++i) {
+                    copyBlock(reader, kept ? writer : null, component);
+                }
+            }
+            ++mcu;
+        }
+        if (reader.isOverrun()) {
+            throw new FormatException();
+        }
+    }
+
+    private static boolean intervalIntersects(int start, int length, int mcusPerRow, int left,
+            int top, int right) {
+        int end = start + length - 1;
+        int firstRow = start / mcusPerRow;
+        int lastRow = end / mcusPerRow;
+        for (int row = Math.max(firstRow, top); row <= lastRow; ++row) {
+            int from = row == firstRow ? start - row * mcusPerRow : 0;
+            int to = row == lastRow ? end - row * mcusPerRow : mcusPerRow - 1;
+            if (from < right && to >= left) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Parses a block, and writes it to writer unless it's null.
+    private static void copyBlock(BitReader reader, BitWriter writer, Component component)
+            throws IOException, FormatException {
+        int symbol = reader.decode(component.mDcTable);
+        int category = symbol & 0xff;
+        if (category > 15) {
+            throw new FormatException();
+        }
+        int bits = category == 0 ? 0 : reader.getBits(category);
+        int difference = extend(bits, category);
+        int dc = component.mPredictor + difference;
+        component.mPredictor = dc;
+        if (writer != null) {
+            int outputDifference = dc - component.mOutputPredictor;
+            component.mOutputPredictor = dc;
+            if (outputDifference == difference) {
+                writer.put(code(symbol) << category | bits, codeLength(symbol) + category);
+            } else {
+                writeDcDifference(writer, component.mDcTable, outputDifference);
+            }
+        }
+
+        HuffmanTable acTable = component.mAcTable;
+        int k = 1;
+        while (k < 64) {
+            int lookup = reader.peek();
+            int entry = acTable.mCoefficientLookup[lookup];
+            int run;
+            int size;
+            if (entry != 0) {
+                // the code and the bits of the coefficient are copied together
+                int length = entry >> 8;
+                reader.skip(length);
+                if (writer != null) {
+                    writer.put(lookup >> (HuffmanTable.LOOKUP_BITS - length), length);
+                }
+                run = (entry & 0xff) >> 4;
+                size = entry & 0xf;
+            } else {
+                symbol = reader.decode(acTable);
+                run = (symbol & 0xff) >> 4;
+                size = symbol & 0xf;
+                bits = size == 0 ? 0 : reader.getBits(size);
+                if (writer != null) {
+                    writer.put(code(symbol) << size | bits, codeLength(symbol) + size);
+                }
+            }
+            if (size != 0) {
+                k += run + 1;
+            } else if (run == 15) {
+                k += 16;
+            } else {
+                // end of block
+                break;
+            }
+        }
+        if (k > 64) {
+            throw new FormatException();
+        }
+    }
+
+    private static void writeDcDifference(BitWriter writer, HuffmanTable table, int difference)
+            throws IOException, FormatException {
+        int magnitude = Math.abs(difference);
+        int category = 32 - Integer.numberOfLeadingZeros(magnitude);
+        if (category > MAX_DC_CATEGORY) {
+            throw new FormatException();
+        }
+        // negative differences are coded as the low bits of the difference minus one
+        int bits = (difference < 0 ? difference - 1 : difference) & ((1 << category) - 1);
+        writer.put(table.mCodes[category] << category | bits,
+                table.mCodeLengths[category] + category);
+    }
+
+    private static int extend(int bits, int category) {
+        return category != 0 && bits < 1 << (category - 1) ? bits - (1 << category) + 1 : bits;
+    }
+
+    // see BitReader.decode()
+    private static int code(int symbol) {
+        return (symbol >>> 8) & 0xffff;
+    }
+
+    private static int codeLength(int symbol) {
+        return symbol >>> 24;
+    }
+
+    private static final class Component {
+        final int mId;
+        final int mBlocksPerMcu;
+        HuffmanTable mDcTable;
+        HuffmanTable mAcTable;
+        // the DC value of the last block of the component in the input and in the output
+        int mPredictor;
+        int mOutputPredictor;
+
+        Component(int id, int blocksPerMcu) {
+            mId = id;
+            mBlocksPerMcu = blocksPerMcu;
+        }
+    }
+
+    private static final class HuffmanTable {
+        static final int LOOKUP_BITS = 10;
+
+        // the length and symbol of the codes that are at most LOOKUP_BITS long, indexed by the
+        // next LOOKUP_BITS bits of the input, 0 for the longer codes
+        final int[] mLookup = new int[1 << LOOKUP_BITS];
+        // the same for AC codes that are followed by the bits of their coefficient, with the
+        // length of both, 0 if they're longer than LOOKUP_BITS together
+        final int[] mCoefficientLookup = new int[1 << LOOKUP_BITS];
+        // the largest code of each length, or -1, and the offset of its symbols in mSymbols
+        final int[] mMaxCode = new int[17];
+        final int[] mSymbolOffsets = new int[17];
+        final int[] mSymbols;
+        // the code and its length for each symbol, for encoding
+        final int[] mCodes = new int[256];
+        final int[] mCodeLengths = new int[256];
+
+        // see Annex C of ITU T.81
+        HuffmanTable(int[] counts, byte[] data, int symbolsStart) throws FormatException {
+            int total = 0;
+            for (int length = 1; length <= 16; ++length) {
+                total += counts[length];
+            }
+            mSymbols = new int[total];
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; ++length) {
+                mSymbolOffsets[length] = k - code;
+                for (int i = 0; i < counts[length]; ++i) {
+                    if (code >= 1 << length) {
+                        throw new FormatException();
+                    }
+                    int symbol = data[symbolsStart + k] & 0xff;
+                    mSymbols[k] = symbol;
+                    mCodes[symbol] = code;
+                    mCodeLengths[symbol] = length;
+                    if (length <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - length;
+                        for (int suffix = 0; suffix < 1 << shift; ++suffix) {
+                            mLookup[code << shift | suffix] = length << 8 | symbol;
+                        }
+                    }
+                    ++code;
+                    ++k;
+                }
+                mMaxCode[length] = counts[length] != 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            for (int i = 0; i < mLookup.length; ++i) {
+                int entry = mLookup[i];
+                int length = (entry >> 8) + (entry & 0xf);
+                if (entry != 0 && length <= LOOKUP_BITS) {
+                    mCoefficientLookup[i] = length << 8 | (entry & 0xff);
+                }
+            }
+        }
+
+        boolean canEncodeDcDifferences() {
+            for (int category = 0; category <= MAX_DC_CATEGORY; ++category) {
+                if (mCodeLengths[category] == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Reads the entropy coded data of a scan, without the stuffed zero bytes. */
+    private static final class BitReader {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPos;
+        private long mBits;
+        private int mBitCount;
+        // reading stopped at a marker, zero bits are read past it
+        private boolean mAtMarker;
+        private int mZeroBytes;
+
+        BitReader(byte[] data, int start, int end) {
+            mData = data;
+            mPos = start;
+            mEnd = end;
+        }
+
+        private void fill() {
+            while (mBitCount <= 56) {
+                int b = 0;
+                if (mAtMarker || mPos >= mEnd) {
+                    ++mZeroBytes;
+                } else {
+                    b = mData[mPos] & 0xff;
+                    if (b != 0xff) {
+                        ++mPos;
+                    } else if (mPos + 1 < mEnd && mData[mPos + 1] == 0) {
+                        mPos += 2;
+                    } else {
+                        mAtMarker = true;
+                        ++mZeroBytes;
+                        b = 0;
+                    }
+                }
+                mBits = mBits << 8 | b;
+                mBitCount += 8;
+            }
+        }
+
+        /** Returns whether bits past the end of the data were read, which means it's corrupt. */
+        boolean isOverrun() {
+            return mBitCount < 8 * mZeroBytes;
+        }
+
+        /** Returns the next LOOKUP_BITS bits without consuming them. */
+        int peek() {
+            if (mBitCount < 16) {
+                fill();
+            }
+            return (int) (mBits >>> (mBitCount - HuffmanTable.LOOKUP_BITS))
+                    & ((1 << HuffmanTable.LOOKUP_BITS) - 1);
+        }
+
+        void skip(int count) {
+            mBitCount -= count;
+        }
+
+        int getBits(int count) {
+            if (mBitCount < count) {
+                fill();
+            }
+            mBitCount -= count;
+            return (int) (mBits >>> mBitCount) & ((1 << count) - 1);
+        }
+
+        /**
+         * Returns the symbol of the next Huffman code in the low 8 bits, the code above them and
+         * its length in the top 8 bits.
+         */
+        int decode(HuffmanTable table) throws FormatException {
+            if (mBitCount < 16) {
+                fill();
+            }
+            int lookup = (int) (mBits >>> (mBitCount - HuffmanTable.LOOKUP_BITS))
+                    & ((1 << HuffmanTable.LOOKUP_BITS) - 1);
+            int entry = table.mLookup[lookup];
+            if (entry != 0) {
+                int length = entry >> 8;
+                mBitCount -= length;
+                return length << 24 | (lookup >> (HuffmanTable.LOOKUP_BITS - length)) << 8
+                        | (entry & 0xff);
+            }
+            int bits = (int) (mBits >>> (mBitCount - 16)) & 0xffff;
+            for (int length = HuffmanTable.LOOKUP_BITS + 1; length <= 16; ++length) {
+                int code = bits >>> (16 - length);
+                if (code <= table.mMaxCode[length]) {
+                    mBitCount -= length;
+                    return length << 24 | code << 8
+                            | table.mSymbols[table.mSymbolOffsets[length] + code];
+                }
+            }
+            throw new FormatException();
+        }
+
+        /**
+         * Moves past the next restart marker, returns false if there is another marker first.
+         * The data before it is skipped if skipData is true, otherwise only the padding bits
+         * of the last byte may precede it.
+         */
+        boolean skipRestartMarker(boolean skipData) {
+            // fill() never reads past a marker, so the bits that are left are the padding
+            mBits = 0;
+            mBitCount = 0;
+            mAtMarker = false;
+            mZeroBytes = 0;
+            while (mPos + 1 < mEnd) {
+                if (mData[mPos] != (byte) 0xff) {
+                    if (!skipData) {
+                        return false;
+                    }
+                    ++mPos;
+                    continue;
+                }
+                int next = mData[mPos + 1] & 0xff;
+                if (next == 0 || next == 0xff) {
+                    // a stuffed zero byte, or a fill byte before a marker
+                    ++mPos;
+                    continue;
+                }
+                mPos += 2;
+                return next >= M_RST0 && next <= M_RST7;
+            }
+            return false;
+        }
+    }
+
+    /** Writes entropy coded data, with a zero byte stuffed after each 0xff byte. */
+    private static final class BitWriter {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final OutputStream mOut;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPos;
+        private long mBits;
+        private int mBitCount;
+
+        BitWriter(OutputStream out) {
+            mOut = out;
+        }
+
+        // count is at most 31, the bits are written out 32 at a time
+        void put(int bits, int count) throws IOException {
+            mBits = mBits << count | bits;
+            mBitCount += count;
+            if (mBitCount < 32) {
+                return;
+            }
+            mBitCount -= 32;
+            int word = (int) (mBits >>> mBitCount);
+            if (mPos > BUFFER_SIZE - 8) {
+                mOut.write(mBuffer, 0, mPos);
+                mPos = 0;
+            }
+            // whether a byte of the word is 0xff, i.e. a byte of its complement is 0
+            int complement = ~word;
+            if (((complement - 0x01010101) & ~complement & 0x80808080) == 0) {
+                mBuffer[mPos] = (byte) (word >>> 24);
+                mBuffer[mPos + 1] = (byte) (word >>> 16);
+                mBuffer[mPos + 2] = (byte) (word >>> 8);
+                mBuffer[mPos + 3] = (byte) word;
+                mPos += 4;
+                return;
+            }
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                int b = (word >>> shift) & 0xff;
+                mBuffer[mPos++] = (byte) b;
+                if (b == 0xff) {
+                    mBuffer[mPos++] = 0;
+                }
+            }
+        }
+
+        /** Pads the last byte with one bits and writes out the buffered data. */
+        void finish() throws IOException {
+            int padding = (8 - mBitCount % 8) % 8;
+            mBits = mBits << padding | ((1 << padding) - 1);
+            mBitCount += padding;
+            while (mBitCount > 0) {
+                mBitCount -= 8;
+                int b = (int) (mBits >>> mBitCount) & 0xff;
+                if (mPos > BUFFER_SIZE - 2) {
+                    mOut.write(mBuffer, 0, mPos);
+                    mPos = 0;
+                }
+                mBuffer[mPos++] = (byte) b;
+                if (b == 0xff) {
+                    mBuffer[mPos++] = 0;
+                }
+            }
+            mOut.write(mBuffer, 0, mPos);
+            mPos = 0;
+        }
+    }
+
+    private static final class FormatException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        FormatException() {
+            super(null, null, false, false);
+        }
+    }
+}
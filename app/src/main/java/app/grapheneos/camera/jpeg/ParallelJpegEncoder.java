@@ -0,0 +1,694 @@
+package app.grapheneos.camera.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encodes baseline 4:2:0 JPEG images on several threads.
+ *
+ * <p>The image is split into horizontal stripes of whole MCU rows, which are encoded in parallel
+ * on a fork/join pool and concatenated. A restart interval of one MCU row lets each stripe be
+ * encoded on its own: every MCU row starts with fresh DC predictors and is byte aligned, and the
+ * RSTn marker that ends it only depends on its index. The output is a single JFIF image with the
+ * quantization tables of libjpeg for the given quality and the Huffman tables of Annex K of
+ * ITU T.81, so it's decoded like any other baseline JPEG, and JpegCropper can skip the restart
+ * intervals outside of a crop.
+ */
+public final class ParallelJpegEncoder {
+    /** Pixels of the image to encode. Stripes are read concurrently, from different threads. */
+    public interface Source {
+        /**
+         * Reads rows [top, top + rows) of the image, at most MCU_SIZE of them. The luma samples
+         * of each row go to y, stride bytes apart, the chroma samples of each pair of rows to cb
+         * and cr, stride / 2 bytes apart, half as many as the luma samples in each direction,
+         * rounded up.
+         */
+        void read(int top, int rows, int width, byte[] y, byte[] cb, byte[] cr, int stride);
+    }
+
+    /** Reads the rows of an image as ARGB pixels, see {@link ArgbSource}. */
+    public interface ArgbRows {
+        /** Reads rows [top, top + rows) into argb, width pixels apart. */
+        void read(int top, int rows, int[] argb);
+    }
+
+    public static final int MCU_SIZE = 16;
+
+    private static final int M_SOI = 0xd8;
+    private static final int M_EOI = 0xd9;
+    private static final int M_APP0 = 0xe0;
+    private static final int M_DQT = 0xdb;
+    private static final int M_SOF0 = 0xc0;
+    private static final int M_DHT = 0xc4;
+    private static final int M_DRI = 0xdd;
+    private static final int M_SOS = 0xda;
+    private static final int M_RST0 = 0xd0;
+
+    // the stripes of each thread, so that stripes that take longer are balanced out
+    private static final int STRIPES_PER_THREAD = 4;
+
+    // natural order index of the coefficients in zigzag order
+    private static final int[] ZIGZAG = {
+        0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+        12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63,
+    };
+
+    // Annex K.1, in natural order
+    private static final int[] LUMA_QUANTIZATION = {
+        16, 11, 10, 16, 24, 40, 51, 61,
+        12, 12, 14, 19, 26, 58, 60, 55,
+        14, 13, 16, 24, 40, 57, 69, 56,
+        14, 17, 22, 29, 51, 87, 80, 62,
+        18, 22, 37, 56, 68, 109, 103, 77,
+        24, 35, 55, 64, 81, 104, 113, 92,
+        49, 64, 78, 87, 103, 121, 120, 101,
+        72, 92, 95, 98, 112, 100, 103, 99,
+    };
+    private static final int[] CHROMA_QUANTIZATION = {
+        17, 18, 24, 47, 99, 99, 99, 99,
+        18, 21, 26, 66, 99, 99, 99, 99,
+        24, 26, 56, 99, 99, 99, 99, 99,
+        47, 66, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+    };
+
+    // Annex K.3, the number of codes of each length from 1 to 16, then the symbols
+    private static final int[] LUMA_DC_COUNTS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] LUMA_DC_SYMBOLS = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] CHROMA_DC_COUNTS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] CHROMA_DC_SYMBOLS = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] LUMA_AC_COUNTS =
+            {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] LUMA_AC_SYMBOLS = {
+        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61,
+        0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52,
+        0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25,
+        0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45,
+        0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64,
+        0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83,
+        0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99,
+        0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+        0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3,
+        0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8,
+        0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+    };
+    private static final int[] CHROMA_AC_COUNTS =
+            {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] CHROMA_AC_SYMBOLS = {
+        0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61,
+        0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33,
+        0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18,
+        0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+        0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63,
+        0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a,
+        0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97,
+        0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+        0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca,
+        0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7,
+        0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+    };
+
+    private static final HuffmanTable LUMA_DC = new HuffmanTable(LUMA_DC_COUNTS, LUMA_DC_SYMBOLS);
+    private static final HuffmanTable LUMA_AC = new HuffmanTable(LUMA_AC_COUNTS, LUMA_AC_SYMBOLS);
+    private static final HuffmanTable CHROMA_DC =
+            new HuffmanTable(CHROMA_DC_COUNTS, CHROMA_DC_SYMBOLS);
+    private static final HuffmanTable CHROMA_AC =
+            new HuffmanTable(CHROMA_AC_COUNTS, CHROMA_AC_SYMBOLS);
+
+    // the scale factors of the AAN DCT, see jfdctflt.c of libjpeg
+    private static final double[] AAN_SCALE_FACTORS = {
+        1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379,
+    };
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mQuality;
+    private final int mMcusPerRow;
+    private final int mMcuRows;
+    // the padded width of the sample buffers of an MCU row
+    private final int mStride;
+    private final int[] mLumaQuantization;
+    private final int[] mChromaQuantization;
+    // the reciprocals of the quantization steps, scaled for the output of the DCT
+    private final float[] mLumaDivisors;
+    private final float[] mChromaDivisors;
+
+    private ParallelJpegEncoder(int width, int height, int quality) {
+        mWidth = width;
+        mHeight = height;
+        mQuality = quality;
+        mMcusPerRow = (width + MCU_SIZE - 1) / MCU_SIZE;
+        mMcuRows = (height + MCU_SIZE - 1) / MCU_SIZE;
+        mStride = mMcusPerRow * MCU_SIZE;
+        mLumaQuantization = scaleQuantization(LUMA_QUANTIZATION, quality);
+        mChromaQuantization = scaleQuantization(CHROMA_QUANTIZATION, quality);
+        mLumaDivisors = divisors(mLumaQuantization);
+        mChromaDivisors = divisors(mChromaQuantization);
+    }
+
+    /**
+     * Encodes the image of source, which is width x height, with the given quality from 1 to 100,
+     * the same scale as libjpeg. The stripes are encoded on pool, the calling thread joins them.
+     */
+    public static void encode(Source source, int width, int height, int quality,
+            ForkJoinPool pool, OutputStream out) throws IOException {
+        if (width < 1 || height < 1 || width > 0xffff || height > 0xffff) {
+            throw new IllegalArgumentException("unsupported size " + width + "x" + height);
+        }
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("quality " + quality);
+        }
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder(width, height, quality);
+        int stripeCount = Math.min(encoder.mMcuRows, pool.getParallelism() * STRIPES_PER_THREAD);
+        byte[][] stripes = new byte[stripeCount][];
+        int[] stripeSizes = new int[stripeCount];
+        pool.invoke(encoder.new StripeTask(source, 0, stripeCount, stripes, stripeSizes));
+
+        encoder.writeHeaders(out);
+        for (int i = 0; i < stripeCount; ++i) {
+            out.write(stripes[i], 0, stripeSizes[i]);
+        }
+        out.write(0xff);
+        out.write(M_EOI);
+    }
+
+    // encodes stripes [first, end), splitting them among the workers of the pool
+    private final class StripeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Source mSource;
+        private final int mFirst;
+        private final int mEnd;
+        private final byte[][] mStripes;
+        private final int[] mStripeSizes;
+
+        StripeTask(Source source, int first, int end, byte[][] stripes, int[] stripeSizes) {
+            mSource = source;
+            mFirst = first;
+            mEnd = end;
+            mStripes = stripes;
+            mStripeSizes = stripeSizes;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mFirst > 1) {
+                int middle = (mFirst + mEnd) >>> 1;
+                invokeAll(new StripeTask(mSource, mFirst, middle, mStripes, mStripeSizes),
+                        new StripeTask(mSource, middle, mEnd, mStripes, mStripeSizes));
+                return;
+            }
+            int stripeCount = mStripes.length;
+            int firstRow = (int) ((long) mMcuRows * mFirst / stripeCount);
+            int endRow = (int) ((long) mMcuRows * (mFirst + 1) / stripeCount);
+            BitWriter writer = new BitWriter(
+                    estimateSize(endRow - firstRow));
+            encodeStripe(mSource, firstRow, endRow, writer);
+            mStripes[mFirst] = writer.mBuffer;
+            mStripeSizes[mFirst] = writer.mPos;
+        }
+    }
+
+    // a rough guess of the compressed size of MCU rows, the buffer grows if it's too small
+    private int estimateSize(int mcuRows) {
+        long pixels = (long) mcuRows * MCU_SIZE * mStride;
+        return (int) Math.min(Integer.MAX_VALUE - 8,
+                Math.max(4096, pixels * (mQuality >= 90 ? 3 : 1) / 4));
+    }
+
+    private void encodeStripe(Source source, int firstRow, int endRow, BitWriter writer) {
+        int chromaStride = mStride / 2;
+        byte[] y = new byte[mStride * MCU_SIZE];
+        byte[] cb = new byte[chromaStride * MCU_SIZE / 2];
+        byte[] cr = new byte[chromaStride * MCU_SIZE / 2];
+        float[] block = new float[64];
+        int[] coefficients = new int[64];
+
+        for (int row = firstRow; row < endRow; ++row) {
+            int top = row * MCU_SIZE;
+            int rows = Math.min(MCU_SIZE, mHeight - top);
+            source.read(top, rows, mWidth, y, cb, cr, mStride);
+            pad(y, mStride, mWidth, rows, MCU_SIZE);
+            int chromaWidth = (mWidth + 1) / 2;
+            int chromaRows = (rows + 1) / 2;
+            pad(cb, chromaStride, chromaWidth, chromaRows, MCU_SIZE / 2);
+            pad(cr, chromaStride, chromaWidth, chromaRows, MCU_SIZE / 2);
+
+            int yPredictor = 0;
+            int cbPredictor = 0;
+            int crPredictor = 0;
+            for (int mcu = 0; mcu < mMcusPerRow; ++mcu) {
+                int x = mcu * MCU_SIZE;
+                for (int i = 0; i < 4; ++i) {
+                    int offset = (i >> 1) * 8 * mStride + x + (i & 1) * 8;
+                    loadBlock(y, offset, mStride, block);
+                    yPredictor = encodeBlock(block, mLumaDivisors, yPredictor, LUMA_DC, LUMA_AC,
+                            coefficients, writer);
+                }
+                loadBlock(cb, mcu * 8, chromaStride, block);
+                cbPredictor = encodeBlock(block, mChromaDivisors, cbPredictor, CHROMA_DC,
+                        CHROMA_AC, coefficients, writer);
+                loadBlock(cr, mcu * 8, chromaStride, block);
+                crPredictor = encodeBlock(block, mChromaDivisors, crPredictor, CHROMA_DC,
+                        CHROMA_AC, coefficients, writer);
+            }
+
+            writer.flush();
+            if (row != mMcuRows - 1) {
+                writer.putMarker(M_RST0 + (row & 7));
+            }
+        }
+    }
+
+    // replicates the last column and the last row of the samples into the padding of the buffer
+    private static void pad(byte[] samples, int stride, int width, int rows, int paddedRows) {
+        for (int row = 0; row < rows; ++row) {
+            int start = row * stride;
+            Arrays.fill(samples, start + width, start + stride, samples[start + width - 1]);
+        }
+        for (int row = rows; row < paddedRows; ++row) {
+            System.arraycopy(samples, (rows - 1) * stride, samples, row * stride, stride);
+        }
+    }
+
+    private static void loadBlock(byte[] samples, int offset, int stride, float[] block) {
+        for (int row = 0; row < 8; ++row) {
+            int start = offset + row * stride;
+            for (int col = 0; col < 8; ++col) {
+                block[row * 8 + col] = (samples[start + col] & 0xff) - 128;
+            }
+        }
+    }
+
+    // returns the DC value of the block, the predictor of the next one
+    private static int encodeBlock(float[] block, float[] divisors, int predictor,
+            HuffmanTable dcTable, HuffmanTable acTable, int[] coefficients, BitWriter writer) {
+        forwardDct(block);
+        for (int i = 0; i < 64; ++i) {
+            coefficients[i] = Math.round(block[i] * divisors[i]);
+        }
+
+        int dc = coefficients[0];
+        int difference = dc - predictor;
+        int category = category(difference);
+        writer.put(dcTable.mCodes[category], dcTable.mCodeLengths[category]);
+        writer.put(magnitudeBits(difference, category), category);
+
+        int run = 0;
+        for (int k = 1; k < 64; ++k) {
+            int coefficient = coefficients[ZIGZAG[k]];
+            if (coefficient == 0) {
+                ++run;
+                continue;
+            }
+            while (run > 15) {
+                // ZRL, a run of 16 zeros
+                writer.put(acTable.mCodes[0xf0], acTable.mCodeLengths[0xf0]);
+                run -= 16;
+            }
+            category = category(coefficient);
+            int symbol = run << 4 | category;
+            writer.put(acTable.mCodes[symbol], acTable.mCodeLengths[symbol]);
+            writer.put(magnitudeBits(coefficient, category), category);
+            run = 0;
+        }
+        if (run > 0) {
+            // EOB
+            writer.put(acTable.mCodes[0], acTable.mCodeLengths[0]);
+        }
+        return dc;
+    }
+
+    private static int category(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    // negative values are coded as the low bits of the value minus one
+    private static int magnitudeBits(int value, int category) {
+        return (value < 0 ? value - 1 : value) & ((1 << category) - 1);
+    }
+
+    // the floating point AAN DCT of jfdctflt.c, in place, its output is scaled by
+    // AAN_SCALE_FACTORS[row] * AAN_SCALE_FACTORS[col] * 8, which divisors() takes out
+    private static void forwardDct(float[] data) {
+        for (int i = 0; i < 64; i += 8) {
+            dct8(data, i, 1);
+        }
+        for (int i = 0; i < 8; ++i) {
+            dct8(data, i, 8);
+        }
+    }
+
+    private static void dct8(float[] d, int o, int s) {
+        float tmp0 = d[o] + d[o + 7 * s];
+        float tmp7 = d[o] - d[o + 7 * s];
+        float tmp1 = d[o + s] + d[o + 6 * s];
+        float tmp6 = d[o + s] - d[o + 6 * s];
+        float tmp2 = d[o + 2 * s] + d[o + 5 * s];
+        float tmp5 = d[o + 2 * s] - d[o + 5 * s];
+        float tmp3 = d[o + 3 * s] + d[o + 4 * s];
+        float tmp4 = d[o + 3 * s] - d[o + 4 * s];
+
+        // even part
+        float tmp10 = tmp0 + tmp3;
+        float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+
+        d[o] = tmp10 + tmp11;
+        d[o + 4 * s] = tmp10 - tmp11;
+
+        float z1 = (tmp12 + tmp13) * 0.707106781f;
+        d[o + 2 * s] = tmp13 + z1;
+        d[o + 6 * s] = tmp13 - z1;
+
+        // odd part
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+
+        float z5 = (tmp10 - tmp12) * 0.382683433f;
+        float z2 = 0.541196100f * tmp10 + z5;
+        float z4 = 1.306562965f * tmp12 + z5;
+        float z3 = tmp11 * 0.707106781f;
+
+        float z11 = tmp7 + z3;
+        float z13 = tmp7 - z3;
+
+        d[o + 5 * s] = z13 + z2;
+        d[o + 3 * s] = z13 - z2;
+        d[o + s] = z11 + z4;
+        d[o + 7 * s] = z11 - z4;
+    }
+
+    // the scaling of jpeg_quality_scaling() and jpeg_add_quant_table() of libjpeg, for baseline
+    private static int[] scaleQuantization(int[] table, int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        int[] scaled = new int[64];
+        for (int i = 0; i < 64; ++i) {
+            scaled[i] = Math.max(1, Math.min(255, (table[i] * scale + 50) / 100));
+        }
+        return scaled;
+    }
+
+    private static float[] divisors(int[] quantization) {
+        float[] divisors = new float[64];
+        for (int row = 0; row < 8; ++row) {
+            for (int col = 0; col < 8; ++col) {
+                int i = row * 8 + col;
+                divisors[i] = (float) (1.0 / (quantization[i] * AAN_SCALE_FACTORS[row]
+                        * AAN_SCALE_FACTORS[col] * 8.0));
+            }
+        }
+        return divisors;
+    }
+
+    private void writeHeaders(OutputStream out) throws IOException {
+        writeMarker(out, M_SOI);
+
+        writeMarker(out, M_APP0);
+        writeShort(out, 16);
+        out.write(new byte[] {'J', 'F', 'I', 'F', 0});
+        // version 1.1, no units, 1:1 aspect ratio, no thumbnail
+        out.write(new byte[] {1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        writeMarker(out, M_DQT);
+        writeShort(out, 2 + 2 * 65);
+        writeQuantizationTable(out, 0, mLumaQuantization);
+        writeQuantizationTable(out, 1, mChromaQuantization);
+
+        writeMarker(out, M_SOF0);
+        writeShort(out, 8 + 3 * 3);
+        out.write(8);
+        writeShort(out, mHeight);
+        writeShort(out, mWidth);
+        out.write(3);
+        // the ids of the components, their sampling factors and their quantization tables
+        out.write(new byte[] {1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        writeMarker(out, M_DHT);
+        writeShort(out, 2 + LUMA_DC.size() + LUMA_AC.size() + CHROMA_DC.size()
+                + CHROMA_AC.size());
+        LUMA_DC.write(out, 0x00);
+        LUMA_AC.write(out, 0x10);
+        CHROMA_DC.write(out, 0x01);
+        CHROMA_AC.write(out, 0x11);
+
+        writeMarker(out, M_DRI);
+        writeShort(out, 4);
+        writeShort(out, mMcusPerRow);
+
+        writeMarker(out, M_SOS);
+        writeShort(out, 6 + 2 * 3);
+        out.write(3);
+        // the ids of the components and their Huffman tables
+        out.write(new byte[] {1, 0x00, 2, 0x11, 3, 0x11});
+        // spectral selection and successive approximation of a sequential scan
+        out.write(new byte[] {0, 63, 0});
+    }
+
+    private static void writeQuantizationTable(OutputStream out, int id, int[] table)
+            throws IOException {
+        out.write(id);
+        for (int k = 0; k < 64; ++k) {
+            out.write(table[ZIGZAG[k]]);
+        }
+    }
+
+    private static void writeMarker(OutputStream out, int marker) throws IOException {
+        out.write(0xff);
+        out.write(marker);
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value >>> 8);
+        out.write(value & 0xff);
+    }
+
+    private static final class HuffmanTable {
+        final int[] mCounts;
+        final int[] mSymbols;
+        // the code and its length for each symbol
+        final int[] mCodes = new int[256];
+        final int[] mCodeLengths = new int[256];
+
+        // see Annex C of ITU T.81
+        HuffmanTable(int[] counts, int[] symbols) {
+            mCounts = counts;
+            mSymbols = symbols;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; ++length) {
+                for (int i = 0; i < counts[length - 1]; ++i) {
+                    mCodes[symbols[k]] = code;
+                    mCodeLengths[symbols[k]] = length;
+                    ++code;
+                    ++k;
+                }
+                code <<= 1;
+            }
+        }
+
+        int size() {
+            return 1 + 16 + mSymbols.length;
+        }
+
+        void write(OutputStream out, int classAndId) throws IOException {
+            out.write(classAndId);
+            for (int count : mCounts) {
+                out.write(count);
+            }
+            for (int symbol : mSymbols) {
+                out.write(symbol);
+            }
+        }
+    }
+
+    /** Writes entropy coded data into a growing array, with a zero byte stuffed after 0xff. */
+    private static final class BitWriter {
+        byte[] mBuffer;
+        int mPos;
+        private long mBits;
+        private int mBitCount;
+
+        // put() and flush() write out at most 47 bits, up to 6 bytes, each of which may be
+        // followed by a stuffed zero byte
+        private static final int MAX_DRAINED_BYTES = 12;
+
+        BitWriter(int initialSize) {
+            mBuffer = new byte[initialSize];
+        }
+
+        // count is at most 16
+        void put(int bits, int count) {
+            mBits = mBits << count | bits;
+            mBitCount += count;
+            if (mBitCount < 32) {
+                return;
+            }
+            ensureCapacity(MAX_DRAINED_BYTES);
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                putByte((int) (mBits >>> mBitCount) & 0xff);
+            }
+        }
+
+        /** Pads the last byte with one bits and writes out the buffered bits. */
+        void flush() {
+            int padding = (8 - mBitCount % 8) % 8;
+            mBits = mBits << padding | ((1 << padding) - 1);
+            mBitCount += padding;
+            ensureCapacity(MAX_DRAINED_BYTES);
+            while (mBitCount > 0) {
+                mBitCount -= 8;
+                putByte((int) (mBits >>> mBitCount) & 0xff);
+            }
+            mBits = 0;
+        }
+
+        void putMarker(int marker) {
+            ensureCapacity(2);
+            mBuffer[mPos++] = (byte) 0xff;
+            mBuffer[mPos++] = (byte) marker;
+        }
+
+        private void putByte(int b) {
+            mBuffer[mPos++] = (byte) b;
+            if (b == 0xff) {
+                mBuffer[mPos++] = 0;
+            }
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (mPos + bytes > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mPos + bytes));
+            }
+        }
+    }
+
+    /** Reads the planes of a YUV_420_888 image, or of a crop of it whose origin is even. */
+    public static final class Yuv420Source implements Source {
+        private final ByteBuffer mY;
+        private final int mYRowStride;
+        private final ByteBuffer mU;
+        private final ByteBuffer mV;
+        private final int mUvRowStride;
+        private final int mUvPixelStride;
+        private final int mLeft;
+        private final int mTop;
+
+        public Yuv420Source(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                int uvRowStride, int uvPixelStride, int left, int top) {
+            mY = y;
+            mYRowStride = yRowStride;
+            mU = u;
+            mV = v;
+            mUvRowStride = uvRowStride;
+            mUvPixelStride = uvPixelStride;
+            mLeft = left;
+            mTop = top;
+        }
+
+        @Override
+        public void read(int top, int rows, int width, byte[] y, byte[] cb, byte[] cr,
+                int stride) {
+            // the positions of the buffers aren't shared between the threads
+            ByteBuffer yPlane = mY.duplicate();
+            for (int row = 0; row < rows; ++row) {
+                yPlane.position((mTop + top + row) * mYRowStride + mLeft);
+                yPlane.get(y, row * stride, width);
+            }
+
+            int chromaWidth = (width + 1) / 2;
+            int chromaRows = (rows + 1) / 2;
+            int chromaTop = (mTop + top) / 2;
+            int chromaLeft = mLeft / 2;
+            if (mUvPixelStride == 1) {
+                ByteBuffer uPlane = mU.duplicate();
+                ByteBuffer vPlane = mV.duplicate();
+                for (int row = 0; row < chromaRows; ++row) {
+                    int position = (chromaTop + row) * mUvRowStride + chromaLeft;
+                    uPlane.position(position);
+                    uPlane.get(cb, row * stride / 2, chromaWidth);
+                    vPlane.position(position);
+                    vPlane.get(cr, row * stride / 2, chromaWidth);
+                }
+                return;
+            }
+            for (int row = 0; row < chromaRows; ++row) {
+                int position = (chromaTop + row) * mUvRowStride + chromaLeft * mUvPixelStride;
+                int offset = row * stride / 2;
+                for (int col = 0; col < chromaWidth; ++col) {
+                    cb[offset + col] = mU.get(position);
+                    cr[offset + col] = mV.get(position);
+                    position += mUvPixelStride;
+                }
+            }
+        }
+    }
+
+    /** Converts ARGB pixels to YCbCr the way libjpeg does, ignoring alpha. */
+    public static final class ArgbSource implements Source {
+        private final ArgbRows mRows;
+        private final ThreadLocal<int[]> mPixels = new ThreadLocal<>();
+
+        public ArgbSource(ArgbRows rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public void read(int top, int rows, int width, byte[] y, byte[] cb, byte[] cr,
+                int stride) {
+            int[] pixels = mPixels.get();
+            if (pixels == null || pixels.length < width * MCU_SIZE) {
+                pixels = new int[width * MCU_SIZE];
+                mPixels.set(pixels);
+            }
+            mRows.read(top, rows, pixels);
+
+            for (int row = 0; row < rows; ++row) {
+                for (int col = 0; col < width; ++col) {
+                    int pixel = pixels[row * width + col];
+                    int r = (pixel >> 16) & 0xff;
+                    int g = (pixel >> 8) & 0xff;
+                    int b = pixel & 0xff;
+                    y[row * stride + col] = (byte) ((19595 * r + 38470 * g + 7471 * b + 32768)
+                            >> 16);
+                }
+            }
+
+            // the chroma of each 2x2 pixels is the one of their average color
+            int chromaStride = stride / 2;
+            for (int row = 0; row < rows; row += 2) {
+                int below = Math.min(row + 1, rows - 1);
+                for (int col = 0; col < width; col += 2) {
+                    int right = Math.min(col + 1, width - 1);
+                    int p0 = pixels[row * width + col];
+                    int p1 = pixels[row * width + right];
+                    int p2 = pixels[below * width + col];
+                    int p3 = pixels[below * width + right];
+                    int r = ((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff)
+                            + ((p3 >> 16) & 0xff);
+                    int g = ((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff)
+                            + ((p3 >> 8) & 0xff);
+                    int b = (p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff);
+                    // the sums are 4 times the average, which the shift takes out
+                    int index = (row / 2) * chromaStride + col / 2;
+                    cb[index] = (byte) ((-11059 * r - 21709 * g + 32768 * b + (128 << 18)
+                            + (1 << 17)) >> 18);
+                    cr[index] = (byte) ((32768 * r - 27439 * g - 5329 * b + (128 << 18)
+                            + (1 << 17)) >> 18);
+                }
+            }
+        }
+    }
+}
@@ -2,7 +2,6 @@ package app.grapheneos.camera.ui.activities
 
 import android.animation.ArgbEvaluator
 import android.animation.ValueAnimator
-import android.annotation.SuppressLint
 import android.content.Context
 import android.database.Cursor
 import android.graphics.BitmapFactory
@@ -36,6 +35,7 @@ import androidx.core.view.WindowInsetsControllerCompat
 import androidx.core.view.get
 import androidx.core.view.size
 import androidx.viewpager2.widget.ViewPager2
+import androidxc.exifinterface.media.ExifDateTime
 import androidxc.exifinterface.media.ExifInterface
 import app.grapheneos.camera.AutoFinishOnSleep
 import app.grapheneos.camera.CapturedItem
@@ -46,15 +46,20 @@ import app.grapheneos.camera.ITEM_TYPE_VIDEO
 import app.grapheneos.camera.R
 import app.grapheneos.camera.databinding.GalleryBinding
 import app.grapheneos.camera.editCapturedItem
+import app.grapheneos.camera.editExif
+import app.grapheneos.camera.removeLocation
 import app.grapheneos.camera.shareCapturedItem
+import app.grapheneos.camera.util.ExifSnapshotCache
 import app.grapheneos.camera.util.formatVideoDuration
 import app.grapheneos.camera.util.getParcelableArrayListExtra
 import app.grapheneos.camera.util.getParcelableExtra
 import app.grapheneos.camera.util.storageLocationToUiString
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import com.google.android.material.snackbar.Snackbar
-import java.text.ParseException
-import java.text.SimpleDateFormat
+import java.time.Instant
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
 import java.util.Date
 import java.util.Locale
 import java.util.TimeZone
@@ -92,48 +97,37 @@ class InAppGallery : AppCompatActivity() {
 
         const val LAST_VIEWED_ITEM_KEY = "LAST_VIEWED_ITEM_KEY"
 
-        @SuppressLint("SimpleDateFormat")
+        private val VIDEO_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss.SSS'Z'", Locale.US)
+                .withZone(ZoneOffset.UTC)
+
         fun convertTime(time: Long, showTimeZone: Boolean = true): String {
-            val date = Date(time)
-            val format = SimpleDateFormat(
-                if (showTimeZone) {
-                    "yyyy-MM-dd HH:mm:ss z"
-                } else {
-                    "yyyy-MM-dd HH:mm:ss"
-                }
-            )
-            format.timeZone = TimeZone.getDefault()
-            return format.format(date)
+            val zone = TimeZone.getDefault()
+            val chars = CharArray(ExifDateTime.DATE_TIME_LENGTH)
+            ExifDateTime.formatDateTime(ExifDateTime.toLocalMillis(time, zone), '-', chars, 0)
+            if (!showTimeZone) {
+                return String(chars)
+            }
+            return String(chars) + " " +
+                zone.getDisplayName(zone.inDaylightTime(Date(time)), TimeZone.SHORT)
         }
 
         fun convertTimeForVideo(time: String): String {
-            val dateFormat = SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'", Locale.US)
-            dateFormat.timeZone = TimeZone.getTimeZone("UTC")
-            val parsedDate = dateFormat.parse(time)
-            return convertTime(parsedDate?.time ?: 0)
+            return convertTime(Instant.from(VIDEO_DATE_FORMAT.parse(time)).toEpochMilli())
         }
 
-        fun convertTimeForPhoto(time: String, offset: String? = null): String {
-
-            val timestamp = if (offset != null) {
-                "$time $offset"
-            } else {
-                time
+        // null if the value isn't a valid Exif date and time
+        fun convertTimeForPhoto(time: String, offset: String? = null): String? {
+            val local = ExifDateTime.parseDateTime(time)
+            if (local == ExifDateTime.INVALID) {
+                return null
             }
-
-            val dateFormat = SimpleDateFormat(
-                if (offset == null) {
-                    "yyyy:MM:dd HH:mm:ss"
-                } else {
-                    "yyyy:MM:dd HH:mm:ss Z"
-                }, Locale.US
-            )
-
-            if (offset == null) {
-                dateFormat.timeZone = TimeZone.getDefault()
+            val offsetMillis = offset?.let { ExifDateTime.parseOffset(it) }
+                ?: ExifDateTime.INVALID_OFFSET
+            if (offsetMillis == ExifDateTime.INVALID_OFFSET) {
+                return convertTime(ExifDateTime.toUtcMillis(local, TimeZone.getDefault()), false)
             }
-            val parsedDate = dateFormat.parse(timestamp)
-            return convertTime(parsedDate?.time ?: 0, offset != null)
+            return convertTime(local - offsetMillis)
         }
 
         fun getRelativePath(ctx: Context, uri: Uri, path: String?, fileName: String): String {
@@ -187,6 +181,11 @@ class InAppGallery : AppCompatActivity() {
                 true
             }
 
+            R.id.remove_location -> {
+                removeLocationOfCurrentMedia()
+                true
+            }
+
             R.id.info -> {
                 showCurrentMediaDetails()
                 true
@@ -214,6 +213,31 @@ class InAppGallery : AppCompatActivity() {
         }
     }
 
+    // Only the EXIF segment of captures is rewritten, they reserve room in it for such edits
+    private fun removeLocationOfCurrentMedia() {
+        if (isSecureMode) {
+            showMessage(getString(R.string.edit_not_allowed))
+            return
+        }
+
+        val curItem = getCurrentItem() ?: return
+        if (curItem.type == ITEM_TYPE_VIDEO) {
+            showMessage(getString(R.string.unable_to_remove_location))
+            return
+        }
+
+        asyncImageLoader.execute {
+            val message = try {
+                editExif(contentResolver, curItem.uri) { removeLocation() }
+                R.string.location_removed
+            } catch (e: Exception) {
+                Log.w("removeLocationOfCurrentMedia", "unable to remove the location", e)
+                R.string.unable_to_remove_location
+            }
+            runOnUiThread { showMessage(getString(message)) }
+        }
+    }
+
     private fun deleteCurrentMedia() {
         val curItem = getCurrentItem() ?: return
 
@@ -372,7 +396,7 @@ class InAppGallery : AppCompatActivity() {
                         try {
                             dateAdded = convertTimeForVideo(date)
                             dateModified = dateAdded
-                        } catch (e: ParseException) {
+                        } catch (e: DateTimeParseException) {
                             Log.d("showCurrentMediaDetails", "unparseable video date: $date", e)
                         }
                     }
@@ -405,25 +429,24 @@ class InAppGallery : AppCompatActivity() {
             } else {
                 var orientation = ExifInterface.ORIENTATION_NORMAL
 
-                contentResolver.openInputStream(curItem.uri)?.use { stream ->
-                    val eInterface = ExifInterface(stream)
-
-                    orientation = eInterface.getAttributeInt(
+                // usually read already, when the image was shown
+                ExifSnapshotCache.get(contentResolver, curItem.uri)?.let { exif ->
+                    orientation = exif.getAttributeInt(
                         ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL
                     )
 
-                    val offset = eInterface.getAttribute(ExifInterface.TAG_OFFSET_TIME)
+                    val offset = exif.getAttribute(ExifInterface.TAG_OFFSET_TIME)
 
-                    if (eInterface.hasAttribute(ExifInterface.TAG_DATETIME_ORIGINAL)) {
+                    if (exif.hasAttribute(ExifInterface.TAG_DATETIME_ORIGINAL)) {
                         dateAdded = convertTimeForPhoto(
-                            eInterface.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL)!!,
+                            exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL)!!,
                             offset
                         )
                     }
 
-                    if (eInterface.hasAttribute(ExifInterface.TAG_DATETIME)) {
+                    if (exif.hasAttribute(ExifInterface.TAG_DATETIME)) {
                         dateModified = convertTimeForPhoto(
-                            eInterface.getAttribute(ExifInterface.TAG_DATETIME)!!,
+                            exif.getAttribute(ExifInterface.TAG_DATETIME)!!,
                             offset
                         )
                     }
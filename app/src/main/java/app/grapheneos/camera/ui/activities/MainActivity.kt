@@ -71,7 +71,9 @@ import app.grapheneos.camera.CameraMode
 import app.grapheneos.camera.ITEM_TYPE_IMAGE
 import app.grapheneos.camera.ITEM_TYPE_VIDEO
 import app.grapheneos.camera.R
+import app.grapheneos.camera.capturer.CaptureMetrics
 import app.grapheneos.camera.capturer.ImageCapturer
+import app.grapheneos.camera.capturer.ImageSaverService
 import app.grapheneos.camera.capturer.VideoCapturer
 import app.grapheneos.camera.capturer.getVideoThumbnail
 import app.grapheneos.camera.shareCapturedItem
@@ -91,6 +93,7 @@ import app.grapheneos.camera.ui.seekbar.ZoomBar
 import app.grapheneos.camera.ui.showIgnoringShortEdgeMode
 import app.grapheneos.camera.util.CameraControl
 import app.grapheneos.camera.util.ImageResizer
+import app.grapheneos.camera.util.decodeExifThumbnail
 import app.grapheneos.camera.util.executeIfAlive
 import app.grapheneos.camera.util.resolveActivity
 import app.grapheneos.camera.util.setBlurBitmapCompat
@@ -101,6 +104,8 @@ import com.google.android.material.snackbar.Snackbar
 import com.google.android.material.tabs.TabLayout
 import com.google.zxing.BarcodeFormat
 import java.io.File
+import java.io.FileDescriptor
+import java.io.PrintWriter
 import java.nio.charset.StandardCharsets
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
@@ -156,6 +161,8 @@ open class MainActivity : AppCompatActivity(),
 
     private lateinit var scaleGestureDetector: ScaleGestureDetector
     lateinit var timerView: TextView
+    lateinit var burstCounterView: TextView
+    private lateinit var stagingCounterView: TextView
     lateinit var thirdOption: View
     lateinit var imagePreview: ShapeableImageView
     lateinit var previewLoader: ProgressBar
@@ -188,6 +195,9 @@ open class MainActivity : AppCompatActivity(),
 
     private var wasSwiping = false
 
+    // whether the burst in progress was started by holding a volume key, which ends it when released
+    private var burstStartedByKey = false
+
     lateinit var cdTimer: CountDownTimerUI
     var timerDuration = 0
 
@@ -521,7 +531,14 @@ open class MainActivity : AppCompatActivity(),
 
         when (keyCode) {
             KeyEvent.KEYCODE_VOLUME_DOWN,
-            KeyEvent.KEYCODE_VOLUME_UP,
+            KeyEvent.KEYCODE_VOLUME_UP -> {
+                if (burstStartedByKey) {
+                    burstStartedByKey = false
+                    imageCapturer.stopBurst()
+                } else {
+                    captureButton.performClick()
+                }
+            }
             KeyEvent.KEYCODE_CAMERA -> {
                 captureButton.performClick()
             }
@@ -542,12 +559,23 @@ open class MainActivity : AppCompatActivity(),
 
     override fun onKeyDown(keyCode: Int, event: KeyEvent?): Boolean {
         if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN || keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
+            // the first repeat of a held key starts a burst, as a long press of the capture button does
+            if (event?.repeatCount == 1 && canStartBurst()) {
+                resetAutoSleep()
+                imageCapturer.startBurst()
+                burstStartedByKey = imageCapturer.isBursting
+            }
             // Pretend as if the event was handled by the app (avoid volume bar from appearing)
             return true
         }
         return super.onKeyDown(keyCode, event)
     }
 
+    private fun canStartBurst(): Boolean {
+        return !camConfig.isVideoMode && !camConfig.isQRMode && timerDuration == 0
+                && !cdTimer.isRunning && captureButton.isEnabled
+    }
+
     override fun onResume() {
         super.onResume()
         resumeOrientationSensor()
@@ -565,6 +593,7 @@ open class MainActivity : AppCompatActivity(),
         }
 
         updateThumbnail()
+        updateStagingCounter(application.safStagingQueue.depth())
 
         if (camConfig.requireLocation) {
             requestLocation()
@@ -598,12 +627,22 @@ open class MainActivity : AppCompatActivity(),
         } else {
             imageCapturer.cancelPendingCaptureRequest()
         }
+        imageCapturer.discardOutputSlot()
         if (camConfig.requireLocation) {
             application.dropLocationUpdates()
         }
         lastFrame = null
     }
 
+    // "adb shell dumpsys activity app.grapheneos.camera" includes the capture metrics, which lets
+    // slow saves be looked into on release builds
+    override fun dump(prefix: String, fd: FileDescriptor?, writer: PrintWriter,
+            args: Array<out String>?) {
+        super.dump(prefix, fd, writer, args)
+        writer.println("${prefix}CaptureMetrics:")
+        CaptureMetrics.dump().forEach { writer.println("$prefix  $it") }
+    }
+
     lateinit var gestureDetector: GestureDetector
 
     @SuppressLint("ClickableViewAccessibility")
@@ -641,6 +680,8 @@ open class MainActivity : AppCompatActivity(),
         }
 
         timerView = binding.timer
+        burstCounterView = binding.burstCounter
+        stagingCounterView = binding.stagingCounter
         previewView.previewStreamState.observe(this) { state: StreamState ->
             if (state == StreamState.STREAMING) {
                 mainOverlay.visibility = View.INVISIBLE
@@ -778,6 +819,22 @@ open class MainActivity : AppCompatActivity(),
                 }
             }
         }
+        captureButton.setOnLongClickListener {
+            if (!canStartBurst()) {
+                // taken as a click
+                return@setOnLongClickListener false
+            }
+            resetAutoSleep()
+            imageCapturer.startBurst()
+            return@setOnLongClickListener true
+        }
+        captureButton.setOnTouchListener { _, motionEvent ->
+            if (motionEvent.action == MotionEvent.ACTION_UP
+                    || motionEvent.action == MotionEvent.ACTION_CANCEL) {
+                imageCapturer.stopBurst()
+            }
+            return@setOnTouchListener false
+        }
 
         cancelButtonView = binding.cancelButton
 
@@ -1252,6 +1309,8 @@ open class MainActivity : AppCompatActivity(),
             }
 
             camConfig.camera!!.cameraControl.startFocusAndMetering(focusBuilder.build())
+            // a capture is likely to follow
+            imageCapturer.prepareOutputSlot()
 
             exposureBar.showPanel()
             zoomBar.showPanel()
@@ -1717,6 +1776,10 @@ open class MainActivity : AppCompatActivity(),
 
     override fun onDestroy() {
         super.onDestroy()
+        if (this::imageCapturer.isInitialized) {
+            // the results that are still held for it have nowhere to go
+            ImageSaverService.forget(imageCapturer)
+        }
         SensorOrientationChangeNotifier.clearInstance()
         thumbnailLoaderExecutor.shutdownNow()
     }
@@ -1810,6 +1873,7 @@ open class MainActivity : AppCompatActivity(),
     override fun onStart() {
         super.onStart()
         isStarted = true
+        ImageSaverService.attach(imageCapturer)
     }
 
     override fun onStop() {
@@ -1819,9 +1883,24 @@ open class MainActivity : AppCompatActivity(),
             updateLastFrame()
             videoCapturer.stopRecording()
         }
+        // the images that are still being saved don't need the camera, their results go to the
+        // next activity that is started
+        ImageSaverService.detach(imageCapturer)
+        camConfig.releaseCamera()
         super.onStop()
     }
 
+    // the number of images that are still being copied into the storage location, see
+    // SafStagingQueue
+    fun updateStagingCounter(depth: Int) {
+        if (depth == 0) {
+            stagingCounterView.visibility = View.GONE
+            return
+        }
+        stagingCounterView.text = getString(R.string.staging_counter, depth)
+        stagingCounterView.visibility = View.VISIBLE
+    }
+
     var isThumbnailLoaded = false
 
     fun updateThumbnail() {
@@ -1852,8 +1931,11 @@ open class MainActivity : AppCompatActivity(),
                         origBitmap.recycle()
                     }
                 } else if (item.type == ITEM_TYPE_IMAGE) {
-                    val source = ImageDecoder.createSource(ctx.contentResolver, item.uri)
-                    bitmap = ImageDecoder.decodeBitmap(source, ImageResizer(side, side))
+                    bitmap = decodeExifThumbnail(ctx.contentResolver, item.uri, side, side)
+                    if (bitmap == null) {
+                        val source = ImageDecoder.createSource(ctx.contentResolver, item.uri)
+                        bitmap = ImageDecoder.decodeBitmap(source, ImageResizer(side, side))
+                    }
                 }
             } catch (e: Exception) {
                 Log.d(TAG, "unable to update preview", e)
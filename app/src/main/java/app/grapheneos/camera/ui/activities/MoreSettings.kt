@@ -1,5 +1,7 @@
 package app.grapheneos.camera.ui.activities
 
+import android.content.ClipData
+import android.content.ClipboardManager
 import android.content.Context
 import android.content.Intent
 import android.graphics.Color
@@ -23,6 +25,7 @@ import app.grapheneos.camera.CamConfig
 import app.grapheneos.camera.CapturedItems
 import app.grapheneos.camera.NumInputFilter
 import app.grapheneos.camera.R
+import app.grapheneos.camera.capturer.CaptureMetrics
 import app.grapheneos.camera.databinding.MoreSettingsBinding
 import app.grapheneos.camera.util.storageLocationToUiString
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
@@ -174,6 +177,26 @@ open class MoreSettings : AppCompatActivity(), TextView.OnEditorActionListener {
             camConfig.removeExifAfterCapture = exifToggle.isChecked
         }
 
+        val thumbnailToggle = binding.embedExifThumbnailToggle
+        thumbnailToggle.isChecked = camConfig.embedExifThumbnail
+        thumbnailToggle.setOnClickListener {
+            camConfig.embedExifThumbnail = thumbnailToggle.isChecked
+        }
+
+        binding.embedExifThumbnailSetting.setOnClickListener {
+            thumbnailToggle.performClick()
+        }
+
+        val encoderToggle = binding.parallelJpegEncoderToggle
+        encoderToggle.isChecked = camConfig.useParallelJpegEncoder
+        encoderToggle.setOnClickListener {
+            camConfig.useParallelJpegEncoder = encoderToggle.isChecked
+        }
+
+        binding.parallelJpegEncoderSetting.setOnClickListener {
+            encoderToggle.performClick()
+        }
+
         val gSwitch = binding.gyroscopeSettingSwitch
         gSwitch.isChecked = camConfig.gSuggestions
         gSwitch.setOnClickListener {
@@ -211,6 +234,16 @@ open class MoreSettings : AppCompatActivity(), TextView.OnEditorActionListener {
             sLField.performClick()
         }
 
+        val stagingToggle = binding.stageSafWritesToggle
+        stagingToggle.isChecked = camConfig.stageSafWrites
+        stagingToggle.setOnClickListener {
+            camConfig.stageSafWrites = stagingToggle.isChecked
+        }
+
+        binding.stageSafWritesSetting.setOnClickListener {
+            stagingToggle.performClick()
+        }
+
         // Every other row here acts on the control it holds. This one held a 36dp field and did
         // nothing, while still announcing itself as activatable.
         val pQSetting = binding.photoQualitySetting
@@ -256,6 +289,12 @@ open class MoreSettings : AppCompatActivity(), TextView.OnEditorActionListener {
             finish()
         }
 
+        // hidden, it's meant for looking into reports of slow saves
+        binding.appBar.setOnLongClickListener {
+            showCaptureMetrics()
+            true
+        }
+
         ViewCompat.setOnApplyWindowInsetsListener(binding.scrollView) { v, insets ->
             val systemBars = insets.getInsets(WindowInsetsCompat.Type.systemBars())
             val cutouts = insets.getInsets(WindowInsetsCompat.Type.displayCutout())
@@ -337,6 +376,28 @@ open class MoreSettings : AppCompatActivity(), TextView.OnEditorActionListener {
         } else false
     }
 
+    private fun showCaptureMetrics() {
+        val lines = CaptureMetrics.dump()
+        MaterialAlertDialogBuilder(this).apply {
+            setTitle(R.string.capture_metrics)
+            if (lines.isEmpty()) {
+                setMessage(R.string.no_capture_metrics)
+            } else {
+                setItems(lines.toTypedArray(), null)
+                setNeutralButton(R.string.copy_to_clipboard) { _, _ ->
+                    val clipData = ClipData.newPlainText("CaptureMetrics", lines.joinToString("\n"))
+                    getSystemService(ClipboardManager::class.java).setPrimaryClip(clipData)
+                    showMessage(getString(R.string.copied_text_to_clipboard))
+                }
+                setNegativeButton(R.string.reset) { _, _ ->
+                    CaptureMetrics.reset()
+                }
+            }
+            setPositiveButton(R.string.ok, null)
+            show()
+        }
+    }
+
     fun showMessage(msg: String) {
         snackBar.setText(msg)
         snackBar.show()
@@ -1,11 +1,31 @@
 package app.grapheneos.camera.util
 
+import android.content.ContentResolver
 import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.Rect
 import android.graphics.RenderEffect
 import android.graphics.Shader
+import android.net.Uri
 import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.view.PixelCopy
+import android.view.SurfaceView
+import android.view.TextureView
+import android.view.View
 import android.widget.ImageView
+import androidx.annotation.Px
 import androidx.annotation.RequiresApi
+import androidx.camera.view.PreviewView
+import androidxc.exifinterface.media.ExifInterface
+import java.nio.ByteBuffer
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.roundToInt
 
 fun setBlurBitmapCompat(view: ImageView, bitmap: Bitmap, radius: Float = 4f) {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
@@ -16,3 +36,206 @@ fun setBlurBitmapCompat(view: ImageView, bitmap: Bitmap, radius: Float = 4f) {
     }
     view.setImageBitmap(app.grapheneos.camera.BlurBitmap[bitmap])
 }
+
+// Returns a matrix that turns pixels stored with the given EXIF orientation upright, or null when
+// they already are. Same transforms as the ones applied by ImageDecoder.
+fun exifOrientationMatrix(exifOrientation: Int): Matrix? {
+    val matrix = Matrix()
+    when (exifOrientation) {
+        ExifInterface.ORIENTATION_FLIP_HORIZONTAL -> matrix.setScale(-1f, 1f)
+        ExifInterface.ORIENTATION_ROTATE_180 -> matrix.setRotate(180f)
+        ExifInterface.ORIENTATION_FLIP_VERTICAL -> matrix.setScale(1f, -1f)
+        ExifInterface.ORIENTATION_TRANSPOSE -> {
+            matrix.setRotate(90f)
+            matrix.postScale(-1f, 1f)
+        }
+        ExifInterface.ORIENTATION_ROTATE_90 -> matrix.setRotate(90f)
+        ExifInterface.ORIENTATION_TRANSVERSE -> {
+            matrix.setRotate(-90f)
+            matrix.postScale(-1f, 1f)
+        }
+        ExifInterface.ORIENTATION_ROTATE_270 -> matrix.setRotate(-90f)
+        else -> return null
+    }
+    return matrix
+}
+
+fun isExifOrientationTransposed(exifOrientation: Int) = when (exifOrientation) {
+    ExifInterface.ORIENTATION_TRANSPOSE,
+    ExifInterface.ORIENTATION_ROTATE_90,
+    ExifInterface.ORIENTATION_TRANSVERSE,
+    ExifInterface.ORIENTATION_ROTATE_270 -> true
+    else -> false
+}
+
+/**
+ * Decodes JPEG data, the remaining bytes of an array-backed buffer, into an upright bitmap that
+ * fits into targetWidth x targetHeight, the same way ImageResizer does.
+ *
+ * Unlike ImageDecoder, BitmapFactory ignores the EXIF orientation that is stored in the data, the
+ * passed exifOrientation is applied instead. This allows to decode image data whose final
+ * metadata is never assembled in memory.
+ */
+fun decodeJpegThumbnail(jpeg: ByteBuffer, exifOrientation: Int, @Px targetWidth: Int, @Px targetHeight: Int): Bitmap? {
+    val array = jpeg.array()
+    val offset = jpeg.arrayOffset() + jpeg.position()
+    val length = jpeg.remaining()
+    val options = BitmapFactory.Options()
+    options.inJustDecodeBounds = true
+    BitmapFactory.decodeByteArray(array, offset, length, options)
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+        return null
+    }
+
+    val transposed = isExifOrientationTransposed(exifOrientation)
+    val w = (if (transposed) options.outHeight else options.outWidth).toDouble()
+    val h = (if (transposed) options.outWidth else options.outHeight).toDouble()
+    val ratio = max(w / targetWidth, h / targetHeight)
+
+    // let the decoder do most of the downscaling, it's much cheaper than decoding at full size
+    var sampleSize = 1
+    while (sampleSize * 2 <= ratio) {
+        sampleSize *= 2
+    }
+    options.inJustDecodeBounds = false
+    options.inSampleSize = sampleSize
+    val sampled = BitmapFactory.decodeByteArray(array, offset, length, options) ?: return null
+
+    val scale = (sampleSize / ratio).toFloat()
+    val matrix = exifOrientationMatrix(exifOrientation) ?: Matrix()
+    matrix.postScale(scale, scale)
+    return Bitmap.createBitmap(sampled, 0, 0, sampled.width, sampled.height, matrix, true)
+}
+
+/**
+ * Returns an upright copy of a bitmap whose pixels are stored with the given EXIF orientation,
+ * scaled to fit into targetWidth x targetHeight. Returns null if the bitmap is smaller than that
+ * and allowUpscaling is false.
+ */
+fun scaleToUpright(bitmap: Bitmap, exifOrientation: Int, @Px targetWidth: Int, @Px targetHeight: Int,
+        allowUpscaling: Boolean = false): Bitmap? {
+    val transposed = isExifOrientationTransposed(exifOrientation)
+    val w = (if (transposed) bitmap.height else bitmap.width).toDouble()
+    val h = (if (transposed) bitmap.width else bitmap.height).toDouble()
+    val ratio = max(w / targetWidth, h / targetHeight)
+    if (ratio < 1 && !allowUpscaling) {
+        return null
+    }
+
+    val scale = (1 / ratio).toFloat()
+    val matrix = exifOrientationMatrix(exifOrientation) ?: Matrix()
+    matrix.postScale(scale, scale)
+    return Bitmap.createBitmap(bitmap, 0, 0, bitmap.width, bitmap.height, matrix, true)
+}
+
+/**
+ * Passes the frame that previewView shows, as it shows it, scaled to fit into maxSize x maxSize, to
+ * callback on the main thread, or null if there is none. Unlike PreviewView.getBitmap(), which
+ * copies the frame at the size of the view on the main thread, the frame is copied at the small
+ * size by PixelCopy when the preview is a SurfaceView, and by the GPU when it's a TextureView. Only
+ * the small copy is transformed the way the preview displays it.
+ */
+fun grabPreviewFrame(previewView: PreviewView, @Px maxSize: Int, callback: (Bitmap?) -> Unit) {
+    val content = previewView.getChildAt(0)
+    if (content == null || previewView.width == 0 || previewView.height == 0
+            || content.width == 0 || content.height == 0) {
+        callback(null)
+        return
+    }
+    val scale = maxSize.toFloat() / max(previewView.width, previewView.height)
+    val width = max(1, (content.width * scale).roundToInt())
+    val height = max(1, (content.height * scale).roundToInt())
+    when (content) {
+        is SurfaceView -> {
+            val frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            val listener = PixelCopy.OnPixelCopyFinishedListener { result ->
+                if (result == PixelCopy.SUCCESS) {
+                    callback(transformPreviewFrame(previewView, content, frame, scale))
+                } else {
+                    frame.recycle()
+                    callback(null)
+                }
+            }
+            try {
+                PixelCopy.request(content, frame, listener, Handler(Looper.getMainLooper()))
+            } catch (e: IllegalArgumentException) {
+                // the surface isn't valid
+                frame.recycle()
+                callback(null)
+            }
+        }
+        is TextureView -> callback(content.getBitmap(width, height)?.let {
+            transformPreviewFrame(previewView, content, it, scale)
+        })
+        else -> callback(null)
+    }
+}
+
+// Draws frame, the content of the child of previewView, the way the view draws it, at the given
+// scale. Recycles frame.
+private fun transformPreviewFrame(previewView: PreviewView, content: View, frame: Bitmap,
+        scale: Float): Bitmap {
+    val bitmap = Bitmap.createBitmap(max(1, (previewView.width * scale).roundToInt()),
+        max(1, (previewView.height * scale).roundToInt()), Bitmap.Config.ARGB_8888)
+    val canvas = Canvas(bitmap)
+    canvas.scale(scale, scale)
+    canvas.translate(content.left.toFloat(), content.top.toFloat())
+    canvas.concat(content.matrix)
+    if (content is TextureView) {
+        canvas.concat(content.getTransform(null))
+    }
+    canvas.drawBitmap(frame, null, Rect(0, 0, content.width, content.height),
+        Paint(Paint.FILTER_BITMAP_FLAG))
+    frame.recycle()
+    return bitmap
+}
+
+/**
+ * Returns a copy of a bitmap that is mirrored horizontally if mirror is true, then turned
+ * clockwise by rotationDegrees, scaled to fit into targetWidth x targetHeight.
+ */
+fun scaleAndRotate(bitmap: Bitmap, rotationDegrees: Int, mirror: Boolean,
+        @Px targetWidth: Int, @Px targetHeight: Int): Bitmap {
+    val transposed = rotationDegrees % 180 != 0
+    val w = (if (transposed) bitmap.height else bitmap.width).toDouble()
+    val h = (if (transposed) bitmap.width else bitmap.height).toDouble()
+    val scale = (1 / max(w / targetWidth, h / targetHeight)).toFloat()
+
+    val matrix = Matrix()
+    if (mirror) {
+        matrix.setScale(-1f, 1f)
+    }
+    matrix.postRotate(rotationDegrees.toFloat())
+    matrix.postScale(scale, scale)
+    return Bitmap.createBitmap(bitmap, 0, 0, bitmap.width, bitmap.height, matrix, true)
+}
+
+/**
+ * Decodes the JPEG thumbnail that is embedded into the EXIF data of the image at uri into an
+ * upright bitmap that fits into targetWidth x targetHeight. Only the metadata at the start of the
+ * file is read, and only if it isn't in ExifSnapshotCache yet.
+ *
+ * Returns null when there's no such thumbnail, when it's smaller than the target size and
+ * allowUpscaling is false, or when its shape doesn't match the one of the image, e.g. because the
+ * image was cropped by an editor that left the thumbnail as it was. The image itself has to be
+ * decoded then.
+ */
+fun decodeExifThumbnail(contentResolver: ContentResolver, uri: Uri,
+        @Px targetWidth: Int, @Px targetHeight: Int, allowUpscaling: Boolean = false): Bitmap? {
+    val exif = ExifSnapshotCache.get(contentResolver, uri) ?: return null
+    val jpeg = exif.thumbnail ?: return null
+    val bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.size) ?: return null
+
+    // both are stored the same way, the orientation doesn't matter here
+    val w = bitmap.width.toDouble()
+    val h = bitmap.height.toDouble()
+    val imageWidth = exif.getAttributeInt(ExifInterface.TAG_IMAGE_WIDTH, 0)
+    val imageLength = exif.getAttributeInt(ExifInterface.TAG_IMAGE_LENGTH, 0)
+    if (imageWidth <= 0 || imageLength <= 0
+            // the thumbnail dimensions are rounded to whole pixels
+            || abs(w / h * imageLength / imageWidth - 1) > 2 / minOf(w, h)) {
+        return null
+    }
+
+    return scaleToUpright(bitmap, exif.orientation, targetWidth, targetHeight, allowUpscaling)
+}
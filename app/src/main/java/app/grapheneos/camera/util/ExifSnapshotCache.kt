@@ -0,0 +1,93 @@
+package app.grapheneos.camera.util
+
+import android.content.ContentResolver
+import android.net.Uri
+import android.provider.DocumentsContract.Document
+import android.provider.MediaStore
+import android.provider.MediaStore.MediaColumns
+import android.util.Log
+import android.util.LruCache
+import androidxc.exifinterface.media.ExifInterface
+import androidxc.exifinterface.media.ExifSnapshot
+
+private const val TAG = "ExifSnapshotCache"
+
+/**
+ * The metadata of the images the gallery and the gallery button have shown recently, so that
+ * going back to an image or opening its details doesn't parse it again. Snapshots are immutable
+ * and can be handed to any thread.
+ *
+ * An entry is keyed by the uri along with the size and the modification time its provider
+ * reports, so an image that was replaced under the same uri is read again. Images whose provider
+ * reports neither aren't cached.
+ */
+object ExifSnapshotCache {
+    // what decodeExifThumbnail() and the details dialog read
+    private val TAGS = listOf(
+        ExifInterface.TAG_ORIENTATION,
+        ExifInterface.TAG_IMAGE_WIDTH,
+        ExifInterface.TAG_IMAGE_LENGTH,
+        ExifInterface.TAG_DATETIME,
+        ExifInterface.TAG_DATETIME_ORIGINAL,
+        ExifInterface.TAG_OFFSET_TIME,
+    )
+
+    // enough for the thumbnails of a few dozen captures
+    private const val MAX_SIZE_BYTES = 2 * 1024 * 1024
+
+    private data class Key(val uri: Uri, val size: Long, val modified: Long)
+
+    private val cache = object : LruCache<Key, ExifSnapshot>(MAX_SIZE_BYTES) {
+        override fun sizeOf(key: Key, value: ExifSnapshot) = value.sizeInBytes
+    }
+
+    /**
+     * Returns the metadata of the image at uri, including its JPEG thumbnail, reading it if it
+     * isn't cached. Returns null if the image can't be opened.
+     */
+    fun get(contentResolver: ContentResolver, uri: Uri): ExifSnapshot? {
+        val key = queryKey(contentResolver, uri)
+        key?.let { cache.get(it) }?.let { return it }
+
+        val snapshot = contentResolver.openInputStream(uri)?.use {
+            // the file may come from anywhere, so don't let it decide how much is read
+            ExifInterface(it, ExifInterface.STREAM_TYPE_FULL_IMAGE_DATA,
+                    ExifInterface.PARSE_FLAG_LAZY or ExifInterface.PARSE_FLAG_STRICT)
+                .snapshot(TAGS, true)
+        } ?: return null
+        key?.let { cache.put(it, snapshot) }
+        return snapshot
+    }
+
+    /**
+     * Drops the metadata of the image at uri, for callers that change it in place. The size of an
+     * image that was rewritten in place doesn't change, and its modification time may not either.
+     */
+    fun invalidate(uri: Uri) {
+        cache.snapshot().keys.filter { it.uri == uri }.forEach { cache.remove(it) }
+    }
+
+    private fun queryKey(contentResolver: ContentResolver, uri: Uri): Key? {
+        // MediaStore and the Storage Access Framework name these columns differently, and each
+        // rejects the ones of the other
+        val (sizeColumn, modifiedColumn) = if (uri.authority == MediaStore.AUTHORITY) {
+            MediaColumns.SIZE to MediaColumns.DATE_MODIFIED
+        } else {
+            Document.COLUMN_SIZE to Document.COLUMN_LAST_MODIFIED
+        }
+        try {
+            contentResolver.query(uri, arrayOf(sizeColumn, modifiedColumn), null, null)?.use {
+                if (it.moveToFirst()) {
+                    val size = it.getColumnIndex(sizeColumn)
+                    val modified = it.getColumnIndex(modifiedColumn)
+                    if (size >= 0 && !it.isNull(size) && modified >= 0 && !it.isNull(modified)) {
+                        return Key(uri, it.getLong(size), it.getLong(modified))
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            Log.d(TAG, "no size and modification time from ${uri.authority}", e)
+        }
+        return null
+    }
+}
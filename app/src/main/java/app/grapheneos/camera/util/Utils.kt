@@ -91,9 +91,11 @@ fun storageLocationToUiString(ctx: Context, sl: String): String {
     return locationId
 }
 
+// values are updated in the same call, e.g. to rename the item, see PendingImageSlot
 @Throws(IOException::class)
-fun removePendingFlagFromUri(contentResolver: ContentResolver, uri: Uri) {
+fun removePendingFlagFromUri(contentResolver: ContentResolver, uri: Uri, values: ContentValues? = null) {
     val cv = ContentValues()
+    values?.let { cv.putAll(it) }
     cv.put(MediaStore.MediaColumns.IS_PENDING, 0)
     if (contentResolver.update(uri, cv, null, null) != 1) {
         throw IOException("unable to remove IS_PENDING flag")
@@ -0,0 +1,107 @@
+package androidxc.exifinterface.media
+
+import java.time.LocalDateTime
+import java.time.ZoneOffset
+import java.util.TimeZone
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * ExifDateTime replaces the SimpleDateFormat instances that used to be created and shared across
+ * the app, so it has to write exactly what they wrote and read back what it writes, while
+ * refusing the out of range fields they silently rolled over.
+ */
+class ExifDateTimeTest {
+
+    private fun local(text: String) =
+        LocalDateTime.parse(text).toInstant(ZoneOffset.UTC).toEpochMilli()
+
+    @Test
+    fun dateTime_roundTrips() {
+        val time = local("2024-02-29T23:59:58.123")
+
+        assertEquals("2024:02:29 23:59:58", ExifDateTime.formatDateTime(time))
+        assertEquals(time - 123, ExifDateTime.parseDateTime("2024:02:29 23:59:58"))
+        assertEquals(time - 123, ExifDateTime.parseDateTime("2024-02-29 23:59:58"))
+        assertEquals(local("1969-12-31T00:00:00"),
+            ExifDateTime.parseDateTime("1969:12:31 00:00:00"))
+
+        val chars = CharArray(ExifDateTime.DATE_TIME_LENGTH)
+        assertEquals(chars.size, ExifDateTime.formatDateTime(time, '-', chars, 0))
+        assertEquals("2024-02-29 23:59:58", String(chars))
+    }
+
+    @Test
+    fun parse_rejectsFieldsOutOfRange() {
+        val invalid = listOf(
+            "2024:13:01 00:00:00",
+            "2023:02:29 00:00:00",
+            "2024:04:31 00:00:00",
+            "2024:01:01 24:00:00",
+            "2024:01:01 00:60:00",
+            "2024:01:01 00:00:60",
+            "2024:01:01 00:00",
+            "2024:01-01 00:00:00",
+            "2024:01:01T00:00:00",
+            "    :  :     :  :  ",
+            "",
+        )
+        for (value in invalid) {
+            assertEquals(value, ExifDateTime.INVALID, ExifDateTime.parseDateTime(value))
+        }
+        assertEquals(ExifDateTime.INVALID, ExifDateTime.parseDate("2024:00:10"))
+        assertEquals(ExifDateTime.INVALID, ExifDateTime.parseTime("1a:00:00"))
+    }
+
+    @Test
+    fun offset_roundTrips() {
+        assertEquals("+02:00", ExifDateTime.formatOffset(2 * 3_600_000))
+        assertEquals("-03:30", ExifDateTime.formatOffset(-(3 * 60 + 30) * 60_000))
+        assertEquals("+00:00", ExifDateTime.formatOffset(0))
+
+        assertEquals(-(3 * 60 + 30) * 60_000, ExifDateTime.parseOffset("-03:30"))
+        assertEquals(14 * 3_600_000, ExifDateTime.parseOffset("+14:00"))
+        for (value in listOf("+15:00", "+02:60", "02:00", "+2:00", "+02-00", "")) {
+            assertEquals(value, ExifDateTime.INVALID_OFFSET, ExifDateTime.parseOffset(value))
+        }
+    }
+
+    @Test
+    fun subsec_hasThreeDigits() {
+        assertEquals("005", ExifDateTime.formatSubsec(5))
+        assertEquals("120", ExifDateTime.formatSubsec(1_120))
+        assertEquals(5, ExifDateTime.parseSubsec("005"))
+        assertEquals(500, ExifDateTime.parseSubsec("5"))
+        assertEquals(123, ExifDateTime.parseSubsec("123456"))
+        assertEquals(0, ExifDateTime.parseSubsec("1x"))
+    }
+
+    @Test
+    fun fileNameStamp_roundTrips() {
+        val time = local("2024-05-06T07:08:09.010")
+
+        assertEquals("20240506_070809_010", ExifDateTime.formatFileNameStamp(time, true))
+        assertEquals("20240506_070809", ExifDateTime.formatFileNameStamp(time, false))
+        assertEquals(time, ExifDateTime.parseFileNameStamp("20240506_070809_010"))
+        assertEquals(time - 10, ExifDateTime.parseFileNameStamp("20240506_070809"))
+        // a burst shot is named after the stamp of its burst
+        assertEquals(time - 10, ExifDateTime.parseFileNameStamp("20240506_070809_BURST001"))
+        assertEquals(ExifDateTime.INVALID, ExifDateTime.parseFileNameStamp("20240506-070809"))
+        assertEquals(ExifDateTime.INVALID, ExifDateTime.parseFileNameStamp("20241306_070809"))
+    }
+
+    @Test
+    fun toUtcMillis_acrossTransitions() {
+        val zone = TimeZone.getTimeZone("Europe/Berlin")
+        val utc = { text: String -> ExifDateTime.toUtcMillis(local(text), zone) }
+
+        assertEquals(local("2024-07-01T10:00:00"), utc("2024-07-01T12:00:00"))
+        // skipped by the gap, moved forward by its length
+        assertEquals(local("2024-03-31T01:30:00"), utc("2024-03-31T02:30:00"))
+        // repeated by the overlap, the later of the two
+        assertEquals(local("2024-10-27T01:30:00"), utc("2024-10-27T02:30:00"))
+
+        val now = local("2024-10-27T01:30:00")
+        assertEquals(local("2024-10-27T02:30:00"), ExifDateTime.toLocalMillis(now, zone))
+    }
+}
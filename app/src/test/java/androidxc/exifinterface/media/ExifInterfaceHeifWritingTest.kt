@@ -0,0 +1,292 @@
+package androidxc.exifinterface.media
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.Random
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * HEIF and AVIF images get their metadata items rewritten without the image data being touched.
+ * Reading these files goes through the framework, which isn't there on the JVM, so the items of
+ * the written files are located here and their Exif data is read as a standalone Exif stream.
+ */
+class ExifInterfaceHeifWritingTest {
+
+    private val imageData = ByteArray(64 * 1024).also { Random(1).nextBytes(it) }
+
+    private fun save(exif: ExifInterface, image: ByteArray) = ByteArrayOutputStream().use {
+        exif.saveAttributes(ByteArrayInputStream(image), it)
+        it.toByteArray()
+    }
+
+    @Test
+    fun saveAttributes_replacesTheExifItemAndKeepsTheImageData() {
+        val original = heif(xmp = XMP)
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel")
+        val saved = save(exif, original)
+
+        val items = items(saved)
+        assertEquals(setOf(1, 2, 3), items.data.keys)
+        assertArrayEquals(imageData, items.data[1])
+        assertEquals("Pixel", exifOf(items.data[2]!!).getAttribute(ExifInterface.TAG_MODEL))
+        // the XMP item wasn't read, so it's left as it was
+        assertArrayEquals(XMP.toByteArray(), items.data[3])
+        assertEquals(-1, indexOf(saved, "OldMake".toByteArray()))
+    }
+
+    @Test
+    fun saveAttributes_addsAnExifItemForThePrimaryImage() {
+        val original = heif(brand = "avif", exif = null)
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel")
+        val saved = save(exif, original)
+
+        val items = items(saved)
+        assertEquals("Exif", items.types[2])
+        assertEquals(listOf(2 to 1), items.references)
+        assertArrayEquals(imageData, items.data[1])
+        assertEquals("Pixel", exifOf(items.data[2]!!).getAttribute(ExifInterface.TAG_MODEL))
+    }
+
+    @Test
+    fun saveAttributes_replacesAndRemovesTheXmpItem() {
+        val original = heif(xmp = XMP)
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        exif.setAttribute(ExifInterface.TAG_XMP, NEW_XMP)
+        val withXmp = save(exif, original)
+
+        assertArrayEquals(NEW_XMP.toByteArray(), items(withXmp).data[3])
+        assertEquals(-1, indexOf(withXmp, XMP.toByteArray()))
+
+        exif.setAttribute(ExifInterface.TAG_XMP, null)
+        val withoutXmp = save(exif, withXmp)
+
+        val items = items(withoutXmp)
+        assertEquals(setOf(1, 2), items.data.keys)
+        assertEquals(listOf(2 to 1), items.references)
+        assertEquals(-1, indexOf(withoutXmp, NEW_XMP.toByteArray()))
+        assertArrayEquals(imageData, items.data[1])
+    }
+
+    /** The box the metadata was written to by the last save is replaced, not left behind. */
+    @Test
+    fun saveAttributes_ofASavedFile_writesTheSameFile() {
+        val original = heif()
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel")
+        val once = save(exif, original)
+        val twice = save(exif, once)
+
+        assertArrayEquals(once, twice)
+    }
+
+    /** A meta box with a 64-bit size has a 16 byte header, the items after it are found anyway. */
+    @Test
+    fun saveAttributes_ofAMetaBoxWithALargeSize_keepsTheImageData() {
+        val original = heif(largeSizeMeta = true)
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel")
+        val saved = save(exif, original)
+
+        val items = items(saved)
+        assertEquals(setOf(1, 2), items.data.keys)
+        assertArrayEquals(imageData, items.data[1])
+        assertEquals("Pixel", exifOf(items.data[2]!!).getAttribute(ExifInterface.TAG_MODEL))
+        assertArrayEquals(save(exif, heif()), saved)
+    }
+
+    /** Their samples are located by the movie box, which isn't rewritten. */
+    @Test
+    fun saveAttributes_refusesImageSequences() {
+        val original = heif(extraBrand = "msf1")
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        val out = ByteArrayOutputStream()
+
+        assertThrows(IOException::class.java) {
+            exif.saveAttributes(ByteArrayInputStream(original), out)
+        }
+        assertEquals(0, out.size())
+    }
+
+    private fun exifOf(item: ByteArray): ExifInterface {
+        // the offset of the TIFF header, which "Exif\0\0" precedes
+        assertEquals(6, ByteBuffer.wrap(item).getInt())
+        return ExifInterface(ByteArrayInputStream(item, 4, item.size - 4),
+                ExifInterface.STREAM_TYPE_EXIF_DATA_ONLY)
+    }
+
+    /**
+     * A file laid out like cameras write it: the meta box, then the image item and the metadata
+     * items in a media data box. Item 1 is the primary image, 2 the Exif item and 3 the XMP item.
+     * The size of the meta box is written in the 64-bit field if largeSizeMeta is set.
+     */
+    private fun heif(
+        brand: String = "heic",
+        extraBrand: String = brand,
+        exif: ByteArray? = exifItem(tiff("OldMake")),
+        xmp: String? = null,
+        largeSizeMeta: Boolean = false,
+    ): ByteArray {
+        val items = mutableListOf(Triple(1, "hvc1", imageData))
+        exif?.let { items += Triple(2, "Exif", it) }
+        xmp?.let { items += Triple(3, "mime", it.toByteArray()) }
+
+        fun meta(dataOffset: Int): ByteArray {
+            var offset = dataOffset
+            // 4 byte offsets and lengths, no base offsets
+            val iloc = ByteBuffer.allocate(4 + items.size * 14)
+            iloc.putShort(0x4400).putShort(items.size.toShort())
+            for ((id, _, data) in items) {
+                iloc.putShort(id.toShort()).putShort(0).putShort(1).putInt(offset).putInt(data.size)
+                offset += data.size
+            }
+            val infes = items.map { (id, type, _) ->
+                val contentType = if (type == "mime") "application/rdf+xml\u0000" else ""
+                fullBox("infe", 2, if (id == 1) 0 else 1, short(id), short(0), type.toByteArray(),
+                        byteArrayOf(0), contentType.toByteArray())
+            }
+            val references = items.filter { it.first != 1 }
+                    .map { box("cdsc", short(it.first), short(1), short(1)) }
+            val iref = if (references.isEmpty()) ByteArray(0)
+                    else fullBox("iref", 0, 0, *references.toTypedArray())
+            val meta = fullBox("meta", 0, 0,
+                    fullBox("hdlr", 0, 0, ByteArray(4), "pict".toByteArray(), ByteArray(13)),
+                    fullBox("pitm", 0, 0, short(1)),
+                    fullBox("iinf", 0, 0, short(items.size), *infes.toTypedArray()),
+                    fullBox("iloc", 0, 0, iloc.array()),
+                    iref)
+            return if (largeSizeMeta) largeSizeBox(meta) else meta
+        }
+
+        val ftyp = box("ftyp", brand.toByteArray(), ByteArray(4),
+                "mif1$brand$extraBrand".toByteArray())
+        val mdat = box("mdat", *items.map { it.third }.toTypedArray())
+        return ftyp + meta(ftyp.size + meta(0).size + 8) + mdat
+    }
+
+    private class Items(
+        val types: Map<Int, String>,
+        val data: Map<Int, ByteArray>,
+        val references: List<Pair<Int, Int>>,
+    )
+
+    /**
+     * Reads the items of a file written like [heif] does, after checking that its top-level boxes
+     * add up to the size of the file.
+     */
+    private fun items(file: ByteArray): Items {
+        val buffer = ByteBuffer.wrap(file)
+        var position = 0
+        var meta: ByteBuffer? = null
+        while (position < file.size) {
+            val size = buffer.getInt(position)
+            assertTrue("box at $position", size >= 8 && position + size <= file.size)
+            if (buffer.getInt(position + 4) == fourCc("meta")) {
+                meta = ByteBuffer.wrap(file, position + 12, size - 12).slice()
+            }
+            position += size
+        }
+
+        val types = mutableMapOf<Int, String>()
+        val data = mutableMapOf<Int, ByteArray>()
+        val references = mutableListOf<Pair<Int, Int>>()
+        for (box in children(meta!!)) {
+            when (box.getInt(4)) {
+                fourCc("iinf") -> {
+                    box.position(14)
+                    for (infe in children(box)) {
+                        val id = infe.getShort(12).toInt()
+                        types[id] = String(ByteArray(4).also { infe.position(16); infe.get(it) })
+                    }
+                }
+                fourCc("iloc") -> {
+                    box.position(12)
+                    assertEquals(0x4400, box.getShort().toInt())
+                    repeat(box.getShort().toInt()) {
+                        val id = box.getShort().toInt()
+                        box.getShort()
+                        assertEquals(1, box.getShort().toInt())
+                        val offset = box.getInt()
+                        data[id] = file.copyOfRange(offset, offset + box.getInt())
+                    }
+                }
+                fourCc("iref") -> {
+                    box.position(12)
+                    for (reference in children(box)) {
+                        assertEquals(fourCc("cdsc"), reference.getInt(4))
+                        for (i in 0 until reference.getShort(10)) {
+                            references += reference.getShort(8).toInt() to
+                                    reference.getShort(12 + 2 * i).toInt()
+                        }
+                    }
+                }
+            }
+        }
+        assertEquals(types.keys, data.keys)
+        return Items(types, data, references)
+    }
+
+    /** The boxes from the position of the buffer to its limit. */
+    private fun children(buffer: ByteBuffer): List<ByteBuffer> {
+        val children = mutableListOf<ByteBuffer>()
+        while (buffer.remaining() >= 8) {
+            val size = buffer.getInt(buffer.position())
+            children += ByteBuffer.wrap(buffer.array(), buffer.arrayOffset() + buffer.position(), size)
+                    .slice()
+            buffer.position(buffer.position() + size)
+        }
+        return children
+    }
+
+    private companion object {
+        const val XMP = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">old</x:xmpmeta>"
+        const val NEW_XMP = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">new</x:xmpmeta>"
+
+        /** A big-endian TIFF file with just a Make tag. */
+        fun tiff(make: String): ByteArray {
+            val value = (make + "\u0000").toByteArray()
+            return ByteBuffer.allocate(8 + 2 + 12 + 4 + value.size)
+                    .put("MM".toByteArray()).putShort(42).putInt(8)
+                    .putShort(1)
+                    .putShort(0x010f).putShort(2).putInt(value.size).putInt(26)
+                    .putInt(0)
+                    .put(value)
+                    .array()
+        }
+
+        fun exifItem(tiff: ByteArray): ByteArray =
+                ByteBuffer.allocate(4 + 6 + tiff.size).putInt(6).put("Exif\u0000\u0000".toByteArray())
+                        .put(tiff).array()
+
+        fun box(type: String, vararg parts: ByteArray): ByteArray {
+            val box = ByteBuffer.allocate(8 + parts.sumOf { it.size })
+            box.putInt(box.capacity()).put(type.toByteArray())
+            parts.forEach { box.put(it) }
+            return box.array()
+        }
+
+        /** The box with its size moved into the 64-bit field that follows the type. */
+        fun largeSizeBox(box: ByteArray): ByteArray =
+                ByteBuffer.allocate(box.size + 8).putInt(1).put(box, 4, 4).putLong(box.size + 8L)
+                        .put(box, 8, box.size - 8).array()
+
+        fun fullBox(type: String, version: Int, flags: Int, vararg parts: ByteArray) =
+                box(type, ByteBuffer.allocate(4).putInt(version shl 24 or flags).array(), *parts)
+
+        fun short(value: Int): ByteArray = ByteBuffer.allocate(2).putShort(value.toShort()).array()
+
+        fun fourCc(type: String) = ByteBuffer.wrap(type.toByteArray()).getInt()
+
+        fun indexOf(array: ByteArray, target: ByteArray): Int =
+                (0..array.size - target.size).firstOrNull { i ->
+                    target.indices.all { array[i + it] == target[it] }
+                } ?: -1
+    }
+}
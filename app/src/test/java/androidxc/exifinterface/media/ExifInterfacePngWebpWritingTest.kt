@@ -0,0 +1,160 @@
+package androidxc.exifinterface.media
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Random
+import java.util.zip.CRC32
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * PNG and WebP files are saved by copying the chunks that aren't rewritten straight from the
+ * original and writing the new Exif chunk with its length and checksum computed along the way,
+ * so the chunks of the written files are checked here one by one.
+ */
+class ExifInterfacePngWebpWritingTest {
+
+    private val imageData = ByteArray(20_000).also { Random(1).nextBytes(it) }
+
+    private fun save(exif: ExifInterface, image: ByteArray) = ByteArrayOutputStream().use {
+        exif.saveAttributes(ByteArrayInputStream(image), it)
+        it.toByteArray()
+    }
+
+    @Test
+    fun png_keepsTheOtherChunksAndChecksumsTheExifChunk() {
+        val original = png(pngChunk("tEXt", "Comment\u0000hi".toByteArray()))
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel")
+        val saved = save(exif, original)
+
+        val chunks = pngChunks(saved)
+        assertEquals(listOf("IHDR", "eXIf", "IDAT", "IDAT", "tEXt", "IEND"), chunks.map { it.first })
+        assertArrayEquals(imageData.copyOfRange(0, 12_000), chunks[2].second)
+        assertEquals("Pixel",
+            ExifInterface(ByteArrayInputStream(saved)).getAttribute(ExifInterface.TAG_MODEL))
+    }
+
+    @Test
+    fun webp_animated_keepsTheChunksAfterTheFrames() {
+        val original = riff(
+            vp8x(0x02 or 0x04),
+            riffChunk("ANIM", ByteArray(6)),
+            riffChunk("ANMF", imageData.copyOfRange(0, 2_001)),
+            riffChunk("ANMF", imageData.copyOfRange(2_001, 3_501)),
+            riffChunk("XMP ", XMP.toByteArray()),
+        )
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel")
+        val saved = save(exif, original)
+
+        val chunks = riffChunks(saved)
+        assertEquals(listOf("VP8X", "ANIM", "ANMF", "ANMF", "EXIF", "XMP "),
+            chunks.map { it.first })
+        assertArrayEquals(imageData.copyOfRange(2_001, 3_501), chunks[3].second)
+        assertArrayEquals(XMP.toByteArray(), chunks[5].second)
+    }
+
+    /** A lossless file gets a VP8X chunk on the first save, which the second save keeps. */
+    @Test
+    fun webp_lossless_canBeSavedAgain() {
+        val original = riff(riffChunk("VP8L", vp8l()))
+        val exif = ExifInterface(ByteArrayInputStream(original))
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel")
+        val first = save(exif, original)
+        exif.setAttribute(ExifInterface.TAG_MAKE, "GrapheneOS")
+        val second = save(exif, first)
+
+        assertEquals(listOf("VP8X", "VP8L", "EXIF"), riffChunks(second).map { it.first })
+        assertArrayEquals(riffChunks(first)[1].second, riffChunks(second)[1].second)
+        val reread = ExifInterface(ByteArrayInputStream(second))
+        assertEquals("Pixel", reread.getAttribute(ExifInterface.TAG_MODEL))
+        assertEquals("GrapheneOS", reread.getAttribute(ExifInterface.TAG_MAKE))
+    }
+
+    private fun png(vararg chunksAfterData: ByteArray): ByteArray {
+        val header = ByteBuffer.allocate(13).putInt(64).putInt(48).put(8).put(2).array()
+        return concat(
+            byteArrayOf(0x89.toByte(), 'P'.code.toByte(), 'N'.code.toByte(), 'G'.code.toByte(),
+                '\r'.code.toByte(), '\n'.code.toByte(), 0x1a, '\n'.code.toByte()),
+            pngChunk("IHDR", header),
+            pngChunk("IDAT", imageData.copyOfRange(0, 12_000)),
+            pngChunk("IDAT", imageData.copyOfRange(12_000, imageData.size)),
+            *chunksAfterData,
+            pngChunk("IEND", ByteArray(0)),
+        )
+    }
+
+    private fun vp8l(): ByteArray {
+        val header = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN)
+            .put(0x2f).putInt(639 or (479 shl 14)).array()
+        return concat(header, imageData.copyOfRange(0, 10_001))
+    }
+
+    private fun vp8x(flags: Int): ByteArray {
+        val data = ByteArray(10)
+        data[0] = flags.toByte()
+        data[4] = 0x7f
+        data[5] = 0x02
+        data[7] = 0xdf.toByte()
+        data[8] = 0x01
+        return riffChunk("VP8X", data)
+    }
+
+    /** Returns the type and data of each chunk after checking its CRC. */
+    private fun pngChunks(file: ByteArray): List<Pair<String, ByteArray>> {
+        val buffer = ByteBuffer.wrap(file, 8, file.size - 8)
+        val chunks = mutableListOf<Pair<String, ByteArray>>()
+        while (buffer.hasRemaining()) {
+            val data = ByteArray(buffer.getInt())
+            val type = ByteArray(4).also { buffer.get(it) }
+            buffer.get(data)
+            val crc = CRC32().apply { update(type); update(data) }
+            assertEquals(String(type), crc.value.toInt(), buffer.getInt())
+            chunks += String(type) to data
+        }
+        return chunks
+    }
+
+    /** Returns the type and data of each chunk after checking the size of the RIFF chunk. */
+    private fun riffChunks(file: ByteArray): List<Pair<String, ByteArray>> {
+        val buffer = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN)
+        assertEquals(file.size - 8, buffer.getInt(4))
+        buffer.position(12)
+        val chunks = mutableListOf<Pair<String, ByteArray>>()
+        while (buffer.hasRemaining()) {
+            val type = ByteArray(4).also { buffer.get(it) }
+            val data = ByteArray(buffer.getInt()).also { buffer.get(it) }
+            buffer.position(buffer.position() + (data.size and 1))
+            chunks += String(type) to data
+        }
+        return chunks
+    }
+
+    private companion object {
+        const val XMP = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF/></x:xmpmeta>"
+
+        fun pngChunk(type: String, data: ByteArray): ByteArray {
+            val crc = CRC32().apply { update(type.toByteArray()); update(data) }
+            return concat(ByteBuffer.allocate(4).putInt(data.size).array(), type.toByteArray(),
+                data, ByteBuffer.allocate(4).putInt(crc.value.toInt()).array())
+        }
+
+        fun riffChunk(type: String, data: ByteArray): ByteArray = concat(type.toByteArray(),
+            ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(data.size).array(),
+            data, ByteArray(data.size and 1))
+
+        fun riff(vararg chunks: ByteArray): ByteArray {
+            val body = concat(*chunks)
+            return concat("RIFF".toByteArray(),
+                ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(body.size + 4).array(),
+                "WEBP".toByteArray(), body)
+        }
+
+        fun concat(vararg parts: ByteArray): ByteArray =
+            ByteArrayOutputStream().apply { parts.forEach { write(it) } }.toByteArray()
+    }
+}
@@ -0,0 +1,307 @@
+package androidxc.exifinterface.media
+
+import com.sun.management.ThreadMXBean
+import java.io.ByteArrayInputStream
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Random
+import java.util.zip.CRC32
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * The gallery parses files that it didn't write with PARSE_FLAG_STRICT. Whatever the lengths and
+ * counts in them claim, parsing has to end without allocating much more than the budget.
+ *
+ * The corpus is generated here: well-formed JPEG, PNG, WebP and TIFF seeds, the malformed images
+ * that upstream allocates the sizes of, and seeded random mutations of the seeds.
+ */
+class ExifInterfaceStrictParsingTest {
+
+    private fun parseStrict(image: ByteArray) = ExifInterface(ByteArrayInputStream(image),
+            ExifInterface.STREAM_TYPE_FULL_IMAGE_DATA, ExifInterface.PARSE_FLAG_STRICT)
+
+    /** Parses the image from a stream in strict mode and returns what that allocated. */
+    private fun allocatedByParsing(image: ByteArray): Long {
+        val threads = ManagementFactory.getThreadMXBean() as ThreadMXBean
+        val before = threads.currentThreadAllocatedBytes
+        parseStrict(image).thumbnailBytes
+        return threads.currentThreadAllocatedBytes - before
+    }
+
+    private fun assertBounded(name: String, image: ByteArray) {
+        val allocated = allocatedByParsing(image)
+        assertTrue("$name allocated $allocated bytes", allocated < ALLOCATION_LIMIT)
+    }
+
+    /** Strict mode reads well-formed images like the default mode does. */
+    @Test
+    fun seeds_areReadAsWithoutStrictMode() {
+        for ((name, image) in seeds()) {
+            val strict = parseStrict(image)
+            val default = ExifInterface(ByteArrayInputStream(image))
+
+            assertEquals(name, "Google", strict.getAttribute(ExifInterface.TAG_MAKE))
+            for (tag in TAGS) {
+                assertEquals("$name $tag", default.getAttribute(tag), strict.getAttribute(tag))
+            }
+            assertArrayEquals(name, default.thumbnailBytes, strict.thumbnailBytes)
+        }
+    }
+
+    /** The sizes the default mode would allocate come straight from the file. */
+    @Test
+    fun malformedImages_stayWithinTheBudget() {
+        val cases = mapOf(
+            "maker note of 2 GiB" to jpeg(tiff(makerNoteCount = Int.MAX_VALUE)),
+            "thumbnail of 2 GiB" to jpeg(tiff(thumbnailLength = Int.MAX_VALUE - 256)),
+            "strips of 2 GiB" to jpeg(tiff(stripByteCount = Int.MAX_VALUE / 2)),
+            "negative thumbnail length" to jpeg(tiff(thumbnailLength = -1)),
+            "32767 directory entries" to jpeg(tiff(ifd0EntryCount = Short.MAX_VALUE.toInt())),
+            "RAF JPEG of 2 GiB" to raf(Int.MAX_VALUE),
+            "PNG chunk of 2 GiB" to png(tiff(), exifLength = Int.MAX_VALUE - 64),
+            "WebP chunk of 2 GiB" to webp(tiff(), exifLength = Int.MAX_VALUE - 64),
+            "1000 comment segments" to commentSegments(1000),
+            "IFD entries of 1 MiB each" to largeEntries(2000),
+            "IFD 32 MiB into a TIFF file" to distantIfd(32 * 1024 * 1024),
+            "chain of 5000 SubIFDs" to subIfdChain(5000),
+        )
+        for ((name, image) in cases) {
+            assertBounded(name, image)
+        }
+    }
+
+    /** Random damage to the seeds may make parsing stop early, but never make it allocate more. */
+    @Test
+    fun mutatedSeeds_stayWithinTheBudget() {
+        val random = Random(0x5eed)
+        for ((name, seed) in seeds()) {
+            repeat(MUTATIONS_PER_SEED) { i ->
+                val image = seed.copyOf()
+                repeat(1 + random.nextInt(8)) {
+                    val value = when (random.nextInt(4)) {
+                        0 -> 0xff
+                        1 -> 0x7f
+                        2 -> 0
+                        else -> random.nextInt(256)
+                    }
+                    image[random.nextInt(image.size)] = value.toByte()
+                }
+                assertBounded("$name mutation $i", image)
+            }
+        }
+    }
+
+    /** What comes after a limit is skipped, what comes before it is kept. */
+    @Test
+    fun limits_truncateWhatIsRead() {
+        val deep = parseStrict(subIfdChain(ExifInterface.STRICT_MAX_IFD_DEPTH + 1))
+        assertNull(deep.getAttribute(ExifInterface.TAG_ARTIST))
+        val shallow = parseStrict(subIfdChain(ExifInterface.STRICT_MAX_IFD_DEPTH))
+        assertEquals("GOS", shallow.getAttribute(ExifInterface.TAG_ARTIST))
+
+        val large = parseStrict(jpeg(tiff(makerNoteCount = Int.MAX_VALUE)))
+        assertNull(large.getAttribute(ExifInterface.TAG_MAKER_NOTE))
+        assertEquals("2026:07:24 15:30:12", large.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL))
+    }
+
+    private fun seeds() = mapOf(
+        "JPEG" to jpeg(tiff()),
+        "JPEG with strips" to jpeg(tiff(stripByteCount = THUMBNAIL.size)),
+        "PNG" to png(tiff()),
+        "WebP" to webp(tiff()),
+        "TIFF" to tiff(),
+    )
+
+    /**
+     * Big endian TIFF data with an IFD0, an Exif IFD and a thumbnail IFD. The thumbnail is a JPEG
+     * interchange format one, or a single strip if stripByteCount is set.
+     */
+    private fun tiff(
+        ifd0EntryCount: Int = 5,
+        makerNoteCount: Int = 8,
+        thumbnailLength: Int = THUMBNAIL.size,
+        stripByteCount: Int = 0,
+    ): ByteArray {
+        val out = ByteBuffer.allocate(TIFF_SIZE)
+        out.put(byteArrayOf('M'.code.toByte(), 'M'.code.toByte())).putShort(42).putInt(8)
+
+        out.position(8)
+        out.putShort(ifd0EntryCount.toShort())
+        entry(out, 0x0100, FORMAT_USHORT, 1, 640 shl 16)
+        entry(out, 0x0101, FORMAT_USHORT, 1, 480 shl 16)
+        entry(out, 0x010f, FORMAT_STRING, MAKE.size, 208)
+        entry(out, 0x0112, FORMAT_USHORT, 1, 6 shl 16)
+        entry(out, 0x8769, FORMAT_ULONG, 1, 100)
+        out.putInt(150)
+
+        out.position(100)
+        out.putShort(2)
+        entry(out, 0x9003, FORMAT_STRING, DATE.size, 216)
+        entry(out, 0x927c, FORMAT_UNDEFINED, makerNoteCount, 236)
+        out.putInt(0)
+
+        out.position(150)
+        if (stripByteCount == 0) {
+            out.putShort(2)
+            entry(out, 0x0201, FORMAT_ULONG, 1, 256)
+            entry(out, 0x0202, FORMAT_ULONG, 1, thumbnailLength)
+        } else {
+            out.putShort(4)
+            entry(out, 0x0103, FORMAT_USHORT, 1, 1 shl 16)
+            entry(out, 0x0102, FORMAT_USHORT, 3, 244)
+            entry(out, 0x0111, FORMAT_ULONG, 1, 256)
+            entry(out, 0x0117, FORMAT_ULONG, 1, stripByteCount)
+        }
+        out.putInt(0)
+
+        out.position(208)
+        out.put(MAKE)
+        out.position(216)
+        out.put(DATE)
+        out.position(244)
+        out.putShort(8).putShort(8).putShort(8)
+        out.position(256)
+        out.put(THUMBNAIL)
+        return out.array()
+    }
+
+    private fun entry(out: ByteBuffer, tag: Int, format: Int, count: Int, value: Int) {
+        out.putShort(tag.toShort()).putShort(format.toShort()).putInt(count).putInt(value)
+    }
+
+    private fun jpeg(exif: ByteArray, vararg segments: ByteArray): ByteArray {
+        val out = ByteBuffer.allocate(exif.size + segments.sumOf { it.size } + 64)
+        out.putShort(0xffd8.toShort())
+        out.putShort(0xffe1.toShort()).putShort((2 + 6 + exif.size).toShort())
+        out.put("Exif\u0000\u0000".toByteArray()).put(exif)
+        for (segment in segments) {
+            out.put(segment)
+        }
+        // baseline frame header of a 640x480 grayscale image
+        out.putShort(0xffc0.toShort()).putShort(11).put(8).putShort(480).putShort(640)
+        out.put(1).put(1).put(0x11).put(0)
+        out.putShort(0xffda.toShort()).putShort(8).put(1).put(1).put(0).put(0).put(63).put(0)
+        out.putShort(0xffd9.toShort())
+        return out.array().copyOf(out.position())
+    }
+
+    private fun commentSegments(count: Int): ByteArray {
+        val comment = ByteArray(0xffff + 2)
+        comment[0] = 0xff.toByte()
+        comment[1] = 0xfe.toByte()
+        comment[2] = 0xff.toByte()
+        comment[3] = 0xff.toByte()
+        return jpeg(tiff(), *Array(count) { comment })
+    }
+
+    private fun png(exif: ByteArray, exifLength: Int = exif.size): ByteArray {
+        val out = ByteBuffer.allocate(exif.size + 64)
+        out.put(byteArrayOf(0x89.toByte(), 'P'.code.toByte(), 'N'.code.toByte(),
+                'G'.code.toByte(), 0x0d, 0x0a, 0x1a, 0x0a))
+        chunk(out, "IHDR", ByteBuffer.allocate(13).putInt(640).putInt(480).put(8).put(0).array())
+        chunk(out, "eXIf", exif, exifLength)
+        chunk(out, "IEND", ByteArray(0))
+        return out.array().copyOf(out.position())
+    }
+
+    private fun chunk(out: ByteBuffer, type: String, data: ByteArray, length: Int = data.size) {
+        val crc = CRC32()
+        crc.update(type.toByteArray())
+        crc.update(data)
+        out.putInt(length).put(type.toByteArray()).put(data).putInt(crc.value.toInt())
+    }
+
+    private fun webp(exif: ByteArray, exifLength: Int = exif.size): ByteArray {
+        val out = ByteBuffer.allocate(exif.size + 32).order(ByteOrder.LITTLE_ENDIAN)
+        out.put("RIFF".toByteArray()).putInt(4 + 8 + exif.size).put("WEBP".toByteArray())
+        out.put("EXIF".toByteArray()).putInt(exifLength).put(exif)
+        return out.array().copyOf(out.position())
+    }
+
+    /** A RAF header claiming that its JPEG has the given length. */
+    private fun raf(jpegLength: Int): ByteArray {
+        val out = ByteBuffer.allocate(4096)
+        out.put("FUJIFILMCCD-RAW 0201FF383501".toByteArray())
+        out.position(84)
+        out.putInt(160).putInt(jpegLength).putInt(0)
+        return out.array()
+    }
+
+    /** A TIFF file whose IFD0 repeats an entry with a value of 1 MiB - 1. */
+    private fun largeEntries(count: Int): ByteArray {
+        val valueOffset = 8 + 2 + 12 * count + 4
+        val out = ByteBuffer.allocate(valueOffset + ExifInterface.STRICT_MAX_BUFFER_SIZE)
+        out.put(byteArrayOf('M'.code.toByte(), 'M'.code.toByte())).putShort(42).putInt(8)
+        out.putShort(count.toShort())
+        repeat(count) {
+            entry(out, 0x010e, FORMAT_STRING, ExifInterface.STRICT_MAX_BUFFER_SIZE - 1,
+                    valueOffset)
+        }
+        out.putInt(0)
+        return out.array()
+    }
+
+    /** A TIFF file of the given size whose IFD0 is at its end. */
+    private fun distantIfd(size: Int): ByteArray {
+        val out = ByteBuffer.allocate(size)
+        out.put(byteArrayOf('M'.code.toByte(), 'M'.code.toByte())).putShort(42).putInt(size - 18)
+        out.position(size - 18)
+        out.putShort(1)
+        entry(out, 0x013b, FORMAT_STRING, 4, 0x474f5300)
+        out.putInt(0)
+        return out.array()
+    }
+
+    /**
+     * A TIFF file whose IFD0 points to a SubIFD, which points to the next one, depth times. The
+     * last one holds the artist.
+     */
+    private fun subIfdChain(depth: Int): ByteArray {
+        val ifdSize = 2 + 12 + 4
+        val out = ByteBuffer.allocate(8 + ifdSize * (depth + 1))
+        out.put(byteArrayOf('M'.code.toByte(), 'M'.code.toByte())).putShort(42).putInt(8)
+        for (i in 0 until depth) {
+            out.putShort(1)
+            entry(out, 0x014a, FORMAT_ULONG, 1, 8 + ifdSize * (i + 1))
+            out.putInt(0)
+        }
+        out.putShort(1)
+        entry(out, 0x013b, FORMAT_STRING, 4, 0x474f5300)
+        out.putInt(0)
+        return out.array()
+    }
+
+    companion object {
+        private const val MUTATIONS_PER_SEED = 500
+
+        // the budget, what ExifInterface allocates regardless of the input, and the buffer that
+        // the stream is copied into to seek in it
+        private const val ALLOCATION_LIMIT = 3L * ExifInterface.STRICT_ALLOCATION_BUDGET
+
+        private const val TIFF_SIZE = 272
+
+        private const val FORMAT_USHORT = 3
+        private const val FORMAT_STRING = 2
+        private const val FORMAT_ULONG = 4
+        private const val FORMAT_UNDEFINED = 7
+
+        private val MAKE = "Google\u0000".toByteArray()
+        private val DATE = "2026:07:24 15:30:12\u0000".toByteArray()
+        private val THUMBNAIL = byteArrayOf(0xff.toByte(), 0xd8.toByte(), 0, 1, 2, 3, 4, 5,
+                6, 7, 8, 9, 10, 11, 0xff.toByte(), 0xd9.toByte())
+
+        private val TAGS = arrayOf(
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_DATETIME_ORIGINAL,
+            ExifInterface.TAG_MAKER_NOTE,
+            ExifInterface.TAG_IMAGE_WIDTH,
+            ExifInterface.TAG_IMAGE_LENGTH,
+        )
+    }
+}
@@ -0,0 +1,75 @@
+package androidxc.exifinterface.media
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+
+/**
+ * Snapshots are what the gallery caches instead of ExifInterface instances, so they have to read
+ * the same as the instance they were taken from, and stay as they were when it changes.
+ */
+class ExifSnapshotTest {
+
+    private fun parseLazy(image: ByteArray) = ExifInterface(ByteArrayInputStream(image),
+            ExifInterface.STREAM_TYPE_FULL_IMAGE_DATA, ExifInterface.PARSE_FLAG_LAZY)
+
+    @Test
+    fun snapshot_readsLikeTheInstance() {
+        val exif = parseLazy(jpeg())
+        val snapshot = exif.snapshot()
+
+        for (tag in snapshot.tags) {
+            assertEquals(tag, exif.getAttribute(tag), snapshot.getAttribute(tag))
+        }
+        assertEquals("Google", snapshot.getAttribute(ExifInterface.TAG_MAKE))
+        assertEquals(90, snapshot.rotationDegrees)
+        assertFalse(snapshot.isFlipped)
+        assertEquals(1.8, snapshot.getAttributeDouble(ExifInterface.TAG_F_NUMBER, 0.0), 0.0)
+        assertEquals(400, snapshot.getAttributeInt(ExifInterface.TAG_ISO_SPEED_RATINGS, 0))
+        assertEquals(exif.dateTimeOriginal, snapshot.dateTimeOriginal)
+    }
+
+    /** The defaults are returned where the instance would return them. */
+    @Test
+    fun snapshot_returnsTheDefaultsForValuesOfOtherTypes() {
+        val snapshot = parseLazy(jpeg()).snapshot()
+
+        assertEquals(-1, snapshot.getAttributeInt(ExifInterface.TAG_MAKE, -1))
+        assertEquals(-1.0, snapshot.getAttributeDouble(ExifInterface.TAG_MAKE, -1.0), 0.0)
+        assertEquals(-1, snapshot.getAttributeInt(ExifInterface.TAG_MODEL, -1))
+        assertEquals(null, snapshot.getAttribute(ExifInterface.TAG_MODEL))
+    }
+
+    @Test
+    fun snapshotOfTags_leavesOutTheOthersAndDoesNotChangeWithTheInstance() {
+        val exif = parseLazy(jpeg())
+        val snapshot = exif.snapshot(listOf(ExifInterface.TAG_MAKE, ExifInterface.TAG_MODEL), true)
+        exif.setAttribute(ExifInterface.TAG_MAKE, "Other")
+
+        assertArrayEquals(arrayOf(ExifInterface.TAG_MAKE), snapshot.tags)
+        assertEquals("Google", snapshot.getAttribute(ExifInterface.TAG_MAKE))
+        assertFalse(snapshot.hasAttribute(ExifInterface.TAG_ORIENTATION))
+        assertFalse(snapshot.hasThumbnail())
+    }
+
+    private companion object {
+        /** A JPEG file with no image data and the metadata of a capture. */
+        fun jpeg(): ByteArray {
+            val empty = byteArrayOf(0xFF.toByte(), 0xD8.toByte(), 0xFF.toByte(), 0xD9.toByte())
+            val exif = ExifInterface(ByteArrayInputStream(empty))
+            exif.setAttribute(ExifInterface.TAG_MAKE, "Google")
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, "6")
+            exif.setAttribute(ExifInterface.TAG_F_NUMBER, "1.8")
+            exif.setAttribute(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY, "400")
+            exif.setAttribute(ExifInterface.TAG_DATETIME_ORIGINAL, "2024:05:06 07:08:09")
+            exif.setAttribute(ExifInterface.TAG_OFFSET_TIME_ORIGINAL, "+02:00")
+            return ByteArrayOutputStream().use {
+                exif.saveAttributes(ByteArrayInputStream(empty), it)
+                it.toByteArray()
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package app.grapheneos.camera.capturer
+
+import android.content.ComponentCallbacks2
+import java.util.Random
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Arrays of the capture path are acquired and released the way ImageSaver does it, with image
+ * sizes that differ a little from one capture to the next, as JPEG sizes do.
+ */
+class BufferPoolTest {
+
+    @Test
+    fun sizeClasses_wasteLessThanAQuarter() {
+        assertEquals(BufferPool.MIN_POOLED_SIZE, BufferPool.sizeClass(1))
+        assertEquals(5 * MIB, BufferPool.sizeClass(4 * MIB + 1))
+        assertEquals(8 * MIB, BufferPool.sizeClass(8 * MIB))
+        assertEquals(10 * MIB, BufferPool.sizeClass(8 * MIB + 1))
+        for (size in listOf(65_537, 1_000_000, 4_718_593, 12_345_678, Int.MAX_VALUE - 8)) {
+            val sizeClass = BufferPool.sizeClass(size)
+            assertTrue("$size: $sizeClass", sizeClass >= size && sizeClass - size < size / 4 + 1)
+        }
+    }
+
+    @Test
+    fun steadyShooting_reusesTheSameArrays() {
+        val pool = BufferPool(64L * MIB)
+        val random = Random(1)
+        val arrays = HashSet<ByteArray>()
+        repeat(100) {
+            // the pipeline holds up to two images at a time
+            val first = pool.acquire(4 * MIB + random.nextInt(MIB / 2))
+            val second = pool.acquire(4 * MIB + random.nextInt(MIB / 2))
+            arrays.add(first)
+            arrays.add(second)
+            pool.release(first)
+            pool.release(second)
+        }
+        assertEquals(2, arrays.size)
+    }
+
+    @Test
+    fun acquire_doesNotHandOutArraysThatAreMuchTooLarge() {
+        val pool = BufferPool(64L * MIB)
+        val large = pool.acquire(16 * MIB)
+        pool.release(large)
+
+        assertNotSame(large, pool.acquire(4 * MIB))
+        assertSame(large, pool.acquire(15 * MIB))
+    }
+
+    @Test
+    fun release_dropsTheLeastRecentlyReleasedArrays() {
+        val pool = BufferPool(10L * MIB)
+        val arrays = List(3) { pool.acquire(4 * MIB) }
+        arrays.forEach(pool::release)
+
+        assertEquals(8L * MIB, pool.retainedBytes())
+        assertSame(arrays[1], pool.acquire(4 * MIB))
+        assertSame(arrays[2], pool.acquire(4 * MIB))
+        assertEquals(0L, pool.retainedBytes())
+    }
+
+    @Test
+    fun onTrimMemory_releasesTheFreeArrays() {
+        val pool = BufferPool(24L * MIB)
+        List(4) { pool.acquire(4 * MIB) }.forEach(pool::release)
+
+        // down to half of the bound while the app is in use
+        @Suppress("DEPRECATION")
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+        assertEquals(12L * MIB, pool.retainedBytes())
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+        assertEquals(0L, pool.retainedBytes())
+    }
+
+    @Test
+    fun output_growsIntoArraysOfThePool() {
+        val pool = BufferPool(64L * MIB)
+        val data = ByteArray(3 * MIB).also { Random(2).nextBytes(it) }
+
+        val out = pool.Output(MIB)
+        out.write(data[0].toInt())
+        out.write(data, 1, data.size - 1)
+
+        assertEquals(data.size, out.size())
+        assertArrayEquals(data, out.array().copyOf(out.size()))
+        // the arrays that were outgrown
+        assertTrue(pool.retainedBytes() >= MIB)
+    }
+
+    private companion object {
+        const val MIB = 1024 * 1024
+    }
+}
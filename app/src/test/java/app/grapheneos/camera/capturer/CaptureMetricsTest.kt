@@ -0,0 +1,95 @@
+package app.grapheneos.camera.capturer
+
+import app.grapheneos.camera.capturer.CaptureMetrics.Histogram
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Durations are recorded into histograms directly, with distributions like the ones of the
+ * capture path: mostly short, with a tail of stalls that are orders of magnitude longer.
+ */
+class CaptureMetricsTest {
+
+    @Test
+    fun buckets_coverEveryValue_inOrder() {
+        var prevLimit = 0L
+        for (i in 0 until CaptureMetrics.BUCKET_COUNT) {
+            val limit = CaptureMetrics.bucketLimit(i)
+            assertTrue("$i: $limit", limit > prevLimit)
+            assertEquals(i, CaptureMetrics.bucketIndex(prevLimit))
+            if (limit != Long.MAX_VALUE) {
+                assertEquals(i, CaptureMetrics.bucketIndex(limit - 1))
+                // a quarter of the lower bound, apart from the exact buckets of the small values
+                assertTrue("$i", limit - prevLimit <= maxOf(1, prevLimit / 4))
+            }
+            prevLimit = limit
+        }
+        assertEquals(CaptureMetrics.BUCKET_COUNT - 1, CaptureMetrics.bucketIndex(Long.MAX_VALUE))
+    }
+
+    @Test
+    fun percentiles_areWithinAQuarterOfTheExactOnes() {
+        val random = Random(1)
+        val values = LongArray(10_000) {
+            // fsync durations: a few ms, and every 50th write stalls for up to a second
+            if (it % 50 == 0) random.nextInt(1_000_000).toLong() else 1000L + random.nextInt(5000)
+        }
+        val histogram = Histogram()
+        values.forEach(histogram::record)
+        val snapshot = histogram.snapshot()
+        values.sort()
+
+        assertEquals(values.size.toLong(), snapshot.count)
+        assertEquals(values.last(), snapshot.maxMicros)
+        assertEquals(values.sum() / values.size, snapshot.meanMicros())
+        for (p in listOf(0.5, 0.9, 0.99, 0.999, 1.0)) {
+            val exact = values[Math.ceil(p * values.size).toInt() - 1]
+            val approximate = snapshot.percentileMicros(p)
+            assertTrue("p$p: $exact, $approximate",
+                approximate >= exact && approximate <= exact + exact / 4)
+        }
+    }
+
+    @Test
+    fun concurrentRecording_losesNoValues() {
+        val histogram = Histogram()
+        val threads = 8
+        val perThread = 100_000
+        val executor = Executors.newFixedThreadPool(threads)
+        val start = CountDownLatch(1)
+        repeat(threads) { t ->
+            executor.execute {
+                start.await()
+                for (i in 0 until perThread) {
+                    histogram.record((t * perThread + i).toLong())
+                }
+            }
+        }
+        start.countDown()
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS))
+
+        val total = threads.toLong() * perThread
+        val snapshot = histogram.snapshot()
+        assertEquals(total, snapshot.count)
+        assertEquals(total * (total - 1) / 2, snapshot.sumMicros)
+        assertEquals(total - 1, snapshot.maxMicros)
+    }
+
+    @Test
+    fun dump_onlyListsRecordedMetrics() {
+        CaptureMetrics.reset()
+        assertEquals(emptyList<String>(), CaptureMetrics.dump())
+
+        CaptureMetrics.measure(CaptureMetrics.Metric.FSYNC) { Thread.sleep(20) }
+        val lines = CaptureMetrics.dump()
+        assertEquals(1, lines.size)
+        assertTrue(lines[0], lines[0].startsWith("fsync: 1, mean ") && lines[0].endsWith(" ms"))
+        CaptureMetrics.reset()
+    }
+}
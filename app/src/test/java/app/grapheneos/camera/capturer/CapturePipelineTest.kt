@@ -0,0 +1,179 @@
+package app.grapheneos.camera.capturer
+
+import android.graphics.ImageFormat
+import androidx.camera.core.ImageProxy
+import app.grapheneos.camera.capturer.CapturePipeline.Stage
+import java.lang.reflect.Proxy
+import java.nio.ByteBuffer
+import java.util.Collections
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Synthetic captures are taken as fast as the pipeline admits them and go through every stage
+ * the way ImageSaver takes them through, with sleeps standing in for the work of each stage so
+ * that the timings don't depend on the number of cores of the machine the test runs on.
+ */
+class CapturePipelineTest {
+
+    private class Run(val elapsedMillis: Long, val delivered: List<Int>, val peakBytes: Long)
+
+    private val callbackExecutor = Executors.newSingleThreadExecutor()
+
+    @After
+    fun shutDown() {
+        callbackExecutor.shutdown()
+    }
+
+    private fun pipeline(threadsPerStage: Int, maxInFlight: Int, memoryBudget: Long) =
+        CapturePipeline(threadsPerStage, maxInFlight, memoryBudget, IMAGE_SIZE.toLong(),
+            callbackExecutor)
+
+    /** Takes count captures, each waiting for the pipeline to admit it, like the shutter does. */
+    private fun run(pipeline: CapturePipeline, count: Int, stageMillis: (Stage) -> Long): Run {
+        val delivered = Collections.synchronizedList(ArrayList<Int>())
+        val allDelivered = CountDownLatch(count)
+        val allFinished = CountDownLatch(count)
+        val peakBytes = AtomicLong()
+        val closedImages = AtomicInteger()
+        val lock = Object()
+        pipeline.onCaptureFinished = { synchronized(lock) { lock.notifyAll() } }
+
+        val start = System.nanoTime()
+        for (i in 0 until count) {
+            val capture = synchronized(lock) {
+                var capture = pipeline.tryAdmit()
+                while (capture == null) {
+                    lock.wait()
+                    capture = pipeline.tryAdmit()
+                }
+                capture
+            }
+            val image = image(ByteArray(IMAGE_SIZE)) { closedImages.incrementAndGet() }
+
+            pipeline.executor(Stage.EXTRACTION).execute {
+                val bytes = image.use {
+                    val buffer = it.planes[0].buffer
+                    ByteArray(buffer.remaining()).also { bytes -> buffer.get(bytes) }
+                }
+                Thread.sleep(stageMillis(Stage.EXTRACTION))
+                capture.setSize(bytes.size.toLong())
+                peakBytes.accumulateAndGet(pipeline.bytesInFlight()) { a, b -> maxOf(a, b) }
+
+                fun next(stage: Stage, then: () -> Unit) = capture.execute(stage) {
+                    Thread.sleep(stageMillis(stage))
+                    then()
+                }
+                next(Stage.CROPPING) {
+                    next(Stage.METADATA) {
+                        next(Stage.WRITING) {
+                            next(Stage.THUMBNAIL) {
+                                capture.deliver {
+                                    delivered.add(i)
+                                    allDelivered.countDown()
+                                }
+                                capture.finish()
+                                allFinished.countDown()
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(allDelivered.await(30, TimeUnit.SECONDS))
+        assertTrue(allFinished.await(30, TimeUnit.SECONDS))
+        val elapsedMillis = (System.nanoTime() - start) / 1_000_000
+
+        assertEquals(count, closedImages.get())
+        return Run(elapsedMillis, ArrayList(delivered), peakBytes.get())
+    }
+
+    @Test
+    fun parallelStages_outrunOneWorkerPerStage() {
+        val count = 64
+        val serial = run(pipeline(1, 16, 64L * IMAGE_SIZE), count) { 5 }
+        val parallel = run(pipeline(4, 16, 64L * IMAGE_SIZE), count) { 5 }
+
+        // one worker per stage is bound by the slowest stage, 5 ms per image
+        assertTrue("serial: ${serial.elapsedMillis} ms", serial.elapsedMillis >= count * 5)
+        assertTrue("serial: ${serial.elapsedMillis} ms, parallel: ${parallel.elapsedMillis} ms",
+            parallel.elapsedMillis * 2 < serial.elapsedMillis)
+        assertEquals((0 until count).toList(), parallel.delivered)
+    }
+
+    @Test
+    fun callbacks_followTheCaptureOrder_withinTheMemoryBudget() {
+        val random = Random(1)
+        val delays = Stage.entries.associateWith { LongArray(48) { random.nextInt(8).toLong() } }
+        val index = Stage.entries.associateWith { AtomicInteger() }
+        val pipeline = pipeline(4, 8, 3L * IMAGE_SIZE)
+
+        val run = run(pipeline, 48) { stage ->
+            delays[stage]!![index[stage]!!.getAndIncrement()]
+        }
+
+        assertEquals((0 until 48).toList(), run.delivered)
+        assertTrue("peak: ${run.peakBytes}", run.peakBytes <= 3L * IMAGE_SIZE)
+        assertEquals(0L, pipeline.bytesInFlight())
+    }
+
+    @Test
+    fun admission_stopsAtTheBudget_butAlwaysLetsOneCaptureThrough() {
+        val pipeline = pipeline(1, 8, 2L * IMAGE_SIZE)
+
+        val first = pipeline.tryAdmit()!!
+        val second = pipeline.tryAdmit()!!
+        assertNull(pipeline.tryAdmit())
+
+        // larger than the whole budget, and the estimate for the next captures
+        first.setSize(4L * IMAGE_SIZE)
+        second.finish()
+        assertNull(pipeline.tryAdmit())
+        first.finish()
+
+        assertNotNull(pipeline.tryAdmit())
+        assertNull(pipeline.tryAdmit())
+    }
+
+    private companion object {
+        const val IMAGE_SIZE = 1024 * 1024
+
+        fun image(jpeg: ByteArray, onClose: () -> Unit): ImageProxy {
+            val plane = Proxy.newProxyInstance(ImageProxy::class.java.classLoader,
+                arrayOf(ImageProxy.PlaneProxy::class.java)) { proxy, method, _ ->
+                when (method.name) {
+                    "getBuffer" -> ByteBuffer.wrap(jpeg)
+                    "getRowStride", "getPixelStride" -> 0
+                    else -> objectMethod(proxy, method.name)
+                }
+            }
+            return Proxy.newProxyInstance(ImageProxy::class.java.classLoader,
+                arrayOf(ImageProxy::class.java)) { proxy, method, _ ->
+                when (method.name) {
+                    "close" -> onClose()
+                    "getFormat" -> ImageFormat.JPEG
+                    "getWidth" -> 4032
+                    "getHeight" -> 3024
+                    "getPlanes" -> arrayOf(plane as ImageProxy.PlaneProxy)
+                    else -> objectMethod(proxy, method.name)
+                }
+            } as ImageProxy
+        }
+
+        fun objectMethod(proxy: Any, name: String): Any = when (name) {
+            "hashCode" -> System.identityHashCode(proxy)
+            "toString" -> "synthetic ImageProxy"
+            else -> throw UnsupportedOperationException(name)
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package app.grapheneos.camera.capturer
+
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Items are submitted the way ImageSaver submits written images, with moreExpected standing in
+ * for the captures that haven't reached the COMMIT stage yet. Windows that the tests don't expect
+ * to end are far longer than the time they wait for a commit, and nothing waits for a fixed time,
+ * so the results don't depend on the speed of the machine the tests run on.
+ */
+class GroupCommitTest {
+
+    private val executor = Executors.newSingleThreadExecutor()
+
+    @After
+    fun shutDown() {
+        executor.shutdown()
+    }
+
+    private class Committed {
+        val groups: MutableList<List<Int>> = Collections.synchronizedList(ArrayList())
+        @Volatile
+        private var latch = CountDownLatch(0)
+
+        /** Returns a latch that is released once count more items have been committed. */
+        fun expect(count: Int) = CountDownLatch(count).also { latch = it }
+
+        fun commit(group: List<Int>) {
+            groups.add(group)
+            repeat(group.size) { latch.countDown() }
+        }
+    }
+
+    private fun CountDownLatch.awaitCommit() = assertTrue(await(WAIT_SECONDS, TimeUnit.SECONDS))
+
+    /** An item that isn't followed by others isn't held for the window. */
+    @Test
+    fun submit_commitsRightAwayWhenNoMoreAreExpected() {
+        val committed = Committed()
+        val groupCommit = GroupCommit<Int>(executor, LONG_WINDOW_NANOS, 8, { false },
+            committed::commit)
+
+        val latch = committed.expect(1)
+        groupCommit.submit(0)
+        latch.awaitCommit()
+
+        assertEquals(listOf(listOf(0)), committed.groups)
+    }
+
+    /** The items of a burst are committed together once the last of them has been submitted. */
+    @Test
+    fun submit_groupsTheItemsThatAreExpected() {
+        val count = 4
+        val unsubmitted = AtomicInteger(count)
+        val committed = Committed()
+        val groupCommit = GroupCommit<Int>(executor, LONG_WINDOW_NANOS, 8,
+            { unsubmitted.get() > 0 }, committed::commit)
+
+        val latch = committed.expect(count)
+        for (i in 0 until count) {
+            unsubmitted.decrementAndGet()
+            groupCommit.submit(i)
+        }
+        latch.awaitCommit()
+
+        assertEquals(listOf((0 until count).toList()), committed.groups)
+    }
+
+    /** A group isn't held past its window, even while more items are expected. */
+    @Test
+    fun submit_commitsTheGroupWhenTheWindowEnds() {
+        val committed = Committed()
+        val groupCommit = GroupCommit<Int>(executor, TimeUnit.MILLISECONDS.toNanos(50), 8,
+            { true }, committed::commit)
+
+        // the first item is committed on its own, only the end of its window can release it
+        var latch = committed.expect(1)
+        groupCommit.submit(0)
+        latch.awaitCommit()
+        latch = committed.expect(1)
+        groupCommit.submit(1)
+        latch.awaitCommit()
+
+        assertEquals(listOf(listOf(0), listOf(1)), committed.groups)
+    }
+
+    /** A group that reaches the maximum size is committed without waiting for the window. */
+    @Test
+    fun submit_commitsTheGroupWhenItIsFull() {
+        val committed = Committed()
+        val groupCommit = GroupCommit<Int>(executor, LONG_WINDOW_NANOS, 2, { true },
+            committed::commit)
+
+        val latch = committed.expect(2)
+        groupCommit.submit(0)
+        groupCommit.submit(1)
+        latch.awaitCommit()
+
+        assertEquals(listOf(listOf(0, 1)), committed.groups)
+    }
+
+    /** Items that pile up while the committer is busy are split into groups of the maximum size. */
+    @Test
+    fun submit_capsTheGroupAtTheMaximumSize() {
+        val committed = Committed()
+        val groupCommit = GroupCommit<Int>(executor, LONG_WINDOW_NANOS, 2, { false },
+            committed::commit)
+
+        // keeps the committer busy until all the items have been submitted
+        val busy = CountDownLatch(1)
+        executor.execute { busy.await() }
+        val latch = committed.expect(3)
+        for (i in 0 until 3) {
+            groupCommit.submit(i)
+        }
+        busy.countDown()
+        latch.awaitCommit()
+
+        assertEquals(listOf(listOf(0, 1), listOf(2)), committed.groups)
+    }
+
+    /** A group that is held for more items is committed once they are known not to come. */
+    @Test
+    fun wakeUp_commitsOnceNoMoreAreExpected() {
+        val moreExpected = AtomicBoolean(true)
+        val committed = Committed()
+        val groupCommit = GroupCommit<Int>(executor, LONG_WINDOW_NANOS, 8, moreExpected::get,
+            committed::commit)
+
+        val latch = committed.expect(1)
+        groupCommit.submit(0)
+        moreExpected.set(false)
+        groupCommit.wakeUp()
+        latch.awaitCommit()
+
+        assertEquals(listOf(listOf(0)), committed.groups)
+    }
+
+    private companion object {
+        // the tests fail long before a window of this length ends
+        val LONG_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(10)
+        const val WAIT_SECONDS = 10L
+    }
+}
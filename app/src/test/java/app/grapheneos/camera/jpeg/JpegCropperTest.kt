@@ -0,0 +1,169 @@
+package app.grapheneos.camera.jpeg
+
+import java.awt.image.BufferedImage
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.Random
+import javax.imageio.IIOImage
+import javax.imageio.ImageIO
+import javax.imageio.ImageTypeSpecifier
+import javax.imageio.ImageWriteParam
+import javax.imageio.metadata.IIOMetadataNode
+import javax.imageio.stream.MemoryCacheImageOutputStream
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.w3c.dom.Element
+
+/**
+ * Images are encoded with the libjpeg of ImageIO, as 4:2:0 like camera captures, and the crops are
+ * decoded by it again. The pixels of the crop have to be the ones of the original image, apart
+ * from those at its edges, where the upsampling of the chroma sees different neighbors.
+ */
+class JpegCropperTest {
+
+    private val image = BufferedImage(500, 376, BufferedImage.TYPE_INT_RGB).apply {
+        val random = Random(1)
+        for (y in 0 until height) {
+            for (x in 0 until width) {
+                val noise = random.nextInt(40)
+                val r = x * 3 + noise and 0xff
+                val g = y * 5 + noise and 0xff
+                val b = x + y + noise and 0xff
+                setRGB(x, y, r shl 16 or (g shl 8) or b)
+            }
+        }
+    }
+
+    private fun crop(jpeg: ByteArray, left: Int, top: Int, width: Int, height: Int): ByteArray? {
+        val out = ByteArrayOutputStream()
+        return if (JpegCropper.crop(jpeg, 0, jpeg.size, left, top, width, height, out)) {
+            out.toByteArray()
+        } else {
+            null
+        }
+    }
+
+    private fun assertCropped(original: ByteArray, cropped: ByteArray, left: Int, top: Int) {
+        val expected = ImageIO.read(ByteArrayInputStream(original))
+        val actual = ImageIO.read(ByteArrayInputStream(cropped))
+        for (y in MCU_SIZE until actual.height - MCU_SIZE) {
+            for (x in MCU_SIZE until actual.width - MCU_SIZE) {
+                assertEquals("($x, $y)", expected.getRGB(left + x, top + y), actual.getRGB(x, y))
+            }
+        }
+    }
+
+    @Test
+    fun crop_keepsThePixelsOfTheAlignedRect() {
+        val jpeg = encode(image)
+        val cropped = crop(jpeg, 32, 48, 400, 225)!!
+
+        val decoded = ImageIO.read(ByteArrayInputStream(cropped))
+        assertEquals(400, decoded.width)
+        assertEquals(225, decoded.height)
+        assertCropped(jpeg, cropped, 32, 48)
+    }
+
+    /** 16:9 out of 4:3, the top edge is a pixel above an MCU boundary. */
+    @Test
+    fun crop_movesTheRectToTheNearestMcuBoundary() {
+        val jpeg = encode(image)
+        val cropped = crop(jpeg, 0, 47, 500, 281)!!
+
+        assertCropped(jpeg, cropped, 0, 48)
+    }
+
+    @Test
+    fun crop_skipsTheRestartIntervalsOutsideTheRect() {
+        val plain = encode(image)
+        for (interval in listOf(1, 5, 32)) {
+            val jpeg = encode(image, restartInterval = interval)
+            val cropped = crop(jpeg, 100, 100, 250, 150)!!
+
+            assertCropped(jpeg, cropped, 96, 96)
+            // the output has no restart markers, so it doesn't depend on them
+            assertArrayEquals(crop(plain, 100, 100, 250, 150), cropped)
+        }
+    }
+
+    @Test
+    fun crop_ofTheWholeImage_isTheImage() {
+        val jpeg = encode(image)
+        assertArrayEquals(jpeg, crop(jpeg, 0, 0, image.width, image.height))
+    }
+
+    @Test
+    fun crop_ofAGrayscaleImage() {
+        val gray = BufferedImage(image.width, image.height, BufferedImage.TYPE_BYTE_GRAY)
+        gray.graphics.drawImage(image, 0, 0, null)
+        val jpeg = encode(gray)
+        val cropped = crop(jpeg, 13, 5, 300, 200)!!
+
+        val expected = ImageIO.read(ByteArrayInputStream(jpeg)).raster
+        val actual = ImageIO.read(ByteArrayInputStream(cropped)).raster
+        // without chroma, every pixel is the same
+        for (y in 0 until 200) {
+            for (x in 0 until 300) {
+                assertEquals(expected.getSample(16 + x, 8 + y, 0), actual.getSample(x, y, 0))
+            }
+        }
+    }
+
+    @Test
+    fun progressiveImages_areNotCropped() {
+        val jpeg = encode(image, progressive = true)
+        assertFalse(JpegCropper.crop(jpeg, 0, jpeg.size, 0, 0, 100, 100, ByteArrayOutputStream()))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun crop_outsideTheImage_isRejected() {
+        val jpeg = encode(image)
+        crop(jpeg, 400, 0, 200, 100)
+    }
+
+    @Test
+    fun truncatedImages_areNotCropped() {
+        val jpeg = encode(image)
+        val truncated = jpeg.copyOf(jpeg.size / 2)
+        // the MCUs of the crop are all in the first half
+        assertNotNull(crop(truncated, 0, 0, 100, 100))
+        assertNull(crop(truncated, 0, 0, image.width, image.height))
+    }
+
+    private companion object {
+        // of 4:2:0 images
+        const val MCU_SIZE = 16
+
+        fun encode(image: BufferedImage, restartInterval: Int = 0, progressive: Boolean = false):
+                ByteArray {
+            val writer = ImageIO.getImageWritersByFormatName("jpeg").next()
+            val param = writer.defaultWriteParam
+            param.compressionMode = ImageWriteParam.MODE_EXPLICIT
+            param.compressionQuality = 0.92f
+            if (progressive) {
+                param.progressiveMode = ImageWriteParam.MODE_DEFAULT
+            }
+            val metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier(image), param)
+            if (restartInterval != 0) {
+                val format = "javax_imageio_jpeg_image_1.0"
+                val root = metadata.getAsTree(format) as Element
+                val markers = root.getElementsByTagName("markerSequence").item(0)
+                val dri = IIOMetadataNode("dri")
+                dri.setAttribute("interval", restartInterval.toString())
+                markers.insertBefore(dri, markers.firstChild)
+                metadata.setFromTree(format, root)
+            }
+            val out = ByteArrayOutputStream()
+            MemoryCacheImageOutputStream(out).use {
+                writer.output = it
+                writer.write(null, IIOImage(image, null, metadata), param)
+            }
+            writer.dispose()
+            return out.toByteArray()
+        }
+    }
+}
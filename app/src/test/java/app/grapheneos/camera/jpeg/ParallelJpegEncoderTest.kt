@@ -0,0 +1,139 @@
+package app.grapheneos.camera.jpeg
+
+import java.awt.image.BufferedImage
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.Random
+import java.util.concurrent.ForkJoinPool
+import javax.imageio.ImageIO
+import kotlin.math.abs
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * The images are decoded with the libjpeg of ImageIO. Their pixels have to be close to the
+ * original ones, which is the most a lossy encoder can promise, whatever the number of stripes.
+ */
+class ParallelJpegEncoderTest {
+
+    private val pool = ForkJoinPool(4)
+
+    @After
+    fun shutDown() {
+        pool.shutdown()
+    }
+
+    private fun image(width: Int, height: Int) =
+        BufferedImage(width, height, BufferedImage.TYPE_INT_RGB).apply {
+            val random = Random(1)
+            for (y in 0 until height) {
+                for (x in 0 until width) {
+                    val noise = random.nextInt(8)
+                    val r = x * 255 / width + noise and 0xff
+                    val g = y * 255 / height + noise and 0xff
+                    val b = (x + y) * 127 / (width + height) + noise and 0xff
+                    setRGB(x, y, r shl 16 or (g shl 8) or b)
+                }
+            }
+        }
+
+    private fun encode(image: BufferedImage, quality: Int): ByteArray {
+        val width = image.width
+        val source = ParallelJpegEncoder.ArgbSource { top, rows, argb ->
+            image.getRGB(0, top, width, rows, argb, 0, width)
+        }
+        val out = ByteArrayOutputStream()
+        ParallelJpegEncoder.encode(source, width, image.height, quality, pool, out)
+        return out.toByteArray()
+    }
+
+    private fun decode(jpeg: ByteArray): BufferedImage {
+        val image = ImageIO.read(ByteArrayInputStream(jpeg))
+        assertNotNull(image)
+        return image
+    }
+
+    // the mean absolute difference of the color channels
+    private fun meanError(expected: BufferedImage, actual: BufferedImage): Double {
+        var sum = 0L
+        for (y in 0 until expected.height) {
+            for (x in 0 until expected.width) {
+                val e = expected.getRGB(x, y)
+                val a = actual.getRGB(x, y)
+                for (shift in intArrayOf(0, 8, 16)) {
+                    sum += abs((e shr shift and 0xff) - (a shr shift and 0xff))
+                }
+            }
+        }
+        return sum.toDouble() / (expected.width * expected.height * 3)
+    }
+
+    @Test
+    fun encodesImagesThatAreDecodedCorrectly() {
+        for ((width, height) in listOf(1 to 1, 16 to 16, 17 to 33, 500 to 376, 1001 to 757)) {
+            val image = image(width, height)
+            val decoded = decode(encode(image, 95))
+            assertEquals(width, decoded.width)
+            assertEquals(height, decoded.height)
+            val error = meanError(image, decoded)
+            assertTrue("${width}x$height: $error", error < 4.0)
+        }
+    }
+
+    @Test
+    fun qualityTradesSizeForError() {
+        val image = image(500, 376)
+        var lastSize = 0
+        var lastError = Double.MAX_VALUE
+        for (quality in intArrayOf(1, 50, 90, 100)) {
+            val jpeg = encode(image, quality)
+            val error = meanError(image, decode(jpeg))
+            assertTrue("quality $quality", jpeg.size > lastSize)
+            assertTrue("quality $quality", error <= lastError)
+            lastSize = jpeg.size
+            lastError = error
+        }
+    }
+
+    @Test
+    fun readsYuv420PlanesWithInterleavedChroma() {
+        val width = 64
+        val height = 48
+        // a neutral gray ramp, the chroma planes are all 128
+        val y = ByteArray(width * height) { (it % width * 4).toByte() }
+        val uv = ByteArray(width * height / 2) { 128.toByte() }
+        val u = ByteBuffer.wrap(uv, 0, uv.size - 1).slice()
+        val v = ByteBuffer.wrap(uv, 1, uv.size - 1).slice()
+        val source = ParallelJpegEncoder.Yuv420Source(ByteBuffer.wrap(y), width, u, v, width, 2,
+            0, 0)
+        val out = ByteArrayOutputStream()
+        ParallelJpegEncoder.encode(source, width, height, 100, pool, out)
+
+        val decoded = decode(out.toByteArray())
+        for (row in 0 until height) {
+            for (col in 0 until width) {
+                val pixel = decoded.getRGB(col, row)
+                val expected = y[row * width + col].toInt() and 0xff
+                for (shift in intArrayOf(0, 8, 16)) {
+                    val actual = pixel shr shift and 0xff
+                    assertTrue("($col, $row): $actual", abs(actual - expected) <= 2)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun canBeCroppedLosslessly() {
+        val image = image(500, 376)
+        val jpeg = encode(image, 90)
+        val out = ByteArrayOutputStream()
+        assertTrue(JpegCropper.crop(jpeg, 0, jpeg.size, 0, 64, 500, 240, out))
+        val cropped = decode(out.toByteArray())
+        assertEquals(500, cropped.width)
+        assertEquals(240, cropped.height)
+    }
+}
@@ -0,0 +1,30 @@
+plugins {
+    application
+}
+
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(17))
+    }
+}
+
+// The forked EXIF stack, the JPEG crop and encoder and the group commit of image saving are built
+// from the app's sources against minimal stand-ins for the framework classes they use, so that they
+// can be measured on the JVM without a device.
+sourceSets {
+    main {
+        java {
+            srcDir("src/shims/java")
+            srcDir("../app/src/main/java")
+            include("android/**", "androidx/**", "androidxc/**", "org/jspecify/**",
+                "app/grapheneos/camera/jpeg/**",
+                "app/grapheneos/camera/capturer/GroupCommit.java",
+                "app/grapheneos/camera/benchmark/**")
+        }
+    }
+}
+
+application {
+    mainClass.set("app.grapheneos.camera.benchmark.Main")
+    applicationDefaultJvmArgs = listOf("-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch")
+}
@@ -0,0 +1,108 @@
+package app.grapheneos.camera.benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Measures operations the way JMH does in throughput mode with its GC profiler. Every benchmark
+ * is warmed up, then run for a number of fixed-length iterations on the calling thread. The score
+ * is the mean number of operations per second over the measured iterations, with their standard
+ * deviation as the error, and the allocation is the number of bytes the thread allocated per
+ * operation.
+ */
+public final class BenchmarkRunner {
+    /** An operation to measure. What it returns is consumed, so that it can't be optimized out. */
+    @FunctionalInterface
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    private static volatile Object sSink;
+
+    private final Pattern mFilter;
+    private final int mWarmupIterations;
+    private final int mIterations;
+    private final long mIterationNanos;
+    private final PrintStream mOut;
+    private final com.sun.management.ThreadMXBean mThreads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private boolean mPrintedHeader;
+
+    public BenchmarkRunner(Pattern filter, int warmupIterations, int iterations,
+            long iterationMillis, PrintStream out) {
+        mFilter = filter;
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+        mIterationNanos = iterationMillis * 1_000_000L;
+        mOut = out;
+    }
+
+    /** Returns whether the benchmark of the given name is to be run, to skip its setup if not. */
+    public boolean isSelected(String name) {
+        return mFilter.matcher(name).find();
+    }
+
+    public void run(String name, Operation operation) throws Exception {
+        run(name, 1, operation);
+    }
+
+    /**
+     * Measures an operation that performs a number of operations per call, such as saving a
+     * burst of images, so that its score and allocation are per operation.
+     */
+    public void run(String name, int operationsPerCall, Operation operation) throws Exception {
+        if (!isSelected(name)) {
+            return;
+        }
+        for (int i = 0; i < mWarmupIterations; ++i) {
+            iterate(operation);
+        }
+
+        double[] scores = new double[mIterations];
+        long operations = 0;
+        long bytes = 0;
+        for (int i = 0; i < mIterations; ++i) {
+            long[] iteration = iterate(operation);
+            scores[i] = iteration[0] * operationsPerCall * 1e9 / iteration[1];
+            operations += iteration[0] * operationsPerCall;
+            bytes += iteration[2];
+        }
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+
+        if (!mPrintedHeader) {
+            mOut.printf(Locale.ROOT, "%-44s %14s    %12s  %-6s %14s%n",
+                    "Benchmark", "Score", "Error", "Units", "Alloc (B/op)");
+            mPrintedHeader = true;
+        }
+        mOut.printf(Locale.ROOT, "%-44s %14.1f +- %12.1f  %-6s %14d%n",
+                name, mean, error, "ops/s", bytes / operations);
+    }
+
+    // Returns the number of operations, the nanoseconds they took and the bytes they allocated.
+    private long[] iterate(Operation operation) throws Exception {
+        long operations = 0;
+        long allocated = mThreads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sSink = operation.run();
+            ++operations;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < mIterationNanos);
+        allocated = mThreads.getCurrentThreadAllocatedBytes() - allocated;
+        sSink = null;
+        return new long[] {operations, elapsed, allocated};
+    }
+}
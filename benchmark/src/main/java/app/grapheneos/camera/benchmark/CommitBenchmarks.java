@@ -0,0 +1,184 @@
+package app.grapheneos.camera.benchmark;
+
+import app.grapheneos.camera.capturer.GroupCommit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The durable part of saving a burst of images, scored in images per second. Each image is
+ * written to a file of its own and synced, then published, which stands in for the MediaStore
+ * update that clears IS_PENDING: a record is appended to a database file and synced, the way
+ * SQLite commits a transaction.
+ *
+ * <p>"commit.single.inflight=n" syncs and publishes each image on its own writer thread as soon
+ * as it's written, "commit.group.inflight=n" hands the written images to {@link GroupCommit},
+ * with the window and the group size of ImageSaver. n is the number of images in flight at once,
+ * which rises with the shot rate. The files are written to the directory of the
+ * "benchmark.commitDir" system property, the temporary directory by default, which has to be on
+ * a real file system for the syncs to cost what they do on a device. The allocation only counts
+ * the benchmark thread, not the writers.
+ */
+final class CommitBenchmarks {
+    private static final int IMAGE_SIZE = 3 * 1024 * 1024;
+    private static final int RECORD_SIZE = 512;
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int MAX_GROUP_SIZE = 8;
+    private static final int[] IN_FLIGHT = {1, 2, 4, 8};
+
+    private final BenchmarkRunner mRunner;
+    private final byte[] mImage = new byte[IMAGE_SIZE];
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private Path mDir;
+    private FileChannel mDatabase;
+    private final AtomicInteger mNextName = new AtomicInteger();
+
+    CommitBenchmarks(BenchmarkRunner runner) {
+        mRunner = runner;
+        // incompressible, like the entropy-coded data of a JPEG
+        new Random(0).nextBytes(mImage);
+    }
+
+    void run() throws Exception {
+        if (!mRunner.isSelected("commit.")) {
+            return;
+        }
+        mDir = Files.createTempDirectory(
+                Path.of(System.getProperty("benchmark.commitDir",
+                        System.getProperty("java.io.tmpdir"))), "commit");
+        mDatabase = FileChannel.open(mDir.resolve("database"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            for (int inFlight : IN_FLIGHT) {
+                ExecutorService writers = Executors.newFixedThreadPool(inFlight);
+                ExecutorService committer = Executors.newSingleThreadExecutor();
+                try {
+                    mRunner.run("commit.single.inflight=" + inFlight, inFlight,
+                            () -> saveEach(writers, inFlight));
+                    mRunner.run("commit.group.inflight=" + inFlight, inFlight,
+                            () -> saveInGroups(writers, committer, inFlight));
+                } finally {
+                    writers.shutdown();
+                    committer.shutdown();
+                }
+            }
+        } finally {
+            mDatabase.close();
+            try (var files = Files.list(mDir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(mDir);
+        }
+    }
+
+    private Object saveEach(ExecutorService writers, int count) throws Exception {
+        List<Future<Path>> saves = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            saves.add(writers.submit(() -> {
+                Written written = write();
+                written.syncAndClose();
+                publish(1);
+                return written.mPath;
+            }));
+        }
+        for (Future<Path> save : saves) {
+            Files.delete(save.get());
+        }
+        return saves;
+    }
+
+    private Object saveInGroups(ExecutorService writers, ExecutorService committer, int count)
+            throws Exception {
+        AtomicInteger unwritten = new AtomicInteger(count);
+        CountDownLatch committed = new CountDownLatch(count);
+        List<Path> paths = new ArrayList<>(count);
+        GroupCommit<Written> groupCommit = new GroupCommit<>(committer, WINDOW_NANOS,
+                MAX_GROUP_SIZE, () -> unwritten.get() > 0, group -> {
+                    for (Written written : group) {
+                        written.syncAndClose();
+                    }
+                    publish(group.size());
+                    for (int i = 0; i < group.size(); ++i) {
+                        committed.countDown();
+                    }
+                });
+        for (int i = 0; i < count; ++i) {
+            writers.execute(() -> {
+                Written written = write();
+                synchronized (paths) {
+                    paths.add(written.mPath);
+                }
+                unwritten.decrementAndGet();
+                groupCommit.submit(written);
+            });
+        }
+        committed.await();
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+        return paths;
+    }
+
+    private Written write() {
+        Path path = mDir.resolve("IMG_" + mNextName.getAndIncrement() + ".jpg");
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            ByteBuffer image = ByteBuffer.wrap(mImage);
+            while (image.hasRemaining()) {
+                channel.write(image);
+            }
+            return new Written(path, channel);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // appends a record for each image and syncs them, like a transaction of a batch of updates
+    private synchronized void publish(int images) {
+        try {
+            for (int i = 0; i < images; ++i) {
+                mRecord.clear();
+                while (mRecord.hasRemaining()) {
+                    mDatabase.write(mRecord);
+                }
+            }
+            mDatabase.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Written {
+        final Path mPath;
+        final FileChannel mChannel;
+
+        Written(Path path, FileChannel channel) {
+            mPath = path;
+            mChannel = channel;
+        }
+
+        void syncAndClose() {
+            try (FileChannel channel = mChannel) {
+                channel.force(true);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
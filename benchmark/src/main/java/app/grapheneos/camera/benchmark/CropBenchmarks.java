@@ -0,0 +1,89 @@
+package app.grapheneos.camera.benchmark;
+
+import app.grapheneos.camera.jpeg.JpegCropper;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * The crop of a 4:3 capture to 16:9, which ImageSaver does when the viewport of the preview is
+ * wider than the sensor. "crop.lossless" is JpegCropper, "crop.reencode" decodes the region and
+ * encodes it again, the way the BitmapRegionDecoder fallback does, with ImageIO standing in for
+ * the codecs of the platform.
+ */
+final class CropBenchmarks {
+    private static final int QUALITY = 95;
+    // a row of MCUs, a common restart interval of camera HALs
+    private static final int RESTART_INTERVAL = Fixtures.CAPTURE_WIDTH / 16;
+
+    private final BenchmarkRunner mRunner;
+
+    CropBenchmarks(BenchmarkRunner runner) {
+        mRunner = runner;
+    }
+
+    void run() throws Exception {
+        int height = Fixtures.CAPTURE_WIDTH * 9 / 16;
+        Rectangle crop = new Rectangle(0, (Fixtures.CAPTURE_HEIGHT - height) / 2,
+                Fixtures.CAPTURE_WIDTH, height);
+        if (mRunner.isSelected("crop.lossless") || mRunner.isSelected("crop.reencode")) {
+            byte[] jpeg = Fixtures.plainJpeg(Fixtures.CAPTURE_WIDTH, Fixtures.CAPTURE_HEIGHT,
+                    QUALITY);
+            mRunner.run("crop.lossless", () -> cropLosslessly(jpeg, crop));
+            mRunner.run("crop.reencode", () -> decodeAndCrop(jpeg, crop));
+        }
+        if (mRunner.isSelected("crop.lossless.restart")) {
+            byte[] jpeg = Fixtures.plainJpeg(Fixtures.CAPTURE_WIDTH, Fixtures.CAPTURE_HEIGHT,
+                    QUALITY, RESTART_INTERVAL);
+            mRunner.run("crop.lossless.restart", () -> cropLosslessly(jpeg, crop));
+        }
+    }
+
+    private static byte[] cropLosslessly(byte[] jpeg, Rectangle crop) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+        if (!JpegCropper.crop(jpeg, 0, jpeg.length, crop.x, crop.y, crop.width, crop.height,
+                out)) {
+            throw new IllegalStateException("The fixture can't be cropped losslessly");
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decodeAndCrop(byte[] jpeg, Rectangle crop) throws IOException {
+        BufferedImage image;
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        try (MemoryCacheImageInputStream in =
+                new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(in);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(crop);
+            image = reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(QUALITY / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
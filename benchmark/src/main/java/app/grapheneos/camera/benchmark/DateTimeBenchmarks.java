@@ -0,0 +1,70 @@
+package app.grapheneos.camera.benchmark;
+
+import androidxc.camera.core.impl.utils.Exif;
+import androidxc.exifinterface.media.ExifDateTime;
+import androidxc.exifinterface.media.ExifInterface;
+
+import java.nio.ByteBuffer;
+import java.util.TimeZone;
+
+/**
+ * The date and time values of the capture and gallery paths. Every capture gets its Exif dates
+ * and offset written and is named after its capture time, and the gallery reads them back.
+ *
+ * <p>The "exif." benchmarks go through the public API of the EXIF stack, so they can be run at
+ * commits that predate {@link ExifDateTime}, the "date." ones measure it alone.
+ */
+final class DateTimeBenchmarks {
+    private static final long CAPTURE_TIME = 1_714_979_289_123L;
+
+    private final BenchmarkRunner mRunner;
+    // where the results of the parsing benchmarks go, boxing them would allocate
+    private final long[] mSink = new long[1];
+
+    DateTimeBenchmarks(BenchmarkRunner runner) {
+        mRunner = runner;
+    }
+
+    void run() throws Exception {
+        runCodec();
+
+        byte[] jpeg = Fixtures.jpegCapture();
+        ExifInterface exif =
+                new ExifInterface(ByteBuffer.wrap(jpeg), ExifInterface.PARSE_FLAG_LAZY);
+        mRunner.run("exif.jpeg.getDateTimeOriginal", exif::getDateTimeOriginal);
+        mRunner.run("exif.jpeg.setDateTime", () -> {
+            exif.setDateTime(CAPTURE_TIME);
+            return exif;
+        });
+        Exif cameraExif = Exif.createFromByteBuffer(ByteBuffer.wrap(jpeg));
+        mRunner.run("exif.jpeg.getTimestamp", cameraExif::getTimestamp);
+    }
+
+    private void runCodec() throws Exception {
+        TimeZone zone = TimeZone.getTimeZone("America/St_Johns");
+        char[] chars = new char[ExifDateTime.DATE_TIME_LENGTH];
+        mRunner.run("date.exif.format", () -> {
+            ExifDateTime.formatDateTime(ExifDateTime.toLocalMillis(CAPTURE_TIME, zone), chars, 0);
+            return chars;
+        });
+        String dateTime = ExifDateTime.formatDateTime(CAPTURE_TIME);
+        mRunner.run("date.exif.parse", () -> {
+            mSink[0] = ExifDateTime.toUtcMillis(ExifDateTime.parseDateTime(dateTime), zone);
+            return mSink;
+        });
+        mRunner.run("date.offset.format", () -> {
+            ExifDateTime.formatOffset(zone.getOffset(CAPTURE_TIME), chars, 0);
+            return chars;
+        });
+
+        mRunner.run("date.fileName.format", () -> {
+            ExifDateTime.formatFileNameStamp(CAPTURE_TIME, true, chars, 0);
+            return chars;
+        });
+        String stamp = ExifDateTime.formatFileNameStamp(CAPTURE_TIME, true);
+        mRunner.run("date.fileName.parse", () -> {
+            mSink[0] = ExifDateTime.parseFileNameStamp(stamp);
+            return mSink;
+        });
+    }
+}
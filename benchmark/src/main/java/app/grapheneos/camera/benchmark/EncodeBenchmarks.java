@@ -0,0 +1,109 @@
+package app.grapheneos.camera.benchmark;
+
+import app.grapheneos.camera.jpeg.ParallelJpegEncoder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * The encoding of a full resolution YUV_420_888 capture, which ImageSaver does when the camera
+ * doesn't deliver JPEG. "encode.single" is ImageIO, which stands in for the single-threaded
+ * YuvImage of the platform, "encode.parallel.threads=n" is ParallelJpegEncoder on a pool of n
+ * threads, reading the planes of the capture, with pixel stride 2 for the chroma planes like most
+ * camera HALs. "encode.parallel.argb" encodes the pixels of a Bitmap, like the fallback of the
+ * crop. The thread counts above the number of CPUs of the host only measure the overhead of the
+ * stripes.
+ */
+final class EncodeBenchmarks {
+    private static final int QUALITY = 95;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    private final BenchmarkRunner mRunner;
+
+    EncodeBenchmarks(BenchmarkRunner runner) {
+        mRunner = runner;
+    }
+
+    void run() throws Exception {
+        if (!mRunner.isSelected("encode.")) {
+            return;
+        }
+        int width = Fixtures.CAPTURE_WIDTH;
+        int height = Fixtures.CAPTURE_HEIGHT;
+        BufferedImage image = Fixtures.image(width, height);
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        ParallelJpegEncoder.Source yuv = yuv420(argb, width, height);
+
+        mRunner.run("encode.single", () -> encodeSingle(image));
+        for (int threads : THREADS) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                mRunner.run("encode.parallel.threads=" + threads,
+                        () -> encodeParallel(yuv, width, height, pool));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        ParallelJpegEncoder.Source argbSource = new ParallelJpegEncoder.ArgbSource(
+                (top, rows, pixels) -> System.arraycopy(argb, top * width, pixels, 0,
+                        rows * width));
+        mRunner.run("encode.parallel.argb",
+                () -> encodeParallel(argbSource, width, height, ForkJoinPool.commonPool()));
+    }
+
+    private static byte[] encodeSingle(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(QUALITY / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 * 1024 * 1024);
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeParallel(ParallelJpegEncoder.Source source, int width,
+            int height, ForkJoinPool pool) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 * 1024 * 1024);
+        ParallelJpegEncoder.encode(source, width, height, QUALITY, pool, out);
+        return out.toByteArray();
+    }
+
+    // the planes of a YUV_420_888 image with interleaved chroma, like those of most camera HALs
+    private static ParallelJpegEncoder.Source yuv420(int[] argb, int width, int height) {
+        byte[] y = new byte[width * height];
+        byte[] uv = new byte[width * height / 2];
+        for (int row = 0; row < height; ++row) {
+            for (int col = 0; col < width; ++col) {
+                int pixel = argb[row * width + col];
+                int r = (pixel >> 16) & 0xff;
+                int g = (pixel >> 8) & 0xff;
+                int b = pixel & 0xff;
+                y[row * width + col] = (byte) ((19595 * r + 38470 * g + 7471 * b + 32768) >> 16);
+                if ((row & 1) == 0 && (col & 1) == 0) {
+                    int index = (row / 2) * width + col;
+                    uv[index] = (byte) ((-11059 * r - 21709 * g + 32768 * b + (128 << 16)) >> 16);
+                    uv[index + 1] =
+                            (byte) ((32768 * r - 27439 * g - 5329 * b + (128 << 16)) >> 16);
+                }
+            }
+        }
+        ByteBuffer u = ByteBuffer.wrap(uv, 0, uv.length - 1).slice();
+        ByteBuffer v = ByteBuffer.wrap(uv, 1, uv.length - 1).slice();
+        return new ParallelJpegEncoder.Yuv420Source(ByteBuffer.wrap(y), width, u, v, width, 2,
+                0, 0);
+    }
+}
@@ -0,0 +1,202 @@
+package app.grapheneos.camera.benchmark;
+
+import androidxc.camera.core.impl.utils.Exif;
+import androidxc.exifinterface.media.ExifInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * The EXIF work of the capture and gallery paths. The capture path parses the buffer of every
+ * capture, fixes up its metadata and writes it out, and the gallery parses each item it shows.
+ */
+final class ExifBenchmarks {
+    // what ImageSaver keeps when "Remove EXIF after capture" is on, see ExifHelper.clearExif()
+    private static final Set<String> KEPT_ATTRIBUTES =
+            Set.of(ExifInterface.TAG_ORIENTATION, Exif.TAG_THUMBNAIL_ORIENTATION);
+
+    // what the capture path and the media details screen look up
+    private static final String[] ATTRIBUTES = {
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_SOFTWARE,
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_DATETIME_ORIGINAL,
+            ExifInterface.TAG_OFFSET_TIME_ORIGINAL,
+            ExifInterface.TAG_SUBSEC_TIME_ORIGINAL,
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_IMAGE_WIDTH,
+            ExifInterface.TAG_IMAGE_LENGTH,
+            ExifInterface.TAG_EXPOSURE_TIME,
+            ExifInterface.TAG_F_NUMBER,
+            ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY,
+            ExifInterface.TAG_FOCAL_LENGTH,
+            ExifInterface.TAG_FLASH,
+            ExifInterface.TAG_WHITE_BALANCE,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_XMP,
+    };
+
+    private final BenchmarkRunner mRunner;
+
+    ExifBenchmarks(BenchmarkRunner runner) {
+        mRunner = runner;
+    }
+
+    void run() throws Exception {
+        byte[] jpeg = Fixtures.jpegCapture();
+        runJpeg(jpeg);
+        // the fixtures take a while to encode, they're only generated when they're used
+        if (selectsAny("png", "parse.stream", "parse.buffer", "save.stream")) {
+            runParseAndSave("png", Fixtures.png());
+        }
+        if (selectsAny("png24m", "save.stream", "save.fd", "copy.stream", "copy.fd")) {
+            runLargePng(Fixtures.largePng());
+        }
+        if (selectsAny("webp", "parse.stream", "parse.buffer", "save.stream")) {
+            runParseAndSave("webp", Fixtures.webp());
+        }
+        if (selectsAny("heif", "parse.stream", "parse.buffer", "save.stream")) {
+            runParseAndSave("heif", Fixtures.heif(jpeg));
+        }
+    }
+
+    private void runJpeg(byte[] jpeg) throws Exception {
+        runParseAndSave("jpeg", jpeg);
+
+        // stream parsing copies the APP1 segment out of the stream, the buffer is parsed in place
+        mRunner.run("exif.jpeg.parse.lazy", () ->
+                new ExifInterface(ByteBuffer.wrap(jpeg), ExifInterface.PARSE_FLAG_LAZY));
+        mRunner.run("exif.jpeg.parse.strict", () ->
+                new ExifInterface(new ByteArrayInputStream(jpeg),
+                        ExifInterface.STREAM_TYPE_FULL_IMAGE_DATA,
+                        ExifInterface.PARSE_FLAG_LAZY | ExifInterface.PARSE_FLAG_STRICT));
+        mRunner.run("exif.jpeg.parseGetSave", () -> {
+            ExifInterface exif = new ExifInterface(ByteBuffer.wrap(jpeg));
+            Object values = getAttributes(exif);
+            exif.saveAttributes(new ByteArrayInputStream(jpeg), OutputStream.nullOutputStream());
+            return values;
+        });
+        mRunner.run("exif.jpeg.parseGetSave.lazy", () -> {
+            ExifInterface exif =
+                    new ExifInterface(ByteBuffer.wrap(jpeg), ExifInterface.PARSE_FLAG_LAZY);
+            Object values = getAttributes(exif);
+            exif.saveAttributes(new ByteArrayInputStream(jpeg), OutputStream.nullOutputStream());
+            return values;
+        });
+        mRunner.run("exif.jpeg.clearExif", () -> {
+            ExifInterface exif =
+                    new ExifInterface(ByteBuffer.wrap(jpeg), ExifInterface.PARSE_FLAG_LAZY);
+            exif.clearAllExcept(KEPT_ATTRIBUTES);
+            exif.saveAttributes(new ByteArrayInputStream(jpeg), OutputStream.nullOutputStream());
+            return exif;
+        });
+
+        // a quarter turn every time, it's back to where it was after four
+        Exif rotated = Exif.createFromByteBuffer(ByteBuffer.wrap(jpeg));
+        mRunner.run("exif.jpeg.rotate", () -> {
+            rotated.rotate(90);
+            return rotated;
+        });
+        Exif flipped = Exif.createFromByteBuffer(ByteBuffer.wrap(jpeg));
+        mRunner.run("exif.jpeg.flip", () -> {
+            flipped.flipHorizontally();
+            flipped.flipVertically();
+            return flipped;
+        });
+
+        if (mRunner.isSelected("exif.jpeg.copyToCroppedImage")) {
+            // includes parsing the cropped image, which is what the crop path does as well
+            Exif original = Exif.createFromByteBuffer(ByteBuffer.wrap(jpeg));
+            byte[] cropped = Fixtures.plainJpeg(1920, 1080, 92);
+            mRunner.run("exif.jpeg.copyToCroppedImage", () -> {
+                Exif croppedExif = Exif.createFromByteBuffer(ByteBuffer.wrap(cropped));
+                original.copyToCroppedImage(croppedExif);
+                return croppedExif;
+            });
+        }
+    }
+
+    // Saving rewrites only the metadata chunks, so the copies of the image are the baselines:
+    // the closer the saves come to them, the less the image data costs beyond being written.
+    private void runLargePng(byte[] png) throws Exception {
+        ExifInterface exif = new ExifInterface(ByteBuffer.wrap(png));
+        // into memory, a sink that discards what it gets would make the copy free
+        ByteArrayOutputStream memory = new ByteArrayOutputStream(png.length + 65536);
+        mRunner.run("exif.png24m.copy.stream", () -> {
+            memory.reset();
+            new ByteArrayInputStream(png).transferTo(memory);
+            return memory;
+        });
+        mRunner.run("exif.png24m.save.stream", () -> {
+            memory.reset();
+            exif.saveAttributes(new ByteArrayInputStream(png), memory);
+            return memory;
+        });
+
+        File file = File.createTempFile("benchmark", ".png");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            mRunner.run("exif.png24m.copy.fd", () -> {
+                out.seek(0);
+                ByteBuffer buffer = ByteBuffer.wrap(png);
+                while (buffer.hasRemaining()) {
+                    out.getChannel().write(buffer);
+                }
+                return out;
+            });
+            mRunner.run("exif.png24m.save.fd", () -> {
+                out.seek(0);
+                exif.saveAttributes(ByteBuffer.wrap(png), out.getFD());
+                return out;
+            });
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void runParseAndSave(String format, byte[] image) throws Exception {
+        runParse(format, image);
+
+        // the same instance every time. After a save it describes what it wrote, and a WebP file
+        // has to match it, so the image is saved once first to be saved from as it was written.
+        ExifInterface exif = new ExifInterface(ByteBuffer.wrap(image));
+        ByteArrayOutputStream saved = new ByteArrayOutputStream(image.length);
+        exif.saveAttributes(new ByteArrayInputStream(image), saved);
+        byte[] source = saved.toByteArray();
+        mRunner.run("exif." + format + ".save.stream", () -> {
+            exif.saveAttributes(new ByteArrayInputStream(source), OutputStream.nullOutputStream());
+            return exif;
+        });
+    }
+
+    private void runParse(String format, byte[] image) throws Exception {
+        mRunner.run("exif." + format + ".parse.stream", () ->
+                new ExifInterface(new ByteArrayInputStream(image)));
+        mRunner.run("exif." + format + ".parse.buffer", () ->
+                new ExifInterface(ByteBuffer.wrap(image)));
+    }
+
+    private boolean selectsAny(String format, String... benchmarks) {
+        for (String benchmark : benchmarks) {
+            if (mRunner.isSelected("exif." + format + "." + benchmark)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object getAttributes(ExifInterface exif) {
+        String[] values = new String[ATTRIBUTES.length];
+        for (int i = 0; i < ATTRIBUTES.length; ++i) {
+            values[i] = exif.getAttribute(ATTRIBUTES[i]);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,315 @@
+package app.grapheneos.camera.benchmark;
+
+import androidxc.exifinterface.media.ExifInterface;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Images shaped like the ones the app writes and reads back: a full resolution JPEG capture with
+ * the metadata a camera HAL fills in and an embedded thumbnail, and PNG, WebP and HEIF images
+ * carrying the same metadata. The pixels are generated, so they're deterministic and nothing has
+ * to be checked in. The WebP and HEIF image data is filler, only the container around it has to
+ * be valid for ExifInterface.
+ */
+final class Fixtures {
+    static final int CAPTURE_WIDTH = 4032;
+    static final int CAPTURE_HEIGHT = 3024;
+
+    private static final String XMP = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+            + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+            + "<rdf:Description rdf:about=\"\" xmlns:GCamera=\"http://ns.google.com/photos/1.0/camera/\""
+            + " GCamera:MotionPhoto=\"0\"/></rdf:RDF></x:xmpmeta>";
+
+    private Fixtures() {}
+
+    /** A full resolution capture as written by ImageSaver with EXIF, XMP and a thumbnail. */
+    static byte[] jpegCapture() throws IOException {
+        byte[] plain = plainJpeg(CAPTURE_WIDTH, CAPTURE_HEIGHT, 92);
+        ExifInterface exif = new ExifInterface(ByteBuffer.wrap(plain));
+        setCaptureAttributes(exif);
+        exif.setThumbnail(plainJpeg(320, 240, 85));
+        return save(exif, plain);
+    }
+
+    /** A JPEG without metadata, like the output of the crop in the capture preview. */
+    static byte[] plainJpeg(int width, int height, int quality) throws IOException {
+        return plainJpeg(width, height, quality, 0);
+    }
+
+    /**
+     * A JPEG without metadata with a restart marker after every restartInterval MCUs, as some
+     * camera HALs write them, or none if it's 0.
+     */
+    static byte[] plainJpeg(int width, int height, int quality, int restartInterval)
+            throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        BufferedImage image = image(width, height);
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        if (restartInterval != 0) {
+            String format = "javax_imageio_jpeg_image_1.0";
+            Element root = (Element) metadata.getAsTree(format);
+            Node markers = root.getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            markers.insertBefore(dri, markers.getFirstChild());
+            metadata.setFromTree(format, root);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /** A PNG screenshot-sized image with the capture metadata in an eXIf chunk. */
+    static byte[] png() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image(1920, 1440), "png", out);
+        byte[] plain = out.toByteArray();
+        ExifInterface exif = new ExifInterface(new ByteArrayInputStream(plain));
+        setCaptureAttributes(exif);
+        return save(exif, plain);
+    }
+
+    /**
+     * A PNG of 24 MB of image data in IDAT chunks of 8 KiB, the size libpng splits them into by
+     * default, with the capture metadata. That's what a lossless 12 MP capture comes to.
+     */
+    static byte[] largePng() throws IOException {
+        int chunkSize = 8192;
+        int chunks = 24 * 1024 * 1024 / chunkSize;
+        ByteBuffer png = ByteBuffer.allocate(8 + 25 + chunks * (12 + chunkSize) + 12);
+        png.put(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+        // 8 bit RGB, no interlacing
+        putPngChunk(png, "IHDR", ByteBuffer.allocate(13).putInt(CAPTURE_WIDTH)
+                .putInt(CAPTURE_HEIGHT).put((byte) 8).put((byte) 2).array());
+        Random random = new Random(2);
+        byte[] data = new byte[chunkSize];
+        for (int i = 0; i < chunks; ++i) {
+            random.nextBytes(data);
+            putPngChunk(png, "IDAT", data);
+        }
+        putPngChunk(png, "IEND", new byte[0]);
+        byte[] plain = png.array();
+
+        ExifInterface exif = new ExifInterface(new ByteArrayInputStream(plain));
+        setCaptureAttributes(exif);
+        return save(exif, plain);
+    }
+
+    /** A lossless WebP of 2 MB of image data with the capture metadata in an EXIF chunk. */
+    static byte[] webp() throws IOException {
+        int width = 2016;
+        int height = 1512;
+        byte[] payload = new byte[2 << 20];
+        new Random(1).nextBytes(payload);
+        // signature, then the dimensions minus one in 14 bits each, no alpha, version 0, and an
+        // even size, since RIFF chunks are padded to one
+        ByteBuffer vp8l = ByteBuffer.allocate(payload.length).order(ByteOrder.LITTLE_ENDIAN);
+        vp8l.put((byte) 0x2f);
+        vp8l.putInt((width - 1) | (height - 1) << 14);
+        vp8l.put(payload, 5, payload.length - 5);
+
+        ByteBuffer riff = ByteBuffer.allocate(12 + 8 + vp8l.capacity())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        riff.put(ascii("RIFF")).putInt(riff.capacity() - 8).put(ascii("WEBP"));
+        riff.put(ascii("VP8L")).putInt(vp8l.capacity()).put(vp8l.array());
+        byte[] plain = riff.array();
+
+        ExifInterface exif = new ExifInterface(new ByteArrayInputStream(plain));
+        setCaptureAttributes(exif);
+        return save(exif, plain);
+    }
+
+    /**
+     * A HEIF image with the metadata of the JPEG capture in an Exif item and 2 MB of image data,
+     * laid out like the camera HALs write it: the meta box first, the items in the mdat box.
+     */
+    static byte[] heif(byte[] jpegCapture) {
+        byte[] tiff = tiffOf(jpegCapture);
+        byte[] image = new byte[2 << 20];
+        new Random(2).nextBytes(image);
+
+        // the Exif item is the offset of the TIFF header, "Exif\0\0", then the TIFF data
+        ByteBuffer exifItem = ByteBuffer.allocate(4 + 6 + tiff.length);
+        exifItem.putInt(6).put(ascii("Exif")).put(new byte[2]).put(tiff);
+
+        byte[] ftyp = box("ftyp", concat(ascii("heic"), new byte[4], ascii("mif1heic")));
+        byte[] hdlr = fullBox("hdlr", 0, 0,
+                concat(new byte[4], ascii("pict"), new byte[12], new byte[1]));
+        byte[] pitm = fullBox("pitm", 0, 0, shorts(1));
+        byte[] iinf = fullBox("iinf", 0, 0, concat(shorts(2),
+                fullBox("infe", 2, 0, concat(shorts(1, 0), ascii("hvc1"), new byte[1])),
+                fullBox("infe", 2, 1, concat(shorts(2, 0), ascii("Exif"), new byte[1]))));
+        byte[] iprp = box("iprp", concat(
+                box("ipco", fullBox("ispe", 0, 0, ints(CAPTURE_WIDTH, CAPTURE_HEIGHT))),
+                fullBox("ipma", 0, 0, concat(ints(1), shorts(1), new byte[] {1, (byte) 0x81}))));
+        // the offsets are patched in once the size of the meta box is known
+        ByteBuffer ilocEntries = ByteBuffer.allocate(2 + 2 * 14);
+        ilocEntries.putShort((short) 2);
+        ilocEntries.putShort((short) 1).putShort((short) 0).putShort((short) 1)
+                .putInt(0).putInt(image.length);
+        ilocEntries.putShort((short) 2).putShort((short) 0).putShort((short) 1)
+                .putInt(0).putInt(exifItem.capacity());
+        // 4 byte offsets and lengths, no base offsets
+        byte[] iloc = fullBox("iloc", 0, 0, concat(new byte[] {0x44, 0}, ilocEntries.array()));
+        byte[] meta = fullBox("meta", 0, 0, concat(hdlr, pitm, iinf, iloc, iprp));
+
+        int imageOffset = ftyp.length + meta.length + 8;
+        int exifOffset = imageOffset + image.length;
+        // the entries follow the headers of meta and iloc and the field sizes
+        int ilocEntriesStart = 12 + hdlr.length + pitm.length + iinf.length + 12 + 2;
+        ByteBuffer metaBuffer = ByteBuffer.wrap(meta);
+        metaBuffer.putInt(ilocEntriesStart + 2 + 6, imageOffset);
+        metaBuffer.putInt(ilocEntriesStart + 2 + 14 + 6, exifOffset);
+
+        byte[] mdat = box("mdat", concat(image, exifItem.array()));
+        return concat(ftyp, meta, mdat);
+    }
+
+    private static void setCaptureAttributes(ExifInterface exif) {
+        exif.setAttribute(ExifInterface.TAG_MAKE, "Google");
+        exif.setAttribute(ExifInterface.TAG_MODEL, "Pixel 9 Pro");
+        exif.setAttribute(ExifInterface.TAG_SOFTWARE, "GrapheneOS Camera");
+        exif.setAttribute(ExifInterface.TAG_DATETIME, "2026:07:24 15:30:12");
+        exif.setAttribute(ExifInterface.TAG_DATETIME_ORIGINAL, "2026:07:24 15:30:12");
+        exif.setAttribute(ExifInterface.TAG_DATETIME_DIGITIZED, "2026:07:24 15:30:12");
+        exif.setAttribute(ExifInterface.TAG_OFFSET_TIME, "+02:00");
+        exif.setAttribute(ExifInterface.TAG_OFFSET_TIME_ORIGINAL, "+02:00");
+        exif.setAttribute(ExifInterface.TAG_SUBSEC_TIME_ORIGINAL, "482");
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                Integer.toString(ExifInterface.ORIENTATION_ROTATE_90));
+        exif.setAttribute(ExifInterface.TAG_EXPOSURE_TIME, "0.008");
+        exif.setAttribute(ExifInterface.TAG_F_NUMBER, "1.68");
+        exif.setAttribute(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY, "64");
+        exif.setAttribute(ExifInterface.TAG_FOCAL_LENGTH, "6900/1000");
+        exif.setAttribute(ExifInterface.TAG_FOCAL_LENGTH_IN_35MM_FILM, "24");
+        exif.setAttribute(ExifInterface.TAG_APERTURE_VALUE, "150/100");
+        exif.setAttribute(ExifInterface.TAG_SHUTTER_SPEED_VALUE, "696/100");
+        exif.setAttribute(ExifInterface.TAG_FLASH, "16");
+        exif.setAttribute(ExifInterface.TAG_WHITE_BALANCE, "0");
+        exif.setAttribute(ExifInterface.TAG_METERING_MODE, "2");
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, "47/1,22/1,5640/100");
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE_REF, "N");
+        exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE, "8/1,32/1,4020/100");
+        exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF, "E");
+        exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE, "408/1");
+        exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE_REF, "0");
+        exif.setAttribute(ExifInterface.TAG_GPS_TIMESTAMP, "13:30:12");
+        exif.setAttribute(ExifInterface.TAG_GPS_DATESTAMP, "2026:07:24");
+        exif.setAttribute(ExifInterface.TAG_XMP, XMP);
+    }
+
+    private static byte[] save(ExifInterface exif, byte[] original) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(original.length + 65536);
+        exif.saveAttributes(new ByteArrayInputStream(original), out);
+        return out.toByteArray();
+    }
+
+    // Returns the TIFF data of the EXIF APP1 segment of a JPEG.
+    private static byte[] tiffOf(byte[] jpeg) {
+        ByteBuffer buffer = ByteBuffer.wrap(jpeg);
+        int position = 2;
+        while (position + 4 <= jpeg.length) {
+            int marker = buffer.getShort(position) & 0xffff;
+            int length = buffer.getShort(position + 2) & 0xffff;
+            if (marker == 0xffe1 && buffer.getInt(position + 4) == 0x45786966) {
+                // the length includes itself, "Exif\0\0" precedes the TIFF header
+                byte[] tiff = new byte[length - 2 - 6];
+                buffer.get(position + 4 + 6, tiff);
+                return tiff;
+            }
+            position += 2 + length;
+        }
+        throw new IllegalArgumentException("No EXIF segment");
+    }
+
+    // A gradient with some noise, so that the encoder doesn't produce an unrealistically small file.
+    static BufferedImage image(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(width * 31L + height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int noise = random.nextInt(24);
+                int r = (x * 255 / width + noise) & 0xff;
+                int g = (y * 255 / height + noise) & 0xff;
+                int b = ((x + y) * 127 / (width + height) + noise) & 0xff;
+                row[x] = r << 16 | g << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static void putPngChunk(ByteBuffer png, String type, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(ascii(type));
+        crc.update(data);
+        png.putInt(data.length).put(ascii(type)).put(data).putInt((int) crc.getValue());
+    }
+
+    private static byte[] box(String type, byte[] payload) {
+        ByteBuffer box = ByteBuffer.allocate(8 + payload.length);
+        box.putInt(box.capacity()).put(ascii(type)).put(payload);
+        return box.array();
+    }
+
+    private static byte[] fullBox(String type, int version, int flags, byte[] payload) {
+        return box(type, concat(ints(version << 24 | flags), payload));
+    }
+
+    private static byte[] shorts(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * values.length);
+        for (int value : values) {
+            buffer.putShort((short) value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.writeBytes(array);
+        }
+        return out.toByteArray();
+    }
+}
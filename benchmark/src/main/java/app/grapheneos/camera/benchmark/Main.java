@@ -0,0 +1,52 @@
+package app.grapheneos.camera.benchmark;
+
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks of the forked EXIF stack, its date and time codec, the JPEG crop, the
+ * encoding of YUV captures and the commit of saved images on the JVM:
+ *
+ * <pre>
+ * ./gradlew :benchmark:run --args="[-wi warmup iterations] [-i iterations] [-t iteration ms] [regex]"
+ * </pre>
+ *
+ * <p>Only the benchmarks whose name contains a match for the regex are run. Comparing an
+ * optimization against what it replaced is done by running the same benchmarks at both commits.
+ */
+public final class Main {
+    private Main() {}
+
+    public static void main(String[] args) throws Exception {
+        int warmupIterations = 5;
+        int iterations = 5;
+        long iterationMillis = 1000;
+        Pattern filter = Pattern.compile("");
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-wi":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-t":
+                    iterationMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    filter = Pattern.compile(args[i]);
+                    break;
+            }
+        }
+        if (iterations < 1) {
+            throw new IllegalArgumentException("At least one measured iteration is needed");
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(filter, warmupIterations, iterations,
+                iterationMillis, System.out);
+        new ExifBenchmarks(runner).run();
+        new DateTimeBenchmarks(runner).run();
+        new CropBenchmarks(runner).run();
+        new EncodeBenchmarks(runner).run();
+        new CommitBenchmarks(runner).run();
+    }
+}
@@ -0,0 +1,10 @@
+package android.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/** Shim of the framework annotation, which has no meaning off-device. */
+@Retention(RetentionPolicy.SOURCE)
+public @interface SuppressLint {
+    String[] value();
+}
@@ -0,0 +1,12 @@
+package android.content.res;
+
+import java.io.InputStream;
+
+/** Shim that only provides the stream type ExifInterface checks its input against. */
+public final class AssetManager {
+    private AssetManager() {}
+
+    public abstract static class AssetInputStream extends InputStream {
+        private AssetInputStream() {}
+    }
+}
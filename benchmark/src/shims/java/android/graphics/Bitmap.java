@@ -0,0 +1,14 @@
+package android.graphics;
+
+/** Shim without pixels. ExifInterface only creates bitmaps for getThumbnailBitmap(). */
+public final class Bitmap {
+    public enum Config {
+        ARGB_8888,
+    }
+
+    private Bitmap() {}
+
+    public static Bitmap createBitmap(int[] colors, int width, int height, Config config) {
+        throw new UnsupportedOperationException("Bitmaps aren't available on the JVM");
+    }
+}
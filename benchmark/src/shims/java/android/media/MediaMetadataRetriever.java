@@ -0,0 +1,277 @@
+package android.media;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shim that reads what ExifInterface asks for from HEIF and AVIF images. The framework gets it
+ * from its extractors, this walks the ISO/IEC 23008-12 item boxes of the meta box instead: the
+ * primary item and its ispe and irot properties, and the locations of the Exif and XMP items.
+ * Only items stored in a single extent of the file are located, which is how cameras write them.
+ */
+public class MediaMetadataRetriever implements AutoCloseable {
+    public static final int METADATA_KEY_HAS_VIDEO = 17;
+    public static final int METADATA_KEY_VIDEO_WIDTH = 18;
+    public static final int METADATA_KEY_VIDEO_HEIGHT = 19;
+    public static final int METADATA_KEY_VIDEO_ROTATION = 24;
+    public static final int METADATA_KEY_HAS_IMAGE = 26;
+    public static final int METADATA_KEY_IMAGE_WIDTH = 29;
+    public static final int METADATA_KEY_IMAGE_HEIGHT = 30;
+    public static final int METADATA_KEY_IMAGE_ROTATION = 31;
+    public static final int METADATA_KEY_EXIF_OFFSET = 33;
+    public static final int METADATA_KEY_EXIF_LENGTH = 34;
+    public static final int METADATA_KEY_XMP_OFFSET = 41;
+    public static final int METADATA_KEY_XMP_LENGTH = 42;
+
+    private static final String XMP_CONTENT_TYPE = "application/rdf+xml";
+
+    private final Map<Integer, String> mMetadata = new HashMap<>();
+
+    public void setDataSource(MediaDataSource source) {
+        mMetadata.clear();
+        try {
+            long position = 0;
+            while (true) {
+                ByteBuffer header = ByteBuffer.wrap(read(source, position, 8));
+                long size = header.getInt() & 0xffffffffL;
+                int type = header.getInt();
+                int headerSize = 8;
+                if (size == 1) {
+                    size = ByteBuffer.wrap(read(source, position + 8, 8)).getLong();
+                    headerSize = 16;
+                }
+                if (type == fourCc("meta")) {
+                    ByteBuffer meta = ByteBuffer.wrap(
+                            read(source, position + headerSize, (int) (size - headerSize)));
+                    readMeta(source, meta);
+                    return;
+                }
+                if (size < headerSize) {
+                    // a box up to the end of the file, or a malformed one
+                    return;
+                }
+                position += size;
+            }
+        } catch (IOException | RuntimeException e) {
+            // like the framework, report whatever was found
+        }
+    }
+
+    public String extractMetadata(int keyCode) {
+        return mMetadata.get(keyCode);
+    }
+
+    public void release() throws IOException {
+        mMetadata.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+    }
+
+    private void readMeta(MediaDataSource source, ByteBuffer meta) throws IOException {
+        // FullBox version and flags
+        meta.getInt();
+
+        int primaryItem = -1;
+        int exifItem = -1;
+        int xmpItem = -1;
+        Map<Integer, long[]> locations = new HashMap<>();
+        Map<Integer, ByteBuffer> properties = new HashMap<>();
+        Map<Integer, int[]> associations = new HashMap<>();
+        while (meta.remaining() >= 8) {
+            int start = meta.position();
+            int size = meta.getInt();
+            int type = meta.getInt();
+            ByteBuffer box = meta.slice();
+            box.limit(size - 8);
+            if (type == fourCc("pitm")) {
+                int version = box.get();
+                box.position(4);
+                primaryItem = version == 0 ? box.getShort() & 0xffff : box.getInt();
+            } else if (type == fourCc("iinf")) {
+                int version = box.get();
+                box.position(4);
+                int count = version == 0 ? box.getShort() & 0xffff : box.getInt();
+                for (int i = 0; i < count; ++i) {
+                    int infeSize = box.getInt();
+                    int next = box.position() - 4 + infeSize;
+                    box.getInt(); // "infe"
+                    int infeVersion = box.get();
+                    box.position(box.position() + 3);
+                    int itemId = infeVersion < 3 ? box.getShort() & 0xffff : box.getInt();
+                    box.getShort(); // protection index
+                    int itemType = box.getInt();
+                    if (itemType == fourCc("Exif")) {
+                        exifItem = itemId;
+                    } else if (itemType == fourCc("mime")) {
+                        readString(box); // name
+                        if (XMP_CONTENT_TYPE.equals(readString(box))) {
+                            xmpItem = itemId;
+                        }
+                    }
+                    box.position(next);
+                }
+            } else if (type == fourCc("iloc")) {
+                readLocations(box, locations);
+            } else if (type == fourCc("iprp")) {
+                readProperties(box, properties, associations);
+            }
+            meta.position(start + size);
+        }
+
+        int[] primaryProperties = associations.get(primaryItem);
+        if (primaryProperties != null) {
+            mMetadata.put(METADATA_KEY_HAS_IMAGE, "yes");
+            int rotation = 0;
+            for (int index : primaryProperties) {
+                ByteBuffer property = properties.get(index);
+                if (property == null) {
+                    continue;
+                }
+                int type = property.getInt(4);
+                if (type == fourCc("ispe")) {
+                    // FullBox header, then the width and the height
+                    mMetadata.put(METADATA_KEY_IMAGE_WIDTH,
+                            Integer.toString(property.getInt(12)));
+                    mMetadata.put(METADATA_KEY_IMAGE_HEIGHT,
+                            Integer.toString(property.getInt(16)));
+                } else if (type == fourCc("irot")) {
+                    // counter-clockwise quarter turns, the framework reports clockwise degrees
+                    rotation = (4 - (property.get(8) & 3)) % 4 * 90;
+                }
+            }
+            mMetadata.put(METADATA_KEY_IMAGE_ROTATION, Integer.toString(rotation));
+        }
+
+        long[] exif = locations.get(exifItem);
+        if (exif != null) {
+            // the item starts with the offset of the TIFF header, which "Exif\0\0" precedes
+            int tiffHeaderOffset = ByteBuffer.wrap(read(source, exif[0], 4)).getInt();
+            if (tiffHeaderOffset >= 6 && 4 + tiffHeaderOffset <= exif[1]) {
+                long offset = exif[0] + 4 + tiffHeaderOffset - 6;
+                mMetadata.put(METADATA_KEY_EXIF_OFFSET, Long.toString(offset));
+                mMetadata.put(METADATA_KEY_EXIF_LENGTH,
+                        Long.toString(exif[0] + exif[1] - offset));
+            }
+        }
+        long[] xmp = locations.get(xmpItem);
+        if (xmp != null) {
+            mMetadata.put(METADATA_KEY_XMP_OFFSET, Long.toString(xmp[0]));
+            mMetadata.put(METADATA_KEY_XMP_LENGTH, Long.toString(xmp[1]));
+        }
+    }
+
+    // Reads the file offset and length of every item that is stored in a single extent.
+    private static void readLocations(ByteBuffer box, Map<Integer, long[]> locations) {
+        int version = box.get();
+        box.position(4);
+        int sizes = box.getShort() & 0xffff;
+        int offsetSize = sizes >> 12;
+        int lengthSize = (sizes >> 8) & 0xf;
+        int baseOffsetSize = (sizes >> 4) & 0xf;
+        int indexSize = version > 0 ? sizes & 0xf : 0;
+        int count = version < 2 ? box.getShort() & 0xffff : box.getInt();
+        for (int i = 0; i < count; ++i) {
+            int itemId = version < 2 ? box.getShort() & 0xffff : box.getInt();
+            int constructionMethod = version > 0 ? box.getShort() & 0xf : 0;
+            box.getShort(); // data reference index
+            long baseOffset = readSized(box, baseOffsetSize);
+            int extentCount = box.getShort() & 0xffff;
+            long offset = 0;
+            long length = 0;
+            for (int j = 0; j < extentCount; ++j) {
+                readSized(box, indexSize);
+                offset = readSized(box, offsetSize);
+                length = readSized(box, lengthSize);
+            }
+            if (constructionMethod == 0 && extentCount == 1) {
+                locations.put(itemId, new long[] {baseOffset + offset, length});
+            }
+        }
+    }
+
+    // Collects the boxes of ipco by their 1-based index and the indices associated to each item.
+    private static void readProperties(ByteBuffer iprp, Map<Integer, ByteBuffer> properties,
+            Map<Integer, int[]> associations) {
+        while (iprp.remaining() >= 8) {
+            int start = iprp.position();
+            int size = iprp.getInt();
+            int type = iprp.getInt();
+            if (type == fourCc("ipco")) {
+                int index = 1;
+                while (iprp.position() < start + size) {
+                    int propertyStart = iprp.position();
+                    int propertySize = iprp.getInt();
+                    ByteBuffer property = iprp.duplicate();
+                    property.position(propertyStart).limit(propertyStart + propertySize);
+                    properties.put(index++, property.slice());
+                    iprp.position(propertyStart + propertySize);
+                }
+            } else if (type == fourCc("ipma")) {
+                int version = iprp.get();
+                int flags = iprp.getShort() << 8 | iprp.get() & 0xff;
+                int count = iprp.getInt();
+                for (int i = 0; i < count; ++i) {
+                    int itemId = version < 1 ? iprp.getShort() & 0xffff : iprp.getInt();
+                    int[] indices = new int[iprp.get() & 0xff];
+                    for (int j = 0; j < indices.length; ++j) {
+                        // the top bit tells whether the property is essential
+                        indices[j] = (flags & 1) != 0 ? iprp.getShort() & 0x7fff
+                                : iprp.get() & 0x7f;
+                    }
+                    associations.put(itemId, indices);
+                }
+            }
+            iprp.position(start + size);
+        }
+    }
+
+    private static long readSized(ByteBuffer buffer, int size) {
+        switch (size) {
+            case 0:
+                return 0;
+            case 4:
+                return buffer.getInt() & 0xffffffffL;
+            case 8:
+                return buffer.getLong();
+            default:
+                throw new IllegalArgumentException("Invalid field size: " + size);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int start = buffer.position();
+        while (buffer.get() != 0) {
+            // find the terminator
+        }
+        byte[] bytes = new byte[buffer.position() - start - 1];
+        buffer.position(start);
+        buffer.get(bytes);
+        buffer.get();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(MediaDataSource source, long position, int length)
+            throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = source.readAt(position + read, bytes, read, length - read);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    private static int fourCc(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+/** Shim that reports the API level the benchmarks stand in for. */
+public final class Build {
+    private Build() {}
+
+    public static final class VERSION {
+        public static final int SDK_INT = 36;
+
+        private VERSION() {}
+    }
+}
@@ -0,0 +1,18 @@
+package android.system;
+
+/** Shim of the framework exception, see Os. */
+public final class ErrnoException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public final int errno;
+
+    public ErrnoException(String functionName, int errno) {
+        super(functionName + " failed: errno " + errno);
+        this.errno = errno;
+    }
+
+    public ErrnoException(String functionName, int errno, Throwable cause) {
+        super(functionName + " failed: errno " + errno, cause);
+        this.errno = errno;
+    }
+}
@@ -0,0 +1,101 @@
+package android.system;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Shim of the system calls the EXIF stack makes, on top of a FileChannel of the descriptor.
+ * dup() hands out the same descriptor instead of a new one, so close() leaves descriptors to
+ * whoever opened them.
+ */
+public final class Os {
+    private Os() {}
+
+    private static FileChannel channel(FileDescriptor fd) {
+        // closing the stream would close the descriptor, it's left open like the caller's one
+        return new FileOutputStream(fd).getChannel();
+    }
+
+    public static FileDescriptor dup(FileDescriptor fd) throws ErrnoException {
+        if (!fd.valid()) {
+            throw new ErrnoException("dup", OsConstants.EBADF);
+        }
+        return fd;
+    }
+
+    public static void close(FileDescriptor fd) throws ErrnoException {
+        if (!fd.valid()) {
+            throw new ErrnoException("close", OsConstants.EBADF);
+        }
+    }
+
+    public static long lseek(FileDescriptor fd, long offset, int whence) throws ErrnoException {
+        try {
+            FileChannel channel = channel(fd);
+            long position;
+            switch (whence) {
+                case OsConstants.SEEK_SET:
+                    position = offset;
+                    break;
+                case OsConstants.SEEK_CUR:
+                    position = channel.position() + offset;
+                    break;
+                case OsConstants.SEEK_END:
+                    position = channel.size() + offset;
+                    break;
+                default:
+                    throw new ErrnoException("lseek", OsConstants.EINVAL);
+            }
+            channel.position(position);
+            return position;
+        } catch (IOException e) {
+            throw new ErrnoException("lseek", OsConstants.ESPIPE, e);
+        }
+    }
+
+    public static int write(FileDescriptor fd, ByteBuffer buffer)
+            throws ErrnoException, InterruptedIOException {
+        try {
+            return channel(fd).write(buffer);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ErrnoException("write", OsConstants.EIO, e);
+        }
+    }
+
+    public static int writev(FileDescriptor fd, Object[] buffers, int[] offsets, int[] byteCounts)
+            throws ErrnoException, InterruptedIOException {
+        ByteBuffer[] views = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; ++i) {
+            if (buffers[i] instanceof ByteBuffer) {
+                views[i] = ((ByteBuffer) buffers[i]).duplicate();
+                views[i].position(offsets[i]).limit(offsets[i] + byteCounts[i]);
+            } else {
+                views[i] = ByteBuffer.wrap((byte[]) buffers[i], offsets[i], byteCounts[i]);
+            }
+        }
+        try {
+            return (int) channel(fd).write(views);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ErrnoException("writev", OsConstants.EIO, e);
+        }
+    }
+
+    public static int pwrite(FileDescriptor fd, byte[] bytes, int byteOffset, int byteCount,
+            long offset) throws ErrnoException, InterruptedIOException {
+        try {
+            return channel(fd).write(ByteBuffer.wrap(bytes, byteOffset, byteCount), offset);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ErrnoException("pwrite", OsConstants.EIO, e);
+        }
+    }
+}
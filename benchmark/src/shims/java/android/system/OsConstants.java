@@ -0,0 +1,15 @@
+package android.system;
+
+/** Shim with the constants the EXIF stack uses. */
+public final class OsConstants {
+    public static final int EIO = 5;
+    public static final int EBADF = 9;
+    public static final int EINVAL = 22;
+    public static final int ESPIPE = 29;
+
+    public static final int SEEK_SET = 0;
+    public static final int SEEK_CUR = 1;
+    public static final int SEEK_END = 2;
+
+    private OsConstants() {}
+}
@@ -0,0 +1,12 @@
+package androidx.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/** Shim of the lint annotation. */
+@Retention(RetentionPolicy.SOURCE)
+public @interface RequiresApi {
+    int value() default 1;
+
+    int api() default 1;
+}
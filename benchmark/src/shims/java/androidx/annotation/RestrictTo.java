@@ -0,0 +1,17 @@
+package androidx.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/** Shim of the lint annotation. */
+@Retention(RetentionPolicy.SOURCE)
+public @interface RestrictTo {
+    Scope[] value();
+
+    enum Scope {
+        LIBRARY,
+        LIBRARY_GROUP,
+        LIBRARY_GROUP_PREFIX,
+        SUBCLASSES,
+    }
+}
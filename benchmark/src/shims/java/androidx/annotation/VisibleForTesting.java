@@ -0,0 +1,15 @@
+package androidx.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/** Shim of the lint annotation. */
+@Retention(RetentionPolicy.SOURCE)
+public @interface VisibleForTesting {
+    int PRIVATE = 2;
+    int PACKAGE_PRIVATE = 3;
+    int PROTECTED = 4;
+    int NONE = 5;
+
+    int otherwise() default PRIVATE;
+}
@@ -0,0 +1,15 @@
+package androidx.camera.core;
+
+import java.nio.ByteBuffer;
+
+/** Shim of the parts of the CameraX image that Exif reads from. */
+public interface ImageProxy extends AutoCloseable {
+    PlaneProxy[] getPlanes();
+
+    @Override
+    void close();
+
+    interface PlaneProxy {
+        ByteBuffer getBuffer();
+    }
+}
@@ -0,0 +1,16 @@
+package androidx.camera.core;
+
+/** Shim that drops everything, like android.util.Log. */
+public final class Logger {
+    private Logger() {}
+
+    public static void d(String tag, String message) {}
+
+    public static void w(String tag, String message) {}
+
+    public static void w(String tag, String message, Throwable throwable) {}
+
+    public static void e(String tag, String message) {}
+
+    public static void e(String tag, String message, Throwable throwable) {}
+}
@@ -13,3 +13,4 @@ dependencyResolutionManagement {
 }
 rootProject.name = "Camera"
 include(":app")
+include(":benchmark")